@@ -0,0 +1,333 @@
+package com.seismicgames.androiddownloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unpacks an archive into a directory while it is read, without ever having the archive itself on disk. The format
+ * is sniffed from the first bytes: zip, tar, gzipped tar, or a single gzipped file.
+ *
+ * Zips are read front to back from their local headers, the central directory is never seen, so zips that store
+ * entries uncompressed with a data descriptor after them can't be unpacked. Tar links and devices are skipped.
+ * Entries that would land outside the directory fail the whole archive.
+ */
+class ArchiveExtractor {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TAR_BLOCK = 512;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File dir;
+    private final String dirPath;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long bytesWritten;
+    private int files;
+
+    /**
+     * Thrown for archives that are corrupt, of an unknown format or unsafe to unpack
+     */
+    static class ArchiveException extends IOException {
+        ArchiveException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param dir - directory to unpack into, created if missing
+     */
+    ArchiveExtractor(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("could not create " + dir);
+        dirPath = dir.getCanonicalPath() + File.separator;
+    }
+
+    /**
+     * Unpack everything in input, which is read as far as the archive goes but not closed
+     *
+     * @param name - file name of a single gzipped file, without the .gz
+     */
+    void extract(InputStream input, String name) throws IOException {
+        if (!input.markSupported()) input = new BufferedInputStream(input, BUFFER_SIZE);
+        try {
+            byte[] magic = peek(input, 4);
+            if (magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+                extractZip(input);
+            } else if ((magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+                InputStream gunzipped = new BufferedInputStream(new GZIPInputStream(input, BUFFER_SIZE), BUFFER_SIZE);
+                if (isTar(gunzipped)) {
+                    extractTar(gunzipped);
+                } else {
+                    writeFile(gunzipped, name, -1);
+                }
+                //to the end of the gzip trailer, which is checked on the way
+                while (gunzipped.read(buffer) >= 0) ;
+            } else if (isTar(input)) {
+                extractTar(input);
+            } else {
+                throw new ArchiveException("not a zip, tar or gzip file");
+            }
+        } catch (ZipException e) {
+            throw new ArchiveException("corrupt archive: " + e.getMessage());
+        } catch (EOFException e) {
+            throw new ArchiveException("archive ends early");
+        }
+    }
+
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    int getFiles() {
+        return files;
+    }
+
+    private void extractZip(InputStream input) throws IOException {
+        ZipInputStream zip = new ZipInputStream(input);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                mkdirs(resolve(entry.getName()));
+            } else {
+                writeFile(zip, entry.getName(), -1);
+            }
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * ustar with the GNU long name and pax path extensions
+     */
+    private void extractTar(InputStream input) throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (true) {
+            if (readFully(input, header, TAR_BLOCK) < TAR_BLOCK) throw new EOFException();
+            if (isZeros(header)) return;
+            if (!checksumMatches(header)) throw new ArchiveException("corrupt tar header");
+
+            long size = parseOctal(header, 124, 12);
+            char type = (char) header[156];
+            String name = longName != null ? longName : headerName(header);
+            longName = null;
+
+            switch (type) {
+                case '0':
+                case '\0':
+                case '7':
+                    writeFile(input, name, size);
+                    break;
+                case '5':
+                    mkdirs(resolve(name));
+                    skip(input, size);
+                    break;
+                case 'L':
+                    longName = trimNul(new String(readEntry(input, size), UTF_8));
+                    break;
+                case 'x':
+                    longName = paxPath(readEntry(input, size));
+                    break;
+                default:
+                    //links, devices, global pax headers
+                    skip(input, size);
+                    break;
+            }
+            skip(input, (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK);
+        }
+    }
+
+    private static String headerName(byte[] header) {
+        String name = cString(header, 0, 100);
+        //ustar splits long names between a prefix and the name
+        if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') {
+            String prefix = cString(header, 345, 155);
+            if (prefix.length() > 0) name = prefix + "/" + name;
+        }
+        return name;
+    }
+
+    /**
+     * @return - path from pax records, "length key=value\n" each, null if there is none
+     */
+    private static String paxPath(byte[] records) throws ArchiveException {
+        String path = null;
+        int offset = 0;
+        while (offset < records.length) {
+            int space = offset;
+            while (space < records.length && records[space] != ' ') space++;
+            int length;
+            try {
+                length = Integer.parseInt(new String(records, offset, space - offset, UTF_8));
+            } catch (NumberFormatException e) {
+                throw new ArchiveException("corrupt pax header");
+            }
+            if (length < space - offset + 2 || offset + length > records.length) {
+                throw new ArchiveException("corrupt pax header");
+            }
+            String record = new String(records, space + 1, offset + length - space - 2, UTF_8);
+            if (record.startsWith("path=")) path = record.substring("path=".length());
+            offset += length;
+        }
+        return path;
+    }
+
+    private byte[] readEntry(InputStream input, long size) throws IOException {
+        if (size > BUFFER_SIZE) throw new ArchiveException("tar header too long");
+        byte[] entry = new byte[(int) size];
+        if (readFully(input, entry, entry.length) < entry.length) throw new EOFException();
+        return entry;
+    }
+
+    /**
+     * @param size - bytes of the file in input, -1 for all of input
+     */
+    private void writeFile(InputStream input, String name, long size) throws IOException {
+        File file = resolve(name);
+        if (file.getCanonicalPath().equals(dir.getCanonicalPath())) throw new ArchiveException("unnamed entry");
+        mkdirs(file.getParentFile());
+        OutputStream output = null;
+        try {
+            output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+            long remaining = size;
+            while (remaining != 0) {
+                int n = input.read(buffer, 0, remaining < 0 ? buffer.length : (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    if (remaining < 0) break;
+                    throw new EOFException();
+                }
+                output.write(buffer, 0, n);
+                bytesWritten += n;
+                if (remaining > 0) remaining -= n;
+            }
+            output.close();
+            output = null;
+            files++;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * @return - where an entry goes, never outside of dir
+     */
+    File resolve(String name) throws ArchiveException {
+        String path = name.replace('\\', '/');
+        while (path.startsWith("./")) path = path.substring(2);
+        if (path.startsWith("/")) throw new ArchiveException("unsafe entry " + name);
+        for (String segment : path.split("/")) {
+            if (segment.equals("..")) throw new ArchiveException("unsafe entry " + name);
+        }
+
+        File file = new File(dir, path);
+        try {
+            //a symlink already in dir could still lead out of it
+            if (!(file.getCanonicalPath() + File.separator).startsWith(dirPath)) {
+                throw new ArchiveException("unsafe entry " + name);
+            }
+        } catch (ArchiveException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new ArchiveException("unsafe entry " + name);
+        }
+        return file;
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("could not create " + dir);
+    }
+
+    private boolean isTar(InputStream input) throws IOException {
+        byte[] header = peek(input, TAR_BLOCK);
+        return header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a'
+                && header[261] == 'r' && checksumMatches(header);
+    }
+
+    /**
+     * @return - the first bytes of input, zeros past its end, without consuming them
+     */
+    private static byte[] peek(InputStream input, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        input.mark(length);
+        readFully(input, bytes, length);
+        input.reset();
+        return bytes;
+    }
+
+    private static boolean checksumMatches(byte[] header) {
+        long expected = parseOctal(header, 148, 8);
+        //the sum of the header with the checksum itself as spaces
+        long sum = 8 * ' ';
+        for (int i = 0; i < TAR_BLOCK; i++) {
+            if (i < 148 || i >= 156) sum += header[i] & 0xff;
+        }
+        return sum == expected;
+    }
+
+    private static boolean isZeros(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    private static long parseOctal(byte[] bytes, int offset, int length) {
+        //GNU tar writes sizes over 8GB in base 256, flagged by the high bit
+        if ((bytes[offset] & 0x80) != 0) {
+            long value = 0;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (bytes[offset + i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b == 0) break;
+            if (b >= '0' && b <= '7') value = value * 8 + (b - '0');
+        }
+        return value;
+    }
+
+    private static String cString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) end++;
+        return new String(bytes, offset, end - offset, UTF_8);
+    }
+
+    private static String trimNul(String string) {
+        int nul = string.indexOf('\0');
+        return nul < 0 ? string : string.substring(0, nul);
+    }
+
+    private void skip(InputStream input, long count) throws IOException {
+        while (count > 0) {
+            int n = input.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (n < 0) throw new EOFException();
+            count -= n;
+        }
+    }
+
+    private static int readFully(InputStream input, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = input.read(buffer, total, length - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,352 @@
+package com.seismicgames.androiddownloader;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Describes a file as fixed size blocks with a weak rolling checksum and a strong one each, the way rsync and
+ * zsync do, so whoever has an older version of the file can find the blocks it still has anywhere in its copy
+ * and fetch only the rest. Built where the file is published, with {@link #build(InputStream, int, String)} and
+ * {@link #write(OutputStream)}.
+ *
+ * Written big endian: magic, version, block size, file length, digest algorithm and digest in hex of the whole
+ * file as modified UTF-8, then the weak checksum and MD5 of every block. A last block shorter than the others is
+ * always fetched.
+ */
+public class BlockIndex {
+    static final int MAGIC = 0x4e444249;
+    static final int VERSION = 1;
+    static final String STRONG_ALGORITHM = "MD5";
+    static final int STRONG_LENGTH = 16;
+
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    final int blockSize;
+    final long length;
+    final String digestAlgorithm;
+    final String digest;
+    private final int[] weak;
+    //STRONG_LENGTH bytes per block
+    private final byte[] strong;
+
+    private BlockIndex(int blockSize, long length, String digestAlgorithm, String digest, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digest = digest;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Index a file
+     *
+     * @param input           - the file, read to the end but not closed
+     * @param blockSize       - bytes per block, smaller blocks find more of a changed file but make a bigger index
+     * @param digestAlgorithm - of the whole file, anything {@link DownloadTask#setExpectedDigest(String, String)}
+     *                        takes
+     */
+    public static BlockIndex build(InputStream input, int blockSize, String digestAlgorithm)
+            throws IOException, NoSuchAlgorithmException {
+        if (blockSize < 1) throw new IllegalArgumentException("blockSize must be at least 1");
+        StreamingDigest fileDigest = StreamingDigest.create(digestAlgorithm);
+        MessageDigest md5 = MessageDigest.getInstance(STRONG_ALGORITHM);
+
+        int[] weak = new int[16];
+        byte[] strong = new byte[16 * STRONG_LENGTH];
+        byte[] block = new byte[blockSize];
+        long length = 0;
+        int blocks = 0;
+        while (true) {
+            int n = readFully(input, block);
+            if (n == 0) break;
+            if (blocks == weak.length) {
+                weak = Arrays.copyOf(weak, blocks * 2);
+                strong = Arrays.copyOf(strong, blocks * 2 * STRONG_LENGTH);
+            }
+            fileDigest.update(block, 0, n);
+            weak[blocks] = weakChecksum(block, 0, n);
+            md5.update(block, 0, n);
+            System.arraycopy(md5.digest(), 0, strong, blocks * STRONG_LENGTH, STRONG_LENGTH);
+            length += n;
+            blocks++;
+            if (n < blockSize) break;
+        }
+        return new BlockIndex(blockSize, length, digestAlgorithm, fileDigest.toHex(),
+                Arrays.copyOf(weak, blocks), Arrays.copyOf(strong, blocks * STRONG_LENGTH));
+    }
+
+    /**
+     * @param input - an index as written by {@link #write(OutputStream)}, not closed
+     */
+    static BlockIndex read(InputStream input) throws IOException {
+        DataInputStream data = new DataInputStream(input);
+        if (data.readInt() != MAGIC) throw new IOException("not a block index");
+        int version = data.readInt();
+        if (version != VERSION) throw new IOException("unknown block index version " + version);
+
+        int blockSize = data.readInt();
+        long length = data.readLong();
+        if (blockSize < 1 || length < 0 || (length + blockSize - 1) / blockSize > Integer.MAX_VALUE / STRONG_LENGTH) {
+            throw new IOException("corrupt block index");
+        }
+        String digestAlgorithm = data.readUTF();
+        String digest = data.readUTF();
+
+        int blocks = (int) ((length + blockSize - 1) / blockSize);
+        int[] weak = new int[blocks];
+        byte[] strong = new byte[blocks * STRONG_LENGTH];
+        for (int i = 0; i < blocks; i++) {
+            weak[i] = data.readInt();
+            data.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        return new BlockIndex(blockSize, length, digestAlgorithm, digest, weak, strong);
+    }
+
+    /**
+     * @param output - flushed but not closed
+     */
+    public void write(OutputStream output) throws IOException {
+        DataOutputStream data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(blockSize);
+        data.writeLong(length);
+        data.writeUTF(digestAlgorithm);
+        data.writeUTF(digest);
+        for (int i = 0; i < weak.length; i++) {
+            data.writeInt(weak[i]);
+            data.write(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        data.flush();
+    }
+
+    int blockCount() {
+        return weak.length;
+    }
+
+    long blockStart(int block) {
+        return (long) block * blockSize;
+    }
+
+    int blockLength(int block) {
+        return (int) Math.min(blockSize, length - blockStart(block));
+    }
+
+    /**
+     * @param md5 - digest of the block's bytes
+     */
+    boolean matches(int block, byte[] md5) {
+        for (int i = 0; i < STRONG_LENGTH; i++) {
+            if (strong[block * STRONG_LENGTH + i] != md5[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the blocks of this file in an older version, at any offset, by rolling the weak checksum over it a byte
+     * at a time and confirming candidates with the strong one
+     *
+     * @param base - the older version, read to the end but not closed
+     * @return - offset in base of every block, -1 for blocks base doesn't have
+     */
+    long[] findBlocks(InputStream base) throws IOException {
+        long[] sources = new long[blockCount()];
+        Arrays.fill(sources, -1);
+        int fullBlocks = (int) (length / blockSize);
+        if (fullBlocks == 0) return sources;
+
+        WeakTable byWeak = new WeakTable(weak, fullBlocks);
+
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance(STRONG_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[Math.max(2 * blockSize + 1, SCAN_BUFFER_SIZE)];
+        //the window is buffer[start, start + blockSize), at offset in base
+        int start = 0;
+        int end = 0;
+        long offset = 0;
+        boolean eof = false;
+        boolean fresh = true;
+        Rolling rolling = new Rolling(blockSize);
+        int unmatched = fullBlocks;
+
+        while (unmatched > 0) {
+            if (end - start <= blockSize && !eof) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+                int n = readFully(base, buffer, end);
+                end += n;
+                eof = end < buffer.length;
+            }
+            if (end - start < blockSize) break;
+            if (fresh) {
+                rolling.reset(buffer, start);
+                fresh = false;
+            }
+
+            boolean matched = false;
+            int block = byWeak.first(rolling.value());
+            if (block >= 0) {
+                md5.update(buffer, start, blockSize);
+                byte[] strong = md5.digest();
+                for (; block >= 0; block = byWeak.next(block)) {
+                    if (sources[block] < 0 && matches(block, strong)) {
+                        sources[block] = offset;
+                        unmatched--;
+                        matched = true;
+                    }
+                }
+            }
+
+            if (matched) {
+                start += blockSize;
+                offset += blockSize;
+                fresh = true;
+            } else if (end - start > blockSize) {
+                rolling.roll(buffer[start], buffer[start + blockSize]);
+                start++;
+                offset++;
+            } else {
+                break;
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * rsync's checksum, the sum of the bytes in the low half and the sum of the running sums in the high half
+     */
+    static int weakChecksum(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += bytes[offset + i] & 0xff;
+            b += a;
+        }
+        return (b << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Blocks by weak checksum in open addressed int arrays, looked up for every byte of the base without boxing
+     */
+    static class WeakTable {
+        //weak checksum of the slot's blocks, and the first of them plus one, 0 for an empty slot
+        private final int[] keys;
+        private final int[] heads;
+        private final int mask;
+        //next block with the same weak checksum, -1 for the last
+        private final int[] next;
+
+        /**
+         * @param weak   - weak checksum of every block
+         * @param blocks - how many of the first blocks to look up
+         */
+        WeakTable(int[] weak, int blocks) {
+            //at most half full so misses, the common case, stop at an empty slot soon
+            int size = Integer.highestOneBit(Math.max(blocks, 1)) * 4;
+            keys = new int[size];
+            heads = new int[size];
+            mask = size - 1;
+            next = new int[blocks];
+            //backwards so every chain is in block order
+            for (int block = blocks - 1; block >= 0; block--) {
+                int slot = slot(weak[block]);
+                if (heads[slot] == 0) {
+                    keys[slot] = weak[block];
+                    next[block] = -1;
+                } else {
+                    next[block] = heads[slot] - 1;
+                }
+                heads[slot] = block + 1;
+            }
+        }
+
+        /**
+         * @return - the first block with the weak checksum, -1 for none
+         */
+        int first(int weak) {
+            return heads[slot(weak)] - 1;
+        }
+
+        /**
+         * @return - the block after this one with its weak checksum, -1 for none
+         */
+        int next(int block) {
+            return next[block];
+        }
+
+        //the slot holding weak, or the empty one it would go in
+        private int slot(int weak) {
+            //the low half is a plain byte sum, mix so similar checksums don't crowd one run of slots
+            int hash = weak * 0x9e3779b9;
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (heads[slot] != 0 && keys[slot] != weak) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    /**
+     * {@link #weakChecksum(byte[], int, int)} over a window that moves a byte at a time
+     */
+    static class Rolling {
+        private final int length;
+        private int a;
+        private int b;
+
+        Rolling(int length) {
+            this.length = length;
+        }
+
+        void reset(byte[] bytes, int offset) {
+            a = 0;
+            b = 0;
+            for (int i = 0; i < length; i++) {
+                a += bytes[offset + i] & 0xff;
+                b += a;
+            }
+        }
+
+        /**
+         * @param out - byte leaving the window at its start
+         * @param in  - byte entering it at its end
+         */
+        void roll(byte out, byte in) {
+            a += (in & 0xff) - (out & 0xff);
+            b += a - length * (out & 0xff);
+        }
+
+        int value() {
+            return (b << 16) | (a & 0xffff);
+        }
+    }
+
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        return readFully(input, buffer, 0);
+    }
+
+    /**
+     * @return - bytes read into buffer from offset on, less than it has room for only at the end of input
+     */
+    private static int readFully(InputStream input, byte[] buffer, int offset) throws IOException {
+        int total = 0;
+        while (offset + total < buffer.length) {
+            int n = input.read(buffer, offset + total, buffer.length - offset - total);
+            if (n < 0) break;
+            total += n;
+        }
+        return total;
+    }
+}
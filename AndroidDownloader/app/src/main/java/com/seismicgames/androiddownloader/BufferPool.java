@@ -0,0 +1,76 @@
+package com.seismicgames.androiddownloader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffers for writing downloads to disk, kept for the next transfer instead of left to the garbage collector. Each
+ * holds a small array that network reads land in, and a big direct buffer that collects them for the disk, so a
+ * file is written in a few large writes without the copy into a temporary direct buffer that writing a heap
+ * buffer costs.
+ */
+final class BufferPool {
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    static final int DEFAULT_READ_SIZE = 16 * 1024;
+    //enough for every connection of the engines, direct memory isn't returned until the pool lets go of it
+    private static final int DEFAULT_MAX_POOLED = 16;
+
+    private static final BufferPool shared = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_READ_SIZE, DEFAULT_MAX_POOLED);
+
+    static final class Buffer {
+        final ByteBuffer direct;
+        final byte[] scratch;
+
+        private Buffer(int bufferSize, int readSize) {
+            direct = ByteBuffer.allocateDirect(bufferSize);
+            scratch = new byte[readSize];
+        }
+    }
+
+    private final int bufferSize;
+    private final int readSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<Buffer> pooled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+    //buffers created since the pool was, for tests and benchmarks
+    final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param bufferSize - bytes collected before they are written
+     * @param readSize   - bytes read from the network at a time, at most bufferSize
+     * @param maxPooled  - buffers kept for reuse, more can be out at a time
+     */
+    BufferPool(int bufferSize, int readSize, int maxPooled) {
+        if (readSize < 1 || readSize > bufferSize) throw new IllegalArgumentException("bad read size " + readSize);
+        this.bufferSize = bufferSize;
+        this.readSize = readSize;
+        this.maxPooled = maxPooled;
+    }
+
+    static BufferPool shared() {
+        return shared;
+    }
+
+    Buffer acquire() {
+        Buffer buffer = pooled.poll();
+        if (buffer != null) {
+            pooledCount.decrementAndGet();
+            buffer.direct.clear();
+            return buffer;
+        }
+        allocated.incrementAndGet();
+        return new Buffer(bufferSize, readSize);
+    }
+
+    /**
+     * @param buffer - a buffer from this pool nothing uses anymore
+     */
+    void release(Buffer buffer) {
+        if (pooledCount.incrementAndGet() > maxPooled) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+        pooled.offer(buffer);
+    }
+}
@@ -0,0 +1,534 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a new version of a file the app already has an older version of, fetching only the blocks that
+ * changed. The server publishes a {@link BlockIndex} of the new version next to it. The old version is scanned for
+ * the blocks it still has, wherever they moved, and the new file is written front to back from those and from
+ * Range requests for the rest, hashed as it is written. Fetched blocks are checked against the index as they
+ * arrive, the whole file against the digest of the task, or of the index if the task has none.
+ *
+ * Without the old version every block is fetched, and a server that ignores ranges sends the whole file instead.
+ * Patches aren't journaled, one cut short by the app dying has to be started again. A patch that may not use the
+ * current network, see {@link NetworkPolicy}, waits on its thread before each request, reported as paused with
+ * PAUSED_QUEUED_FOR_WIFI.
+ */
+public class DeltaDownloadEngine implements DownloadEngine {
+    //bytes of neighbouring missing blocks fetched with one request
+    static final long MAX_REQUEST_BYTES = 4 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MS = 30 * 1000;
+
+    private final File downloadDir;
+    private final ExecutorService executor;
+    private final ConcurrentMap<Long, Patch> downloads = new ConcurrentHashMap<>();
+    private final RateLimiter rateLimiter;
+    private final NetworkPolicy networkPolicy;
+
+    /**
+     * @param downloadDir - directory to download into
+     * @param maxParallel - patches built at the same time
+     */
+    public DeltaDownloadEngine(File downloadDir, int maxParallel) {
+        this(downloadDir, maxParallel, new RateLimiter());
+    }
+
+    /**
+     * @param rateLimiter - bandwidth limit, possibly shared with other engines
+     */
+    DeltaDownloadEngine(File downloadDir, int maxParallel, RateLimiter rateLimiter) {
+        this(downloadDir, maxParallel, rateLimiter, new NetworkPolicy());
+    }
+
+    /**
+     * @param networkPolicy - which networks tasks may use, possibly shared with other engines
+     */
+    DeltaDownloadEngine(File downloadDir, int maxParallel, RateLimiter rateLimiter, NetworkPolicy networkPolicy) {
+        if (maxParallel < 1) throw new IllegalArgumentException("maxParallel must be at least 1");
+
+        this.downloadDir = downloadDir;
+        this.rateLimiter = rateLimiter;
+        this.networkPolicy = networkPolicy;
+        executor = Executors.newFixedThreadPool(maxParallel, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DeltaDownloadEngine-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param task - a task with {@link DownloadTask#setPatchBase(String, String)}
+     */
+    @Override
+    public long enqueue(DownloadTask task) throws IOException {
+        if (!task.isPatch()) throw new IllegalArgumentException(task.getUrl() + " is not a patch");
+        if (!downloadDir.isDirectory() && !downloadDir.mkdirs()) {
+            throw new IOException("could not create " + downloadDir);
+        }
+
+        Patch patch = new Patch(DownloadIds.next(), task, new File(downloadDir, task.getFileName()));
+        downloads.put(patch.id, patch);
+        executor.execute(patch);
+        return patch.id;
+    }
+
+    @Override
+    public boolean verifiesDigest() {
+        return true;
+    }
+
+    @Override
+    public boolean preallocates() {
+        return false;
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return DownloadIds.isInProcess(id) && downloads.containsKey(id);
+    }
+
+    @Override
+    public void query(long[] ids, long[] out) {
+        for (int i = 0; i < ids.length; i++) {
+            if (!DownloadIds.isInProcess(ids[i])) continue;
+            Patch patch = downloads.get(ids[i]);
+            if (patch == null) continue;
+
+            int offset = i * DownloadService.STATUS_STRIDE;
+            out[offset + DownloadService.STATUS_FIELD_STATUS] = patch.status;
+            out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = patch.bytesSoFar;
+            out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = patch.totalBytes;
+            out[offset + DownloadService.STATUS_FIELD_REASON] = patch.reason;
+        }
+    }
+
+    @Override
+    public FileInputStream openDownloadedFile(long id) throws IOException {
+        File file = getDownloadedFile(id);
+        if (file == null) throw new FileNotFoundException("patch " + id + " has not finished");
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public File getDownloadedFile(long id) {
+        Patch patch = downloads.get(id);
+        if (patch == null || patch.status != DownloadManager.STATUS_SUCCESSFUL) return null;
+        return patch.file;
+    }
+
+    @Override
+    public String getETag(long id) {
+        return null;
+    }
+
+    @Override
+    public boolean pause(long id) {
+        return false;
+    }
+
+    @Override
+    public boolean resume(long id) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(long id) {
+        Patch patch = downloads.remove(id);
+        if (patch == null) return false;
+
+        patch.canceled = true;
+        return !patch.file.exists() || patch.file.delete();
+    }
+
+    /**
+     * Stop all running patches, the engine can't be used afterwards
+     */
+    public void shutdown() {
+        for (Patch patch : downloads.values()) {
+            patch.canceled = true;
+        }
+        executor.shutdownNow();
+    }
+
+    private HttpURLConnection openConnection(DownloadTask task, String url, long start, long end) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        for (Map.Entry<String, String> header : task.getRequestHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (task.hasCookie()) {
+            connection.setRequestProperty("Cookie", task.getCookie());
+        }
+        if (start >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+        }
+        return connection;
+    }
+
+    /**
+     * Ends a patch with a reason, one of DownloadManager's, an HTTP code or {@link DownloadService#ERROR_CANCELED}
+     */
+    private static class PatchException extends IOException {
+        final int reason;
+
+        PatchException(int reason) {
+            super("patch failed: " + reason);
+            this.reason = reason;
+        }
+    }
+
+    private class Patch implements Runnable {
+        final long id;
+        final DownloadTask task;
+        final File file;
+
+        volatile int status = DownloadManager.STATUS_PENDING;
+        volatile int reason;
+        volatile long bytesSoFar;
+        volatile long totalBytes = -1;
+        volatile boolean canceled;
+
+        //only touched by the thread building the patch
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private long reused;
+        private long fetched;
+
+        Patch(long id, DownloadTask task, File file) {
+            this.id = id;
+            this.task = task;
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            if (canceled) return;
+            status = DownloadManager.STATUS_RUNNING;
+
+            OutputStream output = null;
+            RandomAccessFile base = null;
+            try {
+                BlockIndex index = fetchIndex();
+                totalBytes = index.length;
+                String algorithm = task.hasExpectedDigest() ? task.getDigestAlgorithm() : index.digestAlgorithm;
+                String expected = task.hasExpectedDigest() ? task.getExpectedDigest() : index.digest;
+                StreamingDigest digest;
+                try {
+                    digest = StreamingDigest.create(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new PatchException(DownloadService.ERROR_HASH_MISMATCH);
+                }
+
+                long[] sources = findBlocks(index);
+                for (long source : sources) {
+                    if (source >= 0) {
+                        base = new RandomAccessFile(task.getPatchBasePath(), "r");
+                        break;
+                    }
+                }
+
+                output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+                HttpURLConnection whole = build(index, sources, base, output, digest);
+                if (whole != null) {
+                    //the server ignores ranges, start over from the whole file it sends
+                    output.close();
+                    output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+                    digest.reset();
+                    bytesSoFar = 0;
+                    reused = 0;
+                    transfer(whole, output, digest);
+                }
+                output.close();
+                output = null;
+
+                if (!digest.matches(expected)) throw new PatchException(DownloadService.ERROR_HASH_MISMATCH);
+                finish();
+            } catch (PatchException e) {
+                fail(e.reason);
+            } catch (IOException e) {
+                fail(DownloadManager.ERROR_FILE_ERROR);
+            } finally {
+                close(output);
+                if (base != null) {
+                    try {
+                        base.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private BlockIndex fetchIndex() throws IOException {
+            awaitNetwork();
+            HttpURLConnection connection = openConnection(task, task.getBlockIndexUrl(), -1, -1);
+            InputStream input = null;
+            try {
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK) throw new PatchException(code);
+                input = new BufferedInputStream(connection.getInputStream());
+                return BlockIndex.read(input);
+            } catch (PatchException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new PatchException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+            } finally {
+                close(input);
+            }
+        }
+
+        /**
+         * @return - where the old version has each block, nothing if it can't be read
+         */
+        private long[] findBlocks(BlockIndex index) {
+            long[] none = new long[index.blockCount()];
+            Arrays.fill(none, -1);
+            String basePath = task.getPatchBasePath();
+            if (basePath == null || !new File(basePath).isFile()) return none;
+
+            InputStream input = null;
+            try {
+                input = new FileInputStream(basePath);
+                return index.findBlocks(input);
+            } catch (IOException e) {
+                return none;
+            } finally {
+                close(input);
+            }
+        }
+
+        /**
+         * Write the new file front to back, copying the blocks the old version has and fetching runs of the others
+         *
+         * @return - null once the file is written, or a response with the whole file if the server ignores ranges
+         */
+        private HttpURLConnection build(BlockIndex index, long[] sources, RandomAccessFile base, OutputStream output,
+                                        StreamingDigest digest) throws IOException {
+            int blocks = index.blockCount();
+            int block = 0;
+            while (block < blocks) {
+                if (canceled) throw new PatchException(DownloadService.ERROR_CANCELED);
+
+                if (sources[block] >= 0) {
+                    copy(base, sources[block], index.blockLength(block), output, digest);
+                    block++;
+                    continue;
+                }
+
+                int last = block;
+                while (last + 1 < blocks && sources[last + 1] < 0
+                        && index.blockStart(last + 1) + index.blockLength(last + 1) - index.blockStart(block) <= MAX_REQUEST_BYTES) {
+                    last++;
+                }
+                HttpURLConnection whole = fetch(index, block, last, output, digest);
+                if (whole != null) return whole;
+                block = last + 1;
+            }
+            return null;
+        }
+
+        private void copy(RandomAccessFile base, long offset, int length, OutputStream output, StreamingDigest digest)
+                throws IOException {
+            base.seek(offset);
+            int remaining = length;
+            while (remaining > 0) {
+                int n = base.read(buffer, 0, Math.min(buffer.length, remaining));
+                //the old version changed since it was scanned
+                if (n < 0) throw new PatchException(DownloadManager.ERROR_FILE_ERROR);
+                output.write(buffer, 0, n);
+                digest.update(buffer, 0, n);
+                remaining -= n;
+                reused += n;
+                bytesSoFar += n;
+            }
+        }
+
+        /**
+         * Fetch blocks first to last with one Range request, checking each against the index
+         *
+         * @return - null once they are written, or the response if it is the whole file
+         */
+        private HttpURLConnection fetch(BlockIndex index, int first, int last, OutputStream output,
+                                        StreamingDigest digest) throws IOException {
+            long start = index.blockStart(first);
+            long end = index.blockStart(last) + index.blockLength(last);
+            HttpURLConnection connection;
+            int code;
+            awaitNetwork();
+            try {
+                connection = openConnection(task, task.getUrl(), start, end);
+                code = connection.getResponseCode();
+            } catch (IOException e) {
+                throw new PatchException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+            }
+            if (code == HttpURLConnection.HTTP_OK) return connection;
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                connection.disconnect();
+                throw new PatchException(code);
+            }
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange == null || !contentRange.startsWith("bytes " + start + "-")) {
+                connection.disconnect();
+                throw new PatchException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+            }
+
+            MessageDigest md5;
+            try {
+                md5 = MessageDigest.getInstance(BlockIndex.STRONG_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            InputStream input = null;
+            try {
+                input = open(connection);
+                for (int block = first; block <= last; block++) {
+                    int remaining = index.blockLength(block);
+                    while (remaining > 0) {
+                        int n = read(input, Math.min(buffer.length, remaining));
+                        if (n < 0) throw new PatchException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+                        output.write(buffer, 0, n);
+                        digest.update(buffer, 0, n);
+                        md5.update(buffer, 0, n);
+                        remaining -= n;
+                        fetched += n;
+                        bytesSoFar += n;
+                    }
+                    //the file on the server isn't the one the index describes
+                    if (!index.matches(block, md5.digest())) throw new PatchException(DownloadService.ERROR_HASH_MISMATCH);
+                }
+                return null;
+            } finally {
+                close(input);
+            }
+        }
+
+        /**
+         * Copy a whole response body
+         */
+        private void transfer(HttpURLConnection connection, OutputStream output, StreamingDigest digest)
+                throws IOException {
+            InputStream input = null;
+            try {
+                input = open(connection);
+                while (true) {
+                    int n = read(input, buffer.length);
+                    if (n < 0) break;
+                    output.write(buffer, 0, n);
+                    digest.update(buffer, 0, n);
+                    fetched += n;
+                    bytesSoFar += n;
+                }
+            } finally {
+                close(input);
+            }
+        }
+
+        private InputStream open(HttpURLConnection connection) throws PatchException {
+            try {
+                return connection.getInputStream();
+            } catch (IOException e) {
+                throw new PatchException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+            }
+        }
+
+        /**
+         * Wait until the task may use the current network, reported as paused meanwhile
+         */
+        private void awaitNetwork() throws PatchException {
+            if (networkPolicy.allows(task)) return;
+            reason = DownloadManager.PAUSED_QUEUED_FOR_WIFI;
+            status = DownloadManager.STATUS_PAUSED;
+            try {
+                while (!networkPolicy.allows(task)) {
+                    if (canceled) throw new PatchException(DownloadService.ERROR_CANCELED);
+                    Thread.sleep(NetworkPolicy.CHECK_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                //the engine is shutting down
+                Thread.currentThread().interrupt();
+                throw new PatchException(DownloadService.ERROR_CANCELED);
+            }
+            status = DownloadManager.STATUS_RUNNING;
+            reason = 0;
+        }
+
+        /**
+         * Read from the network within the bandwidth limit
+         */
+        private int read(InputStream input, int max) throws IOException {
+            if (canceled) throw new PatchException(DownloadService.ERROR_CANCELED);
+            int n;
+            try {
+                n = input.read(buffer, 0, rateLimiter.chunkSize(max));
+            } catch (IOException e) {
+                throw new PatchException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+            }
+            if (n > 0) {
+                try {
+                    rateLimiter.acquire(n);
+                } catch (InterruptedException e) {
+                    //the engine is shutting down
+                    Thread.currentThread().interrupt();
+                    throw new PatchException(DownloadService.ERROR_CANCELED);
+                }
+            }
+            return n;
+        }
+
+        private void finish() {
+            if (canceled) return;
+            DownloadMetrics metrics = DownloadMetrics.shared();
+            metrics.add(DownloadMetrics.PATCH_BYTES_REUSED, reused);
+            metrics.add(DownloadMetrics.PATCH_BYTES_FETCHED, fetched);
+            status = DownloadManager.STATUS_SUCCESSFUL;
+        }
+
+        private void fail(int reason) {
+            if (canceled || reason == DownloadService.ERROR_CANCELED) {
+                if (file.exists() && !file.delete()) file.deleteOnExit();
+                return;
+            }
+            this.reason = reason;
+            status = DownloadManager.STATUS_FAILED;
+        }
+
+        private void close(Closeable closeable) {
+            if (closeable == null) return;
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
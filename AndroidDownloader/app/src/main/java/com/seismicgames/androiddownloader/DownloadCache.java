@@ -0,0 +1,573 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps copies of moved downloads, so a resource that was downloaded before can be served again without the
+ * network. Entries are keyed by content digest when the download had one, otherwise by URL and ETag.
+ *
+ * A digest hit is final and never touches the network. A URL hit is revalidated with If-None-Match first, and if
+ * the resource changed the download goes to the network after all, under the same handle. Either way the handle
+ * lives in this engine, so status and moves work as for any other download. A URL hit that may not use the
+ * current network, see {@link NetworkPolicy}, is paused with PAUSED_QUEUED_FOR_WIFI until it may revalidate.
+ *
+ * The cache is capped in bytes and evicts least recently used entries. The file of an entry that is evicted or
+ * replaced while hits still read it is deleted once the last of them is removed. Its index is a single small
+ * file, read once when the cache is created. Stores and evictions write it right away, the use order changed by
+ * hits is written in the background.
+ */
+class DownloadCache implements DownloadEngine {
+    static final String INDEX_FILE_NAME = "cache.index";
+    //hit handles come from DownloadIds and are always negative
+    static final long MISS = 0;
+
+    private static final String TAG = "DownloadCache";
+    private static final int INDEX_MAGIC = 0x4e444c43;
+    private static final int INDEX_VERSION = 1;
+    private static final int TIMEOUT_MS = 30 * 1000;
+
+    private static class Entry {
+        final String key;
+        final String etag;
+        final long size;
+        final long fileId;
+        //hits that haven't been removed yet, and if the file goes once they are, guarded by the cache
+        int pins;
+        boolean dropped;
+
+        Entry(String key, String etag, long size, long fileId) {
+            this.key = key;
+            this.etag = etag;
+            this.size = size;
+            this.fileId = fileId;
+        }
+    }
+
+    private class Hit {
+        final long handle;
+        final DownloadTask task;
+        final Entry entry;
+        //where the download goes if the entry turns out to be stale
+        final DownloadEngine engine;
+
+        volatile int status = DownloadManager.STATUS_PENDING;
+        volatile long engineId = STALE_NOT_STARTED;
+        volatile boolean removed;
+
+        Hit(long handle, DownloadTask task, Entry entry, DownloadEngine engine) {
+            this.handle = handle;
+            this.task = task;
+            this.entry = entry;
+            this.engine = engine;
+        }
+
+        boolean isForwarded() {
+            return engineId != STALE_NOT_STARTED;
+        }
+    }
+
+    private static final long STALE_NOT_STARTED = Long.MIN_VALUE;
+
+    private final File directory;
+    private final File indexFile;
+    private final ScheduledExecutorService revalidator;
+    private final NetworkPolicy networkPolicy;
+    private final Map<Long, Hit> hits = new ConcurrentHashMap<>();
+    private final ThreadLocal<StatusRow> statusRows = StatusRow.perThread();
+    //guarded by this, in access order so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long totalBytes;
+    private long nextFileId;
+    //guarded by this, if the use order changed since the index was written, and if a write is on its way
+    private boolean indexDirty;
+    private boolean indexSaveScheduled;
+    private final Runnable indexSaver = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DownloadCache.this) {
+                indexSaveScheduled = false;
+                if (indexDirty) saveIndex();
+            }
+        }
+    };
+
+    final AtomicLong hitCount = new AtomicLong();
+    final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param directory - directory only the cache writes to
+     * @param maxBytes  - size cap of all cached files together
+     */
+    DownloadCache(File directory, long maxBytes) {
+        this(directory, maxBytes, new NetworkPolicy());
+    }
+
+    /**
+     * @param networkPolicy - which networks revalidating a hit may use, possibly shared with the engines
+     */
+    DownloadCache(File directory, long maxBytes, NetworkPolicy networkPolicy) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.networkPolicy = networkPolicy;
+        indexFile = new File(directory, INDEX_FILE_NAME);
+        revalidator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        synchronized (this) {
+            loadIndex();
+        }
+    }
+
+    static String digestKey(String digestAlgorithm, String expectedDigest) {
+        return "digest:" + digestAlgorithm.toUpperCase(Locale.US) + ':' + expectedDigest.trim().toLowerCase(Locale.US);
+    }
+
+    static String urlKey(String url) {
+        return "url:" + url;
+    }
+
+    /**
+     * @return - key the task's download is cached under
+     */
+    static String keyOf(DownloadTask task) {
+        return task.hasExpectedDigest()
+                ? digestKey(task.getDigestAlgorithm(), task.getExpectedDigest())
+                : urlKey(task.getUrl());
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (evict()) saveIndex();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Serve a task from the cache if it has the task's resource. A URL hit is revalidated in the background and
+     * handed to engine if the resource changed.
+     *
+     * @param engine - engine to download with if a URL hit turns out to be stale
+     * @return - handle of the hit, or {@link #MISS}
+     */
+    long lookup(DownloadTask task, DownloadEngine engine) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(keyOf(task));
+            if (entry != null) {
+                if (!fileOf(entry).isFile()) {
+                    remove(entry);
+                    entry = null;
+                } else {
+                    entry.pins++;
+                }
+                //keeps the use order, without writing on the caller's thread
+                indexChanged();
+            }
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return MISS;
+        }
+
+        final Hit hit = new Hit(DownloadIds.next(), task, entry, engine);
+        hits.put(hit.handle, hit);
+        if (task.hasExpectedDigest()) {
+            //the content is what was asked for, there's nothing to revalidate
+            hit.status = DownloadManager.STATUS_SUCCESSFUL;
+            hitCount.incrementAndGet();
+        } else {
+            hit.status = DownloadManager.STATUS_RUNNING;
+            revalidator.execute(new Runnable() {
+                @Override
+                public void run() {
+                    revalidate(hit);
+                }
+            });
+        }
+        return hit.handle;
+    }
+
+    /**
+     * Add a copy of a finished download
+     *
+     * @param key  - see {@link #keyOf(DownloadTask)}
+     * @param etag - ETag of the download, required for URL keys
+     * @param file - the downloaded file, which stays where it is
+     */
+    void store(String key, String etag, File file) {
+        long size = file.length();
+        if (key.startsWith("url:") && (etag == null || etag.startsWith("W/"))) return;
+
+        long fileId;
+        synchronized (this) {
+            if (size > maxBytes) return;
+            fileId = nextFileId++;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) return;
+
+        File cached = new File(directory, Long.toHexString(fileId));
+        try {
+            FileTransfers.copy(new FileInputStream(file), cached);
+        } catch (IOException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "could not cache %s: %s", key, e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            Entry old = entries.get(key);
+            if (old != null) remove(old);
+            Entry entry = new Entry(key, etag != null ? etag : "", size, fileId);
+            entries.put(key, entry);
+            totalBytes += size;
+            evict();
+            saveIndex();
+        }
+    }
+
+    @Override
+    public long enqueue(DownloadTask task) throws IOException {
+        throw new IOException("the cache only serves hits, see lookup");
+    }
+
+    @Override
+    public boolean verifiesDigest() {
+        //only verified downloads are ever stored under their digest
+        return true;
+    }
+
+    @Override
+    public boolean preallocates() {
+        //hits are copied out, stale ones go to engines the scheduler doesn't track
+        return false;
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return hits.containsKey(id);
+    }
+
+    @Override
+    public void query(long[] ids, long[] out) {
+        for (int i = 0; i < ids.length; i++) {
+            if (!DownloadIds.isInProcess(ids[i])) continue;
+            Hit hit = hits.get(ids[i]);
+            if (hit == null) continue;
+
+            int offset = i * DownloadService.STATUS_STRIDE;
+            if (hit.isForwarded()) {
+                long[] status = statusRows.get().query(hit.engine, hit.engineId);
+                System.arraycopy(status, DownloadService.STATUS_FIELD_STATUS,
+                        out, offset + DownloadService.STATUS_FIELD_STATUS,
+                        DownloadService.STATUS_STRIDE - DownloadService.STATUS_FIELD_STATUS);
+            } else {
+                boolean done = hit.status == DownloadManager.STATUS_SUCCESSFUL;
+                out[offset + DownloadService.STATUS_FIELD_STATUS] = hit.status;
+                out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = done ? hit.entry.size : 0;
+                out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = hit.entry.size;
+                out[offset + DownloadService.STATUS_FIELD_REASON] = hit.status == DownloadManager.STATUS_PAUSED
+                        ? DownloadManager.PAUSED_QUEUED_FOR_WIFI : 0;
+            }
+        }
+    }
+
+    @Override
+    public FileInputStream openDownloadedFile(long id) throws IOException {
+        Hit hit = hits.get(id);
+        if (hit == null) throw new FileNotFoundException("download " + id + " is unknown");
+        if (hit.isForwarded()) return hit.engine.openDownloadedFile(hit.engineId);
+        if (hit.status != DownloadManager.STATUS_SUCCESSFUL) {
+            throw new FileNotFoundException("download " + id + " has not finished");
+        }
+        return new FileInputStream(fileOf(hit.entry));
+    }
+
+    @Override
+    public File getDownloadedFile(long id) {
+        Hit hit = hits.get(id);
+        if (hit == null) return null;
+        //cached files are copied out, never taken
+        return hit.isForwarded() ? hit.engine.getDownloadedFile(hit.engineId) : null;
+    }
+
+    @Override
+    public boolean pause(long id) {
+        Hit hit = hits.get(id);
+        return hit != null && hit.isForwarded() && hit.engine.pause(hit.engineId);
+    }
+
+    @Override
+    public boolean resume(long id) {
+        Hit hit = hits.get(id);
+        return hit != null && hit.isForwarded() && hit.engine.resume(hit.engineId);
+    }
+
+    @Override
+    public boolean remove(long id) {
+        Hit hit = hits.remove(id);
+        if (hit == null) return false;
+        hit.removed = true;
+        unpin(hit.entry);
+        return !hit.isForwarded() || hit.engine.remove(hit.engineId);
+    }
+
+    /**
+     * @return - if the handle was served from the cache rather than downloaded after the entry was found stale
+     */
+    boolean isHit(long id) {
+        Hit hit = hits.get(id);
+        return hit != null && !hit.isForwarded();
+    }
+
+    @Override
+    public String getETag(long id) {
+        Hit hit = hits.get(id);
+        if (hit == null) return null;
+        return hit.isForwarded() ? hit.engine.getETag(hit.engineId) : hit.entry.etag;
+    }
+
+    private void revalidate(final Hit hit) {
+        if (hit.removed) return;
+        if (!networkPolicy.allows(hit.task)) {
+            //asking is a request like any other
+            hit.status = DownloadManager.STATUS_PAUSED;
+            try {
+                revalidator.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        revalidate(hit);
+                    }
+                }, NetworkPolicy.CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //the cache is gone
+            }
+            return;
+        }
+        hit.status = DownloadManager.STATUS_RUNNING;
+
+        HttpURLConnection connection = null;
+        int code = -1;
+        try {
+            connection = (HttpURLConnection) new URL(hit.task.getUrl()).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestProperty("If-None-Match", hit.entry.etag);
+            //the ETag was handed out for the identity encoding
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            for (Map.Entry<String, String> header : hit.task.getRequestHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (hit.task.hasCookie()) {
+                connection.setRequestProperty("Cookie", hit.task.getCookie());
+            }
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "could not revalidate %s: %s", hit.task.getUrl(), e.getMessage());
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+
+        if (hit.removed) return;
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            hitCount.incrementAndGet();
+            hit.status = DownloadManager.STATUS_SUCCESSFUL;
+            return;
+        }
+
+        //changed, or the server couldn't say it hasn't, the engine sorts out the rest
+        missCount.incrementAndGet();
+        synchronized (this) {
+            if (code != -1 && entries.get(hit.entry.key) == hit.entry) {
+                remove(hit.entry);
+                saveIndex();
+            }
+        }
+        try {
+            hit.engineId = hit.engine.enqueue(hit.task);
+        } catch (IOException e) {
+            DownloadService.unityLog(Log.ERROR, TAG, "could not start download of %s: %s",
+                    hit.task.getUrl(), e.getMessage());
+            hit.status = DownloadManager.STATUS_FAILED;
+        }
+    }
+
+    private void indexChanged() {
+        indexDirty = true;
+        if (indexSaveScheduled) return;
+        try {
+            revalidator.execute(indexSaver);
+            indexSaveScheduled = true;
+        } catch (RejectedExecutionException e) {
+            //the cache is gone
+        }
+    }
+
+    private File fileOf(Entry entry) {
+        return new File(directory, Long.toHexString(entry.fileId));
+    }
+
+    /**
+     * @return - if anything was evicted
+     */
+    private boolean evict() {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            totalBytes -= entry.size;
+            evicted.add(entry);
+        }
+        for (Entry entry : evicted) {
+            deleteFile(entry);
+        }
+        return !evicted.isEmpty();
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        totalBytes -= entry.size;
+        deleteFile(entry);
+    }
+
+    private synchronized void unpin(Entry entry) {
+        if (--entry.pins == 0 && entry.dropped) deleteFile(entry);
+    }
+
+    /**
+     * Delete the file of an entry that's no longer indexed, or once no hit reads it anymore
+     */
+    private void deleteFile(Entry entry) {
+        if (entry.pins > 0) {
+            entry.dropped = true;
+            return;
+        }
+        File file = fileOf(entry);
+        if (file.exists() && !file.delete()) {
+            DownloadService.unityLog(Log.WARN, TAG, "could not delete cached file " + file);
+        }
+    }
+
+    /**
+     * Index layout: magic, version, next file id, entry count, then key, ETag, size and file id per entry from
+     * least to most recently used
+     */
+    private void loadIndex() {
+        if (!indexFile.isFile()) return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) return;
+            nextFileId = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+                entries.put(entry.key, entry);
+                totalBytes += entry.size;
+            }
+            deleteUnindexedFiles();
+        } catch (IOException e) {
+            //a broken index loses the cache, never the app
+            DownloadService.unityLog(Log.WARN, TAG, "could not read cache index: %s", e.getMessage());
+            entries.clear();
+            totalBytes = 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        if (evict()) saveIndex();
+    }
+
+    /**
+     * Delete files copied in just before the app died, which never made it to the index
+     */
+    private void deleteUnindexedFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        Set<String> indexed = new HashSet<>();
+        for (Entry entry : entries.values()) {
+            indexed.add(fileOf(entry).getName());
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!indexed.contains(name) && !name.startsWith(INDEX_FILE_NAME) && !file.delete()) {
+                DownloadService.unityLog(Log.WARN, TAG, "could not delete cached file " + file);
+            }
+        }
+    }
+
+    private void saveIndex() {
+        indexDirty = false;
+        File tmp = new File(directory, INDEX_FILE_NAME + ".tmp");
+        DataOutputStream out = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) return;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(nextFileId);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.key);
+                out.writeUTF(entry.etag);
+                out.writeLong(entry.size);
+                out.writeLong(entry.fileId);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(indexFile)) {
+                DownloadService.unityLog(Log.WARN, TAG, "could not replace cache index");
+            }
+        } catch (IOException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "could not write cache index: %s", e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
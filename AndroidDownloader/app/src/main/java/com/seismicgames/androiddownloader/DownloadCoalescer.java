@@ -0,0 +1,154 @@
+package com.seismicgames.androiddownloader;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of downloads by what they download, so asking for the same resource twice attaches to the transfer that
+ * is already running instead of starting another one. Only requests made with the same cookie and the same
+ * networks share, so nobody gets a response made with someone else's credentials or waits for Wi-Fi they didn't
+ * ask to wait for.
+ *
+ * Every request gets its own handle. The first one is the download id itself, later ones are aliases for it. The
+ * download lives until the last handle is moved or removed. Requests made while the last handle moves the file
+ * away start a download of their own.
+ */
+class DownloadCoalescer {
+    //returned by attach for a group whose download is gone, ids are never 0
+    static final long RELEASED = 0;
+
+    static class Group {
+        final String key;
+        //id of the one real download
+        final long id;
+        //guarded by the coalescer
+        final Set<Long> handles = new HashSet<>();
+        //set once the last handle moves the file away, guarded by the coalescer
+        boolean taken;
+
+        Group(String key, long id) {
+            this.key = key;
+            this.id = id;
+        }
+    }
+
+    private final Map<String, Group> byKey = new HashMap<>();
+    private final Map<Long, Group> byHandle = new ConcurrentHashMap<>();
+
+    /**
+     * @param digestAlgorithm - algorithm of the expected digest, may be null
+     * @param expectedDigest  - expected digest, may be null
+     * @param cookie          - cookie the request is made with, may be null
+     * @param allowMobile     - whether the download may use mobile data
+     * @return - what identifies the resource and how it's fetched, requests with equal keys share a download
+     */
+    static String keyOf(String url, String digestAlgorithm, String expectedDigest, String cookie,
+                        boolean allowMobile) {
+        //URLs and cookies can't hold a line break
+        StringBuilder key = new StringBuilder(url).append('\n').append(allowMobile ? "mobile" : "wifi");
+        if (digestAlgorithm != null && expectedDigest != null) {
+            key.append('\n').append(digestAlgorithm.toUpperCase(Locale.US))
+                    .append(':').append(expectedDigest.trim().toLowerCase(Locale.US));
+        }
+        if (cookie != null) key.append("\nCookie: ").append(cookie);
+        return key.toString();
+    }
+
+    /**
+     * @return - the download for key, or null if there is none
+     */
+    synchronized Group find(String key) {
+        return byKey.get(key);
+    }
+
+    /**
+     * Index a download that was just started
+     *
+     * @param id - its id, which is also the handle of the first request
+     */
+    synchronized Group start(String key, long id) {
+        Group group = new Group(key, id);
+        group.handles.add(id);
+        byKey.put(key, group);
+        byHandle.put(id, group);
+        return group;
+    }
+
+    /**
+     * @return - a new handle for the group's download, or {@link #RELEASED} if its last handle was released or took
+     * the file since it was found
+     */
+    synchronized long attach(Group group) {
+        if (group.handles.isEmpty() || group.taken) return RELEASED;
+        long handle = DownloadIds.next();
+        group.handles.add(handle);
+        byHandle.put(handle, group);
+        return handle;
+    }
+
+    /**
+     * Stop new requests from attaching to the group, ie. because its download failed
+     */
+    synchronized void forget(Group group) {
+        if (byKey.get(group.key) == group) byKey.remove(group.key);
+    }
+
+    /**
+     * @return - the group of a handle, or null if it isn't indexed
+     */
+    Group groupOf(long handle) {
+        return byHandle.get(handle);
+    }
+
+    /**
+     * @return - id of the download the handle stands for
+     */
+    long resolve(long handle) {
+        //aliases are in-process ids, DownloadManager's stand for themselves without boxing them for a lookup
+        if (!DownloadIds.isInProcess(handle)) return handle;
+        Group group = byHandle.get(handle);
+        return group != null ? group.id : handle;
+    }
+
+    /**
+     * @return - ids of the downloads the handles stand for, handles itself if none of them is an alias
+     */
+    long[] resolve(long[] handles) {
+        long[] ids = handles;
+        for (int i = 0; i < handles.length; i++) {
+            long id = resolve(handles[i]);
+            if (id == handles[i]) continue;
+            if (ids == handles) ids = handles.clone();
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Claim the file for the last handle of a group, so no request attaches to it while it's moved away
+     *
+     * @return - false if other handles still share the file
+     */
+    synchronized boolean take(Group group, long handle) {
+        if (group.handles.size() != 1 || !group.handles.contains(handle)) return false;
+        group.taken = true;
+        forget(group);
+        return true;
+    }
+
+    /**
+     * Drop a handle
+     *
+     * @return - if it was the last handle of its group, so the download itself can go
+     */
+    synchronized boolean release(Group group, long handle) {
+        if (byHandle.get(handle) == group) byHandle.remove(handle);
+        if (!group.handles.remove(handle) || !group.handles.isEmpty()) return false;
+        forget(group);
+        return true;
+    }
+}
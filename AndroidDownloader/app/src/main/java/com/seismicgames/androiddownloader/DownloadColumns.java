@@ -0,0 +1,101 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+/**
+ * Indices of the DownloadManager columns the library reads. DownloadManager always answers with the same
+ * columns, so they are looked up by name once and only checked against each new cursor afterwards.
+ */
+final class DownloadColumns {
+    //DownloadManager binds a variable per id, and SQLite before 3.32 takes at most 999 per statement
+    static final int MAX_QUERY_IDS = 999;
+
+    private static volatile DownloadColumns cached;
+
+    final int count;
+    final int id;
+    final int status;
+    final int bytesSoFar;
+    final int totalBytes;
+    final int reason;
+    final int localUri;
+
+    private DownloadColumns(Cursor cursor) {
+        count = cursor.getColumnCount();
+        id = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+        status = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+        bytesSoFar = cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+        totalBytes = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+        reason = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
+        localUri = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
+    }
+
+    /**
+     * @return - the column indices of cursor
+     */
+    static DownloadColumns of(Cursor cursor) {
+        DownloadColumns columns = cached;
+        if (columns == null || !columns.fits(cursor)) {
+            columns = new DownloadColumns(cursor);
+            cached = columns;
+        }
+        return columns;
+    }
+
+    /**
+     * Fill in the status of every id that has a row in cursor, without allocating
+     *
+     * @param cursor - DownloadManager rows, read from its current position to the end
+     * @param ids    - download ids, may repeat
+     * @param out    - {@link DownloadService#STATUS_STRIDE} longs per id, only the fields after the id are written
+     */
+    static void readStatus(Cursor cursor, long[] ids, long[] out) {
+        DownloadColumns columns = of(cursor);
+        while (cursor.moveToNext()) {
+            long id = cursor.getLong(columns.id);
+            //a linear scan beats hashing for the few downloads a game polls, and fills in repeated ids as it goes
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != id) continue;
+
+                int offset = i * DownloadService.STATUS_STRIDE;
+                out[offset + DownloadService.STATUS_FIELD_STATUS] = cursor.getInt(columns.status);
+                out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = cursor.getLong(columns.bytesSoFar);
+                out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = cursor.getLong(columns.totalBytes);
+                out[offset + DownloadService.STATUS_FIELD_REASON] = cursor.getInt(columns.reason);
+            }
+        }
+    }
+
+    /**
+     * @param ids   - download ids, without repeats
+     * @param count - how many of ids to ask for
+     * @return - queries for the ids, at most {@link #MAX_QUERY_IDS} each, none for no ids
+     */
+    static DownloadManager.Query[] queriesFor(long[] ids, int count) {
+        DownloadManager.Query[] queries = new DownloadManager.Query[(count + MAX_QUERY_IDS - 1) / MAX_QUERY_IDS];
+        for (int i = 0; i < queries.length; i++) {
+            int from = i * MAX_QUERY_IDS;
+            queries[i] = new DownloadManager.Query();
+            queries[i].setFilterById(Arrays.copyOfRange(ids, from, Math.min(count, from + MAX_QUERY_IDS)));
+        }
+        return queries;
+    }
+
+    private boolean fits(Cursor cursor) {
+        //no lookups by name, just a few string compares
+        return cursor.getColumnCount() == count
+                && is(cursor, id, DownloadManager.COLUMN_ID)
+                && is(cursor, status, DownloadManager.COLUMN_STATUS)
+                && is(cursor, bytesSoFar, DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR)
+                && is(cursor, totalBytes, DownloadManager.COLUMN_TOTAL_SIZE_BYTES)
+                && is(cursor, reason, DownloadManager.COLUMN_REASON)
+                && is(cursor, localUri, DownloadManager.COLUMN_LOCAL_URI);
+    }
+
+    private static boolean is(Cursor cursor, int column, String name) {
+        return column < 0 ? cursor.getColumnIndex(name) < 0 : name.equals(cursor.getColumnName(column));
+    }
+}
@@ -0,0 +1,95 @@
+package com.seismicgames.androiddownloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Something that can run downloads for {@link DownloadService}. Every engine hands out its own ids, and
+ * DownloadService routes calls for an id to the engine that {@link #owns(long)} it.
+ */
+public interface DownloadEngine {
+
+    /**
+     * Start a download
+     *
+     * @param task - what to download
+     * @return - id of the new download
+     */
+    long enqueue(DownloadTask task) throws IOException;
+
+    /**
+     * @return - if the engine checks {@link DownloadTask#getExpectedDigest()} while downloading, failing downloads
+     * that don't match with {@link DownloadService#ERROR_HASH_MISMATCH}. Downloads of other engines are verified
+     * while they are moved.
+     */
+    boolean verifiesDigest();
+
+    /**
+     * @return - if a download's file takes its full size on the volume as soon as its size is known, so free space
+     * already leaves out the bytes still to come
+     */
+    boolean preallocates();
+
+    /**
+     * @param id - download id
+     * @return - if the id was handed out by this engine
+     */
+    boolean owns(long id);
+
+    /**
+     * Fill in the status of every id owned by this engine, skipping all others
+     *
+     * @param ids - download ids, possibly from several engines
+     * @param out - {@link DownloadService#STATUS_STRIDE} longs per id, already filled in with the id,
+     *            {@link DownloadService#STATUS_NOT_FOUND}, 0 bytes so far and -1 total bytes
+     */
+    void query(long[] ids, long[] out);
+
+    /**
+     * Open a successfully finished download for reading
+     *
+     * @param id - download id
+     * @return - stream over the downloaded file
+     */
+    FileInputStream openDownloadedFile(long id) throws IOException;
+
+    /**
+     * Get a successfully finished download as a plain file, so it can be moved by renaming it
+     *
+     * @param id - download id
+     * @return - the downloaded file, or null if it can only be read through {@link #openDownloadedFile(long)}
+     */
+    File getDownloadedFile(long id);
+
+    /**
+     * @param id - download id
+     * @return - the ETag a successfully finished download was served with, or null if unknown
+     */
+    String getETag(long id);
+
+    /**
+     * Stop a download that hasn't finished without losing what it downloaded so far. It reports
+     * {@link android.app.DownloadManager#STATUS_PAUSED} until {@link #resume(long)}.
+     *
+     * @param id - download id
+     * @return - false if the download isn't known, already finished, or the engine can't pause it
+     */
+    boolean pause(long id);
+
+    /**
+     * Continue a download stopped with {@link #pause(long)}
+     *
+     * @param id - download id
+     * @return - false if the download isn't known or isn't paused
+     */
+    boolean resume(long id);
+
+    /**
+     * Stop the download if it's still running and delete it
+     *
+     * @param id - download id
+     * @return - if the download was known and removed
+     */
+    boolean remove(long id);
+}
@@ -0,0 +1,268 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.unity3d.player.UnityPlayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Polls the tracked downloads on one background thread and pushes whatever changed to Unity as a single
+ * batched message per tick, so Unity doesn't have to poll checkStatus for every download.
+ *
+ * Each event is one line of space separated values: type, id, DownloadManager.STATUS_*, bytes so far, total bytes
+ * and reason. Nothing is sent on ticks where no tracked download changed.
+ *
+ * Jobs of the {@link FileMoveQueue} are reported the same way under their handle, with the bytes copied so far.
+ *
+ * The thread only runs while something is tracked. It quits once the last download and move are reported and
+ * starts again with the next one.
+ */
+class DownloadEventObserver {
+    static final String UNITY_METHOD = "OnDownloadEvents";
+
+    static final char EVENT_PROGRESS = 'P';
+    static final char EVENT_COMPLETED = 'C';
+    static final char EVENT_FAILED = 'F';
+    static final char EVENT_MOVE_PROGRESS = 'M';
+    static final char EVENT_MOVED = 'V';
+    static final char EVENT_MOVE_FAILED = 'X';
+
+    private final DownloadService service;
+    private final TickRunnable tickRunnable = new TickRunnable();
+    //null while idle, guarded by this
+    private HandlerThread mWorkThread;
+    private Handler mHandler;
+    //posted runnables that haven't run yet, the thread can't quit while there are any
+    private int pending;
+    private volatile int intervalMs;
+
+    //only touched on the work thread, whichever is running
+    private long[] ids = new long[0];
+    private long[] lastStatus = new long[0];
+    private final List<FileMoveQueue.MoveJob> moves = new ArrayList<>();
+    private boolean ticking = false;
+
+    DownloadEventObserver(DownloadService service, int intervalMs) {
+        this.service = service;
+        this.intervalMs = intervalMs;
+    }
+
+    void track(final long... newIds) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                int count = ids.length;
+                ids = Arrays.copyOf(ids, count + newIds.length);
+                lastStatus = Arrays.copyOf(lastStatus, ids.length * DownloadService.STATUS_STRIDE);
+                for (long id : newIds) {
+                    if (indexOf(id, count) >= 0) continue;
+
+                    //an impossible status, so the first tick reports where the download is
+                    ids[count] = id;
+                    lastStatus[count * DownloadService.STATUS_STRIDE + DownloadService.STATUS_FIELD_STATUS] = Long.MIN_VALUE;
+                    count++;
+                }
+                resize(count);
+                scheduleTick();
+            }
+        });
+    }
+
+    void trackMove(final FileMoveQueue.MoveJob job) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                moves.add(job);
+                scheduleTick();
+            }
+        });
+    }
+
+    void setInterval(int intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    void untrack(final long id) {
+        //nothing is tracked without a thread, don't start one to find that out
+        if (isIdle()) return;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                int index = indexOf(id, ids.length);
+                if (index >= 0) remove(index);
+            }
+        });
+    }
+
+    /**
+     * Stop reporting every download, moves still report until they finish
+     */
+    void untrackAll() {
+        if (isIdle()) return;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                resize(0);
+            }
+        });
+    }
+
+    private synchronized boolean isIdle() {
+        return mHandler == null;
+    }
+
+    private synchronized void post(final Runnable runnable) {
+        if (mHandler == null) {
+            mWorkThread = new HandlerThread("DownloadEventObserver");
+            mWorkThread.start();
+            mHandler = new Handler(mWorkThread.getLooper());
+        }
+        pending++;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DownloadEventObserver.this) {
+                    pending--;
+                }
+                runnable.run();
+                if (!ticking) quitIfIdle();
+            }
+        });
+    }
+
+    /**
+     * Quit the thread if nothing is tracked or about to be, on the work thread
+     */
+    private synchronized void quitIfIdle() {
+        if (pending > 0 || hasWork()) return;
+        mWorkThread.quit();
+        mWorkThread = null;
+        mHandler = null;
+    }
+
+    private boolean hasWork() {
+        return ids.length > 0 || !moves.isEmpty();
+    }
+
+    private void scheduleTick() {
+        if (!ticking && hasWork()) {
+            ticking = true;
+            handler().post(tickRunnable);
+        }
+    }
+
+    //on the work thread, which only quits once it stopped ticking
+    private synchronized Handler handler() {
+        return mHandler;
+    }
+
+    private int indexOf(long id, int count) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) return i;
+        }
+        return -1;
+    }
+
+    private void remove(int index) {
+        int last = ids.length - 1;
+        ids[index] = ids[last];
+        System.arraycopy(lastStatus, last * DownloadService.STATUS_STRIDE,
+                lastStatus, index * DownloadService.STATUS_STRIDE, DownloadService.STATUS_STRIDE);
+        resize(last);
+    }
+
+    private void resize(int count) {
+        if (count != ids.length) {
+            ids = Arrays.copyOf(ids, count);
+            lastStatus = Arrays.copyOf(lastStatus, count * DownloadService.STATUS_STRIDE);
+        }
+    }
+
+    private static void appendEvent(StringBuilder events, char type, long[] status, int offset) {
+        if (events.length() > 0) events.append('\n');
+        events.append(type);
+        for (int field = 0; field < DownloadService.STATUS_STRIDE; field++) {
+            events.append(' ').append(status[offset + field]);
+        }
+    }
+
+    private static void appendMoveEvent(StringBuilder events, char type, FileMoveQueue.MoveJob job, int status) {
+        if (events.length() > 0) events.append('\n');
+        events.append(type)
+                .append(' ').append(job.handle)
+                .append(' ').append(status)
+                .append(' ').append(job.copiedBytes.get())
+                .append(' ').append(job.totalBytes)
+                .append(' ').append(job.reason);
+    }
+
+    private class TickRunnable implements Runnable {
+        private final StringBuilder events = new StringBuilder();
+
+        @Override
+        public void run() {
+            if (!hasWork()) {
+                ticking = false;
+                quitIfIdle();
+                return;
+            }
+
+            long[] status = ids.length > 0 ? service.checkStatusBatch(ids) : lastStatus;
+            events.setLength(0);
+
+            //walk backwards so finished downloads can be swapped out of the arrays in place
+            for (int i = ids.length - 1; i >= 0; i--) {
+                int offset = i * DownloadService.STATUS_STRIDE;
+                long state = status[offset + DownloadService.STATUS_FIELD_STATUS];
+
+                if (state == DownloadManager.STATUS_SUCCESSFUL) {
+                    appendEvent(events, EVENT_COMPLETED, status, offset);
+                    remove(i);
+                } else if (state == DownloadManager.STATUS_FAILED || state == DownloadService.STATUS_NOT_FOUND) {
+                    appendEvent(events, EVENT_FAILED, status, offset);
+                    remove(i);
+                } else {
+                    boolean changed = false;
+                    for (int field = DownloadService.STATUS_FIELD_STATUS; field < DownloadService.STATUS_STRIDE; field++) {
+                        changed |= status[offset + field] != lastStatus[offset + field];
+                    }
+                    if (changed) {
+                        appendEvent(events, EVENT_PROGRESS, status, offset);
+                        System.arraycopy(status, offset, lastStatus, offset, DownloadService.STATUS_STRIDE);
+                    }
+                }
+            }
+
+            for (int i = moves.size() - 1; i >= 0; i--) {
+                FileMoveQueue.MoveJob job = moves.get(i);
+                if (job.finished) {
+                    if (job.reason == 0) {
+                        appendMoveEvent(events, EVENT_MOVED, job, DownloadManager.STATUS_SUCCESSFUL);
+                    } else {
+                        appendMoveEvent(events, EVENT_MOVE_FAILED, job, DownloadManager.STATUS_FAILED);
+                    }
+                    moves.remove(i);
+                } else if (job.copiedBytes.get() != job.reportedBytes) {
+                    job.reportedBytes = job.copiedBytes.get();
+                    appendMoveEvent(events, EVENT_MOVE_PROGRESS, job, DownloadManager.STATUS_RUNNING);
+                }
+            }
+
+            if (events.length() > 0) {
+                UnityPlayer.UnitySendMessage(DownloadService.GAMEOBJ_NAME, UNITY_METHOD, events.toString());
+            }
+
+            if (hasWork()) {
+                handler().postDelayed(this, intervalMs);
+            } else {
+                ticking = false;
+                quitIfIdle();
+            }
+        }
+    }
+}
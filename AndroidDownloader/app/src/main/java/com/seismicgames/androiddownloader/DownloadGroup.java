@@ -0,0 +1,184 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+/**
+ * Downloads tracked together under one notification, like the files of a content pack. The group's byte counts
+ * are kept up to date from the status of each download as it comes in, and downloads that finished are never asked
+ * about again.
+ *
+ * Not thread safe, it lives on the notification thread.
+ */
+class DownloadGroup {
+    final int id;
+    final String title;
+    final long[] ids;
+    //DownloadIds.SESSION of the process the ids were handed out in
+    final long session;
+
+    private final long[] bytes;
+    private final long[] totals;
+    private final int[] statuses;
+    private long bytesSoFar;
+    private long totalBytes;
+    private int unfinished;
+    private long[] unfinishedIds;
+    private int shownPercent = -1;
+    private boolean shownPaused;
+
+    /**
+     * @param ids - downloads of the group, repeated ids count once
+     */
+    DownloadGroup(int id, String title, long[] ids) {
+        this(id, title, ids, DownloadIds.SESSION);
+    }
+
+    /**
+     * @param session - {@link DownloadIds#SESSION} of the process that handed out the ids, for a stored group
+     */
+    DownloadGroup(int id, String title, long[] ids, long session) {
+        this.id = id;
+        this.session = session;
+        this.title = title;
+        this.ids = distinct(ids);
+        bytes = new long[this.ids.length];
+        totals = new long[this.ids.length];
+        statuses = new int[this.ids.length];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = DownloadManager.STATUS_PENDING;
+        }
+        unfinished = this.ids.length;
+    }
+
+    /**
+     * Take in the status of one download, if it belongs to the group and hasn't finished
+     *
+     * @param status - packed like {@link DownloadService#checkStatusBatch(long[])}
+     * @param offset - of the download in status
+     */
+    void update(long[] status, int offset) {
+        int index = indexOf(status[offset + DownloadService.STATUS_FIELD_ID]);
+        if (index < 0 || isFinished(statuses[index])) return;
+
+        long newBytes = status[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR];
+        long newTotal = Math.max(0, status[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+        bytesSoFar += newBytes - bytes[index];
+        totalBytes += newTotal - totals[index];
+        bytes[index] = newBytes;
+        totals[index] = newTotal;
+
+        int state = (int) status[offset + DownloadService.STATUS_FIELD_STATUS];
+        //a download that is gone won't finish anymore
+        statuses[index] = state == DownloadService.STATUS_NOT_FOUND ? DownloadManager.STATUS_FAILED : state;
+        if (isFinished(statuses[index])) {
+            unfinished--;
+            unfinishedIds = null;
+        }
+    }
+
+    /**
+     * Give up on the in-process downloads of a group from a previous process that weren't restored from a journal.
+     * Their ids start over in every process and may already belong to new downloads. Downloads whose engine
+     * restores them only later are given up on as well.
+     */
+    void loseInProcessIds() {
+        if (session == DownloadIds.SESSION) return;
+        long[] status = new long[DownloadService.STATUS_STRIDE];
+        for (long id : ids) {
+            if (!DownloadIds.isInProcess(id) || DownloadIds.wasRestored(id)) continue;
+            StatusRow.prefill(new long[]{id}, status);
+            update(status, 0);
+        }
+    }
+
+    /**
+     * @return - the downloads still worth asking about
+     */
+    long[] unfinishedIds() {
+        if (unfinishedIds == null) {
+            unfinishedIds = new long[unfinished];
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (!isFinished(statuses[i])) unfinishedIds[count++] = ids[i];
+            }
+        }
+        return unfinishedIds;
+    }
+
+    long getBytesSoFar() {
+        return bytesSoFar;
+    }
+
+    long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return - 0 to 100, 0 while no total is known
+     */
+    int getPercent() {
+        return totalBytes > 0 ? (int) (bytesSoFar * 100 / totalBytes) : 0;
+    }
+
+    boolean isFinished() {
+        return unfinished == 0;
+    }
+
+    /**
+     * @return - if every download finished successfully, an empty group never does
+     */
+    boolean isSuccessful() {
+        if (!isFinished() || ids.length == 0) return false;
+        for (int status : statuses) {
+            if (status != DownloadManager.STATUS_SUCCESSFUL) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return - if the group is waiting on paused downloads only
+     */
+    boolean isPaused() {
+        if (isFinished()) return false;
+        for (int status : statuses) {
+            if (!isFinished(status) && status != DownloadManager.STATUS_PAUSED) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return - if the notification shows something else than the group is at, remembering that it will be updated
+     */
+    boolean shouldNotify() {
+        int percent = getPercent();
+        boolean paused = isPaused();
+        if (percent == shownPercent && paused == shownPaused) return false;
+        shownPercent = percent;
+        shownPaused = paused;
+        return true;
+    }
+
+    private int indexOf(long id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) return i;
+        }
+        return -1;
+    }
+
+    private static boolean isFinished(int status) {
+        return status == DownloadManager.STATUS_SUCCESSFUL || status == DownloadManager.STATUS_FAILED;
+    }
+
+    private static long[] distinct(long[] ids) {
+        long[] result = new long[ids.length];
+        int count = 0;
+        outer:
+        for (long id : ids) {
+            for (int i = 0; i < count; i++) {
+                if (result[i] == id) continue outer;
+            }
+            result[count++] = id;
+        }
+        return count == result.length ? result : java.util.Arrays.copyOf(result, count);
+    }
+}
@@ -0,0 +1,51 @@
+package com.seismicgames.androiddownloader;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out ids for downloads that don't go through DownloadManager. DownloadManager ids are always positive,
+ * so in-process ids count down from -1 and both can be passed around Unity the same way.
+ */
+final class DownloadIds {
+    /**
+     * Different in every process, for telling ids kept from a previous process apart from ids of this one
+     */
+    static final long SESSION = new Random().nextLong();
+
+    private static final AtomicLong nextId = new AtomicLong(-1);
+    private static final Set<Long> restored = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    private DownloadIds() {
+    }
+
+    static long next() {
+        return nextId.getAndDecrement();
+    }
+
+    /**
+     * Make sure an id restored from a previous session is never handed out again
+     */
+    static void reserve(long id) {
+        restored.add(id);
+        while (true) {
+            long next = nextId.get();
+            if (next < id || nextId.compareAndSet(next, id - 1)) return;
+        }
+    }
+
+    /**
+     * @return - if the id was restored from a previous session with {@link #reserve(long)}, any other in-process
+     * id from back then belongs to a download that died with its process
+     */
+    static boolean wasRestored(long id) {
+        return restored.contains(id);
+    }
+
+    static boolean isInProcess(long id) {
+        return id < 0;
+    }
+}
@@ -0,0 +1,337 @@
+package com.seismicgames.androiddownloader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of in-process downloads, so they can pick up where they stopped after the app was killed.
+ *
+ * Every record is framed as its length, the record itself and a CRC32 of it. A record torn by a crash fails its
+ * length or checksum, and loading stops right before it. Loading also rewrites the journal with just the live
+ * state, so it never grows beyond a few records per download.
+ *
+ * Records hold cookies and request headers, so the journal belongs in app private storage rather than next to the
+ * downloads on external storage, which other apps can read before Android 4.4.
+ */
+class DownloadJournal {
+    static final String FILE_NAME = "downloads.journal";
+
+    private static final byte TYPE_STARTED = 1;
+    private static final byte TYPE_PROGRESS = 2;
+    private static final byte TYPE_FINISHED = 3;
+    private static final byte TYPE_REMOVED = 4;
+
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    /**
+     * What the journal knows about one download
+     */
+    static class Entry {
+        final long id;
+        final String url;
+        final String fileName;
+        final String cookie;
+        final String etag;
+        final String lastModified;
+        //"" if the download isn't verified
+        final String digestAlgorithm;
+        final String expectedDigest;
+        final long segmentSize;
+        final List<String> mirrors = new ArrayList<>();
+        final Map<String, String> headers = new LinkedHashMap<>();
+        boolean allowMobile;
+        int priority = DownloadService.PRIORITY_NORMAL;
+        long expectedSize = -1;
+        long totalBytes;
+        //segment start -> offset written durably up to
+        final Map<Long, Long> progress = new TreeMap<>();
+        int status;
+        int reason;
+
+        Entry(long id, String url, String fileName, String cookie, String digestAlgorithm, String expectedDigest,
+              String etag, String lastModified, long totalBytes, long segmentSize) {
+            this.id = id;
+            this.url = url;
+            this.fileName = fileName;
+            this.cookie = cookie;
+            this.digestAlgorithm = digestAlgorithm;
+            this.expectedDigest = expectedDigest;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.totalBytes = totalBytes;
+            this.segmentSize = segmentSize;
+        }
+
+        boolean isFinished() {
+            return status != 0;
+        }
+
+        DownloadTask toTask() {
+            DownloadTask task = new DownloadTask(url, fileName)
+                    .setCookie(cookie)
+                    .setExpectedDigest(digestAlgorithm, expectedDigest)
+                    .setAllowMobile(allowMobile)
+                    .setPriority(priority)
+                    .setExpectedSize(expectedSize);
+            for (String mirror : mirrors) {
+                task.addMirror(mirror);
+            }
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                task.addRequestHeader(header.getKey(), header.getValue());
+            }
+            return task;
+        }
+    }
+
+    private final File file;
+    //where the journal used to be kept, read once if file doesn't exist yet
+    private final File legacyFile;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private DataOutputStream out;
+
+    DownloadJournal(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param legacyFile - journal an older version kept elsewhere, taken over and deleted on open, or null
+     */
+    DownloadJournal(File file, File legacyFile) {
+        this.file = file;
+        this.legacyFile = legacyFile;
+    }
+
+    /**
+     * Read back the journal and open it for appending
+     *
+     * @return - the live downloads by id, in the order they were started
+     */
+    synchronized Map<Long, Entry> open() throws IOException {
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        boolean takeOver = !file.exists() && legacyFile != null && legacyFile.exists();
+        if (file.exists() || takeOver) {
+            read(takeOver ? legacyFile : file, entries);
+        }
+        compact(entries.values());
+        if (takeOver) legacyFile.delete();
+        out = new DataOutputStream(new FileOutputStream(file, true));
+        return Collections.unmodifiableMap(entries);
+    }
+
+    synchronized void started(long id, DownloadTask task, String etag, String lastModified, long totalBytes, long segmentSize) {
+        try {
+            recordOut.writeByte(TYPE_STARTED);
+            recordOut.writeLong(id);
+            recordOut.writeUTF(task.getUrl());
+            recordOut.writeUTF(task.getFileName());
+            recordOut.writeUTF(task.hasCookie() ? task.getCookie() : "");
+            recordOut.writeUTF(task.hasExpectedDigest() ? task.getDigestAlgorithm() : "");
+            recordOut.writeUTF(task.hasExpectedDigest() ? task.getExpectedDigest() : "");
+            recordOut.writeUTF(etag != null ? etag : "");
+            recordOut.writeUTF(lastModified != null ? lastModified : "");
+            recordOut.writeLong(totalBytes);
+            recordOut.writeLong(segmentSize);
+            //journals from before mirrors end here
+            List<String> mirrors = task.getMirrors();
+            recordOut.writeShort(mirrors.size());
+            for (String mirror : mirrors) {
+                recordOut.writeUTF(mirror);
+            }
+            //and journals from before these here
+            recordOut.writeBoolean(task.isAllowMobile());
+            recordOut.writeInt(task.getPriority());
+            recordOut.writeLong(task.getExpectedSize());
+            Map<String, String> headers = task.getRequestHeaders();
+            recordOut.writeShort(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                recordOut.writeUTF(header.getKey());
+                recordOut.writeUTF(header.getValue());
+            }
+            append();
+        } catch (IOException e) {
+            broken();
+        }
+    }
+
+    /**
+     * Record that the segment starting at segmentStart is on disk up to position. Only call this once the data
+     * itself is durable, or a crash could leave the journal claiming bytes that were never written.
+     */
+    synchronized void progress(long id, long segmentStart, long position) {
+        try {
+            recordOut.writeByte(TYPE_PROGRESS);
+            recordOut.writeLong(id);
+            recordOut.writeLong(segmentStart);
+            recordOut.writeLong(position);
+            append();
+        } catch (IOException e) {
+            broken();
+        }
+    }
+
+    synchronized void finished(long id, int status, int reason, long totalBytes) {
+        try {
+            recordOut.writeByte(TYPE_FINISHED);
+            recordOut.writeLong(id);
+            recordOut.writeInt(status);
+            recordOut.writeInt(reason);
+            recordOut.writeLong(totalBytes);
+            append();
+        } catch (IOException e) {
+            broken();
+        }
+    }
+
+    synchronized void removed(long id) {
+        try {
+            recordOut.writeByte(TYPE_REMOVED);
+            recordOut.writeLong(id);
+            append();
+        } catch (IOException e) {
+            broken();
+        }
+    }
+
+    synchronized void close() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+        out = null;
+    }
+
+    private void append() throws IOException {
+        try {
+            if (out == null) return;
+            crc.reset();
+            crc.update(record.toByteArray(), 0, record.size());
+            out.writeInt(record.size());
+            record.writeTo(out);
+            out.writeInt((int) crc.getValue());
+            out.flush();
+        } finally {
+            record.reset();
+        }
+    }
+
+    /**
+     * Stop journaling after a write error, downloads carry on but can't be resumed
+     */
+    private void broken() {
+        record.reset();
+        close();
+    }
+
+    private void read(File file, Map<Long, Entry> entries) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] data;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_LENGTH) return;
+                    data = new byte[length];
+                    in.readFully(data);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                crc.reset();
+                crc.update(data, 0, data.length);
+                if ((int) crc.getValue() != checksum) return;
+                apply(new DataInputStream(new ByteArrayInputStream(data)), entries);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void apply(DataInputStream in, Map<Long, Entry> entries) throws IOException {
+        byte type = in.readByte();
+        long id = in.readLong();
+        Entry entry;
+        switch (type) {
+            case TYPE_STARTED:
+                //starting again replaces whatever was known about the download
+                entries.remove(id);
+                entry = new Entry(id, in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF(),
+                        in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+                if (in.available() > 0) {
+                    for (int i = in.readUnsignedShort(); i > 0; i--) {
+                        entry.mirrors.add(in.readUTF());
+                    }
+                }
+                if (in.available() > 0) {
+                    entry.allowMobile = in.readBoolean();
+                    entry.priority = in.readInt();
+                    entry.expectedSize = in.readLong();
+                    for (int i = in.readUnsignedShort(); i > 0; i--) {
+                        entry.headers.put(in.readUTF(), in.readUTF());
+                    }
+                }
+                entries.put(id, entry);
+                break;
+            case TYPE_PROGRESS:
+                entry = entries.get(id);
+                if (entry != null) entry.progress.put(in.readLong(), in.readLong());
+                break;
+            case TYPE_FINISHED:
+                entry = entries.get(id);
+                if (entry != null) {
+                    entry.status = in.readInt();
+                    entry.reason = in.readInt();
+                    entry.totalBytes = in.readLong();
+                }
+                break;
+            case TYPE_REMOVED:
+                entries.remove(id);
+                break;
+        }
+    }
+
+    /**
+     * Replace the journal with one record per fact that is still true
+     */
+    private void compact(Iterable<Entry> entries) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        out = new DataOutputStream(tmpOut);
+        try {
+            for (Entry entry : entries) {
+                started(entry.id, entry.toTask(), entry.etag, entry.lastModified, entry.totalBytes, entry.segmentSize);
+                for (Map.Entry<Long, Long> progress : entry.progress.entrySet()) {
+                    progress(entry.id, progress.getKey(), progress.getValue());
+                }
+                if (entry.isFinished()) finished(entry.id, entry.status, entry.reason, entry.totalBytes);
+            }
+            if (out == null) throw new IOException("could not write " + tmp);
+            tmpOut.getFD().sync();
+        } finally {
+            close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new FileNotFoundException("could not replace " + file);
+        }
+    }
+}
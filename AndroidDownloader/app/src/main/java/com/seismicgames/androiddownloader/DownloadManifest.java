@@ -0,0 +1,116 @@
+package com.seismicgames.androiddownloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Files to download as one content update, see {@link DownloadService#startManifest(String, String)}. A manifest is
+ * UTF-8 text with one file per line and four tab separated fields:
+ * <pre>
+ * url	size	algorithm:digest	destination
+ * </pre>
+ * Size is in bytes, - if unknown. The digest is anything {@link DownloadTask#setExpectedDigest(String, String)}
+ * takes, - for none. Relative destinations are relative to the manifest's directory. Empty lines and lines starting
+ * with # are skipped.
+ */
+class DownloadManifest {
+    static final char SEPARATOR = '\t';
+    static final String NONE = "-";
+
+    static class Entry {
+        final String url;
+        //-1 if unknown
+        final long size;
+        final String digestAlgorithm;
+        final String expectedDigest;
+        final File dest;
+
+        Entry(String url, long size, String digestAlgorithm, String expectedDigest, File dest) {
+            this.url = url;
+            this.size = size;
+            this.digestAlgorithm = digestAlgorithm;
+            this.expectedDigest = expectedDigest;
+            this.dest = dest;
+        }
+    }
+
+    final List<Entry> entries;
+
+    private DownloadManifest(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    static DownloadManifest read(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return read(input, file.getAbsoluteFile().getParentFile());
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * @param input   - the manifest, read to the end but not closed
+     * @param baseDir - what relative destinations are relative to
+     */
+    static DownloadManifest read(InputStream input, File baseDir) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+        List<Entry> entries = new ArrayList<>();
+        String[] fields = new String[4];
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.length() == 0 || line.charAt(0) == '#') continue;
+            if (split(line, fields) != fields.length) {
+                throw new IOException("manifest line " + lineNumber + " doesn't have " + fields.length + " fields");
+            }
+
+            long size = -1;
+            if (!fields[1].equals(NONE)) {
+                try {
+                    size = Long.parseLong(fields[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("manifest line " + lineNumber + " has size " + fields[1]);
+                }
+            }
+            String algorithm = null;
+            String digest = null;
+            if (!fields[2].equals(NONE)) {
+                int colon = fields[2].lastIndexOf(':');
+                if (colon <= 0 || colon == fields[2].length() - 1) {
+                    throw new IOException("manifest line " + lineNumber + " has digest " + fields[2]);
+                }
+                algorithm = fields[2].substring(0, colon);
+                digest = fields[2].substring(colon + 1);
+            }
+            File dest = new File(fields[3]);
+            if (!dest.isAbsolute()) dest = new File(baseDir, fields[3]);
+            entries.add(new Entry(fields[0], size, algorithm, digest, dest));
+        }
+        return new DownloadManifest(entries);
+    }
+
+    /**
+     * @return - fields found, the last one takes the rest of the line
+     */
+    private static int split(String line, String[] fields) {
+        int count = 0;
+        int start = 0;
+        while (count < fields.length - 1) {
+            int end = line.indexOf(SEPARATOR, start);
+            if (end < 0) break;
+            fields[count++] = line.substring(start, end);
+            start = end + 1;
+        }
+        fields[count++] = line.substring(start);
+        return count;
+    }
+}
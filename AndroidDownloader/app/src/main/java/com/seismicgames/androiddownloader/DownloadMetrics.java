@@ -0,0 +1,352 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters, histograms and a rolling throughput gauge of what downloads do in the field. Downloads are followed
+ * through the status path from start to their final status, which feeds time to first byte, queue wait, duration,
+ * speed and failure reasons without any extra queries.
+ *
+ * {@link #snapshot()} serializes everything, one metric per line:
+ * <pre>
+ * c name value
+ * h name count sum min max p50 p90 p99
+ * g name value
+ * d id bytesSoFar bytesPerSecond
+ * </pre>
+ * for counters, histograms, gauges and downloads still running. Histogram percentiles are upper bounds of power of
+ * two buckets.
+ */
+class DownloadMetrics {
+    static final String DOWNLOADS_STARTED = "downloads.started";
+    static final String DOWNLOADS_COALESCED = "downloads.coalesced";
+    static final String DOWNLOADS_CACHED = "downloads.cached";
+    static final String DOWNLOADS_SUCCEEDED = "downloads.succeeded";
+    static final String DOWNLOADS_FAILED = "downloads.failed";
+    //followed by the reason, a DownloadManager.ERROR_*, an HTTP code or one of DownloadService.ERROR_*
+    static final String DOWNLOADS_FAILED_REASON = "downloads.failed.";
+    static final String DOWNLOADS_RESTARTED = "downloads.restarted";
+    static final String DOWNLOADS_RESUMED = "downloads.resumed";
+    static final String DOWNLOADS_DIGEST_MISMATCH = "downloads.digest_mismatch";
+    //requests tried again after a failure, and switches to the next mirror for it
+    static final String DOWNLOADS_RETRIED = "downloads.retried";
+    static final String DOWNLOADS_MIRROR_FAILOVERS = "downloads.mirror_failovers";
+    //downloads that failed to start for lack of space
+    static final String DOWNLOADS_NO_SPACE = "downloads.no_space";
+    //bytes of patched files taken from the old version, and fetched
+    static final String PATCH_BYTES_REUSED = "patches.bytes_reused";
+    static final String PATCH_BYTES_FETCHED = "patches.bytes_fetched";
+    //bytes of files unpacked from downloaded archives
+    static final String UNPACK_BYTES_WRITTEN = "unpacks.bytes_written";
+    //connections the pipelined engine opened, and requests it sent on connections that were already open
+    static final String PIPELINE_CONNECTIONS = "pipeline.connections";
+    static final String PIPELINE_REQUESTS_REUSED = "pipeline.requests_reused";
+    static final String MOVES_RENAMED = "moves.renamed";
+    static final String MOVES_COPIED = "moves.copied";
+    static final String MOVES_FAILED = "moves.failed";
+    static final String NOTIFICATION_TICKS = "notification.ticks";
+
+    static final String QUEUE_WAIT_MS = "download.queue_wait_ms";
+    static final String TIME_TO_FIRST_BYTE_MS = "download.ttfb_ms";
+    static final String DOWNLOAD_MS = "download.ms";
+    static final String DOWNLOAD_BYTES_PER_SECOND = "download.bytes_per_sec";
+    static final String MOVE_MS = "move.ms";
+    static final String MOVE_BYTES_PER_SECOND = "move.bytes_per_sec";
+    static final String NOTIFICATION_QUERY_MS = "notification.query_ms";
+
+    static final String THROUGHPUT = "throughput.bytes_per_sec";
+
+    private static final int THROUGHPUT_WINDOW_SECONDS = 10;
+    private static final DownloadMetrics shared = new DownloadMetrics();
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Throughput throughput = new Throughput(THROUGHPUT_WINDOW_SECONDS);
+
+    //downloads on their way to a final status, guarded by this
+    private long[] trackedIds = new long[8];
+    private Tracked[] tracked = new Tracked[8];
+    private int trackedCount;
+
+    /**
+     * @return - the metrics of this process
+     */
+    static DownloadMetrics shared() {
+        return shared;
+    }
+
+    static long nowMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    void increment(String counter) {
+        add(counter, 1);
+    }
+
+    void add(String counter, long delta) {
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = counters.putIfAbsent(counter, created);
+            if (value == null) value = created;
+        }
+        value.addAndGet(delta);
+    }
+
+    long counter(String counter) {
+        AtomicLong value = counters.get(counter);
+        return value != null ? value.get() : 0;
+    }
+
+    void record(String histogram, long value) {
+        histogram(histogram).record(value);
+    }
+
+    Histogram histogram(String histogram) {
+        Histogram result = histograms.get(histogram);
+        if (result == null) {
+            Histogram created = new Histogram();
+            result = histograms.putIfAbsent(histogram, created);
+            if (result == null) result = created;
+        }
+        return result;
+    }
+
+    /**
+     * @return - bytes per second downloaded by all downloads over the last few seconds
+     */
+    long throughput(long nowMs) {
+        return throughput.rate(nowMs);
+    }
+
+    /**
+     * Follow a download through the status path from now on
+     */
+    synchronized void downloadStarted(long id, long nowMs) {
+        increment(DOWNLOADS_STARTED);
+        if (indexOf(id) >= 0) return;
+        if (trackedCount == trackedIds.length) {
+            long[] ids = new long[trackedCount * 2];
+            Tracked[] downloads = new Tracked[trackedCount * 2];
+            System.arraycopy(trackedIds, 0, ids, 0, trackedCount);
+            System.arraycopy(tracked, 0, downloads, 0, trackedCount);
+            trackedIds = ids;
+            tracked = downloads;
+        }
+        trackedIds[trackedCount] = id;
+        tracked[trackedCount] = new Tracked(nowMs);
+        trackedCount++;
+    }
+
+    /**
+     * Stop following a download that was removed before it finished
+     */
+    synchronized void downloadRemoved(long id) {
+        int index = indexOf(id);
+        if (index >= 0) untrack(index);
+    }
+
+    /**
+     * Take in one download's status as the status path reported it. Doesn't allocate until the download
+     * reaches its final status.
+     *
+     * @param id     - id of the download, status may list it under a handle
+     * @param status - packed like {@link DownloadService#checkStatusBatch(long[])}
+     * @param offset - of the download in status
+     */
+    synchronized void observe(long id, long[] status, int offset, long nowMs) {
+        int index = indexOf(id);
+        if (index < 0) return;
+
+        Tracked download = tracked[index];
+        long state = status[offset + DownloadService.STATUS_FIELD_STATUS];
+        long bytes = status[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR];
+        if (bytes > download.bytes) {
+            throughput.add(bytes - download.bytes, nowMs);
+            download.bytes = bytes;
+        }
+        if (download.runningMs < 0 && state != DownloadManager.STATUS_PENDING) {
+            download.runningMs = nowMs;
+            record(QUEUE_WAIT_MS, nowMs - download.startedMs);
+        }
+        if (download.firstByteMs < 0 && bytes > 0) {
+            download.firstByteMs = nowMs;
+            record(TIME_TO_FIRST_BYTE_MS, nowMs - download.startedMs);
+        }
+
+        if (state == DownloadManager.STATUS_SUCCESSFUL) {
+            long ms = nowMs - download.startedMs;
+            increment(DOWNLOADS_SUCCEEDED);
+            record(DOWNLOAD_MS, ms);
+            record(DOWNLOAD_BYTES_PER_SECOND, bytes * 1000 / Math.max(1, ms));
+            untrack(index);
+        } else if (state == DownloadManager.STATUS_FAILED || state == DownloadService.STATUS_NOT_FOUND) {
+            increment(DOWNLOADS_FAILED);
+            increment(DOWNLOADS_FAILED_REASON + status[offset + DownloadService.STATUS_FIELD_REASON]);
+            untrack(index);
+        }
+    }
+
+    /**
+     * @param moved - if the file arrived, or the move failed
+     * @param bytes - size of the moved file
+     */
+    void moveFinished(boolean moved, long ms, long bytes) {
+        if (!moved) {
+            increment(MOVES_FAILED);
+            return;
+        }
+        record(MOVE_MS, ms);
+        record(MOVE_BYTES_PER_SECOND, bytes * 1000 / Math.max(1, ms));
+    }
+
+    /**
+     * @return - all metrics, see the class comment for the format
+     */
+    String snapshot() {
+        long now = nowMs();
+        StringBuilder snapshot = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> counter : new TreeMap<>(counters).entrySet()) {
+            line(snapshot, 'c', counter.getKey()).append(' ').append(counter.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> histogram : new TreeMap<>(histograms).entrySet()) {
+            histogram.getValue().appendTo(line(snapshot, 'h', histogram.getKey()));
+        }
+        line(snapshot, 'g', THROUGHPUT).append(' ').append(throughput.rate(now));
+
+        synchronized (this) {
+            for (int i = 0; i < trackedCount; i++) {
+                Tracked download = tracked[i];
+                long ms = now - download.startedMs;
+                line(snapshot, 'd', String.valueOf(trackedIds[i]))
+                        .append(' ').append(download.bytes)
+                        .append(' ').append(download.bytes * 1000 / Math.max(1, ms));
+            }
+        }
+        return snapshot.toString();
+    }
+
+    private static StringBuilder line(StringBuilder snapshot, char type, String name) {
+        if (snapshot.length() > 0) snapshot.append('\n');
+        return snapshot.append(type).append(' ').append(name);
+    }
+
+    private int indexOf(long id) {
+        for (int i = 0; i < trackedCount; i++) {
+            if (trackedIds[i] == id) return i;
+        }
+        return -1;
+    }
+
+    private void untrack(int index) {
+        trackedCount--;
+        trackedIds[index] = trackedIds[trackedCount];
+        tracked[index] = tracked[trackedCount];
+        tracked[trackedCount] = null;
+    }
+
+    private static class Tracked {
+        final long startedMs;
+        long runningMs = -1;
+        long firstByteMs = -1;
+        long bytes;
+
+        Tracked(long startedMs) {
+            this.startedMs = startedMs;
+        }
+    }
+
+    /**
+     * Distribution of non-negative values in power of two buckets, so recording never allocates
+     */
+    static class Histogram {
+        //bucket n holds values below 2^n, bucket 0 holds 0
+        private final long[] buckets = new long[64];
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max;
+
+        synchronized void record(long value) {
+            value = Math.max(0, value);
+            buckets[64 - Long.numberOfLeadingZeros(value)]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        synchronized long count() {
+            return count;
+        }
+
+        /**
+         * @param fraction - 0.5 for the median
+         * @return - upper bound of the bucket holding that fraction of values, never above the largest value
+         */
+        synchronized long percentile(double fraction) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int bucket = 0; bucket < buckets.length; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= Math.max(1, rank)) {
+                    long upper = bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+                    return Math.min(upper, max);
+                }
+            }
+            return max;
+        }
+
+        synchronized void appendTo(StringBuilder line) {
+            line.append(' ').append(count)
+                    .append(' ').append(sum)
+                    .append(' ').append(count > 0 ? min : 0)
+                    .append(' ').append(max)
+                    .append(' ').append(percentile(0.5))
+                    .append(' ').append(percentile(0.9))
+                    .append(' ').append(percentile(0.99));
+        }
+    }
+
+    /**
+     * Bytes per second over a rolling window of whole seconds
+     */
+    static class Throughput {
+        private final long[] bytes;
+        private final long[] seconds;
+
+        Throughput(int windowSeconds) {
+            bytes = new long[windowSeconds];
+            seconds = new long[windowSeconds];
+            Arrays.fill(seconds, Long.MIN_VALUE);
+        }
+
+        synchronized void add(long delta, long nowMs) {
+            long second = nowMs / 1000;
+            //nanoTime may be negative
+            int slot = (int) ((second % bytes.length + bytes.length) % bytes.length);
+            if (seconds[slot] != second) {
+                seconds[slot] = second;
+                bytes[slot] = 0;
+            }
+            bytes[slot] += delta;
+        }
+
+        synchronized long rate(long nowMs) {
+            long second = nowMs / 1000;
+            long total = 0;
+            for (int slot = 0; slot < bytes.length; slot++) {
+                if (seconds[slot] > second - bytes.length && seconds[slot] <= second) total += bytes[slot];
+            }
+            return total / bytes.length;
+        }
+    }
+}
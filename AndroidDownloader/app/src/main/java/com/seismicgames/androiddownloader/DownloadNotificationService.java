@@ -1,283 +1,634 @@
-package com.seismicgames.androiddownloader;
-
-import android.app.DownloadManager;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
-import android.app.Service;
-import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.content.pm.ApplicationInfo;
-import android.database.Cursor;
-import android.os.Build;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.IBinder;
-import android.support.v4.app.NotificationCompat;
-import android.util.Log;
-
-import com.unity3d.player.UnityPlayer;
-
-import java.util.HashSet;
-import java.util.Set;
-
-/**
- * Created by admin on 12/21/2016.
- */
-
-public class DownloadNotificationService extends Service {
-
-    private static final String ACTION_SET_DOWNLOAD_IDS = DownloadManager.class.getName() + ".ACTION_SET_DOWNLOAD_IDS";
-    public static final String ACTION_CHECK_DOWNLOADS = DownloadManager.class.getName() + ".ACTION_CHECK_DOWNLOADS";
-    private static final String ACTION_CANCEL_DOWNLOADS = DownloadManager.class.getName() + ".ACTION_CANCEL_DOWNLOADS";
-    private static final String EXTRAS_DOWNLOAD_IDS = DownloadManager.class.getName() + ".EXTRAS_DOWNLOAD_IDS";
-
-    private static final String PREFERENCE_DOWNLOAD_IDS = DownloadManager.class.getName() + ".PREFERENCE_DOWNLOAD_IDS";
-
-    private static final int NOTIFICATION_ID = 1;
-
-
-    @SuppressWarnings("unused")
-    public static void startTrackingIds(long[] ids){
-        Context context = UnityPlayer.currentActivity;
-        Intent intent = new Intent(context, DownloadNotificationService.class);
-        intent.setAction(ACTION_SET_DOWNLOAD_IDS);
-        intent.putExtra(EXTRAS_DOWNLOAD_IDS, ids);
-        context.startService(intent);
-    }
-
-    private HandlerThread mWorkThread;
-    private Handler mHandler;
-    private UpdateNotificationRunnable progressUpdateRunnable;
-
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        mWorkThread = new HandlerThread("DownloadNotificationService");
-        mWorkThread.start();
-        mHandler = new Handler(mWorkThread.getLooper());
-
-
-        long[] ids = getStoredIds();
-        if(ids.length > 0) {
-            scheduleProgressUpdates(ids);
-        }
-    }
-
-    @Override
-    public int onStartCommand(Intent intent, int flags, int startId) {
-        Log.i("LocalService", "Received start id " + startId + ": " + intent);
-
-
-        if(intent != null) {
-            if (ACTION_SET_DOWNLOAD_IDS.equals(intent.getAction())) {
-                long[] ids = intent.getLongArrayExtra(EXTRAS_DOWNLOAD_IDS);
-                storeIds(ids);
-                scheduleProgressUpdates(ids);
-            }else if(ACTION_CANCEL_DOWNLOADS.equals(intent.getAction())) {
-                long[] ids = intent.getLongArrayExtra(EXTRAS_DOWNLOAD_IDS);
-                mHandler.post(new CancelRunnable(ids));
-            }else if (ACTION_CHECK_DOWNLOADS.equals(intent.getAction())){
-                long[] ids = getStoredIds();
-                if(ids.length <= 0) {
-                    stopSelf(startId);
-                    return START_NOT_STICKY;
-                }
-            }else{
-                stopSelf(startId);
-                return START_NOT_STICKY;
-            }
-        }
-
-        return START_STICKY;
-    }
-
-
-    @Override
-    public void onDestroy() {
-        super.onDestroy();
-        if(progressUpdateRunnable != null) progressUpdateRunnable.cancel();
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
-            mWorkThread.quitSafely();
-        }else {
-            mWorkThread.quit();
-        }
-    }
-
-
-    private void storeIds(long [] ids){
-        SharedPreferences prefs = getSharedPreferences("downloadIds", MODE_PRIVATE);
-
-        Set<String> idSet = new HashSet<>();
-        for (long id : ids) {
-            idSet.add(String.valueOf(id));
-        }
-
-        prefs.edit().putStringSet(PREFERENCE_DOWNLOAD_IDS, idSet).apply();
-    }
-
-    private long[] getStoredIds(){
-        SharedPreferences prefs = getSharedPreferences("downloadIds", MODE_PRIVATE);
-        Set<String> idSet = prefs.getStringSet(PREFERENCE_DOWNLOAD_IDS, new HashSet<String>());
-        long[] ids = new long[idSet.size()];
-
-        int index = 0;
-        for (String id : idSet) {
-           ids[index] = Integer.parseInt(id);
-            index++;
-        }
-        return ids;
-    }
-
-
-    public String getApplicationName() {
-        ApplicationInfo applicationInfo = getApplicationInfo();
-        int stringId = applicationInfo.labelRes;
-        return stringId == 0 ? getString(R.string.app_name) : getString(stringId);
-    }
-
-
-    private void scheduleProgressUpdates(long[] ids) {
-        if (progressUpdateRunnable != null) {
-            progressUpdateRunnable.cancel();
-        }
-        progressUpdateRunnable = new UpdateNotificationRunnable(ids);
-        mHandler.post(progressUpdateRunnable);
-    }
-
-
-    @Override
-    public IBinder onBind(Intent intent) {
-        return null;
-    }
-
-    private PendingIntent buildOpenAppIntent() {
-        Intent intent = getPackageManager().getLaunchIntentForPackage(getPackageName());
-        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        return PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
-    }
-
-    private PendingIntent buildCancelIntent(long[] ids) {
-        Intent intent = new Intent(this, DownloadNotificationService.class);
-        intent.setAction(ACTION_CANCEL_DOWNLOADS);
-        intent.putExtra(EXTRAS_DOWNLOAD_IDS, ids);
-        return PendingIntent.getService(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
-    }
-
-
-    private class UpdateNotificationRunnable implements Runnable{
-
-        private final long[] ids;
-        private volatile boolean canceled = false;
-        private NotificationCompat.Builder notificationBuilder;
-        private UpdateNotificationRunnable(long[] ids) {
-            this.ids = ids;
-
-            notificationBuilder = new NotificationCompat.Builder(getApplicationContext());
-            notificationBuilder .setSmallIcon(android.R.drawable.stat_sys_download)  // the status icon
-                    .setContentIntent(buildOpenAppIntent())
-                    //.setTicker(text)  // the status text
-                    .setWhen(System.currentTimeMillis())  // the time stamp
-                    .setContentTitle(getApplicationName())  // the label of the entry
-                    //.setContentText(text)  // the contents of the entry
-                    .addAction(android.R.drawable.ic_menu_close_clear_cancel, getString(android.R.string.cancel), buildCancelIntent(ids))
-                    .setProgress(100, 0, false);
-                    //.setContentIntent(contentIntent)  // The intent to send when the entry is clicked
-
-        }
-
-        public void cancel(){
-            canceled = true;
-            mHandler.removeCallbacks(this);
-        }
-
-        @Override
-        public void run() {
-            DownloadManager downloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-
-            DownloadManager.Query query = new DownloadManager.Query();
-            query.setFilterById(ids);
-
-
-            NotificationManager notificationManager = ((NotificationManager) getSystemService(NOTIFICATION_SERVICE));
-            boolean downloadsIncomplete = false;
-            boolean allDownloadsSuccessful = true;
-
-            Cursor c = null;
-            try {
-                c = downloadManager.query(query);
-
-                long totalBytesSoFar = 0;
-                long totalBytes = 0;
-                while (c.moveToNext()) {
-                    totalBytesSoFar += c.getLong(c.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-                    totalBytes += c.getLong(c.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-
-                    int status = c.getInt(c.getColumnIndex(DownloadManager.COLUMN_STATUS));
-                    downloadsIncomplete |= status == DownloadManager.STATUS_PAUSED || status == DownloadManager.STATUS_PENDING || status == DownloadManager.STATUS_RUNNING;
-                    allDownloadsSuccessful &= status == DownloadManager.STATUS_SUCCESSFUL;
-                }
-                //do not mark 0 downloads as a success.
-                allDownloadsSuccessful &= c.getPosition() > 0;
-
-
-                if (totalBytes > 0) {
-                    int progress = (int) ((totalBytesSoFar * 100) / totalBytes);
-                    notificationBuilder.setProgress(100, progress, progress == 100);
-                    notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-                }
-            } finally {
-                if (c != null) c.close();
-            }
-
-            if(!canceled) {
-                if (downloadsIncomplete) {
-                    mHandler.postDelayed(this, 1000);
-                } else {
-                    Log.d("DOWNLOADS", "downloads complete");
-                    if( allDownloadsSuccessful) {
-                        notificationBuilder.mActions.clear();
-                        notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download_done);
-                        notificationBuilder.setProgress(100, 100, false);
-                        notificationBuilder.setAutoCancel(true);
-                        notificationManager.notify(NOTIFICATION_ID, notificationBuilder.build());
-                    } else {
-                        notificationManager.cancel(NOTIFICATION_ID);
-                    }
-                    //clear stored ids;
-                    storeIds(new long[0]);
-                    stopSelf();
-                }
-            }
-        }
-
-    }
-
-    private class CancelRunnable implements Runnable{
-        private final long[] ids;
-
-        private CancelRunnable(long[] ids) {
-            this.ids = ids;
-        }
-
-        @Override
-        public void run() {
-            if(progressUpdateRunnable != null){
-                progressUpdateRunnable.cancel();
-            }
-
-            DownloadManager downloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-            downloadManager.remove(ids);
-
-            NotificationManager notificationManager = ((NotificationManager)getSystemService(NOTIFICATION_SERVICE));
-            notificationManager.cancel(NOTIFICATION_ID);
-        }
-    }
-
-}
-
-
-
-
-
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ApplicationInfo;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.unity3d.player.UnityPlayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Created by admin on 12/21/2016.
+ */
+
+public class DownloadNotificationService extends Service {
+
+    private static final String ACTION_SET_DOWNLOAD_IDS = DownloadManager.class.getName() + ".ACTION_SET_DOWNLOAD_IDS";
+    private static final String ACTION_TRACK_GROUP = DownloadManager.class.getName() + ".ACTION_TRACK_GROUP";
+    public static final String ACTION_CHECK_DOWNLOADS = DownloadManager.class.getName() + ".ACTION_CHECK_DOWNLOADS";
+    private static final String ACTION_CANCEL_DOWNLOADS = DownloadManager.class.getName() + ".ACTION_CANCEL_DOWNLOADS";
+    private static final String ACTION_PAUSE_GROUP = DownloadManager.class.getName() + ".ACTION_PAUSE_GROUP";
+    private static final String ACTION_RESUME_GROUP = DownloadManager.class.getName() + ".ACTION_RESUME_GROUP";
+    private static final String EXTRAS_DOWNLOAD_IDS = DownloadManager.class.getName() + ".EXTRAS_DOWNLOAD_IDS";
+    private static final String EXTRAS_GROUP_ID = DownloadManager.class.getName() + ".EXTRAS_GROUP_ID";
+    private static final String EXTRAS_GROUP_TITLE = DownloadManager.class.getName() + ".EXTRAS_GROUP_TITLE";
+
+    private static final String PREFERENCES = "downloadIds";
+    //ids of the only group there was before groups, read once to carry it over
+    private static final String PREFERENCE_DOWNLOAD_IDS = DownloadManager.class.getName() + ".PREFERENCE_DOWNLOAD_IDS";
+    private static final String PREFERENCE_GROUPS = DownloadManager.class.getName() + ".PREFERENCE_GROUPS";
+    //followed by the group id
+    private static final String PREFERENCE_GROUP_IDS = DownloadManager.class.getName() + ".PREFERENCE_GROUP_IDS.";
+    private static final String PREFERENCE_GROUP_TITLE = DownloadManager.class.getName() + ".PREFERENCE_GROUP_TITLE.";
+    private static final String PREFERENCE_GROUP_SESSION =
+            DownloadManager.class.getName() + ".PREFERENCE_GROUP_SESSION.";
+    private static final String PREFERENCE_NEXT_GROUP_ID = DownloadManager.class.getName() + ".PREFERENCE_NEXT_GROUP_ID";
+
+    //group of startTrackingIds, each group is notified under NOTIFICATION_ID + its id
+    private static final int DEFAULT_GROUP_ID = 0;
+    private static final int NOTIFICATION_ID = 1;
+
+    private static final long MIN_TICK_INTERVAL_MS = 1000;
+    private static final long MAX_TICK_INTERVAL_MS = 30000;
+    //DownloadManager's provider notifies this on every change to a download
+    private static final String DOWNLOADS_CONTENT_URI = "content://downloads/my_downloads";
+
+
+    /**
+     * Track downloads under the app's notification, replacing what the previous call tracked
+     *
+     * @param ids - download ids, an empty array stops tracking
+     */
+    @SuppressWarnings("unused")
+    public static void startTrackingIds(long[] ids){
+        Context context = UnityPlayer.currentActivity;
+        Intent intent = new Intent(context, DownloadNotificationService.class);
+        intent.setAction(ACTION_SET_DOWNLOAD_IDS);
+        intent.putExtra(EXTRAS_DOWNLOAD_IDS, ids);
+        context.startService(intent);
+    }
+
+    /**
+     * Track downloads under a notification of their own, next to any other group
+     *
+     * @param ids   - download ids, DownloadManager's or in-process ones
+     * @param title - shown on the notification, null for the app name
+     * @return - id of the group, for {@link #cancelGroup(int)}, {@link #pauseGroup(int)} and {@link #resumeGroup(int)}
+     */
+    @SuppressWarnings("unused")
+    public static int startTrackingGroup(long[] ids, String title) {
+        Context context = UnityPlayer.currentActivity;
+        int groupId = nextGroupId(context);
+        Intent intent = new Intent(context, DownloadNotificationService.class);
+        intent.setAction(ACTION_TRACK_GROUP);
+        intent.putExtra(EXTRAS_GROUP_ID, groupId);
+        intent.putExtra(EXTRAS_DOWNLOAD_IDS, ids);
+        intent.putExtra(EXTRAS_GROUP_TITLE, title);
+        context.startService(intent);
+        return groupId;
+    }
+
+    /**
+     * Remove every download of the group and its notification
+     */
+    @SuppressWarnings("unused")
+    public static void cancelGroup(int groupId) {
+        sendGroupAction(ACTION_CANCEL_DOWNLOADS, groupId);
+    }
+
+    /**
+     * Pause the group's in-process downloads, DownloadManager can't pause its own
+     */
+    @SuppressWarnings("unused")
+    public static void pauseGroup(int groupId) {
+        sendGroupAction(ACTION_PAUSE_GROUP, groupId);
+    }
+
+    @SuppressWarnings("unused")
+    public static void resumeGroup(int groupId) {
+        sendGroupAction(ACTION_RESUME_GROUP, groupId);
+    }
+
+    private static void sendGroupAction(String action, int groupId) {
+        Context context = UnityPlayer.currentActivity;
+        Intent intent = new Intent(context, DownloadNotificationService.class);
+        intent.setAction(action);
+        intent.putExtra(EXTRAS_GROUP_ID, groupId);
+        context.startService(intent);
+    }
+
+    private static synchronized int nextGroupId(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        int groupId = prefs.getInt(PREFERENCE_NEXT_GROUP_ID, DEFAULT_GROUP_ID + 1);
+        //wrapping around takes billions of groups, by then the early ones are long gone
+        int next = groupId == Integer.MAX_VALUE - NOTIFICATION_ID ? DEFAULT_GROUP_ID + 1 : groupId + 1;
+        prefs.edit().putInt(PREFERENCE_NEXT_GROUP_ID, next).commit();
+        return groupId;
+    }
+
+    private HandlerThread mWorkThread;
+    private Handler mHandler;
+    private UpdateNotificationRunnable progressUpdateRunnable;
+    //only touched on the work thread
+    private final Map<Integer, DownloadGroup> groups = new TreeMap<>();
+    private final Map<Integer, NotificationCompat.Builder> notifications = new HashMap<>();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mWorkThread = new HandlerThread("DownloadNotificationService");
+        mWorkThread.start();
+        mHandler = new Handler(mWorkThread.getLooper());
+        progressUpdateRunnable = new UpdateNotificationRunnable();
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (DownloadGroup group : getStoredGroups()) {
+                    groups.put(group.id, group);
+                }
+                if (!groups.isEmpty()) progressUpdateRunnable.start();
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, final int startId) {
+        Log.i("LocalService", "Received start id " + startId + ": " + intent);
+
+
+        if(intent != null) {
+            if (ACTION_SET_DOWNLOAD_IDS.equals(intent.getAction())) {
+                long[] ids = intent.getLongArrayExtra(EXTRAS_DOWNLOAD_IDS);
+                mHandler.post(new TrackRunnable(new DownloadGroup(DEFAULT_GROUP_ID, null, ids)));
+            }else if (ACTION_TRACK_GROUP.equals(intent.getAction())) {
+                long[] ids = intent.getLongArrayExtra(EXTRAS_DOWNLOAD_IDS);
+                int groupId = intent.getIntExtra(EXTRAS_GROUP_ID, DEFAULT_GROUP_ID);
+                String title = intent.getStringExtra(EXTRAS_GROUP_TITLE);
+                mHandler.post(new TrackRunnable(new DownloadGroup(groupId, title, ids)));
+            }else if(ACTION_CANCEL_DOWNLOADS.equals(intent.getAction())) {
+                //cancel actions posted before groups carry no group id
+                mHandler.post(new CancelRunnable(intent.getIntExtra(EXTRAS_GROUP_ID, DEFAULT_GROUP_ID)));
+            }else if (ACTION_PAUSE_GROUP.equals(intent.getAction()) || ACTION_RESUME_GROUP.equals(intent.getAction())) {
+                int groupId = intent.getIntExtra(EXTRAS_GROUP_ID, DEFAULT_GROUP_ID);
+                mHandler.post(new PauseRunnable(groupId, ACTION_PAUSE_GROUP.equals(intent.getAction())));
+            }else if (ACTION_CHECK_DOWNLOADS.equals(intent.getAction())){
+                //a download finished, no need to wait for the next tick
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (groups.isEmpty()) {
+                            stopSelf(startId);
+                        } else {
+                            progressUpdateRunnable.onDownloadsChanged();
+                        }
+                    }
+                });
+            }else{
+                stopSelf(startId);
+                return START_NOT_STICKY;
+            }
+        }
+
+        return START_STICKY;
+    }
+
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if(progressUpdateRunnable != null) progressUpdateRunnable.cancel();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            mWorkThread.quitSafely();
+        }else {
+            mWorkThread.quit();
+        }
+    }
+
+
+    private void storeGroups() {
+        SharedPreferences prefs = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        Set<String> groupIds = new HashSet<>();
+        for (DownloadGroup group : groups.values()) {
+            String groupId = String.valueOf(group.id);
+            groupIds.add(groupId);
+
+            Set<String> idSet = new HashSet<>();
+            for (long id : group.ids) {
+                idSet.add(String.valueOf(id));
+            }
+            editor.putStringSet(PREFERENCE_GROUP_IDS + groupId, idSet);
+            editor.putString(PREFERENCE_GROUP_TITLE + groupId, group.title);
+            editor.putLong(PREFERENCE_GROUP_SESSION + groupId, group.session);
+        }
+        for (String groupId : prefs.getStringSet(PREFERENCE_GROUPS, new HashSet<String>())) {
+            if (!groupIds.contains(groupId)) {
+                editor.remove(PREFERENCE_GROUP_IDS + groupId).remove(PREFERENCE_GROUP_TITLE + groupId)
+                        .remove(PREFERENCE_GROUP_SESSION + groupId);
+            }
+        }
+
+        editor.putStringSet(PREFERENCE_GROUPS, groupIds).remove(PREFERENCE_DOWNLOAD_IDS).apply();
+    }
+
+    private List<DownloadGroup> getStoredGroups(){
+        SharedPreferences prefs = getSharedPreferences(PREFERENCES, MODE_PRIVATE);
+        List<DownloadGroup> stored = new ArrayList<>();
+
+        Set<String> legacyIds = prefs.getStringSet(PREFERENCE_DOWNLOAD_IDS, null);
+        if (legacyIds != null && !legacyIds.isEmpty()) {
+            //from before sessions, so from another process
+            stored.add(new DownloadGroup(DEFAULT_GROUP_ID, null, parseIds(legacyIds), 0));
+        }
+        for (String groupId : prefs.getStringSet(PREFERENCE_GROUPS, new HashSet<String>())) {
+            Set<String> idSet = prefs.getStringSet(PREFERENCE_GROUP_IDS + groupId, new HashSet<String>());
+            String title = prefs.getString(PREFERENCE_GROUP_TITLE + groupId, null);
+            long session = prefs.getLong(PREFERENCE_GROUP_SESSION + groupId, 0);
+            stored.add(new DownloadGroup(Integer.parseInt(groupId), title, parseIds(idSet), session));
+        }
+        //in-process ids of an earlier process may be taken by this one's downloads
+        for (DownloadGroup group : stored) {
+            group.loseInProcessIds();
+        }
+        return stored;
+    }
+
+    private static long[] parseIds(Set<String> idSet) {
+        long[] ids = new long[idSet.size()];
+
+        int index = 0;
+        for (String id : idSet) {
+           ids[index] = Long.parseLong(id);
+            index++;
+        }
+        return ids;
+    }
+
+
+    public String getApplicationName() {
+        ApplicationInfo applicationInfo = getApplicationInfo();
+        int stringId = applicationInfo.labelRes;
+        return stringId == 0 ? getString(R.string.app_name) : getString(stringId);
+    }
+
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private PendingIntent buildOpenAppIntent() {
+        Intent intent = getPackageManager().getLaunchIntentForPackage(getPackageName());
+        intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        return PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+    }
+
+    private PendingIntent buildGroupIntent(String action, int groupId) {
+        Intent intent = new Intent(this, DownloadNotificationService.class);
+        intent.setAction(action);
+        intent.putExtra(EXTRAS_GROUP_ID, groupId);
+        //intents differing only in extras share a PendingIntent unless their request codes differ
+        return PendingIntent.getService(this, groupId, intent, PendingIntent.FLAG_CANCEL_CURRENT);
+    }
+
+    private NotificationCompat.Builder buildNotification(DownloadGroup group) {
+        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(getApplicationContext());
+        notificationBuilder .setSmallIcon(android.R.drawable.stat_sys_download)  // the status icon
+                .setContentIntent(buildOpenAppIntent())
+                .setWhen(System.currentTimeMillis())  // the time stamp
+                .setContentTitle(group.title != null ? group.title : getApplicationName())  // the label of the entry
+                .setProgress(100, 0, false);
+        addActions(notificationBuilder, group);
+        return notificationBuilder;
+    }
+
+    private void addActions(NotificationCompat.Builder notificationBuilder, DownloadGroup group) {
+        notificationBuilder.mActions.clear();
+        notificationBuilder.addAction(android.R.drawable.ic_menu_close_clear_cancel, getString(android.R.string.cancel),
+                buildGroupIntent(ACTION_CANCEL_DOWNLOADS, group.id));
+
+        //only in-process downloads can be paused
+        boolean pausable = false;
+        for (long id : group.ids) {
+            pausable |= DownloadIds.isInProcess(id);
+        }
+        if (!pausable) return;
+        if (group.isPaused()) {
+            notificationBuilder.addAction(android.R.drawable.ic_media_play, getString(R.string.download_resume),
+                    buildGroupIntent(ACTION_RESUME_GROUP, group.id));
+        } else {
+            notificationBuilder.addAction(android.R.drawable.ic_media_pause, getString(R.string.download_pause),
+                    buildGroupIntent(ACTION_PAUSE_GROUP, group.id));
+        }
+    }
+
+    /**
+     * @return - the app's DownloadService, or null if the app isn't running and in-process downloads are gone
+     */
+    private static DownloadService getDownloadService() {
+        return UnityPlayer.currentActivity != null ? DownloadService.getInstance() : null;
+    }
+
+    /**
+     * Show where the group is at, or what it ended with
+     *
+     * @return - if the group finished
+     */
+    private boolean notifyGroup(NotificationManager notificationManager, DownloadGroup group) {
+        NotificationCompat.Builder notificationBuilder = notifications.get(group.id);
+        if (notificationBuilder == null) {
+            notificationBuilder = buildNotification(group);
+            notifications.put(group.id, notificationBuilder);
+        }
+
+        if (group.isFinished()) {
+            Log.d("DOWNLOADS", "downloads of group " + group.id + " complete");
+            if (group.isSuccessful()) {
+                notificationBuilder.mActions.clear();
+                notificationBuilder.setSmallIcon(android.R.drawable.stat_sys_download_done);
+                notificationBuilder.setContentText(null);
+                notificationBuilder.setProgress(100, 100, false);
+                notificationBuilder.setAutoCancel(true);
+                notificationManager.notify(NOTIFICATION_ID + group.id, notificationBuilder.build());
+            } else {
+                notificationManager.cancel(NOTIFICATION_ID + group.id);
+            }
+            notifications.remove(group.id);
+            return true;
+        }
+
+        //re-posting the same percentage is an IPC for nothing
+        if (group.shouldNotify()) {
+            int progress = group.getPercent();
+            addActions(notificationBuilder, group);
+            notificationBuilder.setContentText(group.isPaused() ? getString(R.string.download_paused) : null);
+            notificationBuilder.setProgress(100, progress, progress == 100 || group.getTotalBytes() == 0);
+            notificationManager.notify(NOTIFICATION_ID + group.id, notificationBuilder.build());
+        }
+        return false;
+    }
+
+
+    private class UpdateNotificationRunnable implements Runnable{
+
+        //the unfinished ids hardly ever change, neither do the queries
+        private long[] queriedIds = new long[0];
+        private DownloadManager.Query[] queries;
+        private boolean started = false;
+        private final NotificationTicker ticker = new NotificationTicker(MIN_TICK_INTERVAL_MS, MAX_TICK_INTERVAL_MS);
+        private final ContentObserver changeObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onDownloadsChanged();
+            }
+        };
+        //uptime, only touched on the work thread
+        private long lastTickMs;
+        private long nextTickMs;
+
+        /**
+         * Tick now, runs on the work thread
+         */
+        public void start() {
+            if (!started) {
+                started = true;
+                getContentResolver().registerContentObserver(Uri.parse(DOWNLOADS_CONTENT_URI), true, changeObserver);
+            }
+            mHandler.removeCallbacks(this);
+            schedule(0, SystemClock.uptimeMillis());
+        }
+
+        public void cancel(){
+            mHandler.removeCallbacks(this);
+            if (started) {
+                started = false;
+                getContentResolver().unregisterContentObserver(changeObserver);
+            }
+        }
+
+        /**
+         * Bring the next tick forward, runs on the work thread
+         */
+        void onDownloadsChanged() {
+            if (!started) return;
+            long now = SystemClock.uptimeMillis();
+            long delay = ticker.onChange(now - lastTickMs);
+            if (now + delay < nextTickMs) {
+                mHandler.removeCallbacks(this);
+                schedule(delay, now);
+            }
+        }
+
+        private void schedule(long delay, long now) {
+            nextTickMs = now + delay;
+            mHandler.postDelayed(this, delay);
+        }
+
+        @Override
+        public void run() {
+            lastTickMs = SystemClock.uptimeMillis();
+            nextTickMs = Long.MAX_VALUE;
+
+            DownloadMetrics metrics = DownloadMetrics.shared();
+            metrics.increment(DownloadMetrics.NOTIFICATION_TICKS);
+
+            //only downloads that haven't finished are asked about, once however many groups they are in
+            long[] systemIds = new long[0];
+            long[] inProcessIds = new long[0];
+            for (DownloadGroup group : groups.values()) {
+                for (long id : group.unfinishedIds()) {
+                    if (DownloadIds.isInProcess(id)) {
+                        inProcessIds = append(inProcessIds, id);
+                    } else {
+                        systemIds = append(systemIds, id);
+                    }
+                }
+            }
+
+            if (systemIds.length > 0) {
+                long[] status = new long[systemIds.length * DownloadService.STATUS_STRIDE];
+                StatusRow.prefill(systemIds, status);
+                querySystem(systemIds, status, metrics);
+                update(status);
+            }
+            if (inProcessIds.length > 0) {
+                DownloadService service = getDownloadService();
+                long[] status;
+                if (service != null) {
+                    status = service.checkStatusBatch(inProcessIds);
+                } else {
+                    //not found, so their groups give up on them
+                    status = new long[inProcessIds.length * DownloadService.STATUS_STRIDE];
+                    StatusRow.prefill(inProcessIds, status);
+                }
+                update(status);
+            }
+
+            NotificationManager notificationManager = ((NotificationManager) getSystemService(NOTIFICATION_SERVICE));
+            long totalBytesSoFar = 0;
+            boolean changed = false;
+            for (Iterator<DownloadGroup> it = groups.values().iterator(); it.hasNext(); ) {
+                DownloadGroup group = it.next();
+                totalBytesSoFar += group.getBytesSoFar();
+                if (notifyGroup(notificationManager, group)) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+            if (changed) storeGroups();
+
+            if (!groups.isEmpty()) {
+                schedule(ticker.onTick(totalBytesSoFar), SystemClock.uptimeMillis());
+            } else {
+                cancel();
+                Log.d("DOWNLOADS", "downloads complete");
+                stopSelf();
+            }
+        }
+
+        private void querySystem(long[] ids, long[] status, DownloadMetrics metrics) {
+            if (queries == null || !Arrays.equals(ids, queriedIds)) {
+                queriedIds = ids;
+                queries = DownloadColumns.queriesFor(ids, ids.length);
+            }
+
+            DownloadManager downloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
+            long queryMs = 0;
+            for (DownloadManager.Query query : queries) {
+                long start = DownloadMetrics.nowMs();
+                Cursor c = null;
+                try {
+                    c = downloadManager.query(query);
+                    queryMs += DownloadMetrics.nowMs() - start;
+                    DownloadColumns.readStatus(c, ids, status);
+                } finally {
+                    if (c != null) c.close();
+                }
+            }
+            metrics.record(DownloadMetrics.NOTIFICATION_QUERY_MS, queryMs);
+        }
+
+        private void update(long[] status) {
+            for (int offset = 0; offset < status.length; offset += DownloadService.STATUS_STRIDE) {
+                for (DownloadGroup group : groups.values()) {
+                    group.update(status, offset);
+                }
+            }
+        }
+
+        private long[] append(long[] ids, long id) {
+            for (long known : ids) {
+                if (known == id) return ids;
+            }
+            long[] result = Arrays.copyOf(ids, ids.length + 1);
+            result[ids.length] = id;
+            return result;
+        }
+    }
+
+    /**
+     * Start tracking a group, in place of any group with the same id
+     */
+    private class TrackRunnable implements Runnable {
+        private final DownloadGroup group;
+
+        private TrackRunnable(DownloadGroup group) {
+            this.group = group;
+        }
+
+        @Override
+        public void run() {
+            notifications.remove(group.id);
+            if (group.ids.length == 0) {
+                groups.remove(group.id);
+                ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).cancel(NOTIFICATION_ID + group.id);
+            } else {
+                groups.put(group.id, group);
+            }
+            storeGroups();
+            progressUpdateRunnable.start();
+        }
+    }
+
+    private class CancelRunnable implements Runnable{
+        private final int groupId;
+
+        private CancelRunnable(int groupId) {
+            this.groupId = groupId;
+        }
+
+        @Override
+        public void run() {
+            DownloadGroup group = groups.remove(groupId);
+            notifications.remove(groupId);
+            NotificationManager notificationManager = ((NotificationManager)getSystemService(NOTIFICATION_SERVICE));
+            notificationManager.cancel(NOTIFICATION_ID + groupId);
+            if (group == null) return;
+            storeGroups();
+
+            DownloadManager downloadManager = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
+            DownloadService service = getDownloadService();
+            for (long id : group.unfinishedIds()) {
+                if (!DownloadIds.isInProcess(id)) {
+                    downloadManager.remove(id);
+                } else if (service != null) {
+                    service.removeDownload(String.valueOf(id));
+                }
+            }
+            //the others are ticked on
+            if (groups.isEmpty()) {
+                progressUpdateRunnable.cancel();
+                stopSelf();
+            }
+        }
+    }
+
+    /**
+     * Pause or resume the in-process downloads of a group
+     */
+    private class PauseRunnable implements Runnable {
+        private final int groupId;
+        private final boolean pause;
+
+        private PauseRunnable(int groupId, boolean pause) {
+            this.groupId = groupId;
+            this.pause = pause;
+        }
+
+        @Override
+        public void run() {
+            DownloadGroup group = groups.get(groupId);
+            DownloadService service = getDownloadService();
+            if (group == null || service == null) return;
+
+            for (long id : group.unfinishedIds()) {
+                if (!DownloadIds.isInProcess(id)) continue;
+                if (pause) {
+                    service.pauseDownload(String.valueOf(id));
+                } else {
+                    service.resumeDownload(String.valueOf(id));
+                }
+            }
+            //in-process downloads don't show up in DownloadManager's change notifications
+            progressUpdateRunnable.onDownloadsChanged();
+        }
+    }
+
+}
@@ -0,0 +1,526 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds downloads back until fewer than maxInFlight are running, then hands the one with the highest
+ * {@link DownloadTask#getPriority()} to its engine, oldest first among equals. Queued downloads can be
+ * reprioritized or held back, pausing a download already handed to its engine is up to that engine.
+ *
+ * Downloads are known by a handle from the moment they are queued, which stays the same after they start and is
+ * what the scheduler reports their status under.
+ *
+ * With a {@link StorageBudget}, a download only starts once the space it needs is free, counting what downloads
+ * that already started still need until they are removed. Its size comes from the task or a HEAD request, if the
+ * {@link NetworkPolicy} lets it make one. The download next in line waits while it doesn't fit, reported as paused
+ * with {@link DownloadService#PAUSED_WAITING_FOR_SPACE}, and holds back everything behind it. It fails with
+ * ERROR_INSUFFICIENT_SPACE right away if it can't fit even with nothing else holding space.
+ *
+ * Engines are only asked about downloads and handed new ones outside the scheduler's lock, so a slow
+ * DownloadManager doesn't hold up status calls, priorities or removals.
+ */
+class DownloadScheduler implements DownloadEngine {
+    private static final String TAG = "DownloadScheduler";
+    private static final int MAX_PARALLEL_PROBES = 2;
+    private static final int PROBE_TIMEOUT_MS = 15 * 1000;
+
+    private final ScheduledExecutorService pumpExecutor;
+    private final long pollIntervalMs;
+    private final Map<Long, Item> items = new ConcurrentHashMap<>();
+    private final ThreadLocal<StatusRow> statusRows = StatusRow.perThread();
+    private final Runnable pumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    private final ExecutorService probeExecutor;
+    private final NetworkPolicy networkPolicy;
+
+    private volatile DownloadEngine target;
+    private volatile StorageBudget storageBudget;
+    //one pump at a time, so downloads are admitted against what the last pump left
+    private final Object pumpLock = new Object();
+    //guarded by this
+    private final List<Item> queue = new ArrayList<>();
+    private final List<Item> inFlight = new ArrayList<>();
+    private int maxInFlight;
+    private long sequence;
+    private boolean polling;
+    private boolean waitingForSpace;
+
+    /**
+     * @param target         - engine new downloads are handed to
+     * @param maxInFlight    - downloads running at the same time, 0 for no limit
+     * @param pollIntervalMs - time between checks whether running downloads finished
+     */
+    DownloadScheduler(DownloadEngine target, int maxInFlight, long pollIntervalMs) {
+        this(target, maxInFlight, pollIntervalMs, new NetworkPolicy());
+    }
+
+    /**
+     * @param networkPolicy - which networks probing a download's size may use
+     */
+    DownloadScheduler(DownloadEngine target, int maxInFlight, long pollIntervalMs, NetworkPolicy networkPolicy) {
+        this.target = target;
+        this.networkPolicy = networkPolicy;
+        this.maxInFlight = maxInFlight;
+        this.pollIntervalMs = pollIntervalMs;
+        pumpExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        probeExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_PROBES, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DownloadScheduler-probe-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param target - engine downloads queued from now on are handed to
+     */
+    void setTarget(DownloadEngine target) {
+        this.target = target;
+    }
+
+    /**
+     * @param maxInFlight - downloads running at the same time, 0 for no limit
+     */
+    void setMaxInFlight(int maxInFlight) {
+        synchronized (this) {
+            this.maxInFlight = maxInFlight;
+        }
+        pumpExecutor.execute(pumpRunnable);
+    }
+
+    /**
+     * @param storageBudget - space downloads must fit in before they start, null to start them regardless
+     */
+    void setStorageBudget(StorageBudget storageBudget) {
+        this.storageBudget = storageBudget;
+        pumpExecutor.execute(pumpRunnable);
+    }
+
+    /**
+     * @return - bytes of the budget's volume left for new downloads, after what started downloads still need
+     */
+    long availableBytes(StorageBudget budget) {
+        return budget.available(outstandingBytes());
+    }
+
+    @Override
+    public long enqueue(DownloadTask task) {
+        Item item = new Item(DownloadIds.next(), task, target);
+        synchronized (this) {
+            item.sequence = sequence++;
+            queue.add(item);
+        }
+        items.put(item.handle, item);
+        //sizes are probed ahead of time, so downloads don't wait on them when their turn comes
+        if (storageBudget != null && item.size < 0) probe(item);
+        pumpExecutor.execute(pumpRunnable);
+        return item.handle;
+    }
+
+    @Override
+    public boolean verifiesDigest() {
+        return target.verifiesDigest();
+    }
+
+    @Override
+    public boolean preallocates() {
+        return target.preallocates();
+    }
+
+    /**
+     * @return - false if the download isn't queued anymore
+     */
+    synchronized boolean setPriority(long handle, int priority) {
+        Item item = items.get(handle);
+        if (item == null || !queue.contains(item)) return false;
+        item.priority = priority;
+        return true;
+    }
+
+    /**
+     * Keep a queued download from starting until it is resumed, or pause it in its engine if it already started.
+     * A running download keeps its slot while paused.
+     */
+    @Override
+    public boolean pause(long handle) {
+        Item item;
+        synchronized (this) {
+            item = items.get(handle);
+            if (item == null) return false;
+            if (queue.contains(item)) {
+                item.paused = true;
+                return true;
+            }
+        }
+        return isStarted(item) && item.engine.pause(item.engineId);
+    }
+
+    @Override
+    public boolean resume(long handle) {
+        Item item;
+        synchronized (this) {
+            item = items.get(handle);
+            if (item == null) return false;
+            if (queue.contains(item)) {
+                item.paused = false;
+                pumpExecutor.execute(pumpRunnable);
+                return true;
+            }
+        }
+        return isStarted(item) && item.engine.resume(item.engineId);
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return items.containsKey(id);
+    }
+
+    @Override
+    public void query(long[] ids, long[] out) {
+        for (int i = 0; i < ids.length; i++) {
+            //DownloadManager's, looking them up would box them
+            if (!DownloadIds.isInProcess(ids[i])) continue;
+            Item item = items.get(ids[i]);
+            if (item == null) continue;
+
+            int offset = i * DownloadService.STATUS_STRIDE;
+            if (item.engineId == Item.NOT_STARTED) {
+                int reason = item.paused ? DownloadManager.PAUSED_UNKNOWN
+                        : item.waitingForSpace ? DownloadService.PAUSED_WAITING_FOR_SPACE : 0;
+                out[offset + DownloadService.STATUS_FIELD_STATUS] = reason != 0
+                        ? DownloadManager.STATUS_PAUSED : DownloadManager.STATUS_PENDING;
+                out[offset + DownloadService.STATUS_FIELD_REASON] = reason;
+            } else if (item.engineId == Item.FAILED_TO_START) {
+                out[offset + DownloadService.STATUS_FIELD_STATUS] = DownloadManager.STATUS_FAILED;
+                out[offset + DownloadService.STATUS_FIELD_REASON] = item.failReason;
+            } else {
+                //everything but the id, which stays the handle
+                long[] status = queryEngine(item);
+                System.arraycopy(status, DownloadService.STATUS_FIELD_STATUS,
+                        out, offset + DownloadService.STATUS_FIELD_STATUS,
+                        DownloadService.STATUS_STRIDE - DownloadService.STATUS_FIELD_STATUS);
+            }
+        }
+    }
+
+    @Override
+    public FileInputStream openDownloadedFile(long id) throws IOException {
+        Item item = items.get(id);
+        if (item == null || !isStarted(item)) {
+            throw new FileNotFoundException("download " + id + " has not started");
+        }
+        return item.engine.openDownloadedFile(item.engineId);
+    }
+
+    @Override
+    public File getDownloadedFile(long id) {
+        Item item = items.get(id);
+        if (item == null || !isStarted(item)) return null;
+        return item.engine.getDownloadedFile(item.engineId);
+    }
+
+    @Override
+    public String getETag(long id) {
+        Item item = items.get(id);
+        if (item == null || !isStarted(item)) return null;
+        return item.engine.getETag(item.engineId);
+    }
+
+    @Override
+    public boolean remove(long id) {
+        Item item = items.remove(id);
+        if (item == null) return false;
+
+        boolean started;
+        synchronized (this) {
+            queue.remove(item);
+            inFlight.remove(item);
+            //a download being handed to its engine right now is removed from it by the pump
+            item.removed = true;
+            started = isStarted(item);
+        }
+        pumpExecutor.execute(pumpRunnable);
+        return !started || item.engine.remove(item.engineId);
+    }
+
+    /**
+     * Retire running downloads that finished and start queued ones in their place. Runs on the pump thread, and
+     * keeps polling while anything is running or waiting.
+     */
+    void pump() {
+        synchronized (pumpLock) {
+            //what the engines say first, without the lock
+            List<Item> running;
+            synchronized (this) {
+                running = new ArrayList<>(inFlight);
+            }
+            List<Item> done = new ArrayList<>();
+            for (Item item : running) {
+                if (isDone(item)) done.add(item);
+            }
+            StorageBudget budget = storageBudget;
+            long outstanding = budget != null ? outstandingBytes() : 0;
+            long available = budget != null ? budget.available(outstanding) : 0;
+
+            List<Item> starting = new ArrayList<>();
+            synchronized (this) {
+                inFlight.removeAll(done);
+                admit(budget, outstanding, available, starting);
+            }
+            for (Item item : starting) {
+                start(item);
+            }
+
+            synchronized (this) {
+                //queued downloads only wait on running ones, on free space, or on calls that pump anyway
+                if ((!inFlight.isEmpty() || waitingForSpace) && !polling) {
+                    polling = true;
+                    pumpExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (DownloadScheduler.this) {
+                                polling = false;
+                            }
+                            pump();
+                        }
+                    }, pollIntervalMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Pick the queued downloads that may start now, and count them as running
+     *
+     * @param starting - gets the downloads to hand to their engines
+     */
+    private void admit(StorageBudget budget, long outstanding, long available, List<Item> starting) {
+        waitingForSpace = false;
+        for (Item item : queue) {
+            item.waitingForSpace = false;
+        }
+        while (maxInFlight <= 0 || inFlight.size() < maxInFlight) {
+            Item next = null;
+            for (Item item : queue) {
+                if (item.paused) continue;
+                if (next == null || item.priority > next.priority
+                        || item.priority == next.priority && item.sequence < next.sequence) {
+                    next = item;
+                }
+            }
+            if (next == null) break;
+
+            if (budget != null) {
+                if (next.size < 0 && !next.probed) {
+                    //starts once its size is known
+                    if (!next.probing) probe(next);
+                    break;
+                }
+                long needed = budget.reservationFor(next.size);
+                if (needed > available) {
+                    if (outstanding > 0) {
+                        //space comes back as other downloads are moved or removed
+                        next.waitingForSpace = true;
+                        waitingForSpace = true;
+                        break;
+                    }
+                    DownloadService.unityLog(Log.WARN, TAG, "not enough space for %s, needs %d bytes, %d free",
+                            next.task.getUrl(), needed, available);
+                    DownloadMetrics.shared().increment(DownloadMetrics.DOWNLOADS_NO_SPACE);
+                    queue.remove(next);
+                    next.failReason = DownloadManager.ERROR_INSUFFICIENT_SPACE;
+                    next.engineId = Item.FAILED_TO_START;
+                    continue;
+                }
+                next.reserved = needed;
+                next.waitingForSpace = false;
+                available -= needed;
+                outstanding += needed;
+            }
+
+            queue.remove(next);
+            inFlight.add(next);
+            starting.add(next);
+        }
+    }
+
+    /**
+     * Hand an admitted download to its engine, outside the lock
+     */
+    private void start(Item item) {
+        long engineId;
+        try {
+            engineId = item.engine.enqueue(item.task);
+        } catch (IOException e) {
+            DownloadService.unityLog(Log.ERROR, TAG, "could not start download of %s: %s",
+                    item.task.getUrl(), e.getMessage());
+            synchronized (this) {
+                inFlight.remove(item);
+                item.reserved = 0;
+                item.engineId = Item.FAILED_TO_START;
+            }
+            return;
+        }
+
+        boolean removed;
+        synchronized (this) {
+            item.engineId = engineId;
+            removed = item.removed;
+        }
+        if (removed) item.engine.remove(engineId);
+    }
+
+    /**
+     * @return - bytes started downloads still need, for what they have yet to download unless their file already
+     * took it, and to be moved
+     */
+    private long outstandingBytes() {
+        long outstanding = 0;
+        for (Item item : items.values()) {
+            if (item.reserved <= 0) continue;
+            //admitted, and about to be handed to its engine
+            if (item.engineId == Item.NOT_STARTED) {
+                outstanding += item.reserved;
+                continue;
+            }
+            long[] status = queryEngine(item);
+            long state = status[DownloadService.STATUS_FIELD_STATUS];
+            if (state == DownloadManager.STATUS_FAILED || state == DownloadService.STATUS_NOT_FOUND) {
+                //a failed download's space is the engine's to clean up
+                item.reserved = 0;
+                continue;
+            }
+            //free space already leaves out a preallocated file
+            long toDownload = item.engine.preallocates() && status[DownloadService.STATUS_FIELD_TOTAL_BYTES] >= 0
+                    ? 0 : Math.max(0, item.size - status[DownloadService.STATUS_FIELD_BYTES_SO_FAR]);
+            outstanding += toDownload + item.reserved - item.size;
+        }
+        return outstanding;
+    }
+
+    /**
+     * Ask the server how big a queued download is, then pump
+     */
+    private void probe(final Item item) {
+        item.probing = true;
+        probeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    //a download that waits for Wi-Fi starts without a reservation rather than ask over mobile data
+                    item.size = networkPolicy.allows(item.task) ? probeSize(item.task) : -1;
+                } finally {
+                    item.probed = true;
+                    item.probing = false;
+                    pumpExecutor.execute(pumpRunnable);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return - Content-Length of a HEAD request for the task, -1 if the server doesn't tell
+     */
+    private static long probeSize(DownloadTask task) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(task.getUrl()).openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            for (Map.Entry<String, String> header : task.getRequestHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            if (task.hasCookie()) connection.setRequestProperty("Cookie", task.getCookie());
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) return -1;
+            String contentLength = connection.getHeaderField("Content-Length");
+            return contentLength != null ? Long.parseLong(contentLength.trim()) : -1;
+        } catch (IOException | NumberFormatException e) {
+            //the download itself will find out what's wrong
+            return -1;
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    private static boolean isStarted(Item item) {
+        return item.engineId != Item.NOT_STARTED && item.engineId != Item.FAILED_TO_START;
+    }
+
+    private boolean isDone(Item item) {
+        long state = queryEngine(item)[DownloadService.STATUS_FIELD_STATUS];
+        return state == DownloadManager.STATUS_SUCCESSFUL || state == DownloadManager.STATUS_FAILED
+                || state == DownloadService.STATUS_NOT_FOUND;
+    }
+
+    private long[] queryEngine(Item item) {
+        return statusRows.get().query(item.engine, item.engineId);
+    }
+
+    private static class Item {
+        //engine ids can't be these, DownloadIds counts down from -1 and never gets this far
+        static final long NOT_STARTED = Long.MIN_VALUE;
+        static final long FAILED_TO_START = Long.MIN_VALUE + 1;
+
+        final long handle;
+        final DownloadTask task;
+        final DownloadEngine engine;
+        volatile int priority;
+        volatile boolean paused;
+        volatile long engineId = NOT_STARTED;
+        volatile int failReason = DownloadService.ERROR_APP;
+        long sequence;
+        //-1 while unknown, and whether asking the server for it is done or under way
+        volatile long size;
+        volatile boolean probed;
+        volatile boolean probing;
+        volatile boolean waitingForSpace;
+        //bytes set aside when the download started
+        volatile long reserved;
+        //guarded by the scheduler
+        boolean removed;
+
+        Item(long handle, DownloadTask task, DownloadEngine engine) {
+            this.handle = handle;
+            this.task = task;
+            this.engine = engine;
+            priority = task.getPriority();
+            size = task.getExpectedSize();
+        }
+    }
+}
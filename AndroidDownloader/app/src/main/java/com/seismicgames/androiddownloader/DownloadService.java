@@ -2,35 +2,170 @@ package com.seismicgames.androiddownloader;
 
 import android.app.DownloadManager;
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Environment;
-import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.unity3d.player.UnityPlayer;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URI;
-import java.util.HashMap;
-import java.util.Map;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 public class DownloadService {
     private static final String TAG = "DownloadService";
-    private static final String GAMEOBJ_NAME = "DownloadGameObject";
-    private static DownloadService ourInstance = new DownloadService();
-    private DownloadManager downloadManager;
-    private Map<Long, DownloadInfo> downloadReverseMap;
+    static final String GAMEOBJ_NAME = "DownloadGameObject";
+
+    /**
+     * Number of longs packed per download by {@link #checkStatusBatch(long[])}, followed by the offset of each field
+     */
+    public static final int STATUS_STRIDE = 5;
+    public static final int STATUS_FIELD_ID = 0;
+    public static final int STATUS_FIELD_STATUS = 1;
+    public static final int STATUS_FIELD_BYTES_SO_FAR = 2;
+    public static final int STATUS_FIELD_TOTAL_BYTES = 3;
+    public static final int STATUS_FIELD_REASON = 4;
+
+    /**
+     * Layout of {@link #getProgressDetailed(String)}, the fields of {@link #checkStatusBatch(long[])} followed by
+     * transfer rates in bytes per second and the milliseconds left
+     */
+    public static final int PROGRESS_STRIDE = 8;
+    public static final int PROGRESS_FIELD_BYTES_PER_SECOND = 5;
+    public static final int PROGRESS_FIELD_SMOOTHED_BYTES_PER_SECOND = 6;
+    public static final int PROGRESS_FIELD_ETA_MS = 7;
+
+    /**
+     * Status reported by {@link #checkStatusBatch(long[])} for ids no engine knows about
+     */
+    public static final int STATUS_NOT_FOUND = -1;
+
+    /**
+     * Error for anything that went wrong inside the app rather than in DownloadManager
+     */
+    public static final int ERROR_APP = 2000;
+
+    /**
+     * Error for work that was canceled before it finished
+     */
+    public static final int ERROR_CANCELED = 2001;
+
+    /**
+     * Error for downloads whose bytes don't match the digest they were started with
+     */
+    public static final int ERROR_HASH_MISMATCH = 2002;
+
+    /**
+     * Error for archives that can't be unpacked, because they are corrupt, of an unknown format or have entries
+     * outside of the directory they are unpacked into
+     */
+    public static final int ERROR_ARCHIVE = 2003;
+
+    /**
+     * Reason of queued downloads held back until there is space for them, see
+     * {@link #setStorageAdmission(boolean, long, boolean)}
+     */
+    public static final int PAUSED_WAITING_FOR_SPACE = 2004;
+
+    /**
+     * Priorities for {@link #startDownload(String, String, String, boolean, int)}, any other int works as well
+     */
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+    public static final int PRIORITY_CRITICAL = 20;
+
+    /**
+     * Policies for {@link #setFsyncPolicy(int, long)}
+     */
+    public static final int FSYNC_NEVER = SyncPolicy.NEVER;
+    public static final int FSYNC_ON_COMPLETION = SyncPolicy.ON_COMPLETION;
+    public static final int FSYNC_EVERY_N_BYTES = SyncPolicy.EVERY_N_BYTES;
+
+    /**
+     * Failure classes for {@link #setRetryPolicy(int, long, long, int)}: connection failures, timeouts and bodies
+     * cut short; 5xx responses; 429 and 503 responses
+     */
+    public static final int RETRY_NETWORK = RetryPolicy.NETWORK;
+    public static final int RETRY_SERVER = RetryPolicy.SERVER;
+    public static final int RETRY_THROTTLED = RetryPolicy.THROTTLED;
+
+    private static final int DEFAULT_EVENT_INTERVAL_MS = 250;
+    private static final int SCHEDULER_POLL_INTERVAL_MS = 250;
+    private static final String CACHE_DIR_NAME = "download-cache";
+    private static final int MAX_PARALLEL_MOVES = 2;
+    private static final int MAX_PARALLEL_PATCHES = 2;
+    //subdirectory of the download directory patches are built in
+    private static final String PATCH_DIR = "patches";
+    private static final int MAX_PARALLEL_UNPACKS = 2;
+    private static final int START_LOCK_STRIPES = 16;
+    private static final long DEFAULT_SMALL_FILE_BYTES = 256 * 1024;
+    private static final String SMALL_FILE_DIR = "small-files";
+    private static final int MANIFEST_POLL_INTERVAL_MS = 100;
+
+    private static final int UNITY_LOG_CAPACITY = 256;
+    private static final int DEFAULT_UNITY_LOG_INTERVAL_MS = 250;
+
+    private static volatile int logLevel = Log.INFO;
+    private static volatile int unityLogLevel = Log.INFO;
+    private static final UnityLogBridge unityLogBridge = new UnityLogBridge(UNITY_LOG_CAPACITY,
+            DEFAULT_UNITY_LOG_INTERVAL_MS, new UnityLogBridge.Sender() {
+        @Override
+        public void send(String batch) {
+            UnityPlayer.UnitySendMessage(GAMEOBJ_NAME, UnityLogBridge.UNITY_METHOD, batch);
+        }
+    });
+    //created on first use, Unity's activity doesn't exist yet when the class loads
+    private static volatile DownloadService ourInstance;
+    private final Context context;
+    //overrides the context's download directory, for tests
+    private final File downloadDir;
+    private final DownloadEngine systemEngine;
+    //copied on write, so polling walks it without an iterator
+    private volatile DownloadEngine[] engines = new DownloadEngine[0];
+    private volatile DownloadEngine currentEngine;
+    private RangeDownloadEngine rangeEngine;
+    private DeltaDownloadEngine deltaEngine;
+    private UnpackDownloadEngine unpackEngine;
+    private PipelinedDownloadEngine smallFileEngine;
+    private ManifestEngine manifestEngine;
+    //outlives the range engines, so replacing one keeps the limit
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final SyncPolicy syncPolicy = new SyncPolicy();
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    private final NetworkPolicy networkPolicy;
+    private final DownloadScheduler scheduler;
+    private final DownloadCoalescer coalescer = new DownloadCoalescer();
+    private final ThreadLocal<StatusRow> statusRows = StatusRow.perThread();
+    private final DownloadMetrics metrics = DownloadMetrics.shared();
+    //downloads whose detailed progress was asked for
+    private final ConcurrentMap<Long, ProgressEstimator> progressEstimators = new ConcurrentHashMap<>();
+    private volatile DownloadCache cache;
+    private volatile boolean scheduling;
+    private volatile boolean admitting;
+    private StorageBudget storageBudget;
+    private final ConcurrentMap<Long, DownloadInfo> downloadReverseMap = new ConcurrentHashMap<>();
+    //serialize starting downloads of the same resource, so concurrent requests for it share one transfer
+    private final Object[] startLocks = new Object[START_LOCK_STRIPES];
+    //both start threads, so they are created on first use
+    private volatile DownloadEventObserver eventObserver;
+    private volatile FileMoveQueue moveQueue;
+    private volatile boolean eventsEnabled;
+    private volatile long smallFileBytes = DEFAULT_SMALL_FILE_BYTES;
 
     private class DownloadInfo {
         public long id;
         public String fileName;
+        //digest to check while moving, for engines that can't check it while downloading
+        public String digestAlgorithm;
+        public String expectedDigest;
+        public String cacheKey;
+        public volatile int error;
 
         public DownloadInfo(long id, String fileName) {
             this.id = id;
@@ -38,18 +173,357 @@ public class DownloadService {
         }
     }
 
+    /**
+     * The service may be called from any thread, ie. from asset loading workers as well as Unity's main thread
+     */
     public static DownloadService getInstance() {
-        return ourInstance;
+        DownloadService instance = ourInstance;
+        if (instance == null) {
+            synchronized (DownloadService.class) {
+                instance = ourInstance;
+                if (instance == null) {
+                    Context context = UnityPlayer.currentActivity.getApplicationContext();
+                    instance = new DownloadService(context, new SystemDownloadEngine(context), null);
+                    ourInstance = instance;
+                }
+            }
+        }
+        return instance;
     }
 
-    private DownloadService() {
-        downloadReverseMap = new HashMap<>();
-        downloadManager = (DownloadManager) UnityPlayer.currentActivity.getSystemService(Context.DOWNLOAD_SERVICE);
+    /**
+     * @param systemEngine - engine new downloads run in until another one is chosen
+     * @param downloadDir  - where in-process downloads are written, null for the app's download directory
+     */
+    DownloadService(Context context, DownloadEngine systemEngine, File downloadDir) {
+        this.context = context;
+        this.downloadDir = downloadDir;
+        this.systemEngine = systemEngine;
+        for (int i = 0; i < startLocks.length; i++) {
+            startLocks[i] = new Object();
+        }
+        networkPolicy = new NetworkPolicy(context);
+        scheduler = new DownloadScheduler(systemEngine, 0, SCHEDULER_POLL_INTERVAL_MS, networkPolicy);
+        addEngine(scheduler);
+        setEngine(systemEngine);
 
 //        IntentFilter filter = new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
 //        UnityPlayer.currentActivity.registerReceiver(downloadReceiver, filter);
     }
 
+    /**
+     * Run new downloads through the given engine, downloads that were already started keep using theirs
+     *
+     * @param engine - engine for new downloads
+     */
+    public void setEngine(DownloadEngine engine) {
+        addEngine(engine);
+        currentEngine = engine;
+        scheduler.setTarget(engine);
+    }
+
+    /**
+     * Limit how many downloads run at the same time. Downloads started while limited wait in a queue and start by
+     * priority, so what's needed now isn't competing for bandwidth with what's needed later. They are known by a
+     * handle that isn't a DownloadManager id, and don't survive the app being killed before they started.
+     *
+     * @param max - downloads running at the same time, 0 to start new downloads right away again
+     */
+    public void setMaxConcurrentDownloads(int max) {
+        scheduling = max > 0;
+        scheduler.setMaxInFlight(max);
+    }
+
+    /**
+     * @param downloadId - id of a download that is still queued
+     * @param priority   - new priority, see {@link #PRIORITY_NORMAL}
+     * @return - false if the download isn't queued anymore
+     */
+    public boolean setDownloadPriority(String downloadId, int priority) {
+        try {
+            return scheduler.setPriority(coalescer.resolve(Long.parseLong(downloadId)), priority);
+        } catch (IllegalArgumentException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "%s is not a valid UUID", downloadId);
+            return false;
+        }
+    }
+
+    /**
+     * Pause a download until {@link #resumeDownload(String)}. Queued downloads are held back, running ones are
+     * stopped if their engine can pause them, which DownloadManager can't.
+     *
+     * @param downloadId - id of a download that hasn't finished
+     * @return - false if the download couldn't be paused
+     */
+    public boolean pauseDownload(String downloadId) {
+        try {
+            long id = coalescer.resolve(Long.parseLong(downloadId));
+            DownloadEngine engine = engineFor(id);
+            return engine != null && engine.pause(id);
+        } catch (IllegalArgumentException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "%s is not a valid UUID", downloadId);
+            return false;
+        }
+    }
+
+    /**
+     * @param downloadId - id of a download paused with {@link #pauseDownload(String)}
+     * @return - false if the download isn't paused
+     */
+    public boolean resumeDownload(String downloadId) {
+        try {
+            long id = coalescer.resolve(Long.parseLong(downloadId));
+            DownloadEngine engine = engineFor(id);
+            return engine != null && engine.resume(id);
+        } catch (IllegalArgumentException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "%s is not a valid UUID", downloadId);
+            return false;
+        }
+    }
+
+    /**
+     * Run new downloads through DownloadManager, the default
+     */
+    public void useSystemEngine() {
+        setEngine(systemEngine);
+    }
+
+    /**
+     * Run new downloads in process, splitting big files over parallel Range requests. Downloads left unfinished
+     * by a previous run of the app are resumed. Calling this again replaces the in-process engine, and its running
+     * downloads carry on in the new one under the same ids. Downloads that don't allow mobile data wait for Wi-Fi
+     * as they would in DownloadManager, reported as paused with PAUSED_QUEUED_FOR_WIFI, and so do patches, unpacks
+     * and revalidating cached files.
+     *
+     * @param maxConnections - connections shared by all downloads
+     * @param segmentSize    - bytes fetched per Range request
+     */
+    public synchronized void useRangeEngine(int maxConnections, long segmentSize) {
+        File downloadDir = getDownloadDir();
+
+        //only one engine may own the journal in the download directory
+        if (rangeEngine != null) {
+            removeEngine(rangeEngine);
+            rangeEngine.shutdown();
+        }
+        //the journal holds cookies and headers, keep it out of reach of other apps
+        File journalDir = context != null ? context.getFilesDir() : downloadDir;
+        rangeEngine = new RangeDownloadEngine(downloadDir, maxConnections, segmentSize, rateLimiter, syncPolicy,
+                retryPolicy, networkPolicy, new File(journalDir, DownloadJournal.FILE_NAME));
+        setEngine(rangeEngine);
+    }
+
+    private File getDownloadDir() {
+        if (this.downloadDir != null) return this.downloadDir;
+        File downloadDir = context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
+        if (downloadDir == null) downloadDir = new File(context.getFilesDir(), Environment.DIRECTORY_DOWNLOADS);
+        return downloadDir;
+    }
+
+    private DownloadEventObserver getEventObserver() {
+        DownloadEventObserver observer = eventObserver;
+        if (observer == null) {
+            synchronized (this) {
+                if (eventObserver == null) eventObserver = new DownloadEventObserver(this, DEFAULT_EVENT_INTERVAL_MS);
+                observer = eventObserver;
+            }
+        }
+        return observer;
+    }
+
+    private FileMoveQueue getMoveQueue() {
+        FileMoveQueue queue = moveQueue;
+        if (queue == null) {
+            synchronized (this) {
+                if (moveQueue == null) moveQueue = new FileMoveQueue(this, getEventObserver(), MAX_PARALLEL_MOVES);
+                queue = moveQueue;
+            }
+        }
+        return queue;
+    }
+
+    private synchronized DeltaDownloadEngine getDeltaEngine() {
+        if (deltaEngine == null) {
+            deltaEngine = new DeltaDownloadEngine(new File(getDownloadDir(), PATCH_DIR), MAX_PARALLEL_PATCHES,
+                    rateLimiter, networkPolicy);
+            addEngine(deltaEngine);
+        }
+        return deltaEngine;
+    }
+
+    private synchronized UnpackDownloadEngine getUnpackEngine() {
+        if (unpackEngine == null) {
+            unpackEngine = new UnpackDownloadEngine(MAX_PARALLEL_UNPACKS, rateLimiter, networkPolicy);
+            addEngine(unpackEngine);
+        }
+        return unpackEngine;
+    }
+
+    /**
+     * Files too short for DownloadManager's per-download connection to pay off, see
+     * {@link #setSmallFileThreshold(long)}
+     */
+    private synchronized PipelinedDownloadEngine getSmallFileEngine() {
+        if (smallFileEngine == null) {
+            File dir = new File(getDownloadDir(), SMALL_FILE_DIR);
+            //small files aren't resumed, whatever a previous run left is of no use
+            if (dir.exists() && !FileTransfers.deleteRecursively(dir)) {
+                unityLog(Log.WARN, TAG, "could not delete small files left in " + dir);
+            }
+            smallFileEngine = new PipelinedDownloadEngine(dir, PipelinedDownloadEngine.DEFAULT_CONNECTIONS_PER_HOST,
+                    PipelinedDownloadEngine.DEFAULT_PIPELINE_DEPTH, rateLimiter, syncPolicy, networkPolicy);
+            addEngine(smallFileEngine);
+        }
+        return smallFileEngine;
+    }
+
+    private synchronized ManifestEngine getManifestEngine() {
+        if (manifestEngine == null) {
+            manifestEngine = new ManifestEngine(this, MANIFEST_POLL_INTERVAL_MS);
+            addEngine(manifestEngine);
+        }
+        return manifestEngine;
+    }
+
+    /**
+     * Cap the bandwidth of in-process downloads, shared by all of them. Takes effect right away, for running
+     * downloads too, e.g. full speed in menus and a trickle while a match needs the network. DownloadManager's
+     * downloads can't be capped.
+     *
+     * @param bytesPerSecond - 0 for full speed
+     */
+    public void setMaxBytesPerSecond(long bytesPerSecond) {
+        rateLimiter.setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Choose when files written in process are synced to storage, for running downloads too. Syncing often costs
+     * throughput and flash wear; syncing less risks that a power cut, not an app being killed, loses what was
+     * written since. With {@link #FSYNC_NEVER} or {@link #FSYNC_ON_COMPLETION} the range engine's journal can then
+     * be ahead of the file, and a download resumed after the power cut fails its digest check, or is corrupt if it
+     * has none. DownloadManager's downloads sync as the system sees fit.
+     *
+     * @param policy        - {@link #FSYNC_NEVER}, {@link #FSYNC_ON_COMPLETION} or {@link #FSYNC_EVERY_N_BYTES},
+     *                      the default, every 2MB
+     * @param intervalBytes - bytes written between two syncs for {@link #FSYNC_EVERY_N_BYTES}, ignored otherwise
+     */
+    public void setFsyncPolicy(int policy, long intervalBytes) {
+        syncPolicy.set(policy, intervalBytes);
+    }
+
+    /**
+     * Choose which failures the range engine retries by itself, for running downloads too. A failed request is
+     * tried again after a random wait of up to baseDelayMs, doubling with every retry up to maxDelayMs, or longer
+     * if the server asks for it with Retry-After. A segment picks up from the bytes it already has, only a server
+     * that ignores ranges makes a retry start over. Retries go to the next mirror of a download if it has any, see
+     * {@link #startDownloadWithMirrors(String[], String, String, boolean, String, String, int)}. A download fails
+     * once a request failed maxAttempts times without progress, or with a failure that isn't retried.
+     *
+     * By default network, server and throttling failures are tried 5 times, waiting up to 500ms to 30s.
+     *
+     * @param maxAttempts   - tries per request, 1 to fail on the first failure
+     * @param baseDelayMs   - longest wait before the first retry
+     * @param maxDelayMs    - longest wait before any retry
+     * @param retriedErrors - {@link #RETRY_NETWORK}, {@link #RETRY_SERVER} and {@link #RETRY_THROTTLED} or'd
+     */
+    public void setRetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, int retriedErrors) {
+        retryPolicy.set(maxAttempts, baseDelayMs, maxDelayMs, retriedErrors);
+    }
+
+    /**
+     * Start downloads only once there is space for them on the volume they are written to. A download needs its
+     * size, from expectedBytes or a HEAD request, and as much again for moveFile to copy it unless reserveMoveCopy
+     * is off, on top of what started downloads still need until they are removed. The download next in line waits,
+     * reported as paused with {@link #PAUSED_WAITING_FOR_SPACE}, and holds back everything of lower priority until
+     * space frees up; it fails with {@link DownloadManager#ERROR_INSUFFICIENT_SPACE} if it can't fit even then. A
+     * download whose size can't be found out starts regardless. Downloads are queued while this is on, as with
+     * {@link #setMaxConcurrentDownloads(int)}, but small files, patches and unpacks aren't admitted.
+     *
+     * @param enabled         - false to start downloads regardless of space again
+     * @param minFreeBytes    - space to leave for the rest of the device
+     * @param reserveMoveCopy - whether moveFile copies downloads, false if they are moved within the same volume
+     */
+    public synchronized void setStorageAdmission(boolean enabled, long minFreeBytes, boolean reserveMoveCopy) {
+        if (storageBudget == null) storageBudget = new StorageBudget(getDownloadDir());
+        storageBudget.set(minFreeBytes, reserveMoveCopy);
+        admitting = enabled;
+        scheduler.setStorageBudget(enabled ? storageBudget : null);
+    }
+
+    /**
+     * @return - bytes new downloads can still take, free space less what {@link #setStorageAdmission} leaves free
+     * and what admitted downloads still need. Negative if the device is already short on space.
+     */
+    public long getStorageBudget() {
+        StorageBudget budget;
+        synchronized (this) {
+            if (storageBudget == null) storageBudget = new StorageBudget(getDownloadDir());
+            budget = storageBudget;
+        }
+        return scheduler.availableBytes(budget);
+    }
+
+    /**
+     * Download files whose size is known to be small in process, over a few persistent connections per host with
+     * several requests outstanding on each, instead of a DownloadManager download with a connection of its own
+     * each. They start right away, they aren't queued by {@link #setMaxConcurrentDownloads(int)}, and a file cut
+     * short by the app dying is lost. Applies to the expectedBytes of startDownload and to manifest files. Files
+     * that don't allow mobile data still wait for Wi-Fi. Files the system sends through an HTTP proxy, and plain
+     * HTTP the Network Security Config forbids, are left to the current engine.
+     *
+     * @param bytes - largest small file, 256KB by default, 0 to send every file through the current engine
+     */
+    public void setSmallFileThreshold(long bytes) {
+        smallFileBytes = Math.max(0, bytes);
+    }
+
+    /**
+     * Keep a copy of every moved download, so asking for it again is served from the device. Downloads with a
+     * digest are matched by digest and never touch the network, others are matched by URL and revalidated with
+     * their ETag, which only the in-process engine knows.
+     *
+     * @param maxBytes - size cap of the cache, least recently used files are evicted beyond it. 0 turns the cache
+     *                 off and empties it.
+     */
+    public synchronized void setCacheMaxBytes(long maxBytes) {
+        if (cache == null) {
+            if (maxBytes <= 0) return;
+            File cacheDir = context.getExternalFilesDir(CACHE_DIR_NAME);
+            if (cacheDir == null) cacheDir = new File(context.getFilesDir(), CACHE_DIR_NAME);
+            cache = new DownloadCache(cacheDir, maxBytes, networkPolicy);
+            addEngine(cache);
+        } else {
+            cache.setMaxBytes(Math.max(0, maxBytes));
+        }
+    }
+
+    /**
+     * @return - downloads served from the cache, including URL hits that revalidated
+     */
+    public long getCacheHits() {
+        DownloadCache cache = this.cache;
+        return cache != null ? cache.hitCount.get() : 0;
+    }
+
+    /**
+     * @return - downloads that had to go to the network while the cache was on, including stale URL hits
+     */
+    public long getCacheMisses() {
+        DownloadCache cache = this.cache;
+        return cache != null ? cache.missCount.get() : 0;
+    }
+
+    /**
+     * Everything the library measured since the app started: counters, histograms of timings and speeds, overall
+     * throughput and the speed of every running download. One metric per line, space separated:
+     * "c name value", "h name count sum min max p50 p90 p99", "g name value" and "d id bytesSoFar bytesPerSecond".
+     *
+     * @return - the snapshot, ready to be forwarded to telemetry
+     */
+    public String getMetricsSnapshot() {
+        return metrics.snapshot();
+    }
+
     /**
      * Starts the file download in DownloadManager
      *
@@ -69,33 +543,380 @@ public class DownloadService {
      * @return - the string version of the UUID for tracking
      */
     public String startDownload(String url, String fileName, String cookie, boolean allowMobile) {
-        Uri uri = Uri.parse(url);
+        return startDownload(url, fileName, cookie, allowMobile, null, null, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Starts the file download, ahead of downloads with a lower priority if downloads are limited by
+     * {@link #setMaxConcurrentDownloads(int)}
+     *
+     * @param url      - URL to download
+     * @param fileName - filename to save from URL
+     * @param priority - see {@link #PRIORITY_NORMAL}
+     * @return - the string version of the UUID for tracking
+     */
+    public String startDownload(String url, String fileName, String cookie, boolean allowMobile, int priority) {
+        return startDownload(url, fileName, cookie, allowMobile, null, null, priority);
+    }
+
+    /**
+     * Starts the file download at normal priority and verifies it against a known digest
+     */
+    public String startDownload(String url, String fileName, String cookie, boolean allowMobile,
+                                String digestAlgorithm, String expectedDigest) {
+        return startDownload(url, fileName, cookie, allowMobile, digestAlgorithm, expectedDigest, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Starts the file download and verifies it against a known digest. The digest is computed from the bytes as
+     * they are written or moved, never by reading the file again. A mismatch is reported by getError as
+     * {@link #ERROR_HASH_MISMATCH}, either for the download or, if the engine can't verify while downloading,
+     * after moveFile.
+     *
+     * @param url             - URL to download
+     * @param fileName        - filename to save from URL
+     * @param digestAlgorithm - SHA-256 or any other MessageDigest algorithm, CRC32 or CRC32C
+     * @param expectedDigest  - digest in hex, checksums big endian
+     * @param priority        - see {@link #PRIORITY_NORMAL}
+     * @return - the string version of the UUID for tracking
+     */
+    public String startDownload(String url, String fileName, String cookie, boolean allowMobile,
+                                String digestAlgorithm, String expectedDigest, int priority) {
+        return startDownload(url, fileName, cookie, allowMobile, digestAlgorithm, expectedDigest, priority, -1);
+    }
+
+    /**
+     * Starts the file download, in process over pooled connections if it's small, see
+     * {@link #setSmallFileThreshold(long)}, and verifies it against a known digest
+     *
+     * @param expectedBytes - size of the file, ie. from an asset catalog, -1 if unknown
+     * @return - the string version of the UUID for tracking
+     */
+    public String startDownload(String url, String fileName, String cookie, boolean allowMobile,
+                                String digestAlgorithm, String expectedDigest, int priority, long expectedBytes) {
+        //behind a proxy or cleartext rules small files take the current engine, which goes through both
+        DownloadEngine forced = expectedBytes >= 0 && expectedBytes <= smallFileBytes
+                && PipelinedDownloadEngine.canFetch(url) ? getSmallFileEngine() : null;
+        //the same resource requested again, with the same cookie and networks, shares the running transfer
+        String key = DownloadCoalescer.keyOf(url, digestAlgorithm, expectedDigest, cookie, allowMobile);
+        synchronized (startLocks[(key.hashCode() & 0x7fffffff) % startLocks.length]) {
+            return startDownload(key, url, null, fileName, cookie, allowMobile, digestAlgorithm, expectedDigest,
+                    priority, expectedBytes, forced);
+        }
+    }
+
+    /**
+     * Starts the file download with URLs to fall back to, in order, when retries of the current one fail, see
+     * {@link #setRetryPolicy(int, long, long, int)}. Only the range engine fails over, DownloadManager downloads
+     * the first URL and retries it as it sees fit. A partial download continues on a mirror only if the mirror
+     * serves the file with the same ETag or Last-Modified.
+     *
+     * @param urls - URL to download followed by its mirrors
+     * @return - the string version of the UUID for tracking
+     */
+    public String startDownloadWithMirrors(String[] urls, String fileName, String cookie, boolean allowMobile,
+                                           String digestAlgorithm, String expectedDigest, int priority) {
+        if (urls == null || urls.length == 0) return null;
+        String key = DownloadCoalescer.keyOf(urls[0], digestAlgorithm, expectedDigest, cookie, allowMobile);
+        synchronized (startLocks[(key.hashCode() & 0x7fffffff) % startLocks.length]) {
+            return startDownload(key, urls[0], urls, fileName, cookie, allowMobile, digestAlgorithm, expectedDigest,
+                    priority, -1, null);
+        }
+    }
+
+    /**
+     * @param mirrors       - url followed by its mirrors, may be null
+     * @param expectedBytes - size of the file, -1 if unknown
+     * @param forced        - engine to run the download in right away, null for the current engine or the queue
+     */
+    private String startDownload(String key, String url, String[] mirrors, String fileName, String cookie,
+                                 boolean allowMobile, String digestAlgorithm, String expectedDigest, int priority,
+                                 long expectedBytes, DownloadEngine forced) {
+        DownloadCoalescer.Group group = coalescer.find(key);
+        if (group != null) {
+            long state = checkStatusBatch(new long[]{group.id})[STATUS_FIELD_STATUS];
+            long handle = DownloadCoalescer.RELEASED;
+            if (state != DownloadManager.STATUS_FAILED && state != STATUS_NOT_FOUND) {
+                handle = coalescer.attach(group);
+            }
+            if (handle != DownloadCoalescer.RELEASED) {
+                DownloadInfo shared = downloadReverseMap.get(group.id);
+                DownloadInfo info = new DownloadInfo(handle, shared != null ? shared.fileName : fileName);
+                if (shared != null) {
+                    info.digestAlgorithm = shared.digestAlgorithm;
+                    info.expectedDigest = shared.expectedDigest;
+                    //whichever handle moves last keeps the copy
+                    info.cacheKey = shared.cacheKey;
+                }
+                downloadReverseMap.put(handle, info);
+
+                metrics.increment(DownloadMetrics.DOWNLOADS_COALESCED);
+                if (eventsEnabled) getEventObserver().track(handle);
+                return String.valueOf(handle);
+            }
+            coalescer.forget(group);
+        }
 
         //force unique tmp file name
         fileName  += UUID.randomUUID().toString();
 
-        int networkTypes = DownloadManager.Request.NETWORK_WIFI;
-        if (allowMobile) networkTypes |= DownloadManager.Request.NETWORK_MOBILE;
+        DownloadTask task = new DownloadTask(url, fileName)
+                .setCookie(cookie)
+                .setAllowMobile(allowMobile)
+                .setPriority(priority)
+                .setExpectedSize(expectedBytes)
+                .setExpectedDigest(digestAlgorithm, expectedDigest);
+        for (int i = 1; mirrors != null && i < mirrors.length; i++) {
+            task.addMirror(mirrors[i]);
+        }
+        if (task.hasExpectedDigest() && !StreamingDigest.isSupported(digestAlgorithm)) {
+            DownloadService.unityLog(Log.ERROR, TAG, "can't verify %s, unknown digest %s", url, digestAlgorithm);
+            return null;
+        }
 
-        DownloadManager.Request request = new DownloadManager.Request(uri)
-                .addRequestHeader("Accept-Encoding", "gzip, deflate")
-                .setAllowedOverRoaming(false)
-                .setAllowedNetworkTypes(networkTypes)
-                .setNotificationVisibility(DownloadManager.Request.VISIBILITY_HIDDEN)
-                .setVisibleInDownloadsUi(false)
-                .addRequestHeader("Cookie", cookie);
-        if(cookie != null && cookie.length() > 0) {
-            request.setDestinationInExternalFilesDir(
-                    UnityPlayer.currentActivity.getApplicationContext(),
-                    Environment.DIRECTORY_DOWNLOADS,
-                    fileName);
+        DownloadEngine engine = forced != null ? forced : currentEngine;
+        boolean queued = (scheduling || admitting) && forced == null;
+        DownloadCache cache = this.cache;
+        long id = cache != null ? cache.lookup(task, queued ? scheduler : engine) : DownloadCache.MISS;
+        if (id != DownloadCache.MISS) {
+            engine = cache;
+            metrics.increment(DownloadMetrics.DOWNLOADS_CACHED);
+        } else {
+            try {
+                id = queued ? scheduler.enqueue(task) : engine.enqueue(task);
+            } catch (IOException e) {
+                DownloadService.unityLog(Log.ERROR, TAG, "could not start download of %s: %s", url, e.getMessage());
+                return null;
+            }
+            metrics.downloadStarted(id, DownloadMetrics.nowMs());
         }
+        DownloadInfo info = new DownloadInfo(id, fileName);
+        info.cacheKey = DownloadCache.keyOf(task);
+        if (task.hasExpectedDigest() && !engine.verifiesDigest()) {
+            info.digestAlgorithm = digestAlgorithm;
+            info.expectedDigest = expectedDigest;
+        }
+        downloadReverseMap.put(id, info);
+        coalescer.start(key, id);
 
-        long id = downloadManager.enqueue(request);
+        if (eventsEnabled) getEventObserver().track(id);
+        return String.valueOf(id);
+    }
+
+    /**
+     * Download a new version of a file the app already has at normal priority, fetching only the blocks that
+     * changed since. See {@link #startPatchDownload(String, String, String, boolean, String, String, String, String)}
+     */
+    public String startPatchDownload(String url, String fileName, String cookie, boolean allowMobile,
+                                     String basePath, String blockIndexUrl) {
+        return startPatchDownload(url, fileName, cookie, allowMobile, basePath, blockIndexUrl, null, null);
+    }
+
+    /**
+     * Download a new version of a file the app already has, fetching only the blocks that changed since. The server
+     * publishes a {@link BlockIndex} of the new version next to it. The result is verified against the given
+     * digest, or the one in the block index, and is moved like any other download. Patches run in process right
+     * away, they aren't queued, cached or shared with other downloads of the same URL.
+     *
+     * @param url           - URL of the new version, fetched with Range requests
+     * @param fileName      - filename to save from URL
+     * @param basePath      - the version the app has, every block is fetched if it is missing
+     * @param blockIndexUrl - URL of the block index of the new version
+     * @return - the string version of the UUID for tracking
+     */
+    public String startPatchDownload(String url, String fileName, String cookie, boolean allowMobile,
+                                     String basePath, String blockIndexUrl,
+                                     String digestAlgorithm, String expectedDigest) {
+        //force unique tmp file name
+        fileName += UUID.randomUUID().toString();
+
+        DownloadTask task = new DownloadTask(url, fileName)
+                .setCookie(cookie)
+                .setAllowMobile(allowMobile)
+                .setExpectedDigest(digestAlgorithm, expectedDigest)
+                .setPatchBase(basePath, blockIndexUrl);
+        if (task.hasExpectedDigest() && !StreamingDigest.isSupported(digestAlgorithm)) {
+            DownloadService.unityLog(Log.ERROR, TAG, "can't verify %s, unknown digest %s", url, digestAlgorithm);
+            return null;
+        }
+
+        long id;
+        try {
+            id = getDeltaEngine().enqueue(task);
+        } catch (IOException e) {
+            DownloadService.unityLog(Log.ERROR, TAG, "could not start patch of %s: %s", url, e.getMessage());
+            return null;
+        }
+        metrics.downloadStarted(id, DownloadMetrics.nowMs());
         downloadReverseMap.put(id, new DownloadInfo(id, fileName));
+
+        if (eventsEnabled) getEventObserver().track(id);
+        return String.valueOf(id);
+    }
+
+    /**
+     * Download an archive and unpack it as it arrives at normal priority. See
+     * {@link #startUnpackDownload(String, String, String, boolean, String, String)}
+     */
+    public String startUnpackDownload(String url, String extractDir, String cookie, boolean allowMobile) {
+        return startUnpackDownload(url, extractDir, cookie, allowMobile, null, null);
+    }
+
+    /**
+     * Download a .zip, .tar, .tar.gz or .gz and unpack it into a directory as the bytes arrive, instead of saving
+     * the archive to move and unpack it afterwards. The directory is replaced once the whole archive is unpacked and
+     * verified against the given digest, of the archive as published, and is untouched if that fails. There is
+     * nothing to move, removing the download only forgets it, or cancels it if it hasn't finished. Unpacks run in
+     * process right away, they aren't queued, cached, shared with other downloads of the same URL or resumed.
+     *
+     * @param url        - URL of the archive
+     * @param extractDir - directory to unpack into, a single gzipped file is named after the URL without .gz
+     * @return - the string version of the UUID for tracking, null while another unpack into extractDir hasn't
+     * ended
+     */
+    public String startUnpackDownload(String url, String extractDir, String cookie, boolean allowMobile,
+                                      String digestAlgorithm, String expectedDigest) {
+        DownloadTask task = new DownloadTask(url, lastPathSegment(url))
+                .setCookie(cookie)
+                .setAllowMobile(allowMobile)
+                .setExpectedDigest(digestAlgorithm, expectedDigest)
+                .setExtractTo(extractDir);
+        if (task.hasExpectedDigest() && !StreamingDigest.isSupported(digestAlgorithm)) {
+            DownloadService.unityLog(Log.ERROR, TAG, "can't verify %s, unknown digest %s", url, digestAlgorithm);
+            return null;
+        }
+
+        long id;
+        try {
+            id = getUnpackEngine().enqueue(task);
+        } catch (IOException e) {
+            DownloadService.unityLog(Log.ERROR, TAG, "could not start unpacking %s: %s", url, e.getMessage());
+            return null;
+        }
+        metrics.downloadStarted(id, DownloadMetrics.nowMs());
+        downloadReverseMap.put(id, new DownloadInfo(id, extractDir));
+
+        if (eventsEnabled) getEventObserver().track(id);
         return String.valueOf(id);
     }
 
+    /**
+     * Download every file of a manifest as one download. See {@link #startManifest(String, String, String, boolean)}
+     */
+    public String startManifest(String manifestPath) {
+        return startManifest(manifestPath, null);
+    }
+
+    /**
+     * Download every file of a manifest as one download over Wi-Fi, without a cookie. See
+     * {@link #startManifest(String, String, String, boolean)}
+     */
+    public String startManifest(String manifestPath, String notificationTitle) {
+        return startManifest(manifestPath, notificationTitle, null, false);
+    }
+
+    /**
+     * Download every file listed in a {@link DownloadManifest}, ie. a content update of many assets, and move each
+     * to its destination as soon as it's verified. The manifest is read and its files started on a background
+     * thread, nothing is asked of Unity per file. Small files run in process over pooled connections, see
+     * {@link #setSmallFileThreshold(long)}, bigger ones run like any other download.
+     *
+     * The manifest is tracked under the returned handle like a single download: checkStatus, getProgressDetailed
+     * and events report the bytes of all files, pausing and resuming applies to all of them, and getError the
+     * reason of the first file that failed. It's done once every file was moved or failed, see
+     * {@link #getManifestFileCounts(String)}. Removing it cancels the files that weren't moved yet.
+     *
+     * @param manifestPath      - path of the manifest
+     * @param notificationTitle - title of a notification showing the manifest's progress, null for none
+     * @param cookie            - cookie sent for every file, null for none
+     * @param allowMobile       - whether the files may be downloaded over mobile data
+     * @return - the string version of the UUID for tracking
+     */
+    public String startManifest(String manifestPath, String notificationTitle, String cookie, boolean allowMobile) {
+        //the manifest is read on the engine's thread, a bad one fails the download
+        long id = getManifestEngine().enqueue(new DownloadTask(manifestPath, manifestPath)
+                .setCookie(cookie)
+                .setAllowMobile(allowMobile));
+        downloadReverseMap.put(id, new DownloadInfo(id, manifestPath));
+
+        if (notificationTitle != null && UnityPlayer.currentActivity != null) {
+            DownloadNotificationService.startTrackingGroup(new long[]{id}, notificationTitle);
+        }
+        if (eventsEnabled) getEventObserver().track(id);
+        return String.valueOf(id);
+    }
+
+    /**
+     * @param downloadId - handle returned by {@link #startManifest(String, String, String, boolean)}
+     * @return - files moved, files failed and files in the manifest (0 until it was read), or null if the handle
+     * isn't a manifest that is still tracked
+     */
+    public int[] getManifestFileCounts(String downloadId) {
+        ManifestEngine engine;
+        synchronized (this) {
+            engine = manifestEngine;
+        }
+        try {
+            return engine != null ? engine.fileCounts(Long.parseLong(downloadId)) : null;
+        } catch (IllegalArgumentException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "%s is not a valid UUID", downloadId);
+            return null;
+        }
+    }
+
+    /**
+     * Start one file of a manifest, sharing a transfer with other requests of it like {@link #startDownload}
+     *
+     * @param manifest - task of the manifest, whose cookie and network setting apply to every file
+     * @return - the file's handle, 0 if it couldn't be started
+     */
+    long startManifestEntry(DownloadManifest.Entry entry, DownloadTask manifest) {
+        String handle = startDownload(entry.url, entry.dest.getName(), manifest.getCookie(), manifest.isAllowMobile(),
+                entry.digestAlgorithm, entry.expectedDigest, PRIORITY_NORMAL, entry.size);
+        return handle != null ? Long.parseLong(handle) : 0;
+    }
+
+    private static String lastPathSegment(String url) {
+        int end = url.length();
+        int query = url.indexOf('?');
+        if (query >= 0) end = query;
+        int fragment = url.indexOf('#');
+        if (fragment >= 0 && fragment < end) end = fragment;
+        return url.substring(url.lastIndexOf('/', end - 1) + 1, end);
+    }
+
+    /**
+     * Push download events to Unity instead of having it poll checkStatus. While enabled, one background thread
+     * checks the tracked downloads and calls OnDownloadEvents on the download game object with every progress,
+     * completed and failed event of that tick, or not at all if nothing changed. Downloads started while enabled
+     * are tracked automatically, see {@link #trackEvents(long[])} for downloads started before.
+     *
+     * Disabling stops events for every tracked download. Moves from {@link #moveFileAsync(String, String)} still
+     * report until they finish, and the thread quits after that.
+     *
+     * @param enabled    - start or stop sending download events
+     * @param intervalMs - time between checks, when disabling only for the moves still reporting
+     */
+    public synchronized void setEventsEnabled(boolean enabled, int intervalMs) {
+        DownloadEventObserver observer = getEventObserver();
+        observer.setInterval(intervalMs);
+        eventsEnabled = enabled;
+        if (!enabled) observer.untrackAll();
+    }
+
+    /**
+     * Send events for downloads that were started before event mode was enabled, ie. in a previous session
+     *
+     * @param ids - download ids to track
+     */
+    public void trackEvents(long[] ids) {
+        if (!eventsEnabled) {
+            DownloadService.unityLog(Log.WARN, TAG, "events are not enabled, ignoring %s ids", ids.length);
+            return;
+        }
+        getEventObserver().track(ids);
+    }
+
     /**
      * Get download status
      *
@@ -112,57 +933,142 @@ public class DownloadService {
             return -1;
         }
 
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(id);
-        Cursor cursor = null;
-        try {
-            cursor = downloadManager.query(query);
-            if (cursor.moveToFirst()) {
-                if (!isDownloadOk(cursor)) {
-                    return -1;
-                }
-
-                int current = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-                int total = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-                float progress = (float) current / (float) total;
-                //clamp 0-99
-                result = (int) Math.max(0, Math.min(99, progress * 100));
-                if(cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS)) == DownloadManager.STATUS_SUCCESSFUL){
-                    result = 100;
-                }
-            } else {
-                DownloadService.unityLog(Log.WARN, TAG, "ID %s was not found in DownloadManager, might have finished downloading",
-                        downloadId);
+        long[] status = checkStatusOf(id);
+        if (status[STATUS_FIELD_STATUS] != STATUS_NOT_FOUND) {
+            if (!isDownloadOk(status)) {
                 return -1;
             }
-        } finally {
-            if (cursor != null) cursor.close();
+
+            long current = status[STATUS_FIELD_BYTES_SO_FAR];
+            long total = status[STATUS_FIELD_TOTAL_BYTES];
+            //clamp 0-99, in longs as a float loses bytes past 16MB
+            result = total > 0 ? (int) Math.max(0, Math.min(99, current * 100 / total)) : 0;
+            if(status[STATUS_FIELD_STATUS] == DownloadManager.STATUS_SUCCESSFUL){
+                result = 100;
+            }
+        } else {
+            DownloadService.unityLog(Log.WARN, TAG, "ID %s was not found in DownloadManager, might have finished downloading",
+                    downloadId);
+            return -1;
         }
         return result;
     }
 
-    //returns either android error code as DownloadManager.ERROR_*, an http response code, or 2000 to signify app error
-    public int getError(String downloadId) {
+    /**
+     * Get the progress of a download in full, for progress bars and for deciding what to download next. Rates
+     * and time left are estimated from the calls to this, the first call for a download has none of them yet and
+     * calling it every frame gives the best estimates.
+     *
+     * @param downloadId - String version of UUID id
+     * @return - {@link #PROGRESS_STRIDE} longs: the fields of {@link #checkStatusBatch(long[])}, bytes per second
+     * over the last second, bytes per second smoothed over a few seconds (both 0 unless running) and milliseconds
+     * until done at the rate of the last ten seconds (0 once done, -1 if unknown), or null if the id is invalid
+     */
+    public long[] getProgressDetailed(String downloadId) {
         long id;
         try {
             id = Long.parseLong(downloadId);
         } catch (IllegalArgumentException e) {
             DownloadService.unityLog(Log.ERROR, TAG, "%s is not a valid UUID", downloadId);
-            return 2000;
+            return null;
         }
 
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(id);
-        Cursor cursor = null;
-        try {
-            cursor = downloadManager.query(query);
-            if (cursor.moveToFirst()) {
-                return cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_REASON));
+        long[] status = checkStatusOf(id);
+        long[] result = new long[PROGRESS_STRIDE];
+        System.arraycopy(status, 0, result, 0, STATUS_STRIDE);
+        if (result[STATUS_FIELD_STATUS] == STATUS_NOT_FOUND) {
+            progressEstimators.remove(id);
+            result[PROGRESS_FIELD_ETA_MS] = -1;
+            return result;
+        }
+
+        ProgressEstimator estimator = progressEstimators.get(id);
+        if (estimator == null) {
+            ProgressEstimator created = new ProgressEstimator();
+            estimator = progressEstimators.putIfAbsent(id, created);
+            if (estimator == null) estimator = created;
+        }
+        estimator.sample(result[STATUS_FIELD_BYTES_SO_FAR], DownloadMetrics.nowMs());
+
+        long state = result[STATUS_FIELD_STATUS];
+        if (state == DownloadManager.STATUS_RUNNING) {
+            result[PROGRESS_FIELD_BYTES_PER_SECOND] = estimator.getBytesPerSecond();
+            result[PROGRESS_FIELD_SMOOTHED_BYTES_PER_SECOND] = estimator.getSmoothedBytesPerSecond();
+        }
+        if (state == DownloadManager.STATUS_SUCCESSFUL) {
+            result[PROGRESS_FIELD_ETA_MS] = 0;
+        } else if (state == DownloadManager.STATUS_FAILED) {
+            result[PROGRESS_FIELD_ETA_MS] = -1;
+        } else {
+            result[PROGRESS_FIELD_ETA_MS] = estimator.getEtaMs(result[STATUS_FIELD_TOTAL_BYTES]);
+        }
+        return result;
+    }
+
+    /**
+     * Get the status of many downloads with a single query per engine
+     *
+     * @param ids - download ids to check
+     * @return - {@link #STATUS_STRIDE} longs per id, in the order of ids: the id, DownloadManager.STATUS_* (or
+     * {@link #STATUS_NOT_FOUND}), bytes downloaded so far, total bytes (-1 if unknown) and DownloadManager.COLUMN_REASON
+     */
+    public long[] checkStatusBatch(long[] ids) {
+        long[] result = new long[ids.length * STATUS_STRIDE];
+        StatusRow.prefill(ids, result);
+        if (ids.length > 0) queryEngines(ids, result);
+        return result;
+    }
+
+    /**
+     * Status of a single download without allocating, for the calls Unity polls every frame
+     *
+     * @return - the download packed like {@link #checkStatusBatch(long[])}, valid until the thread's next call
+     */
+    private long[] checkStatusOf(long id) {
+        StatusRow row = statusRows.get();
+        long[] status = row.prefilled(id);
+        queryEngines(row.ids(), status);
+        return status;
+    }
+
+    private void queryEngines(long[] ids, long[] result) {
+        long[] engineIds = coalescer.resolve(ids);
+        for (DownloadEngine engine : engines) {
+            engine.query(engineIds, result);
+        }
+        long now = DownloadMetrics.nowMs();
+        for (int i = 0; i < engineIds.length; i++) {
+            metrics.observe(engineIds[i], result, i * STATUS_STRIDE, now);
+        }
+        if (engineIds != ids) {
+            //shared downloads are reported under the handle they were asked for
+            for (int i = 0; i < ids.length; i++) {
+                result[i * STATUS_STRIDE + STATUS_FIELD_ID] = ids[i];
             }
-        } finally {
-            if (cursor != null)  cursor.close();
         }
-        return 2000;
+    }
+
+    //returns either android error code as DownloadManager.ERROR_*, an http response code, 2000 to signify app error
+    //or 2002 if the file didn't match its digest
+    public int getError(String downloadId) {
+        long id;
+        try {
+            id = Long.parseLong(downloadId);
+        } catch (IllegalArgumentException e) {
+            DownloadService.unityLog(Log.ERROR, TAG, "%s is not a valid UUID", downloadId);
+            return ERROR_APP;
+        }
+
+        DownloadInfo info = downloadReverseMap.get(id);
+        if (info != null && info.error != 0) {
+            return info.error;
+        }
+
+        long[] status = checkStatusOf(id);
+        if (status[STATUS_FIELD_STATUS] != STATUS_NOT_FOUND) {
+            return (int) status[STATUS_FIELD_REASON];
+        }
+        return ERROR_APP;
     }
 
     public boolean moveFile(String downloadId, String dest) {
@@ -174,17 +1080,7 @@ public class DownloadService {
             return false;
         }
         try {
-            ParcelFileDescriptor pfd = downloadManager.openDownloadedFile(id);
-
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            OutputStream os = new FileOutputStream(dest);
-            copyLarge(is, os);
-
-            is.close();
-            os.close();
-
-            removeDownload(downloadId);
-
+            moveFile(id, new File(dest), null);
             return true;
         } catch (IOException e) {
             Log.e(TAG, "could not move downloadId: "+ downloadId);
@@ -194,66 +1090,273 @@ public class DownloadService {
 
     }
 
-    public void removeDownload(String downloadId) {
+    /**
+     * Move a finished download on a background thread instead of blocking the caller. Progress and the result are
+     * sent to OnDownloadEvents under the download id, see {@link DownloadEventObserver}.
+     *
+     * @param downloadId - String version of UUID id
+     * @param dest       - path to move the file to
+     * @return - the handle for {@link #cancelMove(String)}, which is the download id
+     */
+    public String moveFileAsync(String downloadId, String dest) {
         long id;
         try {
             id = Long.parseLong(downloadId);
         } catch (IllegalArgumentException e) {
             DownloadService.unityLog(Log.WARN, TAG, "%s is not a valid UUID", downloadId);
-            return;
+            return null;
         }
+        getMoveQueue().submit(id, new long[]{id}, new File[]{new File(dest)});
+        return downloadId;
+    }
+
+    /**
+     * Move many finished downloads as one background job, a couple of files at a time. Progress and a single result
+     * for the whole batch are sent to OnDownloadEvents under the returned handle.
+     *
+     * @param downloadIds - String versions of UUID ids
+     * @param dests       - path to move each download to
+     * @return - the handle for {@link #cancelMove(String)}
+     */
+    public String moveFilesAsync(String[] downloadIds, String[] dests) {
+        if (downloadIds.length != dests.length) {
+            DownloadService.unityLog(Log.ERROR, TAG, "got %s downloads but %s destinations", downloadIds.length, dests.length);
+            return null;
+        }
+
+        long[] ids = new long[downloadIds.length];
+        File[] files = new File[dests.length];
+        for (int i = 0; i < ids.length; i++) {
+            try {
+                ids[i] = Long.parseLong(downloadIds[i]);
+            } catch (IllegalArgumentException e) {
+                DownloadService.unityLog(Log.WARN, TAG, "%s is not a valid UUID", downloadIds[i]);
+                return null;
+            }
+            files[i] = new File(dests[i]);
+        }
+
+        long handle = DownloadIds.next();
+        getMoveQueue().submit(handle, ids, files);
+        return String.valueOf(handle);
+    }
 
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(id);
-        Cursor cursor = null;
+    /**
+     * Stop a move started with {@link #moveFileAsync(String, String)} or {@link #moveFilesAsync(String[], String[])}.
+     * Files that were already moved stay moved, the job reports {@link #ERROR_CANCELED}.
+     *
+     * @param handle - handle returned when the move was started
+     * @return - if the move was still running
+     */
+    public boolean cancelMove(String handle) {
         try {
-            cursor = downloadManager.query(query);
+            return getMoveQueue().cancel(Long.parseLong(handle));
+        } catch (IllegalArgumentException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "%s is not a valid move handle", handle);
+            return false;
+        }
+    }
 
-            if (cursor.moveToFirst()) {
+    void moveFile(long id, File dest, FileTransfers.Listener listener) throws IOException {
+        long start = DownloadMetrics.nowMs();
+        boolean moved = false;
+        try {
+            DownloadCoalescer.Group group = coalescer.groupOf(id);
+            if (group == null) {
+                moveFile(id, id, dest, listener, true);
+            } else {
+                //handles sharing a download move one after another, only the last one may take the file away
+                synchronized (group) {
+                    moveFile(id, group.id, dest, listener, coalescer.take(group, id));
+                }
+            }
+            moved = true;
+        } finally {
+            metrics.moveFinished(moved, DownloadMetrics.nowMs() - start, moved ? dest.length() : 0);
+        }
+    }
 
-                String uriString = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI));
-                if (uriString.startsWith("file")) {
-                    File f = new File(URI.create(uriString));
-                    if (f.exists() && !f.delete()) {
-                        unityLog(Log.WARN, TAG, "could not delete file " + f);
-                    }
+    /**
+     * @param handle   - handle the move was asked for
+     * @param id       - id of the download behind it
+     * @param mayTake  - if the file may be renamed, otherwise it's copied for other handles to move as well
+     */
+    private void moveFile(long handle, long id, File dest, FileTransfers.Listener listener, boolean mayTake)
+            throws IOException {
+        DownloadEngine engine = engineFor(id);
+        if (engine == null) {
+            throw new FileNotFoundException("download " + id + " is unknown");
+        }
+
+        DownloadInfo info = downloadReverseMap.get(handle);
+        StreamingDigest digest = null;
+        if (info != null && info.digestAlgorithm != null) {
+            try {
+                digest = StreamingDigest.create(info.digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("can't verify download " + id + ": " + e.getMessage());
+            }
+        }
+
+        File downloaded = mayTake ? engine.getDownloadedFile(id) : null;
+        if (downloaded != null && FileTransfers.rename(downloaded, dest)) {
+            metrics.increment(DownloadMetrics.MOVES_RENAMED);
+            //a rename never sees the bytes, so that costs one read to verify
+            if (digest != null) {
+                try {
+                    FileTransfers.digest(dest, digest, listener);
+                } catch (IOException e) {
+                    FileTransfers.rename(dest, downloaded);
+                    throw e;
                 }
             }
-        }finally {
-            if(cursor != null) cursor.close();
+        } else {
+            FileTransfers.copy(engine.openDownloadedFile(id), dest, listener, digest, syncPolicy);
+            metrics.increment(DownloadMetrics.MOVES_COPIED);
+        }
+
+        if (digest != null && !digest.matches(info.expectedDigest)) {
+            if (!dest.delete()) {
+                unityLog(Log.WARN, TAG, "could not delete corrupt file " + dest);
+            }
+            info.error = ERROR_HASH_MISMATCH;
+            metrics.increment(DownloadMetrics.DOWNLOADS_DIGEST_MISMATCH);
+            release(handle);
+            //until it's removed, so getError can tell why the move failed
+            downloadReverseMap.put(handle, info);
+            throw new StreamingDigest.MismatchException("download " + id + " has " + info.digestAlgorithm + " "
+                    + digest.toHex() + ", expected " + info.expectedDigest);
+        }
+
+        //the last move of a download keeps a copy, unless it came from the cache in the first place
+        DownloadCache cache = this.cache;
+        if (cache != null && mayTake && info != null && info.cacheKey != null && !cache.isHit(id)) {
+            cache.store(info.cacheKey, engine.getETag(id), dest);
+        }
+
+        removeDownload(handle);
+    }
+
+    public void removeDownload(String downloadId) {
+        long id;
+        try {
+            id = Long.parseLong(downloadId);
+        } catch (IllegalArgumentException e) {
+            DownloadService.unityLog(Log.WARN, TAG, "%s is not a valid UUID", downloadId);
+            return;
+        }
+        removeDownload(id);
+    }
+
+    void removeDownload(long handle) {
+        if (forgetError(handle)) return;
+        release(handle);
+    }
+
+    /**
+     * Drop the error kept for a handle whose download was released when it failed
+     *
+     * @return - false if the handle has no such error, and still holds its download
+     */
+    boolean forgetError(long handle) {
+        DownloadInfo info = downloadReverseMap.get(handle);
+        if (info == null || info.error == 0) return false;
+        //released when it failed, only its error was left for getError
+        downloadReverseMap.remove(handle);
+        return true;
+    }
+
+    /**
+     * Forget a handle, and delete its download once no other handle shares it
+     */
+    private void release(long handle) {
+        DownloadEventObserver observer = eventObserver;
+        if (observer != null) observer.untrack(handle);
+        progressEstimators.remove(handle);
+
+        //a shared download stays until its last handle is gone
+        long id = handle;
+        DownloadCoalescer.Group group = coalescer.groupOf(handle);
+        if (group != null) {
+            id = group.id;
+            if (!coalescer.release(group, handle)) {
+                //the download's own entry is what later requests for it copy
+                if (handle != id) downloadReverseMap.remove(handle);
+                return;
+            }
         }
+        downloadReverseMap.remove(handle);
+        downloadReverseMap.remove(id);
+        metrics.downloadRemoved(id);
 
-        if(downloadManager.remove(id) <= 0){
+        DownloadEngine engine = engineFor(id);
+        if(engine == null || !engine.remove(id)){
             unityLog(Log.WARN, TAG, "could not delete download " + id);
         }
 
     }
 
-    private static long copyLarge(InputStream input, OutputStream output)
-            throws IOException {
-        byte[] buffer = new byte[1024 * 4];
-        long count = 0;
-        int n = 0;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
-            count += n;
+    /**
+     * @return - handles the service still keeps anything for
+     */
+    int registeredDownloads() {
+        return downloadReverseMap.size();
+    }
+
+    private synchronized void addEngine(DownloadEngine engine) {
+        for (DownloadEngine added : engines) {
+            if (added == engine) return;
+        }
+        DownloadEngine[] grown = Arrays.copyOf(engines, engines.length + 1);
+        grown[engines.length] = engine;
+        engines = grown;
+    }
+
+    private synchronized void removeEngine(DownloadEngine engine) {
+        DownloadEngine[] kept = new DownloadEngine[engines.length];
+        int count = 0;
+        for (DownloadEngine added : engines) {
+            if (added != engine) kept[count++] = added;
+        }
+        engines = Arrays.copyOf(kept, count);
+    }
+
+    private DownloadEngine engineFor(long id) {
+        for (DownloadEngine engine : engines) {
+            if (engine.owns(id)) return engine;
         }
-        return count;
+        return null;
     }
 
     /**
      * Check status of downloaded file
      *
-     * @param cursor - DowmloadManager cursor
+     * @param status - one download packed like {@link #checkStatusBatch(long[])}
      * @return - if file failed downloading or not
      */
-    private static boolean isDownloadOk(Cursor cursor) {
-        boolean ok = true;
-        String filename = cursor.getString(cursor.getColumnIndex(DownloadManager.COLUMN_TITLE));
-        int reason = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_REASON));
+    private boolean isDownloadOk(long[] status) {
+        int result = (int) status[STATUS_FIELD_STATUS];
+        boolean ok = result != DownloadManager.STATUS_FAILED;
+        //polled every frame, so nothing is formatted unless it gets logged
+        int level;
+        switch (result) {
+            case DownloadManager.STATUS_PENDING:
+            case DownloadManager.STATUS_RUNNING:
+            case DownloadManager.STATUS_PAUSED:
+            case DownloadManager.STATUS_SUCCESSFUL:
+                level = Log.DEBUG;
+                break;
+            default:
+                level = Log.ERROR;
+                break;
+        }
+        if (!isLoggable(level)) return ok;
+
+        long id = status[STATUS_FIELD_ID];
+        DownloadInfo info = downloadReverseMap.get(id);
+        String filename = info != null ? info.fileName : null;
+        long reason = status[STATUS_FIELD_REASON];
         String message = "Download file id %s is %s -- %s";
-        int result = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
-        long id = cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_ID));
 
         switch (result) {
             case DownloadManager.STATUS_PENDING:
@@ -270,7 +1373,6 @@ public class DownloadService {
                 break;
             case DownloadManager.STATUS_FAILED:
                 DownloadService.unityLog(Log.ERROR, TAG, message, id, "failed", reason);
-                ok = false;
                 break;
             default:
                 DownloadService.unityLog(Log.ERROR, TAG, "Unknown result: %s", result);
@@ -281,39 +1383,80 @@ public class DownloadService {
     }
 
     /**
-     * Logger for both native and Unity
+     * Only log messages of level or above to logcat. Below INFO every status poll is logged.
+     *
+     * @param level - android.util.Log level, INFO by default
+     */
+    public static void setLogLevel(int level) {
+        logLevel = level;
+    }
+
+    /**
+     * Only send messages of level or above to Unity, see {@link #unityLog(int, String, String)}
+     *
+     * @param level - android.util.Log level, INFO by default
+     */
+    public static void setUnityLogLevel(int level) {
+        unityLogLevel = level;
+    }
+
+    /**
+     * @param intervalMs - longest time a message waits before it is sent to Unity, 0 to only send on
+     *                   {@link #flushUnityLog()}
+     */
+    public static void setUnityLogInterval(int intervalMs) {
+        unityLogBridge.setInterval(Math.max(0, intervalMs));
+    }
+
+    /**
+     * Send the messages waiting for Unity now, call it once per frame to get them frame by frame
+     */
+    public static void flushUnityLog() {
+        unityLogBridge.flush();
+    }
+
+    /**
+     * @return - if messages of level are logged anywhere, check before building expensive messages
+     */
+    static boolean isLoggable(int level) {
+        return level >= Math.min(logLevel, unityLogLevel);
+    }
+
+    /**
+     * Logger for both native and Unity. Messages for Unity are batched and sent to
+     * {@value #GAMEOBJ_NAME}.{@value UnityLogBridge#UNITY_METHOD}, one line per message.
      *
      * @param level   - Log level
      * @param tag     - String to use for the Android logger
      * @param message - Log message
      */
     public static void unityLog(int level, String tag, String message) {
-        String unityMessage = String.format("%s: %s", tag, message);
-        switch (level) {
-            case Log.VERBOSE:
-                Log.v(tag, message);
-                UnityPlayer.UnitySendMessage(GAMEOBJ_NAME, "LogVerbose", unityMessage);
-                break;
-            case Log.DEBUG:
-                Log.d(tag, message);
-                UnityPlayer.UnitySendMessage(GAMEOBJ_NAME, "LogDebug", unityMessage);
-                break;
-            case Log.INFO:
-                Log.i(tag, message);
-                UnityPlayer.UnitySendMessage(GAMEOBJ_NAME, "LogInfo", unityMessage);
-                break;
-            case Log.WARN:
-                Log.w(tag, message);
-                UnityPlayer.UnitySendMessage(GAMEOBJ_NAME, "LogWarn", unityMessage);
-                break;
-            case Log.ERROR:
-                Log.e(tag, message);
-                UnityPlayer.UnitySendMessage(GAMEOBJ_NAME, "LogError", unityMessage);
-                break;
+        if (level >= logLevel) {
+            switch (level) {
+                case Log.VERBOSE:
+                    Log.v(tag, message);
+                    break;
+                case Log.DEBUG:
+                    Log.d(tag, message);
+                    break;
+                case Log.INFO:
+                    Log.i(tag, message);
+                    break;
+                case Log.WARN:
+                    Log.w(tag, message);
+                    break;
+                case Log.ERROR:
+                    Log.e(tag, message);
+                    break;
+            }
+        }
+        if (level >= unityLogLevel) {
+            unityLogBridge.log(level, tag + ": " + message);
         }
     }
 
     public static void unityLog(int level, String tag, String message, Object... objects) {
+        if (!isLoggable(level)) return;
         DownloadService.unityLog(level, tag, String.format(message, objects));
     }
 }
@@ -0,0 +1,192 @@
+package com.seismicgames.androiddownloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything a {@link DownloadEngine} needs to know to start a download
+ */
+public class DownloadTask {
+    private final String url;
+    private final String fileName;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+    private final List<String> mirrors = new ArrayList<>();
+    private String cookie;
+    private boolean allowMobile;
+    private int priority = DownloadService.PRIORITY_NORMAL;
+    private String digestAlgorithm;
+    private String expectedDigest;
+    private String patchBasePath;
+    private String blockIndexUrl;
+    private String extractDir;
+    private long expectedSize = -1;
+
+    /**
+     * @param url      - URL to download
+     * @param fileName - unique file name to download to
+     */
+    public DownloadTask(String url, String fileName) {
+        this.url = url;
+        this.fileName = fileName;
+    }
+
+    public DownloadTask addRequestHeader(String header, String value) {
+        headers.put(header, value);
+        return this;
+    }
+
+    /**
+     * Fall back to another URL serving the same file when retries of the current one fail, see
+     * {@link DownloadService#setRetryPolicy(int, long, long, int)}. Mirrors are tried in the order they were added,
+     * after the URL the task was created with.
+     *
+     * @param url - URL of the same file, with the same ETag or Last-Modified to continue a partial download
+     */
+    public DownloadTask addMirror(String url) {
+        if (url != null && url.length() > 0) mirrors.add(url);
+        return this;
+    }
+
+    public DownloadTask setCookie(String cookie) {
+        this.cookie = cookie;
+        return this;
+    }
+
+    public DownloadTask setAllowMobile(boolean allowMobile) {
+        this.allowMobile = allowMobile;
+        return this;
+    }
+
+    /**
+     * @param priority - downloads with a higher priority start first when downloads are limited, see
+     *                 {@link DownloadService#setMaxConcurrentDownloads(int)}
+     */
+    public DownloadTask setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Verify the downloaded bytes against a known digest, a mismatch fails the download with
+     * {@link DownloadService#ERROR_HASH_MISMATCH}
+     *
+     * @param algorithm      - SHA-256 or any other MessageDigest algorithm, CRC32 or CRC32C
+     * @param expectedDigest - digest in hex, checksums big endian
+     */
+    public DownloadTask setExpectedDigest(String algorithm, String expectedDigest) {
+        this.digestAlgorithm = algorithm;
+        this.expectedDigest = expectedDigest;
+        return this;
+    }
+
+    /**
+     * Download only what changed since an older version of the file, see {@link DeltaDownloadEngine}
+     *
+     * @param basePath      - the older version
+     * @param blockIndexUrl - URL of the {@link BlockIndex} of the file to download
+     */
+    public DownloadTask setPatchBase(String basePath, String blockIndexUrl) {
+        this.patchBasePath = basePath;
+        this.blockIndexUrl = blockIndexUrl;
+        return this;
+    }
+
+    /**
+     * Unpack the download into a directory as it arrives instead of saving it, see {@link UnpackDownloadEngine}
+     *
+     * @param extractDir - directory to unpack into, replaced once the whole archive is unpacked
+     */
+    public DownloadTask setExtractTo(String extractDir) {
+        this.extractDir = extractDir;
+        return this;
+    }
+
+    /**
+     * @param expectedSize - size of the file if known up front, ie. from an asset catalog, -1 if not
+     */
+    public DownloadTask setExpectedSize(long expectedSize) {
+        this.expectedSize = expectedSize;
+        return this;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public List<String> getMirrors() {
+        return Collections.unmodifiableList(mirrors);
+    }
+
+    /**
+     * @param index - 0 for the URL, 1 and up for the mirrors
+     * @return - the URL to try at index, wrapping around after the last mirror
+     */
+    public String getUrl(int index) {
+        int i = index % (mirrors.size() + 1);
+        return i == 0 ? url : mirrors.get(i - 1);
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public Map<String, String> getRequestHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    public String getCookie() {
+        return cookie;
+    }
+
+    public boolean hasCookie() {
+        return cookie != null && cookie.length() > 0;
+    }
+
+    public boolean isAllowMobile() {
+        return allowMobile;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    public String getPatchBasePath() {
+        return patchBasePath;
+    }
+
+    public String getBlockIndexUrl() {
+        return blockIndexUrl;
+    }
+
+    public boolean isPatch() {
+        return blockIndexUrl != null && blockIndexUrl.length() > 0;
+    }
+
+    public long getExpectedSize() {
+        return expectedSize;
+    }
+
+    public String getExtractDir() {
+        return extractDir;
+    }
+
+    public boolean isUnpack() {
+        return extractDir != null && extractDir.length() > 0;
+    }
+
+    public boolean hasExpectedDigest() {
+        return digestAlgorithm != null && digestAlgorithm.length() > 0
+                && expectedDigest != null && expectedDigest.length() > 0;
+    }
+}
@@ -0,0 +1,147 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves finished downloads on a small pool of I/O threads, so the caller doesn't block for the length of the copy.
+ * Every job, whether it moves one download or a batch, reports progress and exactly one result through the
+ * {@link DownloadEventObserver}.
+ */
+class FileMoveQueue {
+    private static final String TAG = "FileMoveQueue";
+
+    private final DownloadService service;
+    private final DownloadEventObserver observer;
+    private final ExecutorService ioExecutor;
+    private final Map<Long, MoveJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxParallelMoves - files copied at the same time, kept low to not thrash flash storage
+     */
+    FileMoveQueue(DownloadService service, DownloadEventObserver observer, int maxParallelMoves) {
+        this.service = service;
+        this.observer = observer;
+        ioExecutor = Executors.newFixedThreadPool(maxParallelMoves, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileMoveQueue-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queue moving ids[i] to dests[i] as one job
+     *
+     * @param handle - id the job's events are reported under
+     */
+    void submit(long handle, long[] ids, File[] dests) {
+        long[] status = service.checkStatusBatch(ids);
+        long totalBytes = 0;
+        for (int i = 0; i < ids.length; i++) {
+            totalBytes += Math.max(0, status[i * DownloadService.STATUS_STRIDE + DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+        }
+
+        MoveJob job = new MoveJob(handle, ids.length, totalBytes);
+        jobs.put(handle, job);
+        observer.trackMove(job);
+        for (int i = 0; i < ids.length; i++) {
+            ioExecutor.execute(new MoveRunnable(job, ids[i], dests[i]));
+        }
+    }
+
+    /**
+     * Stop a job, files that were already moved stay where they are
+     *
+     * @return - if the job was still running
+     */
+    boolean cancel(long handle) {
+        MoveJob job = jobs.get(handle);
+        if (job == null) return false;
+        job.canceled = true;
+        return true;
+    }
+
+    static class MoveJob {
+        final long handle;
+        final long totalBytes;
+        final AtomicLong copiedBytes = new AtomicLong();
+        final AtomicInteger remaining;
+
+        volatile boolean canceled;
+        volatile boolean finished;
+        volatile int reason;
+
+        //only touched by the observer
+        long reportedBytes = -1;
+
+        MoveJob(long handle, int count, long totalBytes) {
+            this.handle = handle;
+            this.totalBytes = totalBytes;
+            remaining = new AtomicInteger(count);
+        }
+    }
+
+    private class MoveRunnable implements Runnable, FileTransfers.Listener {
+        private final MoveJob job;
+        private final long id;
+        private final File dest;
+        private long copied;
+
+        private MoveRunnable(MoveJob job, long id, File dest) {
+            this.job = job;
+            this.id = id;
+            this.dest = dest;
+        }
+
+        @Override
+        public boolean onProgress(long copied, long total) {
+            job.copiedBytes.addAndGet(copied - this.copied);
+            this.copied = copied;
+            return !job.canceled;
+        }
+
+        @Override
+        public void run() {
+            if (job.canceled) {
+                if (job.reason == 0) job.reason = DownloadService.ERROR_CANCELED;
+            } else {
+                try {
+                    service.moveFile(id, dest, this);
+                    //renamed files never report progress
+                    onProgress(dest.length(), dest.length());
+                } catch (IOException e) {
+                    DownloadService.unityLog(Log.WARN, TAG, "could not move download %s to %s: %s", id, dest, e.getMessage());
+                    if (job.reason == 0) {
+                        if (job.canceled) {
+                            job.reason = DownloadService.ERROR_CANCELED;
+                        } else if (e instanceof StreamingDigest.MismatchException) {
+                            job.reason = DownloadService.ERROR_HASH_MISMATCH;
+                        } else {
+                            job.reason = DownloadManager.ERROR_FILE_ERROR;
+                        }
+                    }
+                }
+            }
+
+            if (job.remaining.decrementAndGet() == 0) {
+                jobs.remove(job.handle);
+                job.finished = true;
+            }
+        }
+    }
+}
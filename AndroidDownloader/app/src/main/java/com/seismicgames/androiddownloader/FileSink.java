@@ -0,0 +1,107 @@
+package com.seismicgames.androiddownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a stream of bytes into a file from a position on, through a pooled direct buffer. The caller reads into
+ * {@link #scratch()} and hands over what it read, which reaches the file when the buffer is full or flushed. Only
+ * the thread transferring the bytes may use a sink, and it must {@link #release()} it when done.
+ */
+final class FileSink {
+    private final FileChannel channel;
+    private final BufferPool pool;
+    private final SyncPolicy syncPolicy;
+    private BufferPool.Buffer buffer;
+    private final ByteBuffer direct;
+    private final byte[] scratch;
+    //written to the file up to here, the rest is buffered
+    private long flushed;
+    private long synced;
+
+    /**
+     * @param position - where the first byte goes
+     */
+    FileSink(FileChannel channel, long position, BufferPool pool, SyncPolicy syncPolicy) {
+        this.channel = channel;
+        this.pool = pool;
+        this.syncPolicy = syncPolicy;
+        buffer = pool.acquire();
+        direct = buffer.direct;
+        scratch = buffer.scratch;
+        flushed = position;
+        synced = position;
+    }
+
+    /**
+     * @return - array to read the next bytes into, at most its length at a time
+     */
+    byte[] scratch() {
+        return scratch;
+    }
+
+    /**
+     * Append the first n bytes of {@link #scratch()}
+     */
+    void write(int n) throws IOException {
+        if (direct.remaining() < n) flush();
+        direct.put(scratch, 0, n);
+        if (!direct.hasRemaining()) flush();
+    }
+
+    /**
+     * @return - position after the last byte written, buffered or not
+     */
+    long position() {
+        return flushed + direct.position();
+    }
+
+    /**
+     * @return - position up to which the bytes are in the file, where other readers of it can see them
+     */
+    long flushedPosition() {
+        return flushed;
+    }
+
+    /**
+     * Write what's buffered to the file, and sync it if the policy asks for it by now
+     */
+    void flush() throws IOException {
+        direct.flip();
+        try {
+            while (direct.hasRemaining()) {
+                flushed += channel.write(direct, flushed);
+            }
+        } finally {
+            direct.clear();
+        }
+        if (syncPolicy.isDue(flushed - synced)) sync();
+    }
+
+    /**
+     * Make everything flushed so far durable
+     */
+    void sync() throws IOException {
+        channel.force(false);
+        synced = flushed;
+    }
+
+    /**
+     * Flush, and sync if the policy syncs completed files
+     */
+    void finish() throws IOException {
+        flush();
+        if (syncPolicy.syncsOnCompletion() && synced < flushed) sync();
+    }
+
+    /**
+     * Give the buffer back to the pool, dropping whatever wasn't flushed
+     */
+    void release() {
+        if (buffer == null) return;
+        direct.clear();
+        pool.release(buffer);
+        buffer = null;
+    }
+}
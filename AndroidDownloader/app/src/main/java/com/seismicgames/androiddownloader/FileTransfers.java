@@ -0,0 +1,220 @@
+package com.seismicgames.androiddownloader;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves finished downloads to their destination without pulling the bytes through the Java heap, even when they
+ * have to be hashed on the way
+ */
+final class FileTransfers {
+    //bytes handed to the kernel per transferTo call, between two progress reports
+    private static final long TRANSFER_CHUNK = 4 * 1024 * 1024;
+
+    interface Listener {
+        /**
+         * @param copied - bytes copied so far
+         * @param total  - size of the file being copied
+         * @return - false to stop copying
+         */
+        boolean onProgress(long copied, long total);
+    }
+
+    private FileTransfers() {
+    }
+
+    /**
+     * Move by renaming, which only works when both files are on the same filesystem
+     *
+     * @return - if the file was renamed
+     */
+    static boolean rename(File source, File dest) {
+        return source.renameTo(dest);
+    }
+
+    /**
+     * @return - whether file is gone, with everything in it if it is a directory
+     */
+    static boolean deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
+    /**
+     * Copy the whole input to dest, letting the kernel move the bytes between the two channels
+     *
+     * @param input - stream to copy from, closed afterwards
+     * @param dest  - file to create or overwrite
+     * @return - number of bytes copied
+     */
+    static long copy(FileInputStream input, File dest) throws IOException {
+        return copy(input, dest, null);
+    }
+
+    /**
+     * Copy the whole input to dest, letting the kernel move the bytes between the two channels. dest is deleted
+     * again if the copy fails or is stopped by the listener.
+     *
+     * @param input    - stream to copy from, closed afterwards
+     * @param dest     - file to create or overwrite
+     * @param listener - told about progress after every chunk, may be null
+     * @return - number of bytes copied
+     */
+    static long copy(FileInputStream input, File dest, Listener listener) throws IOException {
+        return copy(input, dest, listener, null);
+    }
+
+    /**
+     * Copy the whole input to dest without syncing it, see
+     * {@link #copy(FileInputStream, File, Listener, StreamingDigest, SyncPolicy)}
+     */
+    static long copy(FileInputStream input, File dest, Listener listener, StreamingDigest digest) throws IOException {
+        return copy(input, dest, listener, digest, null);
+    }
+
+    /**
+     * Copy the whole input to a preallocated dest. Without a digest the kernel moves the bytes between the two
+     * channels, with one they go through a pooled direct buffer and are hashed on the way. dest is deleted again if
+     * the copy fails or is stopped by the listener.
+     *
+     * @param input      - stream to copy from, closed afterwards
+     * @param dest       - file to create or overwrite
+     * @param listener   - told about progress after every chunk, may be null
+     * @param digest     - fed with every byte copied, may be null
+     * @param syncPolicy - whether dest is synced once copied, null to leave that to the system
+     * @return - number of bytes copied
+     */
+    static long copy(FileInputStream input, File dest, Listener listener, StreamingDigest digest,
+                     SyncPolicy syncPolicy) throws IOException {
+        RandomAccessFile output = null;
+        BufferPool.Buffer pooled = null;
+        boolean copied = false;
+        try {
+            output = new RandomAccessFile(dest, "rw");
+            output.setLength(0);
+            FileChannel in = input.getChannel();
+            FileChannel out = output.getChannel();
+
+            long size = in.size();
+            preallocate(output, size);
+            long position = 0;
+            ByteBuffer buffer = null;
+            if (digest != null) {
+                pooled = BufferPool.shared().acquire();
+                buffer = pooled.direct;
+            }
+            while (position < size) {
+                long n;
+                if (digest == null) {
+                    n = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+                } else {
+                    buffer.clear();
+                    n = in.read(buffer);
+                    if (n > 0) {
+                        buffer.flip();
+                        digest.update(buffer);
+                        buffer.flip();
+                        while (buffer.hasRemaining()) {
+                            out.write(buffer, position + buffer.position());
+                        }
+                    }
+                }
+                if (n <= 0) break;
+                position += n;
+                if (listener != null && !listener.onProgress(position, size)) {
+                    throw new InterruptedIOException("copy to " + dest + " was canceled");
+                }
+            }
+            if (position < size) {
+                throw new IOException("copied " + position + " of " + size + " bytes to " + dest);
+            }
+            if (syncPolicy != null && syncPolicy.syncsOnCompletion()) out.force(false);
+            copied = true;
+            return position;
+        } finally {
+            input.close();
+            if (output != null) output.close();
+            if (pooled != null) BufferPool.shared().release(pooled);
+            if (!copied) dest.delete();
+        }
+    }
+
+    /**
+     * @return - if {@link #preallocate(RandomAccessFile, long)} reserves blocks rather than leave a sparse file,
+     * unless the filesystem can't
+     */
+    static boolean canPreallocate() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    /**
+     * Reserve the blocks of a file that is about to be written, so the filesystem can lay it out in one piece and
+     * a full disk shows up now instead of halfway through. Where the filesystem can't, the file is only extended,
+     * which leaves it sparse.
+     *
+     * @param file   - file open for writing
+     * @param length - size the file will have
+     */
+    static void preallocate(RandomAccessFile file, long length) throws IOException {
+        if (length <= 0) return;
+        if (canPreallocate()) {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, length);
+                return;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) throw new IOException("no space left for " + length + " bytes");
+                //not supported by the filesystem
+            }
+        }
+        file.setLength(length);
+    }
+
+    /**
+     * Feed a whole file into digest, for files that were moved without passing through the heap
+     *
+     * @param file     - file to read
+     * @param digest   - digest to update
+     * @param listener - told about progress after every chunk, may be null
+     * @return - number of bytes read
+     */
+    static long digest(File file, StreamingDigest digest, Listener listener) throws IOException {
+        FileInputStream input = new FileInputStream(file);
+        BufferPool.Buffer pooled = BufferPool.shared().acquire();
+        try {
+            FileChannel in = input.getChannel();
+            long size = in.size();
+            long position = 0;
+            ByteBuffer buffer = pooled.direct;
+            while (true) {
+                buffer.clear();
+                int n = in.read(buffer);
+                if (n < 0) break;
+                buffer.flip();
+                digest.update(buffer);
+                position += n;
+                if (listener != null && !listener.onProgress(position, size)) {
+                    throw new InterruptedIOException("hashing " + file + " was canceled");
+                }
+            }
+            return position;
+        } finally {
+            input.close();
+            BufferPool.shared().release(pooled);
+        }
+    }
+}
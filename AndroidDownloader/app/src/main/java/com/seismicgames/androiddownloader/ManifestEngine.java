@@ -0,0 +1,343 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every file of a {@link DownloadManifest} as one download. Each manifest gets a background thread that reads
+ * it, starts its files through the service and checks all of them with one batched status query per tick, moving
+ * finished files to their destinations as they arrive.
+ *
+ * A manifest is reported like any other download: the bytes of all its files, SUCCESSFUL once every file was moved,
+ * FAILED with the reason of the first file that failed once the rest are done. Manifests aren't journaled, one cut
+ * short by the app dying has to be started again.
+ */
+class ManifestEngine implements DownloadEngine {
+    private static final String TAG = "ManifestEngine";
+
+    private final DownloadService service;
+    private final int pollIntervalMs;
+    private final ExecutorService executor;
+    private final ConcurrentMap<Long, Manifest> downloads = new ConcurrentHashMap<>();
+
+    /**
+     * @param pollIntervalMs - time between two checks of a manifest's files
+     */
+    ManifestEngine(DownloadService service, int pollIntervalMs) {
+        this.service = service;
+        this.pollIntervalMs = pollIntervalMs;
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ManifestEngine-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param task - a task whose file name is the path of the manifest
+     */
+    @Override
+    public long enqueue(DownloadTask task) {
+        Manifest manifest = new Manifest(DownloadIds.next(), task);
+        downloads.put(manifest.id, manifest);
+        executor.execute(manifest);
+        return manifest.id;
+    }
+
+    @Override
+    public boolean verifiesDigest() {
+        return true;
+    }
+
+    @Override
+    public boolean preallocates() {
+        return false;
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return DownloadIds.isInProcess(id) && downloads.containsKey(id);
+    }
+
+    @Override
+    public void query(long[] ids, long[] out) {
+        for (int i = 0; i < ids.length; i++) {
+            if (!DownloadIds.isInProcess(ids[i])) continue;
+            Manifest manifest = downloads.get(ids[i]);
+            if (manifest == null) continue;
+
+            int offset = i * DownloadService.STATUS_STRIDE;
+            int status = manifest.status;
+            if (status == DownloadManager.STATUS_RUNNING && manifest.paused) status = DownloadManager.STATUS_PAUSED;
+            out[offset + DownloadService.STATUS_FIELD_STATUS] = status;
+            out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = manifest.bytesSoFar;
+            out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = manifest.totalBytes;
+            out[offset + DownloadService.STATUS_FIELD_REASON] = manifest.reason;
+        }
+    }
+
+    /**
+     * @return - files moved, files failed and files in the manifest, null if id isn't a manifest
+     */
+    int[] fileCounts(long id) {
+        Manifest manifest = downloads.get(id);
+        if (manifest == null) return null;
+        return new int[]{manifest.filesMoved, manifest.filesFailed, manifest.files};
+    }
+
+    /**
+     * A manifest's files are at their destinations, there is no file to open
+     */
+    @Override
+    public FileInputStream openDownloadedFile(long id) throws IOException {
+        throw new FileNotFoundException("manifest " + id + " has no file of its own");
+    }
+
+    @Override
+    public File getDownloadedFile(long id) {
+        return null;
+    }
+
+    @Override
+    public String getETag(long id) {
+        return null;
+    }
+
+    /**
+     * Pause every file that can be paused, see {@link DownloadService#pauseDownload(String)}
+     */
+    @Override
+    public boolean pause(long id) {
+        Manifest manifest = downloads.get(id);
+        if (manifest == null || manifest.isFinished()) return false;
+        manifest.paused = true;
+        return manifest.forEachStarted(true) > 0;
+    }
+
+    @Override
+    public boolean resume(long id) {
+        Manifest manifest = downloads.get(id);
+        if (manifest == null || !manifest.paused) return false;
+        manifest.paused = false;
+        manifest.forEachStarted(false);
+        return true;
+    }
+
+    /**
+     * Forget a manifest, files that were moved stay where they are, the others are removed
+     */
+    @Override
+    public boolean remove(long id) {
+        Manifest manifest = downloads.remove(id);
+        if (manifest == null) return false;
+
+        manifest.canceled = true;
+        return true;
+    }
+
+    /**
+     * Stop all running manifests, the engine can't be used afterwards
+     */
+    void shutdown() {
+        for (Manifest manifest : downloads.values()) {
+            manifest.canceled = true;
+        }
+        executor.shutdownNow();
+    }
+
+    private class Manifest implements Runnable {
+        final long id;
+        final DownloadTask task;
+        final File file;
+
+        volatile int status = DownloadManager.STATUS_PENDING;
+        volatile int reason;
+        volatile long bytesSoFar;
+        volatile long totalBytes = -1;
+        volatile int files;
+        volatile int filesMoved;
+        volatile int filesFailed;
+        volatile boolean paused;
+        volatile boolean canceled;
+        //handle of each file once it was started, 0 before and after it's done
+        volatile long[] handles = new long[0];
+
+        //only touched by the manifest's thread
+        private DownloadManifest.Entry[] entries;
+        private long movedBytes;
+
+        Manifest(long id, DownloadTask task) {
+            this.id = id;
+            this.task = task;
+            file = new File(task.getFileName());
+        }
+
+        boolean isFinished() {
+            return status == DownloadManager.STATUS_SUCCESSFUL || status == DownloadManager.STATUS_FAILED;
+        }
+
+        /**
+         * @return - files that were paused or resumed
+         */
+        int forEachStarted(boolean pause) {
+            int count = 0;
+            for (long handle : handles) {
+                if (handle == 0) continue;
+                String downloadId = String.valueOf(handle);
+                if (pause ? service.pauseDownload(downloadId) : service.resumeDownload(downloadId)) count++;
+            }
+            return count;
+        }
+
+        @Override
+        public void run() {
+            try {
+                DownloadManifest manifest;
+                try {
+                    manifest = DownloadManifest.read(file);
+                } catch (IOException e) {
+                    DownloadService.unityLog(Log.ERROR, TAG, "could not read manifest %s: %s", file, e.getMessage());
+                    finish(DownloadService.ERROR_APP);
+                    return;
+                }
+                start(manifest);
+                track();
+            } catch (InterruptedException e) {
+                //the engine is shutting down
+                canceled = true;
+            } finally {
+                if (canceled) removeStarted();
+            }
+        }
+
+        private void start(DownloadManifest manifest) {
+            entries = manifest.entries.toArray(new DownloadManifest.Entry[manifest.entries.size()]);
+            long total = 0;
+            for (DownloadManifest.Entry entry : entries) {
+                total = total < 0 || entry.size < 0 ? -1 : total + entry.size;
+            }
+            totalBytes = total;
+            files = entries.length;
+
+            long[] started = new long[entries.length];
+            handles = started;
+            for (int i = 0; i < entries.length && !canceled; i++) {
+                started[i] = service.startManifestEntry(entries[i], task);
+                if (started[i] == 0) {
+                    fileFailed(DownloadService.ERROR_APP);
+                } else if (paused) {
+                    service.pauseDownload(String.valueOf(started[i]));
+                }
+            }
+            //publishes the handles to pause and resume
+            handles = started;
+            status = DownloadManager.STATUS_RUNNING;
+        }
+
+        private void track() throws InterruptedException {
+            long[] started = handles;
+            int[] active = new int[started.length];
+            int activeCount = 0;
+            for (int i = 0; i < started.length; i++) {
+                if (started[i] != 0) active[activeCount++] = i;
+            }
+            long[] ids = new long[Math.min(activeCount, DownloadColumns.MAX_QUERY_IDS)];
+
+            while (activeCount > 0 && !canceled) {
+                long runningBytes = 0;
+                int stillActive = 0;
+                //as many as DownloadManager takes in one query
+                for (int from = 0; from < activeCount; from += DownloadColumns.MAX_QUERY_IDS) {
+                    int count = Math.min(activeCount - from, DownloadColumns.MAX_QUERY_IDS);
+                    if (ids.length != count) ids = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        ids[i] = started[active[from + i]];
+                    }
+                    long[] rows = service.checkStatusBatch(ids);
+
+                    for (int i = 0; i < count; i++) {
+                        int entry = active[from + i];
+                        int offset = i * DownloadService.STATUS_STRIDE;
+                        long state = rows[offset + DownloadService.STATUS_FIELD_STATUS];
+                        if (state == DownloadManager.STATUS_SUCCESSFUL) {
+                            move(entry, started[entry], rows[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR]);
+                        } else if (state == DownloadManager.STATUS_FAILED
+                                || state == DownloadService.STATUS_NOT_FOUND) {
+                            service.removeDownload(started[entry]);
+                            started[entry] = 0;
+                            fileFailed((int) rows[offset + DownloadService.STATUS_FIELD_REASON]);
+                        } else {
+                            runningBytes += rows[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR];
+                            //never past the entries still to be read
+                            active[stillActive++] = entry;
+                        }
+                    }
+                }
+                activeCount = stillActive;
+                bytesSoFar = movedBytes + runningBytes;
+
+                if (activeCount > 0) Thread.sleep(pollIntervalMs);
+            }
+            if (!canceled) finish(reason);
+        }
+
+        private void move(int entry, long handle, long bytes) {
+            File dest = entries[entry].dest;
+            File parent = dest.getParentFile();
+            try {
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("could not create " + parent);
+                }
+                //removes the download once moved
+                service.moveFile(handle, dest, null);
+                movedBytes += bytes;
+                filesMoved++;
+            } catch (StreamingDigest.MismatchException e) {
+                fileFailed(DownloadService.ERROR_HASH_MISMATCH);
+                //moveFile released it, only the error it kept for getError is left
+                service.forgetError(handle);
+            } catch (IOException e) {
+                DownloadService.unityLog(Log.ERROR, TAG, "could not move %s to %s: %s", entries[entry].url, dest,
+                        e.getMessage());
+                fileFailed(DownloadManager.ERROR_FILE_ERROR);
+                service.removeDownload(handle);
+            }
+            handles[entry] = 0;
+        }
+
+        private void fileFailed(int reason) {
+            if (filesFailed == 0) this.reason = reason;
+            filesFailed++;
+        }
+
+        private void finish(int reason) {
+            this.reason = reason;
+            status = filesFailed == 0 && reason == 0 ? DownloadManager.STATUS_SUCCESSFUL : DownloadManager.STATUS_FAILED;
+        }
+
+        private void removeStarted() {
+            long[] started = handles;
+            for (int i = 0; i < started.length; i++) {
+                if (started[i] == 0) continue;
+                service.removeDownload(started[i]);
+                started[i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.seismicgames.androiddownloader;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Which networks in-process downloads may use, shared by every engine like {@link RateLimiter}. A task that
+ * doesn't allow mobile data only goes out over Wi-Fi or Ethernet, as DownloadManager does for NETWORK_WIFI.
+ *
+ * Engines ask before every request. A download that may not use the current network is held as paused with
+ * DownloadManager.PAUSED_QUEUED_FOR_WIFI and asked about again every {@link #CHECK_INTERVAL_MS}.
+ */
+class NetworkPolicy {
+    static final long CHECK_INTERVAL_MS = 2000;
+
+    //null without a context to ask, every network is fine then
+    private final ConnectivityManager connectivity;
+
+    NetworkPolicy() {
+        this(null);
+    }
+
+    /**
+     * @param context - context to ask for the active network, null to allow every network, ie. in tests
+     */
+    NetworkPolicy(Context context) {
+        connectivity = context != null
+                ? (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE) : null;
+    }
+
+    /**
+     * @return - if the task may make a request right now
+     */
+    boolean allows(DownloadTask task) {
+        return task.isAllowMobile() || isOnWifi();
+    }
+
+    /**
+     * @return - if the active network is Wi-Fi or Ethernet
+     */
+    boolean isOnWifi() {
+        if (connectivity == null) return true;
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) return false;
+        int type = network.getType();
+        return type == ConnectivityManager.TYPE_WIFI || type == ConnectivityManager.TYPE_ETHERNET;
+    }
+}
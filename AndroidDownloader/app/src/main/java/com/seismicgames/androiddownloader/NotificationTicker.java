@@ -0,0 +1,50 @@
+package com.seismicgames.androiddownloader;
+
+/**
+ * Paces the download notification. Ticks come quickly while bytes arrive and twice as far apart each time they
+ * don't, so stalled or paused downloads cost next to nothing. A change reported by DownloadManager brings the
+ * next tick forward again.
+ *
+ * Not thread safe, it lives on the notification thread.
+ */
+class NotificationTicker {
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private long intervalMs;
+    private long lastBytes = -1;
+
+    /**
+     * @param minIntervalMs - time between ticks while downloads make progress
+     * @param maxIntervalMs - longest time between ticks while they don't
+     */
+    NotificationTicker(long minIntervalMs, long maxIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = maxIntervalMs;
+        intervalMs = minIntervalMs;
+    }
+
+    /**
+     * @param bytesSoFar - bytes downloaded by all downloads so far
+     * @return - time until the next tick
+     */
+    long onTick(long bytesSoFar) {
+        if (bytesSoFar != lastBytes) {
+            intervalMs = minIntervalMs;
+        } else {
+            intervalMs = Math.min(maxIntervalMs, intervalMs * 2);
+        }
+        lastBytes = bytesSoFar;
+        return intervalMs;
+    }
+
+    /**
+     * DownloadManager reported a change, so progress is likely to move again
+     *
+     * @param sinceLastTickMs - time since the last tick
+     * @return - time until the next tick, never sooner than the minimum interval after the last one
+     */
+    long onChange(long sinceLastTickMs) {
+        intervalMs = minIntervalMs;
+        return Math.max(0, minIntervalMs - sinceLastTickMs);
+    }
+}
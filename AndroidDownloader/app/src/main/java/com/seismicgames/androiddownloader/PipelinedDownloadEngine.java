@@ -0,0 +1,1057 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.net.NetworkSecurityPolicy;
+import android.os.Build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Downloads small files in process over persistent HTTP/1.1 connections. Each host gets a few connections that
+ * stay open between files, so connection and TLS setup is paid once per connection instead of once per file, and
+ * every connection keeps several requests outstanding, so a file's round trip overlaps with the previous file's
+ * transfer. Responses come back in the order they were asked for, one file each.
+ *
+ * A connection the server closes, or that fails, hands its unanswered requests to the next one. Only the request
+ * whose response was cut off counts it as an attempt, except on a connection that sat idle, which the server may
+ * close at any time. Servers that close a connection with requests outstanding get one request at a time from
+ * then on.
+ *
+ * Files are preallocated to their Content-Length, written as a single stream through a pooled direct buffer and
+ * hashed while they are written. There are no ranges and no journal, a paused file starts over and unfinished
+ * files are lost with the engine. Big files belong in {@link RangeDownloadEngine}.
+ *
+ * A file that may not use the current network, see {@link NetworkPolicy}, isn't asked for but paused with
+ * PAUSED_QUEUED_FOR_WIFI when a connection picks it, and queued again once it may.
+ *
+ * Connections are plain sockets, so nothing HttpURLConnection does on the way to the server happens here. They
+ * don't go through a proxy, and the Network Security Config only reaches them through the default
+ * SSLSocketFactory's trust manager, which checks trust anchors and pins by the host name given to the socket.
+ * Cleartext rules aren't enforced on sockets at all. Only hand this engine files {@link #canFetch(String)}
+ * allows.
+ */
+public class PipelinedDownloadEngine implements DownloadEngine {
+    public static final int DEFAULT_CONNECTIONS_PER_HOST = 4;
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+    //an idle connection waits this long for the next file before it's closed
+    static final int KEEP_ALIVE_MS = 15 * 1000;
+    //a file fails once this many connections failed while fetching it
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int TIMEOUT_MS = 30 * 1000;
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final String CHARSET = "ISO-8859-1";
+
+    private final File downloadDir;
+    private final int connectionsPerHost;
+    private final int pipelineDepth;
+    private final RateLimiter rateLimiter;
+    private final SyncPolicy syncPolicy;
+    private final NetworkPolicy networkPolicy;
+    private final BufferPool bufferPool;
+    private final ExecutorService connectionPool;
+    private final ScheduledExecutorService wifiTimer;
+    private final ConcurrentMap<Long, SmallDownload> downloads = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Host> hosts = new ConcurrentHashMap<>();
+    //open sockets, closed on shutdown to unblock their threads
+    private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private volatile boolean shutdown;
+
+    /**
+     * @param downloadDir        - directory to download into
+     * @param connectionsPerHost - persistent connections per host
+     * @param pipelineDepth      - requests outstanding per connection
+     */
+    public PipelinedDownloadEngine(File downloadDir, int connectionsPerHost, int pipelineDepth) {
+        this(downloadDir, connectionsPerHost, pipelineDepth, new RateLimiter());
+    }
+
+    /**
+     * @param rateLimiter - bandwidth limit, possibly shared with other engines
+     */
+    PipelinedDownloadEngine(File downloadDir, int connectionsPerHost, int pipelineDepth, RateLimiter rateLimiter) {
+        this(downloadDir, connectionsPerHost, pipelineDepth, rateLimiter, new SyncPolicy());
+    }
+
+    /**
+     * @param syncPolicy - when written bytes are synced, possibly shared with other engines
+     */
+    PipelinedDownloadEngine(File downloadDir, int connectionsPerHost, int pipelineDepth, RateLimiter rateLimiter,
+                            SyncPolicy syncPolicy) {
+        this(downloadDir, connectionsPerHost, pipelineDepth, rateLimiter, syncPolicy, new NetworkPolicy());
+    }
+
+    /**
+     * @param networkPolicy - which networks files may use, possibly shared with other engines
+     */
+    PipelinedDownloadEngine(File downloadDir, int connectionsPerHost, int pipelineDepth, RateLimiter rateLimiter,
+                            SyncPolicy syncPolicy, NetworkPolicy networkPolicy) {
+        if (connectionsPerHost < 1) throw new IllegalArgumentException("connectionsPerHost must be at least 1");
+        if (pipelineDepth < 1) throw new IllegalArgumentException("pipelineDepth must be at least 1");
+
+        this.downloadDir = downloadDir;
+        this.connectionsPerHost = connectionsPerHost;
+        this.pipelineDepth = pipelineDepth;
+        this.rateLimiter = rateLimiter;
+        this.syncPolicy = syncPolicy;
+        this.networkPolicy = networkPolicy;
+        bufferPool = BufferPool.shared();
+        connectionPool = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PipelinedDownloadEngine-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        wifiTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PipelinedDownloadEngine-wifi");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public long enqueue(DownloadTask task) throws IOException {
+        if (!downloadDir.isDirectory() && !downloadDir.mkdirs()) {
+            throw new IOException("could not create " + downloadDir);
+        }
+        URL url = checkUrl(new URL(task.getUrl()));
+
+        SmallDownload download = new SmallDownload(DownloadIds.next(), task, new File(downloadDir, task.getFileName()));
+        download.url = url;
+        downloads.put(download.id, download);
+        schedule(download, false);
+        return download.id;
+    }
+
+    @Override
+    public boolean verifiesDigest() {
+        return true;
+    }
+
+    @Override
+    public boolean preallocates() {
+        return FileTransfers.canPreallocate();
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return DownloadIds.isInProcess(id) && downloads.containsKey(id);
+    }
+
+    @Override
+    public void query(long[] ids, long[] out) {
+        for (int i = 0; i < ids.length; i++) {
+            if (!DownloadIds.isInProcess(ids[i])) continue;
+            SmallDownload download = downloads.get(ids[i]);
+            if (download == null) continue;
+
+            int offset = i * DownloadService.STATUS_STRIDE;
+            out[offset + DownloadService.STATUS_FIELD_STATUS] = download.status;
+            out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = download.bytesSoFar;
+            out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = download.totalBytes;
+            out[offset + DownloadService.STATUS_FIELD_REASON] = download.reason;
+        }
+    }
+
+    @Override
+    public FileInputStream openDownloadedFile(long id) throws IOException {
+        SmallDownload download = downloads.get(id);
+        if (download == null || download.status != DownloadManager.STATUS_SUCCESSFUL) {
+            throw new FileNotFoundException("download " + id + " has not finished");
+        }
+        return new FileInputStream(download.file);
+    }
+
+    @Override
+    public File getDownloadedFile(long id) {
+        SmallDownload download = downloads.get(id);
+        if (download == null || download.status != DownloadManager.STATUS_SUCCESSFUL) return null;
+        return download.file;
+    }
+
+    @Override
+    public String getETag(long id) {
+        SmallDownload download = downloads.get(id);
+        if (download == null || download.status != DownloadManager.STATUS_SUCCESSFUL) return null;
+        return download.etag;
+    }
+
+    /**
+     * Stop a file that hasn't finished, it's downloaded from the start when resumed
+     */
+    @Override
+    public boolean pause(long id) {
+        SmallDownload download = downloads.get(id);
+        if (download == null || !download.pause(DownloadManager.PAUSED_UNKNOWN)) return false;
+        unqueue(download);
+        return true;
+    }
+
+    @Override
+    public boolean resume(long id) {
+        SmallDownload download = downloads.get(id);
+        if (download == null || !download.resume()) return false;
+        schedule(download, false);
+        return true;
+    }
+
+    @Override
+    public boolean remove(long id) {
+        SmallDownload download = downloads.remove(id);
+        if (download == null) return false;
+
+        download.cancel();
+        unqueue(download);
+        return !download.file.exists() || download.file.delete();
+    }
+
+    /**
+     * Stop all downloads and close all connections, the engine can't be used afterwards
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (SmallDownload download : downloads.values()) {
+            download.cancel();
+        }
+        for (Host host : hosts.values()) {
+            synchronized (host) {
+                host.pending.clear();
+                host.notifyAll();
+            }
+        }
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        connectionPool.shutdownNow();
+        wifiTimer.shutdownNow();
+    }
+
+    /**
+     * Whether a file can be fetched over this engine's own sockets as it would be over HttpURLConnection
+     *
+     * @param url - URL of the file
+     * @return - false for URLs the default ProxySelector sends through a proxy, and for plain HTTP to hosts the
+     * Network Security Config doesn't allow cleartext to
+     */
+    static boolean canFetch(String url) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        if (host == null || (!"http".equals(scheme) && !"https".equals(scheme))) return false;
+        if ("http".equals(scheme) && !isCleartextPermitted(host)) return false;
+
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) return true;
+        for (Proxy proxy : selector.select(uri)) {
+            if (proxy.type() != Proxy.Type.DIRECT) return false;
+        }
+        return true;
+    }
+
+    private static boolean isCleartextPermitted(String host) {
+        //per host from Android 7, a single switch on Android 6, and no rules before
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return NetworkSecurityPolicy.getInstance().isCleartextTrafficPermitted(host);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return NetworkSecurityPolicy.getInstance().isCleartextTrafficPermitted();
+        }
+        return true;
+    }
+
+    private static URL checkUrl(URL url) throws MalformedURLException {
+        String protocol = url.getProtocol();
+        if (!protocol.equals("http") && !protocol.equals("https")) {
+            throw new MalformedURLException("can't download " + url + " over HTTP");
+        }
+        return url;
+    }
+
+    private Host hostFor(URL url) {
+        boolean secure = url.getProtocol().equals("https");
+        int port = url.getPort() >= 0 ? url.getPort() : url.getDefaultPort();
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+        Host host = hosts.get(key);
+        if (host == null) {
+            Host created = new Host(secure, url.getHost(), port);
+            host = hosts.putIfAbsent(key, created);
+            if (host == null) host = created;
+        }
+        return host;
+    }
+
+    /**
+     * Queue a file on its host, and wake or open a connection for it
+     *
+     * @param first - if it goes ahead of the queue, for files that were already asked for once
+     */
+    private void schedule(SmallDownload download, boolean first) {
+        Host host = hostFor(download.url);
+        synchronized (host) {
+            if (shutdown) return;
+            if (first) {
+                host.pending.addFirst(download);
+            } else {
+                host.pending.addLast(download);
+            }
+            if (host.idle > 0) {
+                host.notify();
+            } else if (host.connections < connectionsPerHost) {
+                host.connections++;
+                try {
+                    connectionPool.execute(new Connection(host));
+                } catch (RejectedExecutionException e) {
+                    //shutting down
+                    host.connections--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pause a file picked for a network it may not use, until it may
+     */
+    private void holdForWifi(SmallDownload download) {
+        if (download.pause(DownloadManager.PAUSED_QUEUED_FOR_WIFI)) awaitWifi(download);
+    }
+
+    private void awaitWifi(final SmallDownload held) {
+        try {
+            wifiTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    //removed, or paused by the app meanwhile
+                    if (downloads.get(held.id) != held || held.reason != DownloadManager.PAUSED_QUEUED_FOR_WIFI) {
+                        return;
+                    }
+                    if (networkPolicy.allows(held.task)) {
+                        resume(held.id);
+                    } else {
+                        awaitWifi(held);
+                    }
+                }
+            }, NetworkPolicy.CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //the engine is shutting down
+        }
+    }
+
+    private void unqueue(SmallDownload download) {
+        Host host = hostFor(download.url);
+        synchronized (host) {
+            host.pending.remove(download);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Host {
+        final boolean secure;
+        final String name;
+        final int port;
+        //guarded by this
+        final ArrayDeque<SmallDownload> pending = new ArrayDeque<>();
+        int connections;
+        int idle;
+        boolean pipelining = true;
+
+        Host(boolean secure, String name, int port) {
+            this.secure = secure;
+            this.name = name;
+            this.port = port;
+        }
+
+        String authority(URL url) {
+            return url.getPort() >= 0 ? name + ":" + port : name;
+        }
+    }
+
+    /**
+     * A file asked for on a connection, stale once the file was paused, resumed or removed since
+     */
+    private static class Request {
+        final SmallDownload download;
+        final int generation;
+
+        Request(SmallDownload download, int generation) {
+            this.download = download;
+            this.generation = generation;
+        }
+
+        boolean isCurrent() {
+            return download.generation == generation;
+        }
+    }
+
+    /**
+     * One persistent connection, working through the queue of its host until it has been idle for
+     * {@link #KEEP_ALIVE_MS}
+     */
+    private class Connection implements Runnable {
+        private final Host host;
+        //picked from the queue but not sent yet, then sent and waiting for their responses
+        private final ArrayDeque<Request> unsent = new ArrayDeque<>();
+        private final ArrayDeque<Request> inFlight = new ArrayDeque<>();
+        private Socket socket;
+        private InputStream input;
+        private OutputStream output;
+        private int requestsSent;
+        private int responsesRead;
+        //if any of the response to the oldest request in flight arrived
+        private boolean responseStarted;
+
+        Connection(Host host) {
+            this.host = host;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (fill()) {
+                    try {
+                        if (socket == null) open();
+                        send();
+                        receive();
+                    } catch (InterruptedIOException e) {
+                        if (shutdown) return;
+                        failed();
+                    } catch (IOException e) {
+                        failed();
+                    }
+                }
+            } finally {
+                close();
+                synchronized (host) {
+                    host.connections--;
+                }
+                //whatever this connection didn't get to goes to another one
+                requeue(inFlight);
+                requeue(unsent);
+            }
+        }
+
+        /**
+         * Take files from the queue until the pipeline is full, or wait for some while the connection is open
+         *
+         * @return - false if the connection is done
+         */
+        private boolean fill() {
+            synchronized (host) {
+                while (true) {
+                    if (shutdown) return false;
+                    int depth = host.pipelining ? pipelineDepth : 1;
+                    while (inFlight.size() + unsent.size() < depth && !host.pending.isEmpty()) {
+                        SmallDownload download = host.pending.pollFirst();
+                        if (!networkPolicy.allows(download.task)) {
+                            holdForWifi(download);
+                            continue;
+                        }
+                        int generation = download.begin();
+                        if (generation >= 0) unsent.add(new Request(download, generation));
+                    }
+                    if (!inFlight.isEmpty() || !unsent.isEmpty()) return true;
+                    if (socket == null) return false;
+
+                    host.idle++;
+                    try {
+                        host.wait(KEEP_ALIVE_MS);
+                    } catch (InterruptedException e) {
+                        return false;
+                    } finally {
+                        host.idle--;
+                    }
+                    if (host.pending.isEmpty()) return false;
+                }
+            }
+        }
+
+        private void open() throws IOException {
+            Socket socket = new Socket();
+            sockets.add(socket);
+            try {
+                socket.connect(new InetSocketAddress(host.name, host.port), TIMEOUT_MS);
+                socket.setSoTimeout(TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                if (host.secure) {
+                    SSLSocket ssl = (SSLSocket) HttpsURLConnection.getDefaultSSLSocketFactory()
+                            .createSocket(socket, host.name, host.port, true);
+                    sockets.add(ssl);
+                    sockets.remove(socket);
+                    socket = ssl;
+                    ssl.startHandshake();
+                    if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host.name, ssl.getSession())) {
+                        throw new SSLPeerUnverifiedException("certificate doesn't match " + host.name);
+                    }
+                }
+            } catch (IOException e) {
+                sockets.remove(socket);
+                closeQuietly(socket);
+                throw e;
+            }
+            this.socket = socket;
+            input = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            requestsSent = 0;
+            responsesRead = 0;
+            responseStarted = false;
+            DownloadMetrics.shared().increment(DownloadMetrics.PIPELINE_CONNECTIONS);
+        }
+
+        /**
+         * Write every picked request in one go, behind those still waiting for their responses
+         */
+        private void send() throws IOException {
+            if (unsent.isEmpty()) return;
+
+            StringBuilder requests = new StringBuilder();
+            for (Request request : unsent) {
+                appendRequest(requests, request.download);
+            }
+            output.write(requests.toString().getBytes(CHARSET));
+            output.flush();
+
+            int reused = requestsSent > 0 ? unsent.size() : unsent.size() - 1;
+            if (reused > 0) DownloadMetrics.shared().add(DownloadMetrics.PIPELINE_REQUESTS_REUSED, reused);
+            requestsSent += unsent.size();
+            inFlight.addAll(unsent);
+            unsent.clear();
+        }
+
+        private void appendRequest(StringBuilder out, SmallDownload download) {
+            URL url = download.url;
+            String path = url.getFile();
+            out.append("GET ").append(path.length() > 0 ? path : "/").append(" HTTP/1.1\r\n");
+            out.append("Host: ").append(host.authority(url)).append("\r\n");
+            out.append("Accept-Encoding: identity\r\n");
+            for (Map.Entry<String, String> header : download.task.getRequestHeaders().entrySet()) {
+                out.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            if (download.task.hasCookie()) {
+                out.append("Cookie: ").append(download.task.getCookie()).append("\r\n");
+            }
+            out.append("\r\n");
+        }
+
+        /**
+         * Read the response to the oldest request in flight
+         */
+        private void receive() throws IOException {
+            Request request = inFlight.peekFirst();
+            if (request == null) return;
+            SmallDownload download = request.download;
+
+            Response response = Response.read(input, this);
+            InputStream body = response.body(input);
+            responsesRead++;
+            //stale requests still have their responses read, the next one comes after
+            boolean current = request.isCurrent();
+
+            FileSink sink = response.code == 200 && current ? download.received(request.generation, response) : null;
+            if (sink != null) {
+                try {
+                    byte[] buffer = sink.scratch();
+                    int n;
+                    while ((n = body.read(buffer, 0, rateLimiter.chunkSize(buffer.length))) >= 0) {
+                        try {
+                            rateLimiter.acquire(n);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException("engine is shutting down");
+                        }
+                        download.write(request.generation, sink, n);
+                    }
+                    download.finish(request.generation, sink);
+                } finally {
+                    sink.release();
+                }
+            } else {
+                Response.drain(body);
+                if (current) {
+                    if (response.isRedirect() && download.redirects < MAX_REDIRECTS) {
+                        download.redirects++;
+                        try {
+                            download.url = checkUrl(new URL(download.url, response.location));
+                            download.restart(request.generation);
+                            schedule(download, true);
+                        } catch (MalformedURLException e) {
+                            download.fail(request.generation, DownloadManager.ERROR_UNHANDLED_HTTP_CODE);
+                        }
+                    } else if (response.code != 200) {
+                        download.fail(request.generation, response.code);
+                    }
+                }
+            }
+            inFlight.pollFirst();
+            responseStarted = false;
+
+            if (response.close) {
+                if (!inFlight.isEmpty()) {
+                    //it won't answer what was asked behind this, so ask one at a time from now on
+                    synchronized (host) {
+                        host.pipelining = false;
+                    }
+                }
+                close();
+                requeue(inFlight);
+            }
+        }
+
+        /**
+         * The connection broke, retry its files on a new one
+         */
+        private void failed() {
+            //a request on a connection that was open a while may have just met the server's idle timeout
+            boolean stale = responsesRead > 0 && !responseStarted;
+            boolean connected = socket != null;
+            close();
+
+            if (!connected) {
+                //none of them could be sent
+                while (!unsent.isEmpty()) {
+                    attemptFailed(unsent.pollFirst());
+                }
+                return;
+            }
+            if (!stale && inFlight.size() > 1) {
+                //servers that close with requests still unread may reset the connection before the responses
+                //they did send arrive, ask one at a time from now on rather than blaming the first file
+                synchronized (host) {
+                    host.pipelining = false;
+                }
+            } else if (!stale) {
+                Request head = !inFlight.isEmpty() ? inFlight.pollFirst() : unsent.pollFirst();
+                if (head != null) attemptFailed(head);
+            }
+            requeue(inFlight);
+        }
+
+        private void attemptFailed(Request request) {
+            SmallDownload download = request.download;
+            if (!request.isCurrent()) return;
+            if (++download.attempts >= MAX_ATTEMPTS) {
+                download.fail(request.generation, DownloadManager.ERROR_HTTP_DATA_ERROR);
+            } else {
+                download.restart(request.generation);
+                schedule(download, true);
+            }
+        }
+
+        /**
+         * Put requests back at the front of the queue in their order
+         */
+        private void requeue(ArrayDeque<Request> requests) {
+            for (Iterator<Request> it = requests.descendingIterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.isCurrent()) {
+                    request.download.restart(request.generation);
+                    schedule(request.download, true);
+                }
+            }
+            requests.clear();
+        }
+
+        void responseStarted() {
+            responseStarted = true;
+        }
+
+        private void close() {
+            if (socket == null) return;
+            sockets.remove(socket);
+            closeQuietly(socket);
+            socket = null;
+            input = null;
+            output = null;
+        }
+    }
+
+    /**
+     * Status line and the headers of a response that matter here
+     */
+    private static class Response {
+        int code;
+        //-1 if unknown
+        long contentLength = -1;
+        boolean chunked;
+        boolean close;
+        String location;
+        String etag;
+
+        static Response read(InputStream input, Connection connection) throws IOException {
+            while (true) {
+                Response response = new Response();
+                String statusLine = readLine(input);
+                connection.responseStarted();
+                //HTTP/1.1 200 OK
+                String[] parts = statusLine.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                    throw new IOException("not an HTTP response: " + statusLine);
+                }
+                try {
+                    response.code = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("not an HTTP response: " + statusLine);
+                }
+                boolean http10 = parts[0].equals("HTTP/1.0");
+                response.close = http10;
+
+                String line;
+                while ((line = readLine(input)).length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon <= 0) continue;
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if (name.equalsIgnoreCase("Content-Length")) {
+                        try {
+                            response.contentLength = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("bad Content-Length " + value);
+                        }
+                    } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                        response.chunked = value.toLowerCase().contains("chunked");
+                    } else if (name.equalsIgnoreCase("Connection")) {
+                        String token = value.toLowerCase();
+                        if (token.contains("close")) response.close = true;
+                        if (http10 && token.contains("keep-alive")) response.close = false;
+                    } else if (name.equalsIgnoreCase("Location")) {
+                        response.location = value;
+                    } else if (name.equalsIgnoreCase("ETag")) {
+                        response.etag = value;
+                    }
+                }
+                //interim responses are followed by the real one
+                if (response.code >= 200) return response;
+            }
+        }
+
+        boolean isRedirect() {
+            return location != null && (code == 301 || code == 302 || code == 303 || code == 307 || code == 308);
+        }
+
+        InputStream body(InputStream input) {
+            if (code == 204 || code == 304) return new ResponseBody(input, false, 0);
+            if (chunked) return new ResponseBody(input, true, 0);
+            if (contentLength < 0) {
+                //delimited by the end of the connection
+                close = true;
+            }
+            return new ResponseBody(input, false, contentLength);
+        }
+
+        static void drain(InputStream body) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (body.read(buffer) >= 0) {
+                //skip
+            }
+        }
+
+        static String readLine(InputStream input) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = input.read()) != '\n') {
+                if (c < 0) throw new EOFException("connection closed");
+                if (line.length() >= MAX_LINE_LENGTH) throw new IOException("header line too long");
+                line.append((char) c);
+            }
+            int length = line.length();
+            if (length > 0 && line.charAt(length - 1) == '\r') line.setLength(length - 1);
+            return line.toString();
+        }
+    }
+
+    /**
+     * The body of one response, ending where the response does so the next one can be read after it
+     */
+    private static class ResponseBody extends InputStream {
+        private final InputStream input;
+        private final boolean chunked;
+        //bytes left of the body or the current chunk, -1 until the connection ends
+        private long remaining;
+        private boolean firstChunk = true;
+        private boolean done;
+
+        ResponseBody(InputStream input, boolean chunked, long length) {
+            this.input = input;
+            this.chunked = chunked;
+            remaining = length;
+            done = !chunked && length == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (done) return -1;
+            if (length == 0) return 0;
+            if (chunked && remaining == 0 && !nextChunk()) return -1;
+
+            int max = remaining < 0 ? length : (int) Math.min(length, remaining);
+            int n = input.read(buffer, offset, max);
+            if (n < 0) {
+                if (remaining < 0) {
+                    done = true;
+                    return -1;
+                }
+                throw new EOFException("connection closed in the middle of a response");
+            }
+            if (remaining > 0) remaining -= n;
+            if (!chunked && remaining == 0) done = true;
+            return n;
+        }
+
+        /**
+         * @return - false if the body ended
+         */
+        private boolean nextChunk() throws IOException {
+            if (!firstChunk && Response.readLine(input).length() > 0) throw new IOException("bad chunk end");
+            firstChunk = false;
+
+            String line = Response.readLine(input);
+            int extension = line.indexOf(';');
+            if (extension >= 0) line = line.substring(0, extension);
+            try {
+                remaining = Long.parseLong(line.trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("bad chunk size " + line);
+            }
+            if (remaining < 0) throw new IOException("bad chunk size " + line);
+            if (remaining > 0) return true;
+
+            //trailers, up to the empty line
+            while (Response.readLine(input).length() > 0) {
+                //skip
+            }
+            done = true;
+            return false;
+        }
+    }
+
+    private class SmallDownload {
+        final long id;
+        final DownloadTask task;
+        final File file;
+
+        volatile URL url;
+        volatile int status = DownloadManager.STATUS_PENDING;
+        volatile int reason;
+        volatile long bytesSoFar;
+        volatile long totalBytes = -1;
+        volatile String etag;
+        //bumped whenever the download is paused, resumed, retried or removed, so late responses are ignored
+        volatile int generation;
+        //only touched by the connection fetching it
+        int attempts;
+        int redirects;
+
+        //guarded by this
+        private boolean canceled;
+        private RandomAccessFile output;
+        private StreamingDigest digest;
+
+        SmallDownload(long id, DownloadTask task, File file) {
+            this.id = id;
+            this.task = task;
+            this.file = file;
+        }
+
+        /**
+         * @return - the generation to ask for the file under, -1 if it isn't waiting to be asked for
+         */
+        synchronized int begin() {
+            if (canceled || status != DownloadManager.STATUS_PENDING) return -1;
+            return generation;
+        }
+
+        /**
+         * Start writing the file for a 200 response, preallocated to its length if the response has one
+         *
+         * @return - sink for the connection to write through and release, null if the response is to be discarded
+         */
+        synchronized FileSink received(int generation, Response response) {
+            if (canceled || generation != this.generation) return null;
+
+            StreamingDigest digest = null;
+            try {
+                if (task.hasExpectedDigest()) digest = StreamingDigest.create(task.getDigestAlgorithm());
+            } catch (NoSuchAlgorithmException e) {
+                fail(generation, DownloadService.ERROR_HASH_MISMATCH);
+                return null;
+            }
+            long length = response.chunked ? -1 : response.contentLength;
+            try {
+                output = new RandomAccessFile(file, "rw");
+                output.setLength(0);
+                FileTransfers.preallocate(output, length);
+            } catch (IOException e) {
+                fail(generation, DownloadManager.ERROR_FILE_ERROR);
+                return null;
+            }
+            this.digest = digest;
+            etag = response.etag;
+            bytesSoFar = 0;
+            totalBytes = length;
+            status = DownloadManager.STATUS_RUNNING;
+            return new FileSink(output.getChannel(), 0, bufferPool, syncPolicy);
+        }
+
+        /**
+         * Append the first n bytes of the sink's scratch array
+         */
+        synchronized void write(int generation, FileSink sink, int n) {
+            if (output == null || generation != this.generation) return;
+            if (digest != null) digest.update(sink.scratch(), 0, n);
+            try {
+                sink.write(n);
+            } catch (IOException e) {
+                fail(generation, DownloadManager.ERROR_FILE_ERROR);
+                return;
+            }
+            bytesSoFar += n;
+        }
+
+        synchronized void finish(int generation, FileSink sink) {
+            if (output == null || generation != this.generation) return;
+            try {
+                sink.finish();
+                output.close();
+            } catch (IOException e) {
+                fail(generation, DownloadManager.ERROR_FILE_ERROR);
+                return;
+            }
+            output = null;
+            if (totalBytes < 0) totalBytes = bytesSoFar;
+            if (bytesSoFar != totalBytes) {
+                fail(generation, DownloadManager.ERROR_HTTP_DATA_ERROR);
+            } else if (digest != null && !digest.matches(task.getExpectedDigest())) {
+                fail(generation, DownloadService.ERROR_HASH_MISMATCH);
+            } else {
+                status = DownloadManager.STATUS_SUCCESSFUL;
+            }
+        }
+
+        synchronized void fail(int generation, int reason) {
+            if (canceled || generation != this.generation) return;
+            canceled = true;
+            closeFile();
+            this.reason = reason;
+            status = DownloadManager.STATUS_FAILED;
+        }
+
+        /**
+         * Forget what was written, to ask for the file again
+         */
+        synchronized void restart(int generation) {
+            if (canceled || generation != this.generation) return;
+            this.generation++;
+            closeFile();
+            bytesSoFar = 0;
+            totalBytes = -1;
+            status = DownloadManager.STATUS_PENDING;
+        }
+
+        /**
+         * @param reason - PAUSED_UNKNOWN when the app pauses it, which also keeps a file waiting for Wi-Fi paused
+         *               once Wi-Fi is back
+         */
+        synchronized boolean pause(int reason) {
+            if (status == DownloadManager.STATUS_PAUSED && this.reason == DownloadManager.PAUSED_QUEUED_FOR_WIFI
+                    && reason == DownloadManager.PAUSED_UNKNOWN) {
+                this.reason = reason;
+                return true;
+            }
+            if (canceled || (status != DownloadManager.STATUS_PENDING && status != DownloadManager.STATUS_RUNNING)) {
+                return false;
+            }
+            generation++;
+            closeFile();
+            this.reason = reason;
+            status = DownloadManager.STATUS_PAUSED;
+            return true;
+        }
+
+        synchronized boolean resume() {
+            if (canceled || status != DownloadManager.STATUS_PAUSED) return false;
+            generation++;
+            bytesSoFar = 0;
+            totalBytes = -1;
+            reason = 0;
+            attempts = 0;
+            status = DownloadManager.STATUS_PENDING;
+            return true;
+        }
+
+        synchronized void cancel() {
+            canceled = true;
+            generation++;
+            closeFile();
+        }
+
+        private void closeFile() {
+            try {
+                if (output != null) output.close();
+            } catch (IOException ignored) {
+            }
+            output = null;
+        }
+    }
+}
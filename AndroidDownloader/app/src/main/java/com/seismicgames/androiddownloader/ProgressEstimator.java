@@ -0,0 +1,125 @@
+package com.seismicgames.androiddownloader;
+
+/**
+ * Transfer rate and time left of one download, from samples of its byte count taken whenever its progress is
+ * asked for. Samples older than the window are dropped, and samples closer together than
+ * {@link #MIN_SAMPLE_INTERVAL_MS} are merged, so polling every frame costs no more than polling twice a second.
+ *
+ * The instantaneous rate is over the last second or so, the smoothed rate an exponential moving average of it,
+ * and the time left is from the average over the whole window, which holds steady through short stalls.
+ */
+class ProgressEstimator {
+    static final long WINDOW_MS = 10 * 1000;
+    static final long MIN_SAMPLE_INTERVAL_MS = 100;
+    //span of the instantaneous rate
+    static final long INSTANT_MS = 1000;
+    //time constant of the smoothed rate
+    static final long SMOOTHING_MS = 3000;
+
+    private static final int MAX_SAMPLES = (int) (WINDOW_MS / MIN_SAMPLE_INTERVAL_MS) + 2;
+
+    //ring buffer of samples, oldest at first
+    private final long[] times = new long[MAX_SAMPLES];
+    private final long[] bytes = new long[MAX_SAMPLES];
+    private int first;
+    private int count;
+
+    private long smoothed = -1;
+    private long smoothedMs;
+
+    /**
+     * @param bytesSoFar - bytes the download has so far, a smaller count than before restarts the estimate
+     */
+    synchronized void sample(long bytesSoFar, long nowMs) {
+        if (count > 0 && bytesSoFar < bytes[last()]) {
+            //the download started over
+            count = 0;
+            smoothed = -1;
+        }
+        if (count > 1 && nowMs - times[index(count - 2)] < MIN_SAMPLE_INTERVAL_MS) {
+            times[last()] = nowMs;
+            bytes[last()] = bytesSoFar;
+        } else {
+            if (count == MAX_SAMPLES) drop();
+            times[index(count)] = nowMs;
+            bytes[index(count)] = bytesSoFar;
+            count++;
+        }
+        //one sample before the window stays, so the window is always spanned
+        while (count > 2 && nowMs - times[index(1)] >= WINDOW_MS) drop();
+        updateSmoothed(nowMs);
+    }
+
+    /**
+     * @return - bytes per second over about the last {@link #INSTANT_MS}, 0 until there are two samples
+     */
+    synchronized long getBytesPerSecond() {
+        if (count < 2) return 0;
+        long nowMs = times[last()];
+        int from = count - 2;
+        while (from > 0 && nowMs - times[index(from)] < INSTANT_MS) from--;
+        return rate(from, count - 1);
+    }
+
+    /**
+     * @return - {@link #getBytesPerSecond()} smoothed over about {@link #SMOOTHING_MS}
+     */
+    synchronized long getSmoothedBytesPerSecond() {
+        return Math.max(0, smoothed);
+    }
+
+    /**
+     * @return - bytes per second over the whole window
+     */
+    synchronized long getAverageBytesPerSecond() {
+        return count < 2 ? 0 : rate(0, count - 1);
+    }
+
+    /**
+     * @param totalBytes - size of the download, -1 if unknown
+     * @return - milliseconds until the download is done at the average rate, 0 once it is, -1 if it can't be told
+     */
+    synchronized long getEtaMs(long totalBytes) {
+        if (count == 0 || totalBytes < 0) return -1;
+        long remaining = totalBytes - bytes[last()];
+        if (remaining <= 0) return 0;
+        long rate = getAverageBytesPerSecond();
+        if (rate <= 0) return -1;
+        //in two steps, remaining * 1000 overflows past 9 PB
+        return remaining / rate * 1000 + remaining % rate * 1000 / rate;
+    }
+
+    private void updateSmoothed(long nowMs) {
+        if (count < 2) return;
+        long instant = getBytesPerSecond();
+        if (smoothed < 0) {
+            smoothed = instant;
+        } else {
+            double alpha = 1 - Math.exp(-(double) (nowMs - smoothedMs) / SMOOTHING_MS);
+            smoothed += Math.round(alpha * (instant - smoothed));
+        }
+        smoothedMs = nowMs;
+    }
+
+    /**
+     * @param from - sample index, 0 is the oldest
+     */
+    private long rate(int from, int to) {
+        long ms = times[index(to)] - times[index(from)];
+        if (ms <= 0) return 0;
+        return (bytes[index(to)] - bytes[index(from)]) * 1000 / ms;
+    }
+
+    private void drop() {
+        first = index(1);
+        count--;
+    }
+
+    private int last() {
+        return index(count - 1);
+    }
+
+    private int index(int sample) {
+        return (first + sample) % MAX_SAMPLES;
+    }
+}
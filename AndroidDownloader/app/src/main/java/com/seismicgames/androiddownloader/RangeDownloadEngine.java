@@ -0,0 +1,1064 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads in process over plain HTTP. Files bigger than one segment are split into Range requests that are
+ * fetched in parallel, each written straight into a preallocated file at its own offset. All downloads share
+ * one bounded pool of connections.
+ *
+ * The first request of every download asks for the first segment only, and its response tells whether the server
+ * supports ranges and how big the file is, so no separate HEAD request is needed. Servers that ignore the Range
+ * header are downloaded as a single stream.
+ *
+ * Progress is checkpointed to a {@link DownloadJournal}, in the download directory unless the engine is given a
+ * private one. A new engine on the same journal picks up the downloads of the previous one, re-requesting only the bytes that never made it to disk,
+ * guarded by If-Range so a file that changed on the server is downloaded again from scratch.
+ *
+ * Downloads with an expected digest are hashed in file order while they are written. Whichever segment writes at
+ * the hashed frontier feeds its buffer straight into the digest, and bytes other segments already wrote past the
+ * frontier are read back from the file while they are still in the page cache.
+ *
+ * All connections read through one {@link RateLimiter}, so a bandwidth cap holds for the engine as a whole.
+ *
+ * Failed requests are tried again as the {@link RetryPolicy} says, after a jittered exponential wait and on the
+ * next of the task's mirrors. A segment continues from the bytes it already wrote and is only charged an attempt
+ * for failures that made no progress, a download the server sends as a single stream starts over.
+ *
+ * Segments are written through pooled direct buffers from a {@link BufferPool} and synced as the
+ * {@link SyncPolicy} says. A checkpoint only records bytes that were written, and synced unless the policy never
+ * syncs mid-download, in which case a power cut can leave the journal ahead of what reached storage.
+ *
+ * Every request first asks the {@link NetworkPolicy}. A download that may not use the current network is paused
+ * with PAUSED_QUEUED_FOR_WIFI and resumed once it may.
+ */
+public class RangeDownloadEngine implements DownloadEngine {
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final long DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    //bytes a segment writes between two journal checkpoints
+    static final long CHECKPOINT_BYTES = 2 * 1024 * 1024;
+
+    //bytes read back from the file at a time to catch the digest up
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MS = 30 * 1000;
+
+    private final File downloadDir;
+    private final long segmentSize;
+    private final ExecutorService connectionPool;
+    private final ConcurrentMap<Long, RangeDownload> downloads = new ConcurrentHashMap<>();
+    private final File journalFile;
+    private final DownloadJournal journal;
+    private final RateLimiter rateLimiter;
+    private final SyncPolicy syncPolicy;
+    private final BufferPool bufferPool;
+    private final RetryPolicy retryPolicy;
+    private final ScheduledExecutorService retryTimer;
+    private final NetworkPolicy networkPolicy;
+
+    /**
+     * @param downloadDir    - directory to download into
+     * @param maxConnections - connections shared by all downloads
+     * @param segmentSize    - bytes fetched per Range request
+     */
+    public RangeDownloadEngine(File downloadDir, int maxConnections, long segmentSize) {
+        this(downloadDir, maxConnections, segmentSize, new RateLimiter());
+    }
+
+    /**
+     * @param rateLimiter - bandwidth limit, possibly shared with other engines
+     */
+    RangeDownloadEngine(File downloadDir, int maxConnections, long segmentSize, RateLimiter rateLimiter) {
+        this(downloadDir, maxConnections, segmentSize, rateLimiter, new SyncPolicy());
+    }
+
+    /**
+     * @param syncPolicy - when written bytes are synced, possibly shared with other engines
+     */
+    RangeDownloadEngine(File downloadDir, int maxConnections, long segmentSize, RateLimiter rateLimiter,
+                        SyncPolicy syncPolicy) {
+        this(downloadDir, maxConnections, segmentSize, rateLimiter, syncPolicy, new RetryPolicy());
+    }
+
+    /**
+     * @param retryPolicy - which failures are retried, possibly shared with other engines
+     */
+    RangeDownloadEngine(File downloadDir, int maxConnections, long segmentSize, RateLimiter rateLimiter,
+                        SyncPolicy syncPolicy, RetryPolicy retryPolicy) {
+        this(downloadDir, maxConnections, segmentSize, rateLimiter, syncPolicy, retryPolicy, new NetworkPolicy());
+    }
+
+    /**
+     * @param networkPolicy - which networks tasks may use, possibly shared with other engines
+     */
+    RangeDownloadEngine(File downloadDir, int maxConnections, long segmentSize, RateLimiter rateLimiter,
+                        SyncPolicy syncPolicy, RetryPolicy retryPolicy, NetworkPolicy networkPolicy) {
+        this(downloadDir, maxConnections, segmentSize, rateLimiter, syncPolicy, retryPolicy, networkPolicy,
+                new File(downloadDir, DownloadJournal.FILE_NAME));
+    }
+
+    /**
+     * @param journalFile - where to keep the journal, in app private storage since it holds cookies and headers. A
+     *                    journal in the download directory is taken over from there.
+     */
+    RangeDownloadEngine(File downloadDir, int maxConnections, long segmentSize, RateLimiter rateLimiter,
+                        SyncPolicy syncPolicy, RetryPolicy retryPolicy, NetworkPolicy networkPolicy,
+                        File journalFile) {
+        if (maxConnections < 1) throw new IllegalArgumentException("maxConnections must be at least 1");
+        if (segmentSize < 1) throw new IllegalArgumentException("segmentSize must be at least 1");
+
+        this.downloadDir = downloadDir;
+        this.segmentSize = segmentSize;
+        this.rateLimiter = rateLimiter;
+        this.syncPolicy = syncPolicy;
+        bufferPool = BufferPool.shared();
+        this.retryPolicy = retryPolicy;
+        this.networkPolicy = networkPolicy;
+        connectionPool = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RangeDownloadEngine-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        retryTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "RangeDownloadEngine-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        File legacyJournalFile = new File(downloadDir, DownloadJournal.FILE_NAME);
+        this.journalFile = journalFile;
+        journal = new DownloadJournal(journalFile, legacyJournalFile.equals(journalFile) ? null : legacyJournalFile);
+        restore();
+    }
+
+    @Override
+    public long enqueue(DownloadTask task) throws IOException {
+        if (!downloadDir.isDirectory() && !downloadDir.mkdirs()) {
+            throw new IOException("could not create " + downloadDir);
+        }
+
+        RangeDownload download = new RangeDownload(DownloadIds.next(), task, new File(downloadDir, task.getFileName()));
+        downloads.put(download.id, download);
+        connectionPool.execute(new FirstSegmentRunnable(download));
+        return download.id;
+    }
+
+    @Override
+    public boolean verifiesDigest() {
+        return true;
+    }
+
+    @Override
+    public boolean preallocates() {
+        return FileTransfers.canPreallocate();
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return DownloadIds.isInProcess(id) && downloads.containsKey(id);
+    }
+
+    @Override
+    public void query(long[] ids, long[] out) {
+        for (int i = 0; i < ids.length; i++) {
+            if (!DownloadIds.isInProcess(ids[i])) continue;
+            RangeDownload download = downloads.get(ids[i]);
+            if (download == null) continue;
+
+            int offset = i * DownloadService.STATUS_STRIDE;
+            out[offset + DownloadService.STATUS_FIELD_STATUS] = download.status;
+            out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = download.bytesSoFar.get();
+            out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = download.totalBytes;
+            out[offset + DownloadService.STATUS_FIELD_REASON] = download.reason;
+        }
+    }
+
+    @Override
+    public FileInputStream openDownloadedFile(long id) throws IOException {
+        RangeDownload download = downloads.get(id);
+        if (download == null || download.status != DownloadManager.STATUS_SUCCESSFUL) {
+            throw new FileNotFoundException("download " + id + " has not finished");
+        }
+        return new FileInputStream(download.file);
+    }
+
+    @Override
+    public File getDownloadedFile(long id) {
+        RangeDownload download = downloads.get(id);
+        if (download == null || download.status != DownloadManager.STATUS_SUCCESSFUL) return null;
+        return download.file;
+    }
+
+    @Override
+    public String getETag(long id) {
+        RangeDownload download = downloads.get(id);
+        if (download == null || download.status != DownloadManager.STATUS_SUCCESSFUL) return null;
+        return download.etag;
+    }
+
+    @Override
+    public boolean pause(long id) {
+        RangeDownload download = downloads.get(id);
+        return download != null && download.pause(DownloadManager.PAUSED_UNKNOWN);
+    }
+
+    @Override
+    public boolean resume(long id) {
+        RangeDownload paused = downloads.get(id);
+        if (paused == null || paused.status != DownloadManager.STATUS_PAUSED) return false;
+
+        //the paused download's threads may still be winding down, so carry on with a fresh one from where it stopped
+        RangeDownload download = new RangeDownload(id, paused.task, paused.file);
+        download.etag = paused.etag;
+        download.lastModified = paused.lastModified;
+        download.totalBytes = paused.totalBytes;
+        download.mirror = paused.mirror;
+        Map<Long, Long> progress = new HashMap<>();
+        for (Segment segment : paused.segments) {
+            progress.put(segment.start, segment.position);
+        }
+        download.restoreSegments(paused.segmentSize, progress);
+        if (!downloads.replace(id, paused, download)) return false;
+
+        connectionPool.execute(download.isResumable() ? new ResumeRunnable(download) : new FirstSegmentRunnable(download));
+        return true;
+    }
+
+    @Override
+    public boolean remove(long id) {
+        RangeDownload download = downloads.remove(id);
+        if (download == null) return false;
+
+        download.cancel();
+        journal.removed(id);
+        return !download.file.exists() || download.file.delete();
+    }
+
+    /**
+     * Stop all running downloads, the engine can't be used afterwards. Unfinished downloads are resumed by the
+     * next engine on the same directory.
+     */
+    public void shutdown() {
+        for (RangeDownload download : downloads.values()) {
+            download.cancel();
+        }
+        connectionPool.shutdownNow();
+        retryTimer.shutdownNow();
+        journal.close();
+    }
+
+    /**
+     * Load the downloads of a previous engine and resume the unfinished ones
+     */
+    private void restore() {
+        Map<Long, DownloadJournal.Entry> entries;
+        try {
+            if (!downloadDir.isDirectory() && !downloadDir.mkdirs()) return;
+            File journalDir = journalFile.getParentFile();
+            if (journalDir != null && !journalDir.isDirectory() && !journalDir.mkdirs()) return;
+            entries = journal.open();
+        } catch (IOException e) {
+            //resuming is best effort, start over with an empty journal
+            if (!journalFile.delete()) return;
+            try {
+                entries = journal.open();
+            } catch (IOException again) {
+                return;
+            }
+        }
+
+        for (DownloadJournal.Entry entry : entries.values()) {
+            DownloadIds.reserve(entry.id);
+            DownloadTask task = entry.toTask();
+            RangeDownload download = new RangeDownload(entry.id, task, new File(downloadDir, entry.fileName));
+            download.etag = entry.etag.length() > 0 ? entry.etag : null;
+            download.lastModified = entry.lastModified.length() > 0 ? entry.lastModified : null;
+            download.totalBytes = entry.totalBytes;
+            downloads.put(entry.id, download);
+
+            if (entry.isFinished()) {
+                download.status = entry.status;
+                download.reason = entry.reason;
+                if (entry.status == DownloadManager.STATUS_SUCCESSFUL) download.bytesSoFar.set(entry.totalBytes);
+            } else {
+                download.restoreSegments(entry.segmentSize, entry.progress);
+                connectionPool.execute(new ResumeRunnable(download));
+            }
+        }
+    }
+
+    /**
+     * @param mirror - index of the URL to ask, see {@link DownloadTask#getUrl(int)}
+     */
+    private HttpURLConnection openConnection(RangeDownload download, int mirror, long start, long end)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(download.task.getUrl(mirror)).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        //ranges are only meaningful on the identity encoding
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        for (Map.Entry<String, String> header : download.task.getRequestHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (download.task.hasCookie()) {
+            connection.setRequestProperty("Cookie", download.task.getCookie());
+        }
+        if (start >= 0) {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end - 1));
+            String validator = download.getValidator();
+            if (validator != null) connection.setRequestProperty("If-Range", validator);
+        }
+        return connection;
+    }
+
+    /**
+     * Copy the response body into the segment from where it stands up to its end, or to the end of the stream if
+     * the end is unknown
+     */
+    private void transfer(RangeDownload download, Segment segment, HttpURLConnection connection) {
+        InputStream input = null;
+        FileSink sink = null;
+        try {
+            input = connection.getInputStream();
+            sink = new FileSink(download.channel, segment.position, bufferPool, syncPolicy);
+            byte[] buffer = sink.scratch();
+            long started = segment.position;
+            long position = segment.position;
+            long end = segment.end;
+
+            while (end < 0 || position < end) {
+                if (download.canceled) {
+                    connection.disconnect();
+                    return;
+                }
+
+                int chunk = rateLimiter.chunkSize(buffer.length);
+                int max = end < 0 ? chunk : (int) Math.min(chunk, end - position);
+                int n;
+                try {
+                    n = input.read(buffer, 0, max);
+                } catch (IOException e) {
+                    transferFailed(download, segment, sink, started);
+                    return;
+                }
+                if (n < 0) break;
+                try {
+                    rateLimiter.acquire(n);
+                } catch (InterruptedException e) {
+                    //the engine is shutting down
+                    Thread.currentThread().interrupt();
+                    connection.disconnect();
+                    return;
+                }
+
+                try {
+                    //hashed before it's written, the scratch array is reused once the sink has it
+                    download.hashWritten(position, buffer, n);
+                    sink.write(n);
+                    position += n;
+                    segment.position = sink.flushedPosition();
+                    download.bytesSoFar.addAndGet(n);
+                    if (download.isResumable() && position - segment.checkpoint >= CHECKPOINT_BYTES) {
+                        checkpoint(download, segment, sink);
+                    }
+                } catch (IOException e) {
+                    download.fail(DownloadManager.ERROR_FILE_ERROR);
+                    return;
+                }
+            }
+
+            if (end >= 0 && position < end) {
+                //connection closed before the whole segment arrived
+                transferFailed(download, segment, sink, started);
+                return;
+            }
+            try {
+                sink.flush();
+                segment.position = sink.flushedPosition();
+                if (download.isResumable()) checkpoint(download, segment, sink);
+            } catch (IOException e) {
+                download.fail(DownloadManager.ERROR_FILE_ERROR);
+                return;
+            }
+            download.segmentFinished();
+        } catch (IOException e) {
+            segmentFailed(download, segment, DownloadManager.ERROR_HTTP_DATA_ERROR, -1);
+        } finally {
+            if (sink != null) sink.release();
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write out the segment's bytes, make them durable if the policy syncs while downloading, then record them in
+     * the journal
+     */
+    private void checkpoint(RangeDownload download, Segment segment, FileSink sink) throws IOException {
+        sink.flush();
+        if (syncPolicy.syncsPeriodically()) sink.sync();
+        segment.position = sink.flushedPosition();
+        journal.progress(download.id, segment.start, segment.position);
+        segment.checkpoint = segment.position;
+    }
+
+    /**
+     * Keep what a segment received before its connection broke, then retry it from there. Only a transfer that
+     * got nowhere counts as a failed attempt.
+     *
+     * @param started - position the transfer started at
+     */
+    private void transferFailed(RangeDownload download, Segment segment, FileSink sink, long started) {
+        try {
+            sink.flush();
+            segment.position = sink.flushedPosition();
+        } catch (IOException e) {
+            download.fail(DownloadManager.ERROR_FILE_ERROR);
+            return;
+        }
+        if (segment.position > started) segment.attempts = 0;
+        segmentFailed(download, segment, DownloadManager.ERROR_HTTP_DATA_ERROR, -1);
+    }
+
+    /**
+     * Retry a segment whose request failed, or the whole download if the server sends it as a single stream
+     */
+    private void segmentFailed(RangeDownload download, Segment segment, int reason, long retryAfterMs) {
+        if (!download.isResumable()) {
+            int attempts = ++download.attempts;
+            if (retryPolicy.shouldRetry(reason, attempts) && !download.reset()) return;
+            retry(download, new FirstSegmentRunnable(download), attempts, segment.mirror, reason, retryAfterMs);
+            return;
+        }
+        retry(download, new SegmentRunnable(download, segment), ++segment.attempts, segment.mirror, reason,
+                retryAfterMs);
+    }
+
+    /**
+     * Run a request again after a wait, on the next mirror, or fail the download if the policy says it's no use
+     *
+     * @param attempts - tries of the request so far
+     * @param mirror   - the mirror the last try went to
+     */
+    private void retry(final RangeDownload download, final Runnable again, int attempts, int mirror, int reason,
+                       long retryAfterMs) {
+        if (download.canceled) return;
+        if (!retryPolicy.shouldRetry(reason, attempts)) {
+            download.fail(reason);
+            return;
+        }
+        DownloadMetrics.shared().increment(DownloadMetrics.DOWNLOADS_RETRIED);
+        download.failover(mirror);
+        try {
+            retryTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (download.canceled) return;
+                    try {
+                        connectionPool.execute(again);
+                    } catch (RejectedExecutionException e) {
+                        //the engine is shutting down
+                    }
+                }
+            }, retryPolicy.delayMs(attempts, retryAfterMs), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //the engine is shutting down
+        }
+    }
+
+    /**
+     * Pause a download that may not use the current network, until it may
+     *
+     * @return - false if the download may go ahead
+     */
+    private boolean heldForWifi(RangeDownload download) {
+        if (networkPolicy.allows(download.task)) return false;
+        if (download.pause(DownloadManager.PAUSED_QUEUED_FOR_WIFI)) awaitWifi(download);
+        return true;
+    }
+
+    private void awaitWifi(final RangeDownload held) {
+        try {
+            retryTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    //removed, or paused by the app meanwhile
+                    if (downloads.get(held.id) != held || held.reason != DownloadManager.PAUSED_QUEUED_FOR_WIFI) {
+                        return;
+                    }
+                    if (networkPolicy.allows(held.task)) {
+                        resume(held.id);
+                    } else {
+                        awaitWifi(held);
+                    }
+                }
+            }, NetworkPolicy.CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //the engine is shutting down
+        }
+    }
+
+    private static long parseRetryAfter(HttpURLConnection connection) {
+        return RetryPolicy.parseRetryAfter(connection.getHeaderField("Retry-After"));
+    }
+
+    /**
+     * Throw away everything downloaded so far and start from the first byte
+     */
+    private void restart(RangeDownload download) {
+        DownloadMetrics.shared().increment(DownloadMetrics.DOWNLOADS_RESTARTED);
+        if (!download.reset()) return;
+        new FirstSegmentRunnable(download).run();
+    }
+
+    private static long parseTotalLength(String contentRange) {
+        //bytes 0-1023/4096
+        if (contentRange == null) return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || contentRange.endsWith("*")) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseContentLength(HttpURLConnection connection) {
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength == null) return -1;
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Asks for the first segment and decides how to fetch the rest from the response
+     */
+    private class FirstSegmentRunnable implements Runnable {
+        private final RangeDownload download;
+
+        private FirstSegmentRunnable(RangeDownload download) {
+            this.download = download;
+        }
+
+        @Override
+        public void run() {
+            if (download.canceled || heldForWifi(download)) return;
+
+            int mirror = download.mirror;
+            HttpURLConnection connection = null;
+            try {
+                connection = openConnection(download, mirror, 0, segmentSize);
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    download.etag = connection.getHeaderField("ETag");
+                    download.lastModified = connection.getHeaderField("Last-Modified");
+                    long total = parseTotalLength(connection.getHeaderField("Content-Range"));
+                    if (total < 0) {
+                        connection.disconnect();
+                        download.fail(DownloadManager.ERROR_HTTP_DATA_ERROR);
+                        return;
+                    }
+
+                    if (!download.start(total, segmentSize)) return;
+                    List<Segment> segments = download.segments;
+                    for (int i = 1; i < segments.size(); i++) {
+                        connectionPool.execute(new SegmentRunnable(download, segments.get(i)));
+                    }
+                    segments.get(0).mirror = mirror;
+                    transfer(download, segments.get(0), connection);
+                    return;
+                }
+
+                if (code == 416) {
+                    //an empty file has no first byte to ask for
+                    connection.disconnect();
+                    connection = openConnection(download, mirror, -1, -1);
+                    code = connection.getResponseCode();
+                }
+
+                if (code == HttpURLConnection.HTTP_OK) {
+                    if (!download.start(parseContentLength(connection), 0)) return;
+                    download.segments.get(0).mirror = mirror;
+                    transfer(download, download.segments.get(0), connection);
+                } else {
+                    long retryAfterMs = parseRetryAfter(connection);
+                    connection.disconnect();
+                    failed(mirror, code, retryAfterMs);
+                }
+            } catch (IOException e) {
+                if (connection != null) connection.disconnect();
+                failed(mirror, DownloadManager.ERROR_HTTP_DATA_ERROR, -1);
+            }
+        }
+
+        private void failed(int mirror, int reason, long retryAfterMs) {
+            retry(download, new FirstSegmentRunnable(download), ++download.attempts, mirror, reason, retryAfterMs);
+        }
+    }
+
+    private class SegmentRunnable implements Runnable {
+        private final RangeDownload download;
+        private final Segment segment;
+
+        private SegmentRunnable(RangeDownload download, Segment segment) {
+            this.download = download;
+            this.segment = segment;
+        }
+
+        @Override
+        public void run() {
+            if (download.canceled || heldForWifi(download)) return;
+
+            segment.mirror = download.mirror;
+            HttpURLConnection connection = null;
+            try {
+                connection = openConnection(download, segment.mirror, segment.position, segment.end);
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    transfer(download, segment, connection);
+                } else if (code == HttpURLConnection.HTTP_OK) {
+                    //a full response means the file changed since the first segment, or the mirror has another one
+                    connection.disconnect();
+                    download.fail(DownloadManager.ERROR_CANNOT_RESUME);
+                } else {
+                    long retryAfterMs = parseRetryAfter(connection);
+                    connection.disconnect();
+                    segmentFailed(download, segment, code, retryAfterMs);
+                }
+            } catch (IOException e) {
+                if (connection != null) connection.disconnect();
+                segmentFailed(download, segment, DownloadManager.ERROR_HTTP_DATA_ERROR, -1);
+            }
+        }
+    }
+
+    /**
+     * Continues a download from the journal. Its first missing range doubles as the check that the file on the
+     * server is still the one we have the first part of.
+     */
+    private class ResumeRunnable implements Runnable {
+        private final RangeDownload download;
+
+        private ResumeRunnable(RangeDownload download) {
+            this.download = download;
+        }
+
+        @Override
+        public void run() {
+            if (download.canceled || heldForWifi(download)) return;
+            if (!download.isResumable() || download.getValidator() == null) {
+                restart(download);
+                return;
+            }
+
+            Segment first = null;
+            for (Segment segment : download.segments) {
+                if (!segment.isComplete()) {
+                    first = segment;
+                    break;
+                }
+            }
+            if (first == null) {
+                //every byte made it to disk, only the journal record of finishing didn't
+                if (download.resume()) {
+                    download.finish();
+                } else {
+                    restart(download);
+                }
+                return;
+            }
+
+            int mirror = download.mirror;
+            HttpURLConnection connection = null;
+            try {
+                connection = openConnection(download, mirror, first.position, first.end);
+                int code = connection.getResponseCode();
+                if (code == HttpURLConnection.HTTP_PARTIAL
+                        && parseTotalLength(connection.getHeaderField("Content-Range")) == download.totalBytes
+                        && download.resume()) {
+                    DownloadMetrics.shared().increment(DownloadMetrics.DOWNLOADS_RESUMED);
+                    for (Segment segment : download.segments) {
+                        if (segment != first && !segment.isComplete()) {
+                            connectionPool.execute(new SegmentRunnable(download, segment));
+                        }
+                    }
+                    first.mirror = mirror;
+                    transfer(download, first, connection);
+                } else if (code == HttpURLConnection.HTTP_OK || code == HttpURLConnection.HTTP_PARTIAL || code == 416) {
+                    //the file changed on the server, or the partial file is gone
+                    connection.disconnect();
+                    restart(download);
+                } else {
+                    long retryAfterMs = parseRetryAfter(connection);
+                    connection.disconnect();
+                    failed(mirror, code, retryAfterMs);
+                }
+            } catch (IOException e) {
+                if (connection != null) connection.disconnect();
+                failed(mirror, DownloadManager.ERROR_HTTP_DATA_ERROR, -1);
+            }
+        }
+
+        private void failed(int mirror, int reason, long retryAfterMs) {
+            retry(download, new ResumeRunnable(download), ++download.attempts, mirror, reason, retryAfterMs);
+        }
+    }
+
+    private static class Segment {
+        final long start;
+        //exclusive, -1 while unknown
+        final long end;
+        volatile long position;
+        //only touched by the thread downloading the segment
+        long checkpoint;
+        //mirror of the current request, and failed requests since the segment last made progress
+        int mirror;
+        int attempts;
+
+        Segment(long start, long end, long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+            checkpoint = position;
+        }
+
+        boolean isComplete() {
+            return end >= 0 && position >= end;
+        }
+    }
+
+    private class RangeDownload {
+        final long id;
+        final DownloadTask task;
+        final File file;
+        final AtomicLong bytesSoFar = new AtomicLong();
+        final AtomicInteger remainingSegments = new AtomicInteger();
+
+        volatile int status = DownloadManager.STATUS_PENDING;
+        volatile int reason;
+        volatile long totalBytes = -1;
+        volatile boolean canceled;
+        volatile String etag;
+        volatile String lastModified;
+        //0 if the server doesn't do ranges
+        volatile long segmentSize;
+        volatile List<Segment> segments = new ArrayList<>();
+        //index of the URL requests go to, see DownloadTask.getUrl(int)
+        volatile int mirror;
+        //failed tries of the first or resuming request, and restarts of a single stream, one at a time
+        volatile int attempts;
+
+        RandomAccessFile raf;
+        FileChannel channel;
+
+        //null if the download isn't verified, the frontier and read back buffer are guarded by the digest
+        final StreamingDigest digest;
+        long digested;
+        ByteBuffer readBack;
+
+        RangeDownload(long id, DownloadTask task, File file) {
+            this.id = id;
+            this.task = task;
+            this.file = file;
+
+            StreamingDigest digest = null;
+            if (task.hasExpectedDigest()) {
+                try {
+                    digest = StreamingDigest.create(task.getDigestAlgorithm());
+                } catch (NoSuchAlgorithmException e) {
+                    fail(DownloadService.ERROR_HASH_MISMATCH);
+                }
+            }
+            this.digest = digest;
+        }
+
+        /**
+         * @return - validator for If-Range, weak ETags can't be used for ranges
+         */
+        String getValidator() {
+            if (etag != null && !etag.startsWith("W/")) return etag;
+            return lastModified;
+        }
+
+        boolean isResumable() {
+            return segmentSize > 0;
+        }
+
+        /**
+         * Split a fresh download into segments, preallocate the file and mark the download running
+         *
+         * @param segmentSize - bytes per segment, or 0 to download as one stream
+         * @return - false if the download failed or was canceled meanwhile
+         */
+        synchronized boolean start(long total, long segmentSize) {
+            if (canceled) return false;
+
+            List<Segment> segments = new ArrayList<>();
+            if (segmentSize > 0) {
+                for (long start = 0; start < total || segments.isEmpty(); start += segmentSize) {
+                    segments.add(new Segment(start, Math.min(total, start + segmentSize), start));
+                }
+            } else {
+                segments.add(new Segment(0, total, 0));
+            }
+
+            if (!openFile(total, true)) return false;
+            this.segmentSize = segmentSize;
+            this.segments = segments;
+            totalBytes = total;
+            remainingSegments.set(segments.size());
+            status = DownloadManager.STATUS_RUNNING;
+            journal.started(id, task, etag, lastModified, total, segmentSize);
+            return true;
+        }
+
+        /**
+         * Rebuild the segments of a download from the journal
+         *
+         * @param progress - segment start -> offset it was written up to
+         */
+        void restoreSegments(long segmentSize, Map<Long, Long> progress) {
+            this.segmentSize = segmentSize;
+            if (segmentSize <= 0 || totalBytes < 0) return;
+
+            List<Segment> segments = new ArrayList<>();
+            long soFar = 0;
+            for (long start = 0; start < totalBytes || segments.isEmpty(); start += segmentSize) {
+                Long position = progress.get(start);
+                Segment segment = new Segment(start, Math.min(totalBytes, start + segmentSize),
+                        position != null ? position : start);
+                soFar += segment.position - segment.start;
+                segments.add(segment);
+            }
+            this.segments = segments;
+            bytesSoFar.set(soFar);
+        }
+
+        /**
+         * Reopen the partial file of a restored download
+         *
+         * @return - false if the partial file is gone or doesn't match the journal
+         */
+        synchronized boolean resume() {
+            if (canceled) return false;
+            if (file.length() != totalBytes || !openFile(totalBytes, false)) return false;
+
+            int remaining = 0;
+            for (Segment segment : segments) {
+                if (!segment.isComplete()) remaining++;
+            }
+            remainingSegments.set(remaining);
+            status = DownloadManager.STATUS_RUNNING;
+            return true;
+        }
+
+        /**
+         * @return - false if the download was canceled meanwhile
+         */
+        synchronized boolean reset() {
+            if (canceled) return false;
+            closeFile();
+            if (digest != null) {
+                synchronized (digest) {
+                    digest.reset();
+                    digested = 0;
+                }
+            }
+            etag = null;
+            lastModified = null;
+            segmentSize = 0;
+            segments = new ArrayList<>();
+            bytesSoFar.set(0);
+            totalBytes = -1;
+            status = DownloadManager.STATUS_PENDING;
+            return true;
+        }
+
+        /**
+         * Send further requests to the next mirror, unless another failed request already did
+         *
+         * @param from - the mirror that failed
+         */
+        synchronized void failover(int from) {
+            if (task.getMirrors().isEmpty() || mirror != from) return;
+            mirror = from + 1;
+            DownloadMetrics.shared().increment(DownloadMetrics.DOWNLOADS_MIRROR_FAILOVERS);
+        }
+
+        void segmentFinished() {
+            if (remainingSegments.decrementAndGet() > 0) return;
+            finish();
+        }
+
+        synchronized void finish() {
+            if (canceled) return;
+            if (totalBytes < 0) totalBytes = bytesSoFar.get();
+            if (digest != null && !verify()) {
+                fail(DownloadService.ERROR_HASH_MISMATCH);
+                return;
+            }
+            if (syncPolicy.syncsOnCompletion()) {
+                try {
+                    channel.force(false);
+                } catch (IOException e) {
+                    fail(DownloadManager.ERROR_FILE_ERROR);
+                    return;
+                }
+            }
+            closeFile();
+            status = DownloadManager.STATUS_SUCCESSFUL;
+            journal.finished(id, status, 0, totalBytes);
+        }
+
+        synchronized void fail(int reason) {
+            if (canceled) return;
+            canceled = true;
+            closeFile();
+            this.reason = reason;
+            status = DownloadManager.STATUS_FAILED;
+            journal.finished(id, status, reason, totalBytes);
+        }
+
+        synchronized void cancel() {
+            canceled = true;
+            closeFile();
+        }
+
+        /**
+         * Stop a download that hasn't finished, the engine resumes it with a new one
+         *
+         * @param reason - PAUSED_UNKNOWN when the app pauses it, which also keeps a download waiting for Wi-Fi
+         *               paused once Wi-Fi is back
+         * @return - false if it already finished or was paused
+         */
+        synchronized boolean pause(int reason) {
+            if (status == DownloadManager.STATUS_PAUSED && this.reason == DownloadManager.PAUSED_QUEUED_FOR_WIFI
+                    && reason == DownloadManager.PAUSED_UNKNOWN) {
+                this.reason = reason;
+                return true;
+            }
+            if (canceled || (status != DownloadManager.STATUS_PENDING && status != DownloadManager.STATUS_RUNNING)) {
+                return false;
+            }
+            canceled = true;
+            closeFile();
+            this.reason = reason;
+            status = DownloadManager.STATUS_PAUSED;
+            return true;
+        }
+
+        /**
+         * Feed bytes about to be written at position into the digest if they continue it, then catch up on
+         * whatever other segments wrote past the frontier
+         */
+        void hashWritten(long position, byte[] bytes, int length) {
+            if (digest == null) return;
+            synchronized (digest) {
+                if (position == digested) {
+                    digest.update(bytes, 0, length);
+                    digested += length;
+                }
+                catchUp();
+            }
+        }
+
+        private boolean verify() {
+            synchronized (digest) {
+                catchUp();
+                return digested == totalBytes && digest.matches(task.getExpectedDigest());
+            }
+        }
+
+        private void catchUp() {
+            List<Segment> segments = this.segments;
+            while (totalBytes < 0 || digested < totalBytes) {
+                int index = segmentSize > 0 ? (int) (digested / segmentSize) : 0;
+                if (index >= segments.size()) return;
+                long available = segments.get(index).position - digested;
+                if (available <= 0) return;
+
+                if (readBack == null) readBack = ByteBuffer.allocate(BUFFER_SIZE);
+                readBack.clear();
+                if (available < readBack.capacity()) readBack.limit((int) available);
+                try {
+                    int n = channel.read(readBack, digested);
+                    if (n <= 0) return;
+                } catch (IOException e) {
+                    //the file is closed, finishing catches up or fails the download
+                    return;
+                }
+                readBack.flip();
+                digested += readBack.remaining();
+                digest.update(readBack);
+            }
+        }
+
+        private boolean openFile(long total, boolean preallocate) {
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                if (preallocate && total >= 0) {
+                    //whatever a previous attempt left past the end
+                    if (raf.length() > total) raf.setLength(total);
+                    FileTransfers.preallocate(raf, total);
+                }
+                channel = raf.getChannel();
+                return true;
+            } catch (IOException e) {
+                closeFile();
+                canceled = true;
+                reason = DownloadManager.ERROR_FILE_ERROR;
+                status = DownloadManager.STATUS_FAILED;
+                journal.finished(id, status, reason, total);
+                return false;
+            }
+        }
+
+        private void closeFile() {
+            try {
+                if (raf != null) raf.close();
+            } catch (IOException ignored) {
+            }
+            raf = null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.seismicgames.androiddownloader;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by every transfer that counts against one bandwidth limit. A transfer takes tokens for the
+ * bytes it just read, going into debt if it has to, and the next one waits until the debt is paid off. Reading
+ * slower lets TCP flow control slow the server down, so the limit holds on the wire too.
+ *
+ * The limit can change at any time, transfers waiting on the old one pick up the new one right away.
+ */
+class RateLimiter {
+    //tokens that may pile up while transfers are idle, as time at the full rate
+    static final long BURST_MS = 100;
+    private static final int MIN_CHUNK = 1024;
+
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * @param bytesPerSecond - 0 for no limit
+     */
+    synchronized void setBytesPerSecond(long bytesPerSecond) {
+        bytesPerSecond = Math.max(0, bytesPerSecond);
+        if (this.bytesPerSecond > 0) {
+            refill(System.nanoTime());
+        } else {
+            tokens = 0;
+            lastRefillNanos = System.nanoTime();
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = Math.min(tokens, burst());
+        notifyAll();
+    }
+
+    synchronized long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param max - bytes the transfer could read at once
+     * @return - bytes to read at once, few enough that transfers take turns smoothly under the limit
+     */
+    synchronized int chunkSize(int max) {
+        if (bytesPerSecond <= 0) return max;
+        return (int) Math.min(max, Math.max(MIN_CHUNK, burst()));
+    }
+
+    /**
+     * Pay for bytes read, waiting until earlier reads are paid for
+     *
+     * @param bytes - bytes just read
+     */
+    synchronized void acquire(int bytes) throws InterruptedException {
+        while (bytesPerSecond > 0) {
+            refill(System.nanoTime());
+            if (tokens >= 0) {
+                tokens -= bytes;
+                return;
+            }
+            long waitNanos = (long) Math.ceil(-tokens * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, waitNanos));
+        }
+    }
+
+    private long burst() {
+        return bytesPerSecond * BURST_MS / 1000;
+    }
+
+    private void refill(long nowNanos) {
+        double earned = (double) (nowNanos - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(burst(), tokens + earned);
+        lastRefillNanos = nowNanos;
+    }
+}
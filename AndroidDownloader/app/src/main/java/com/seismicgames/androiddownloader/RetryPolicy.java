@@ -0,0 +1,95 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import java.util.Random;
+
+/**
+ * Which failures of in-process downloads are retried and how long to wait before each retry, shared by every
+ * engine like {@link RateLimiter} so it can change while they run. Waits grow exponentially and are jittered over
+ * the whole range, so a fleet of devices that lost the same server doesn't come back in lockstep.
+ */
+class RetryPolicy {
+    //connection failures, timeouts and bodies cut short
+    static final int NETWORK = 1;
+    //5xx
+    static final int SERVER = 2;
+    //429, and 503 which CDNs send when shedding load
+    static final int THROTTLED = 4;
+
+    static final int DEFAULT_MAX_ATTEMPTS = 5;
+    static final long DEFAULT_BASE_DELAY_MS = 500;
+    static final long DEFAULT_MAX_DELAY_MS = 30 * 1000;
+
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long baseDelayMs = DEFAULT_BASE_DELAY_MS;
+    private volatile long maxDelayMs = DEFAULT_MAX_DELAY_MS;
+    private volatile int retried = NETWORK | SERVER | THROTTLED;
+    private final Random random = new Random();
+
+    /**
+     * @param maxAttempts - tries per request including the first, 1 to never retry
+     * @param baseDelayMs - longest wait before the first retry, doubling for every retry after
+     * @param maxDelayMs  - longest wait before any retry
+     * @param retried     - failure classes to retry, {@link #NETWORK}, {@link #SERVER} and {@link #THROTTLED} or'd
+     */
+    void set(int maxAttempts, long baseDelayMs, long maxDelayMs, int retried) {
+        if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts must be at least 1");
+        if (baseDelayMs < 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("bad delays " + baseDelayMs + ", " + maxDelayMs);
+        }
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.retried = retried;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return - the class of a failure reason, 0 for failures retrying can't fix
+     */
+    static int classify(int reason) {
+        if (reason == DownloadManager.ERROR_HTTP_DATA_ERROR || reason == 408) return NETWORK;
+        if (reason == 429 || reason == 503) return THROTTLED;
+        //501 and 505 won't change their mind
+        if (reason >= 500 && reason < 600 && reason != 501 && reason != 505) return SERVER;
+        return 0;
+    }
+
+    /**
+     * @param reason   - why the last try failed
+     * @param attempts - tries made so far, including the one that failed
+     */
+    boolean shouldRetry(int reason, int attempts) {
+        return attempts < maxAttempts && (classify(reason) & retried) != 0;
+    }
+
+    /**
+     * @param attempts     - tries made so far
+     * @param retryAfterMs - wait the server asked for, -1 if it didn't
+     * @return - time to wait before the next try, random up to the exponential bound, at least what the server
+     * asked for unless that's beyond the longest wait
+     */
+    long delayMs(int attempts, long retryAfterMs) {
+        long max = maxDelayMs;
+        long bound = baseDelayMs << Math.min(attempts - 1, 30);
+        if (bound <= 0 || bound > max) bound = max;
+        long delay;
+        synchronized (random) {
+            delay = (long) (random.nextDouble() * bound);
+        }
+        return Math.min(max, Math.max(delay, retryAfterMs));
+    }
+
+    /**
+     * @param retryAfter - a Retry-After header, may be null
+     * @return - the wait in milliseconds, -1 for none or a date, which clocks on phones are too far off for
+     */
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) return -1;
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.seismicgames.androiddownloader;
+
+/**
+ * Room for the status of one download, so asking an engine about a single id doesn't allocate. Rows are kept per
+ * thread and per asker, see {@link #perThread()}, since a row is only valid until its next query.
+ */
+final class StatusRow {
+    private final long[] ids = new long[1];
+    private final long[] status = new long[DownloadService.STATUS_STRIDE];
+
+    /**
+     * @return - rows for one asker, each thread gets its own
+     */
+    static ThreadLocal<StatusRow> perThread() {
+        return new ThreadLocal<StatusRow>() {
+            @Override
+            protected StatusRow initialValue() {
+                return new StatusRow();
+            }
+        };
+    }
+
+    /**
+     * Fill in the defaults for ids no engine knows about
+     *
+     * @param out - {@link DownloadService#STATUS_STRIDE} longs per id
+     */
+    static void prefill(long[] ids, long[] out) {
+        for (int i = 0; i < ids.length; i++) {
+            int offset = i * DownloadService.STATUS_STRIDE;
+            out[offset + DownloadService.STATUS_FIELD_ID] = ids[i];
+            out[offset + DownloadService.STATUS_FIELD_STATUS] = DownloadService.STATUS_NOT_FOUND;
+            out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = 0;
+            out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = -1;
+            out[offset + DownloadService.STATUS_FIELD_REASON] = 0;
+        }
+    }
+
+    /**
+     * @return - the status of id packed like {@link DownloadService#checkStatusBatch(long[])}, valid until the next
+     * call on this row
+     */
+    long[] query(DownloadEngine engine, long id) {
+        engine.query(ids, prefilled(id));
+        return status;
+    }
+
+    /**
+     * Point this row at id, for askers that go through several engines themselves
+     *
+     * @return - the row's status, prefilled as unknown
+     */
+    long[] prefilled(long id) {
+        ids[0] = id;
+        prefill(ids, status);
+        return status;
+    }
+
+    /**
+     * @return - the id the row was last pointed at, as a batch of one
+     */
+    long[] ids() {
+        return ids;
+    }
+}
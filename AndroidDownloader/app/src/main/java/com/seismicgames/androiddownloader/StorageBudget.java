@@ -0,0 +1,57 @@
+package com.seismicgames.androiddownloader;
+
+import java.io.File;
+
+/**
+ * Free space of the volume downloads are written to, less what must stay free for the rest of the device. Decides
+ * how much a download needs before it may start: its size, and once more for the copy moveFile makes unless the
+ * file can be renamed into place.
+ */
+class StorageBudget {
+    private final File dir;
+    private volatile long minFreeBytes;
+    private volatile boolean reserveMoveCopy = true;
+
+    /**
+     * @param dir - directory downloads are written to, need not exist yet
+     */
+    StorageBudget(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param minFreeBytes    - space never handed to downloads
+     * @param reserveMoveCopy - whether moveFile copies the file and needs its size a second time meanwhile
+     */
+    void set(long minFreeBytes, boolean reserveMoveCopy) {
+        this.minFreeBytes = Math.max(0, minFreeBytes);
+        this.reserveMoveCopy = reserveMoveCopy;
+    }
+
+    /**
+     * @return - bytes a download of size needs from start to moved, 0 if the size is unknown
+     */
+    long reservationFor(long size) {
+        if (size <= 0) return 0;
+        return reserveMoveCopy ? 2 * size : size;
+    }
+
+    /**
+     * @param outstanding - bytes downloads that already started still need on top of what they use now
+     * @return - bytes left for new downloads, negative if the volume is already short
+     */
+    long available(long outstanding) {
+        return usableBytes() - minFreeBytes - outstanding;
+    }
+
+    /**
+     * @return - free space on the volume as this app may use it
+     */
+    long usableBytes() {
+        File existing = dir;
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        return existing != null ? existing.getUsableSpace() : 0;
+    }
+}
@@ -0,0 +1,210 @@
+package com.seismicgames.androiddownloader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Hash or checksum fed incrementally with the bytes of a file as they pass through, so verifying a download never
+ * needs a pass of its own. Understands every MessageDigest algorithm, like SHA-256, plus CRC32 and CRC32C.
+ */
+abstract class StreamingDigest {
+    static final String CRC32 = "CRC32";
+    static final String CRC32C = "CRC32C";
+
+    /**
+     * Thrown when a file doesn't match its expected digest
+     */
+    static class MismatchException extends IOException {
+        MismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param algorithm - MessageDigest algorithm, {@link #CRC32} or {@link #CRC32C}
+     */
+    static StreamingDigest create(String algorithm) throws NoSuchAlgorithmException {
+        String name = algorithm.toUpperCase(Locale.US);
+        if (name.equals(CRC32)) return new ChecksumDigest(new CRC32());
+        if (name.equals(CRC32C)) return new ChecksumDigest(new Crc32c());
+        return new MessageDigestDigest(MessageDigest.getInstance(algorithm));
+    }
+
+    static boolean isSupported(String algorithm) {
+        try {
+            create(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    abstract void update(byte[] bytes, int offset, int length);
+
+    /**
+     * Feed the remaining bytes of buffer, leaving it at its limit
+     */
+    abstract void update(ByteBuffer buffer);
+
+    abstract void reset();
+
+    /**
+     * @return - the result so far, checksums big endian as they are usually written
+     */
+    abstract byte[] digest();
+
+    String toHex() {
+        byte[] digest = digest();
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * @param expectedHex - expected result in hex, any case
+     */
+    boolean matches(String expectedHex) {
+        return toHex().equalsIgnoreCase(expectedHex.trim());
+    }
+
+    private static class MessageDigestDigest extends StreamingDigest {
+        private final MessageDigest messageDigest;
+
+        MessageDigestDigest(MessageDigest messageDigest) {
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            messageDigest.update(bytes, offset, length);
+        }
+
+        @Override
+        void update(ByteBuffer buffer) {
+            messageDigest.update(buffer);
+        }
+
+        @Override
+        void reset() {
+            messageDigest.reset();
+        }
+
+        @Override
+        byte[] digest() {
+            //digest() resets, hash a copy so the result can be read more than once
+            try {
+                return ((MessageDigest) messageDigest.clone()).digest();
+            } catch (CloneNotSupportedException e) {
+                return messageDigest.digest();
+            }
+        }
+    }
+
+    private static class ChecksumDigest extends StreamingDigest {
+        private final Checksum checksum;
+        private byte[] scratch;
+
+        ChecksumDigest(Checksum checksum) {
+            this.checksum = checksum;
+        }
+
+        @Override
+        void update(byte[] bytes, int offset, int length) {
+            checksum.update(bytes, offset, length);
+        }
+
+        @Override
+        void update(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                checksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+                return;
+            }
+            if (scratch == null) scratch = new byte[8 * 1024];
+            while (buffer.hasRemaining()) {
+                int n = Math.min(scratch.length, buffer.remaining());
+                buffer.get(scratch, 0, n);
+                checksum.update(scratch, 0, n);
+            }
+        }
+
+        @Override
+        void reset() {
+            checksum.reset();
+        }
+
+        @Override
+        byte[] digest() {
+            long value = checksum.getValue();
+            return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        }
+    }
+
+    /**
+     * CRC-32C (Castagnoli), which java.util.zip only has from Java 9 and Android only from API 26. Slicing by
+     * eight bytes at a time keeps it close to CRC32's speed.
+     */
+    static class Crc32c implements Checksum {
+        private static final int POLYNOMIAL = 0x82F63B78;
+        private static final int[][] TABLES = new int[8][256];
+
+        static {
+            for (int n = 0; n < 256; n++) {
+                int crc = n;
+                for (int k = 0; k < 8; k++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+                }
+                TABLES[0][n] = crc;
+            }
+            for (int n = 0; n < 256; n++) {
+                for (int t = 1; t < 8; t++) {
+                    TABLES[t][n] = (TABLES[t - 1][n] >>> 8) ^ TABLES[0][TABLES[t - 1][n] & 0xff];
+                }
+            }
+        }
+
+        private int crc = 0xffffffff;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+        }
+
+        @Override
+        public void update(byte[] bytes, int offset, int length) {
+            int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+            int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+            int c = crc;
+            int end = offset + length;
+            while (end - offset >= 8) {
+                int low = c ^ ((bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+                        | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24);
+                c = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff] ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24]
+                        ^ t3[bytes[offset + 4] & 0xff] ^ t2[bytes[offset + 5] & 0xff]
+                        ^ t1[bytes[offset + 6] & 0xff] ^ t0[bytes[offset + 7] & 0xff];
+                offset += 8;
+            }
+            while (offset < end) {
+                c = (c >>> 8) ^ t0[(c ^ bytes[offset++]) & 0xff];
+            }
+            crc = c;
+        }
+
+        @Override
+        public long getValue() {
+            return ~crc & 0xffffffffL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xffffffff;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.seismicgames.androiddownloader;
+
+/**
+ * When written downloads are synced to storage, shared by every engine like {@link RateLimiter} so it can change
+ * while they run. Syncing costs throughput and flash wear, not syncing risks what the page cache still held when
+ * the device loses power. An app being killed loses nothing either way.
+ */
+class SyncPolicy {
+    static final int NEVER = 0;
+    static final int ON_COMPLETION = 1;
+    static final int EVERY_N_BYTES = 2;
+
+    static final long DEFAULT_INTERVAL_BYTES = 2 * 1024 * 1024;
+
+    private volatile int mode = EVERY_N_BYTES;
+    private volatile long intervalBytes = DEFAULT_INTERVAL_BYTES;
+
+    /**
+     * @param mode          - {@link #NEVER}, {@link #ON_COMPLETION} or {@link #EVERY_N_BYTES}
+     * @param intervalBytes - bytes written between two syncs, only for {@link #EVERY_N_BYTES}
+     */
+    void set(int mode, long intervalBytes) {
+        if (mode < NEVER || mode > EVERY_N_BYTES) throw new IllegalArgumentException("unknown sync mode " + mode);
+        if (mode == EVERY_N_BYTES && intervalBytes <= 0) {
+            throw new IllegalArgumentException("intervalBytes must be positive");
+        }
+        this.intervalBytes = intervalBytes;
+        this.mode = mode;
+    }
+
+    int getMode() {
+        return mode;
+    }
+
+    /**
+     * @param unsyncedBytes - bytes written to a file since it was last synced
+     */
+    boolean isDue(long unsyncedBytes) {
+        return mode == EVERY_N_BYTES && unsyncedBytes >= intervalBytes;
+    }
+
+    boolean syncsPeriodically() {
+        return mode == EVERY_N_BYTES;
+    }
+
+    boolean syncsOnCompletion() {
+        return mode != NEVER;
+    }
+}
@@ -0,0 +1,237 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Runs downloads through the system DownloadManager
+ */
+class SystemDownloadEngine implements DownloadEngine {
+    private static final String TAG = "SystemDownloadEngine";
+    //single ids whose queries are kept, enough for every download an app polls in turn
+    private static final int SINGLE_QUERIES = 16;
+
+    private final Context context;
+    private final DownloadManager downloadManager;
+    //guarded by this
+    private long[] lastIds;
+    private DownloadManager.Query[] lastQueries;
+    private final long[] singleIds = new long[SINGLE_QUERIES];
+    private final DownloadManager.Query[] singleQueries = new DownloadManager.Query[SINGLE_QUERIES];
+    private int nextSingle;
+
+    SystemDownloadEngine(Context context) {
+        this(context, (DownloadManager) context.getSystemService(Context.DOWNLOAD_SERVICE));
+    }
+
+    /**
+     * @param downloadManager - DownloadManager to run downloads through, null in tests that override
+     *                        {@link #run(DownloadManager.Query)}
+     */
+    SystemDownloadEngine(Context context, DownloadManager downloadManager) {
+        this.context = context;
+        this.downloadManager = downloadManager;
+    }
+
+    @Override
+    public long enqueue(DownloadTask task) {
+        Uri uri = Uri.parse(task.getUrl());
+
+        int networkTypes = DownloadManager.Request.NETWORK_WIFI;
+        if (task.isAllowMobile()) networkTypes |= DownloadManager.Request.NETWORK_MOBILE;
+
+        DownloadManager.Request request = new DownloadManager.Request(uri)
+                .addRequestHeader("Accept-Encoding", "gzip, deflate")
+                .setAllowedOverRoaming(false)
+                .setAllowedNetworkTypes(networkTypes)
+                .setNotificationVisibility(DownloadManager.Request.VISIBILITY_HIDDEN)
+                .setVisibleInDownloadsUi(false)
+                .addRequestHeader("Cookie", task.getCookie());
+        for (Map.Entry<String, String> header : task.getRequestHeaders().entrySet()) {
+            request.addRequestHeader(header.getKey(), header.getValue());
+        }
+        if (task.hasCookie()) {
+            request.setDestinationInExternalFilesDir(
+                    context.getApplicationContext(),
+                    Environment.DIRECTORY_DOWNLOADS,
+                    task.getFileName());
+        }
+
+        return downloadManager.enqueue(request);
+    }
+
+    @Override
+    public boolean verifiesDigest() {
+        //DownloadManager writes the file itself, there's no way to see the bytes go by
+        return false;
+    }
+
+    @Override
+    public boolean preallocates() {
+        //DownloadManager fallocates the file once it knows the size from Android 7 on
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return !DownloadIds.isInProcess(id);
+    }
+
+    @Override
+    public void query(long[] ids, long[] out) {
+        if (ids.length == 1) {
+            DownloadManager.Query query = queryFor(ids[0]);
+            if (query != null) query(query, ids, out);
+            return;
+        }
+        //the rows of every chunk land on their own ids
+        for (DownloadManager.Query query : queriesFor(ids)) {
+            query(query, ids, out);
+        }
+    }
+
+    private void query(DownloadManager.Query query, long[] ids, long[] out) {
+        Cursor cursor = null;
+        try {
+            cursor = run(query);
+            DownloadColumns.readStatus(cursor, ids, out);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /**
+     * @return - cursor over the status of the query's downloads
+     */
+    Cursor run(DownloadManager.Query query) {
+        return downloadManager.query(query);
+    }
+
+    /**
+     * Pollers ask for the same ids over and over, so the queries for the last batch are kept around, and those for
+     * the last few single ids, which pollers usually ask for in turn
+     *
+     * @return - queries for the ids this engine owns, split to stay within DownloadManager's limit, none if there
+     * are none
+     */
+    private synchronized DownloadManager.Query[] queriesFor(long[] ids) {
+        if (lastIds != null && Arrays.equals(ids, lastIds)) return lastQueries;
+
+        long[] filter = new long[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            if (owns(id) && indexOf(filter, count, id) < 0) filter[count++] = id;
+        }
+
+        lastIds = ids.clone();
+        lastQueries = DownloadColumns.queriesFor(filter, count);
+        return lastQueries;
+    }
+
+    private synchronized DownloadManager.Query queryFor(long id) {
+        if (!owns(id)) return null;
+        for (int i = 0; i < SINGLE_QUERIES; i++) {
+            if (singleIds[i] == id && singleQueries[i] != null) return singleQueries[i];
+        }
+
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(id);
+        singleIds[nextSingle] = id;
+        singleQueries[nextSingle] = query;
+        nextSingle = (nextSingle + 1) % SINGLE_QUERIES;
+        return query;
+    }
+
+    private static int indexOf(long[] ids, int count, long id) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public FileInputStream openDownloadedFile(long id) throws IOException {
+        return new ParcelFileDescriptor.AutoCloseInputStream(downloadManager.openDownloadedFile(id));
+    }
+
+    @Override
+    public File getDownloadedFile(long id) {
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(id);
+        Cursor cursor = null;
+        try {
+            cursor = downloadManager.query(query);
+            if (!cursor.moveToFirst()
+                    || cursor.getInt(DownloadColumns.of(cursor).status) != DownloadManager.STATUS_SUCCESSFUL) {
+                return null;
+            }
+
+            //downloads without a destination live in the system cache and can only be opened through DownloadManager
+            String uriString = cursor.getString(DownloadColumns.of(cursor).localUri);
+            if (uriString == null || !uriString.startsWith("file")) return null;
+            File f = new File(URI.create(uriString));
+            return f.canWrite() ? f : null;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    @Override
+    public String getETag(long id) {
+        //DownloadManager keeps the response headers to itself
+        return null;
+    }
+
+    @Override
+    public boolean pause(long id) {
+        //DownloadManager only pauses downloads itself, waiting for a network or retrying
+        return false;
+    }
+
+    @Override
+    public boolean resume(long id) {
+        return false;
+    }
+
+    @Override
+    public boolean remove(long id) {
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(id);
+        Cursor cursor = null;
+        try {
+            cursor = downloadManager.query(query);
+
+            if (cursor.moveToFirst()) {
+
+                String uriString = cursor.getString(DownloadColumns.of(cursor).localUri);
+                if (uriString != null && uriString.startsWith("file")) {
+                    File f = new File(URI.create(uriString));
+                    if (f.exists() && !f.delete()) {
+                        DownloadService.unityLog(Log.WARN, TAG, "could not delete file " + f);
+                    }
+                }
+            }
+        }finally {
+            if(cursor != null) cursor.close();
+        }
+
+        if(downloadManager.remove(id) <= 0){
+            DownloadService.unityLog(Log.WARN, TAG, "could not delete download " + id);
+            return false;
+        }
+        return true;
+    }
+}
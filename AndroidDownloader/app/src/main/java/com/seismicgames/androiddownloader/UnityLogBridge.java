@@ -0,0 +1,152 @@
+package com.seismicgames.androiddownloader;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues log messages for Unity and sends them in one batch per flush instead of one UnitySendMessage each. The
+ * queue is a ring of fixed size: when Unity falls behind the oldest messages are dropped, and the next batch starts
+ * with how many.
+ *
+ * A batch has one line per message: the level as logcat prints it (V, D, I, W or E), a space and the message.
+ * Line breaks inside a message are sent as spaces.
+ */
+class UnityLogBridge {
+    static final String UNITY_METHOD = "OnLogBatch";
+
+    /**
+     * Where batches go, UnityPlayer.UnitySendMessage outside of tests
+     */
+    interface Sender {
+        void send(String batch);
+    }
+
+    private final Sender sender;
+    private final ScheduledExecutorService flushExecutor;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    //held while a batch is taken and sent, so batches arrive in order
+    private final Object sendLock = new Object();
+    private final StringBuilder batch = new StringBuilder();
+
+    //guarded by this
+    private final int[] levels;
+    private final String[] messages;
+    private int head;
+    private int size;
+    private int dropped;
+    private long intervalMs;
+    private boolean flushScheduled;
+
+    /**
+     * @param capacity   - messages kept until the next flush
+     * @param intervalMs - time from the first queued message to the flush that sends it, 0 to only flush on
+     *                   {@link #flush()}
+     * @param sender     - receives every batch
+     */
+    UnityLogBridge(int capacity, long intervalMs, Sender sender) {
+        this.sender = sender;
+        this.intervalMs = intervalMs;
+        levels = new int[capacity];
+        messages = new String[capacity];
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UnityLogBridge");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param intervalMs - time from the first queued message to the flush that sends it, 0 to only flush on
+     *                   {@link #flush()}
+     */
+    synchronized void setInterval(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * @param level   - android.util.Log level
+     * @param message - complete message, formatting is up to the caller
+     */
+    void log(int level, String message) {
+        long delay;
+        synchronized (this) {
+            if (size == messages.length) {
+                //drop the oldest
+                messages[head] = null;
+                head = (head + 1) % messages.length;
+                size--;
+                dropped++;
+            }
+            int tail = (head + size) % messages.length;
+            levels[tail] = level;
+            messages[tail] = message;
+            size++;
+
+            if (flushScheduled || intervalMs <= 0) return;
+            flushScheduled = true;
+            delay = intervalMs;
+        }
+        flushExecutor.schedule(flushRunnable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send everything queued as one batch, Unity may call this once per frame
+     */
+    void flush() {
+        synchronized (sendLock) {
+            synchronized (this) {
+                flushScheduled = false;
+                if (size == 0 && dropped == 0) return;
+
+                batch.setLength(0);
+                if (dropped > 0) {
+                    batch.append(levelChar(Log.WARN)).append(' ').append(dropped).append(" log messages dropped");
+                }
+                for (; size > 0; size--) {
+                    if (batch.length() > 0) batch.append('\n');
+                    batch.append(levelChar(levels[head])).append(' ');
+                    appendLine(batch, messages[head]);
+                    messages[head] = null;
+                    head = (head + 1) % messages.length;
+                }
+                head = 0;
+                dropped = 0;
+            }
+            sender.send(batch.toString());
+        }
+    }
+
+    private static void appendLine(StringBuilder batch, String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            batch.append(c == '\n' || c == '\r' ? ' ' : c);
+        }
+    }
+
+    private static char levelChar(int level) {
+        switch (level) {
+            case Log.VERBOSE:
+                return 'V';
+            case Log.DEBUG:
+                return 'D';
+            case Log.INFO:
+                return 'I';
+            case Log.WARN:
+                return 'W';
+            default:
+                return 'E';
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads an archive and unpacks it into a directory as the bytes arrive, see {@link ArchiveExtractor} for the
+ * formats. The archive is never written to disk, each file in it is written once, where it ends up, and is usable
+ * as soon as the transfer ends. Progress is of the archive's bytes, its digest is checked while it streams by.
+ *
+ * Files are unpacked into a sibling of the directory, which replaces it only once the whole archive is unpacked and
+ * verified, so a failed or canceled download leaves the directory as it was. Only one unpack at a time may
+ * target a directory, enqueueing another is an error until the first one ended. A stream can't be picked up where it
+ * stopped, so unpacks can't be paused and one cut short by the app dying has to be started again. An unpack that
+ * may not use the current network, see {@link NetworkPolicy}, waits on its thread before its request, reported as
+ * paused with PAUSED_QUEUED_FOR_WIFI.
+ */
+public class UnpackDownloadEngine implements DownloadEngine {
+    //suffix of the directory an archive is unpacked into before it replaces the real one
+    static final String PARTIAL_SUFFIX = ".partial";
+    private static final String OLD_SUFFIX = ".old";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MS = 30 * 1000;
+
+    private final ExecutorService executor;
+    private final ConcurrentMap<Long, Unpack> downloads = new ConcurrentHashMap<>();
+    //absolute path of every directory being unpacked into, they share the staging directories
+    private final Set<String> busyDirs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final RateLimiter rateLimiter;
+    private final NetworkPolicy networkPolicy;
+
+    /**
+     * @param maxParallel - archives unpacked at the same time
+     */
+    public UnpackDownloadEngine(int maxParallel) {
+        this(maxParallel, new RateLimiter());
+    }
+
+    /**
+     * @param rateLimiter - bandwidth limit, possibly shared with other engines
+     */
+    UnpackDownloadEngine(int maxParallel, RateLimiter rateLimiter) {
+        this(maxParallel, rateLimiter, new NetworkPolicy());
+    }
+
+    /**
+     * @param networkPolicy - which networks tasks may use, possibly shared with other engines
+     */
+    UnpackDownloadEngine(int maxParallel, RateLimiter rateLimiter, NetworkPolicy networkPolicy) {
+        if (maxParallel < 1) throw new IllegalArgumentException("maxParallel must be at least 1");
+
+        this.rateLimiter = rateLimiter;
+        this.networkPolicy = networkPolicy;
+        executor = Executors.newFixedThreadPool(maxParallel, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "UnpackDownloadEngine-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @param task - a task with {@link DownloadTask#setExtractTo(String)}
+     * @throws IOException - if another unpack into the same directory hasn't ended yet
+     */
+    @Override
+    public long enqueue(DownloadTask task) throws IOException {
+        if (!task.isUnpack()) throw new IllegalArgumentException(task.getUrl() + " is not unpacked");
+        File dir = new File(task.getExtractDir()).getAbsoluteFile();
+        File parent = dir.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("could not create " + parent);
+        }
+        if (!busyDirs.add(dir.getPath())) throw new IOException(dir + " is already being unpacked into");
+
+        Unpack unpack = new Unpack(DownloadIds.next(), task, dir);
+        downloads.put(unpack.id, unpack);
+        try {
+            executor.execute(unpack);
+        } catch (RuntimeException e) {
+            downloads.remove(unpack.id);
+            busyDirs.remove(dir.getPath());
+            throw e;
+        }
+        return unpack.id;
+    }
+
+    @Override
+    public boolean verifiesDigest() {
+        return true;
+    }
+
+    @Override
+    public boolean preallocates() {
+        return false;
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return DownloadIds.isInProcess(id) && downloads.containsKey(id);
+    }
+
+    @Override
+    public void query(long[] ids, long[] out) {
+        for (int i = 0; i < ids.length; i++) {
+            if (!DownloadIds.isInProcess(ids[i])) continue;
+            Unpack unpack = downloads.get(ids[i]);
+            if (unpack == null) continue;
+
+            int offset = i * DownloadService.STATUS_STRIDE;
+            out[offset + DownloadService.STATUS_FIELD_STATUS] = unpack.status;
+            out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = unpack.bytesSoFar;
+            out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = unpack.totalBytes;
+            out[offset + DownloadService.STATUS_FIELD_REASON] = unpack.reason;
+        }
+    }
+
+    /**
+     * An unpacked archive is a directory, there is no file to open
+     */
+    @Override
+    public FileInputStream openDownloadedFile(long id) throws IOException {
+        throw new FileNotFoundException("download " + id + " was unpacked, it has no file");
+    }
+
+    /**
+     * @return - the directory the archive was unpacked into
+     */
+    @Override
+    public File getDownloadedFile(long id) {
+        Unpack unpack = downloads.get(id);
+        if (unpack == null || unpack.status != DownloadManager.STATUS_SUCCESSFUL) return null;
+        return unpack.dir;
+    }
+
+    @Override
+    public String getETag(long id) {
+        return null;
+    }
+
+    @Override
+    public boolean pause(long id) {
+        return false;
+    }
+
+    @Override
+    public boolean resume(long id) {
+        return false;
+    }
+
+    /**
+     * Forget a download, an unpacked directory stays where it is, an unfinished one is canceled and its partial
+     * files deleted
+     */
+    @Override
+    public boolean remove(long id) {
+        Unpack unpack = downloads.remove(id);
+        if (unpack == null) return false;
+
+        unpack.canceled = true;
+        return true;
+    }
+
+    /**
+     * Stop all running unpacks, the engine can't be used afterwards
+     */
+    public void shutdown() {
+        for (Unpack unpack : downloads.values()) {
+            unpack.canceled = true;
+        }
+        executor.shutdownNow();
+    }
+
+    private HttpURLConnection openConnection(DownloadTask task) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(task.getUrl()).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        //the archive is compressed already, and its digest is of the bytes as published
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        for (Map.Entry<String, String> header : task.getRequestHeaders().entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        if (task.hasCookie()) {
+            connection.setRequestProperty("Cookie", task.getCookie());
+        }
+        return connection;
+    }
+
+    private static long parseContentLength(HttpURLConnection connection) {
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength == null) return -1;
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Ends an unpack with a reason, one of DownloadManager's, an HTTP code or one of DownloadService.ERROR_*
+     */
+    private static class UnpackException extends IOException {
+        final int reason;
+
+        UnpackException(int reason) {
+            super("unpack failed: " + reason);
+            this.reason = reason;
+        }
+    }
+
+    private class Unpack implements Runnable {
+        final long id;
+        final DownloadTask task;
+        final File dir;
+        final File partial;
+
+        volatile int status = DownloadManager.STATUS_PENDING;
+        volatile int reason;
+        volatile long bytesSoFar;
+        volatile long totalBytes = -1;
+        volatile boolean canceled;
+        //only touched on the unpack's thread
+        private boolean released;
+
+        Unpack(long id, DownloadTask task, File dir) {
+            this.id = id;
+            this.task = task;
+            this.dir = dir;
+            this.partial = new File(dir.getPath() + PARTIAL_SUFFIX);
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!canceled) unpack();
+            } finally {
+                release();
+            }
+        }
+
+        private void unpack() {
+            status = DownloadManager.STATUS_RUNNING;
+
+            HttpURLConnection connection = null;
+            InputStream input = null;
+            try {
+                StreamingDigest digest = null;
+                if (task.hasExpectedDigest()) {
+                    try {
+                        digest = StreamingDigest.create(task.getDigestAlgorithm());
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new UnpackException(DownloadService.ERROR_HASH_MISMATCH);
+                    }
+                }
+                //left behind by a previous run that died
+                if (!FileTransfers.deleteRecursively(partial)) throw new UnpackException(DownloadManager.ERROR_FILE_ERROR);
+
+                awaitNetwork();
+                try {
+                    connection = openConnection(task);
+                    int code = connection.getResponseCode();
+                    if (code != HttpURLConnection.HTTP_OK) throw new UnpackException(code);
+                    totalBytes = parseContentLength(connection);
+                    input = new BufferedInputStream(new NetworkInput(connection.getInputStream(), digest), BUFFER_SIZE);
+                } catch (UnpackException e) {
+                    throw e;
+                } catch (IOException e) {
+                    throw new UnpackException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+                }
+
+                ArchiveExtractor extractor = new ArchiveExtractor(partial);
+                try {
+                    extractor.extract(input, singleFileName());
+                    //whatever follows the last entry, a zip's central directory, still counts for the digest
+                    byte[] rest = new byte[BUFFER_SIZE];
+                    while (input.read(rest) >= 0) ;
+                } catch (ArchiveExtractor.ArchiveException e) {
+                    //a stream cut short looks like a truncated archive
+                    if (totalBytes >= 0 && bytesSoFar < totalBytes) {
+                        throw new UnpackException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+                    }
+                    throw new UnpackException(DownloadService.ERROR_ARCHIVE);
+                }
+                if (totalBytes >= 0 && bytesSoFar != totalBytes) {
+                    throw new UnpackException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+                }
+                if (digest != null && !digest.matches(task.getExpectedDigest())) {
+                    throw new UnpackException(DownloadService.ERROR_HASH_MISMATCH);
+                }
+
+                if (canceled) throw new UnpackException(DownloadService.ERROR_CANCELED);
+                replaceDir();
+                DownloadMetrics.shared().add(DownloadMetrics.UNPACK_BYTES_WRITTEN, extractor.getBytesWritten());
+                release();
+                status = DownloadManager.STATUS_SUCCESSFUL;
+            } catch (UnpackException e) {
+                fail(e.reason);
+            } catch (IOException e) {
+                fail(DownloadManager.ERROR_FILE_ERROR);
+            } finally {
+                if (input != null) {
+                    try {
+                        input.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (connection != null) connection.disconnect();
+            }
+        }
+
+        /**
+         * Wait until the task may use the current network, reported as paused meanwhile
+         */
+        private void awaitNetwork() throws UnpackException {
+            if (networkPolicy.allows(task)) return;
+            reason = DownloadManager.PAUSED_QUEUED_FOR_WIFI;
+            status = DownloadManager.STATUS_PAUSED;
+            try {
+                while (!networkPolicy.allows(task)) {
+                    if (canceled) throw new UnpackException(DownloadService.ERROR_CANCELED);
+                    Thread.sleep(NetworkPolicy.CHECK_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                //the engine is shutting down
+                Thread.currentThread().interrupt();
+                throw new UnpackException(DownloadService.ERROR_CANCELED);
+            }
+            status = DownloadManager.STATUS_RUNNING;
+            reason = 0;
+        }
+
+        /**
+         * @return - what a gzipped single file is called, the download's file name without .gz
+         */
+        private String singleFileName() {
+            String name = task.getFileName();
+            int slash = name.lastIndexOf('/');
+            if (slash >= 0) name = name.substring(slash + 1);
+            if (name.endsWith(".gz")) name = name.substring(0, name.length() - ".gz".length());
+            return name.length() > 0 ? name : "download";
+        }
+
+        /**
+         * Swap the unpacked directory in for the old one, moved aside first so it's never half replaced
+         */
+        private void replaceDir() throws UnpackException {
+            File old = new File(dir.getPath() + OLD_SUFFIX);
+            if (!FileTransfers.deleteRecursively(old)) throw new UnpackException(DownloadManager.ERROR_FILE_ERROR);
+            if (dir.exists() && !dir.renameTo(old)) throw new UnpackException(DownloadManager.ERROR_FILE_ERROR);
+            if (!partial.renameTo(dir)) {
+                if (old.exists()) old.renameTo(dir);
+                throw new UnpackException(DownloadManager.ERROR_FILE_ERROR);
+            }
+            FileTransfers.deleteRecursively(old);
+        }
+
+        /**
+         * Let the next unpack have the directory, before the status says this one ended
+         */
+        private void release() {
+            //only once, the next unpack may have claimed the directory since
+            if (released) return;
+            released = true;
+            busyDirs.remove(dir.getPath());
+        }
+
+        private void fail(int reason) {
+            FileTransfers.deleteRecursively(partial);
+            release();
+            if (canceled || reason == DownloadService.ERROR_CANCELED) return;
+            this.reason = reason;
+            status = DownloadManager.STATUS_FAILED;
+        }
+
+        /**
+         * The response body as it comes off the network, within the bandwidth limit, counted and hashed
+         */
+        private class NetworkInput extends FilterInputStream {
+            private final StreamingDigest digest;
+
+            NetworkInput(InputStream input, StreamingDigest digest) {
+                super(input);
+                this.digest = digest;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (canceled) throw new UnpackException(DownloadService.ERROR_CANCELED);
+                int n;
+                try {
+                    n = in.read(b, off, rateLimiter.chunkSize(len));
+                } catch (IOException e) {
+                    throw new UnpackException(DownloadManager.ERROR_HTTP_DATA_ERROR);
+                }
+                if (n > 0) {
+                    try {
+                        rateLimiter.acquire(n);
+                    } catch (InterruptedException e) {
+                        //the engine is shutting down
+                        Thread.currentThread().interrupt();
+                        throw new UnpackException(DownloadService.ERROR_CANCELED);
+                    }
+                    if (digest != null) digest.update(b, off, n);
+                    bytesSoFar += n;
+                }
+                return n;
+            }
+
+            //every byte has to be hashed
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] skipped = new byte[(int) Math.min(n, BUFFER_SIZE)];
+                int read = read(skipped, 0, skipped.length);
+                return read < 0 ? 0 : read;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+public class BlockIndexTest {
+    private static final int BLOCK_SIZE = 1024;
+
+    static BlockIndex index(byte[] file) throws Exception {
+        return BlockIndex.build(new ByteArrayInputStream(file), BLOCK_SIZE, "SHA-256");
+    }
+
+    /**
+     * @return - bytes with count random bytes inserted at offset
+     */
+    static byte[] insert(byte[] bytes, int offset, int count, long seed) {
+        byte[] result = new byte[bytes.length + count];
+        System.arraycopy(bytes, 0, result, 0, offset);
+        byte[] inserted = LocalHttpServer.randomBytes(count, seed);
+        System.arraycopy(inserted, 0, result, offset, count);
+        System.arraycopy(bytes, offset, result, offset + count, bytes.length - offset);
+        return result;
+    }
+
+    @Test
+    public void rollingChecksumMatchesFreshOne() {
+        byte[] bytes = LocalHttpServer.randomBytes(4096, 1);
+        BlockIndex.Rolling rolling = new BlockIndex.Rolling(BLOCK_SIZE);
+        rolling.reset(bytes, 0);
+        for (int offset = 1; offset + BLOCK_SIZE <= bytes.length; offset++) {
+            rolling.roll(bytes[offset - 1], bytes[offset - 1 + BLOCK_SIZE]);
+            assertEquals(BlockIndex.weakChecksum(bytes, offset, BLOCK_SIZE), rolling.value());
+        }
+    }
+
+    @Test
+    public void weakTableChainsBlocksInOrder() {
+        //checksums differing only in the high half, each repeated three times
+        int[] weak = new int[300];
+        for (int i = 0; i < weak.length; i++) {
+            weak[i] = i % 100 * 65536;
+        }
+        BlockIndex.WeakTable table = new BlockIndex.WeakTable(weak, weak.length);
+        for (int key = 0; key < 100; key++) {
+            int block = table.first(key * 65536);
+            assertEquals(key, block);
+            assertEquals(key + 100, block = table.next(block));
+            assertEquals(key + 200, block = table.next(block));
+            assertEquals(-1, table.next(block));
+        }
+        assertEquals(-1, table.first(1));
+        assertEquals(-1, table.first(100 * 65536));
+    }
+
+    @Test
+    public void survivesRoundTrip() throws Exception {
+        byte[] file = LocalHttpServer.randomBytes(10 * BLOCK_SIZE + 17, 2);
+        BlockIndex index = index(file);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        BlockIndex read = BlockIndex.read(new ByteArrayInputStream(out.toByteArray()));
+
+        assertEquals(11, read.blockCount());
+        assertEquals(file.length, read.length);
+        assertEquals(17, read.blockLength(10));
+        assertEquals(StreamingDigestTest.sha256(file), read.digest);
+        assertArrayEquals(index.findBlocks(new ByteArrayInputStream(file)), read.findBlocks(new ByteArrayInputStream(file)));
+    }
+
+    @Test
+    public void findsBlocksThatMoved() throws Exception {
+        byte[] old = LocalHttpServer.randomBytes(20 * BLOCK_SIZE, 3);
+        //a few bytes in front shift everything, one block is rewritten
+        byte[] changed = insert(old, 100, 37, 4);
+        System.arraycopy(LocalHttpServer.randomBytes(BLOCK_SIZE, 6), 0, changed, 10 * BLOCK_SIZE, BLOCK_SIZE);
+
+        long[] sources = index(changed).findBlocks(new ByteArrayInputStream(old));
+        int found = 0;
+        for (int block = 0; block < sources.length; block++) {
+            if (sources[block] < 0) continue;
+            found++;
+            byte[] expected = new byte[BLOCK_SIZE];
+            System.arraycopy(changed, block * BLOCK_SIZE, expected, 0, BLOCK_SIZE);
+            byte[] actual = new byte[BLOCK_SIZE];
+            System.arraycopy(old, (int) sources[block], actual, 0, BLOCK_SIZE);
+            assertArrayEquals("block " + block, expected, actual);
+        }
+        //the first block holds the insertion, block 10 was rewritten and the last is partial
+        assertEquals(sources.length - 3, found);
+        assertEquals(-1, sources[10]);
+        assertEquals(-1, sources[0]);
+        assertEquals(-1, sources[sources.length - 1]);
+    }
+
+    @Test
+    public void findsNothingInUnrelatedFile() throws Exception {
+        long[] sources = index(LocalHttpServer.randomBytes(8 * BLOCK_SIZE, 7))
+                .findBlocks(new ByteArrayInputStream(LocalHttpServer.randomBytes(8 * BLOCK_SIZE, 8)));
+        for (long source : sources) {
+            assertEquals(-1, source);
+        }
+    }
+}
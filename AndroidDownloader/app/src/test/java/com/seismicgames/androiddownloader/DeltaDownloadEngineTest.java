@@ -0,0 +1,157 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class DeltaDownloadEngineTest {
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+    private DeltaDownloadEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        engine = new DeltaDownloadEngine(folder.newFolder("patches"), 2);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+        server.stop();
+    }
+
+    /**
+     * Publish a file with its block index
+     */
+    private void publish(byte[] file) throws Exception {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        BlockIndex.build(new ByteArrayInputStream(file), BLOCK_SIZE, "SHA-256").write(index);
+        server.put("/pack.bin", file);
+        server.put("/pack.bin.index", index.toByteArray());
+    }
+
+    private File write(String name, byte[] bytes) throws Exception {
+        File file = folder.newFile(name);
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private long patch(File base) throws Exception {
+        return engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin")
+                .setPatchBase(base != null ? base.getPath() : null, server.url("/pack.bin.index")));
+    }
+
+    /**
+     * @return - bytes with a few changed here and there, and some inserted and removed
+     */
+    private static byte[] nextVersion(byte[] old) {
+        byte[] next = BlockIndexTest.insert(old, 1000, 300, 11);
+        byte[] patched = LocalHttpServer.randomBytes(5000, 12);
+        System.arraycopy(patched, 0, next, FILE_SIZE / 2, patched.length);
+        byte[] trimmed = new byte[next.length - 777];
+        System.arraycopy(next, 0, trimmed, 0, 3 * FILE_SIZE / 4);
+        System.arraycopy(next, 3 * FILE_SIZE / 4 + 777, trimmed, 3 * FILE_SIZE / 4, trimmed.length - 3 * FILE_SIZE / 4);
+        return trimmed;
+    }
+
+    @Test
+    public void fetchesOnlyChangedBlocks() throws Exception {
+        byte[] old = LocalHttpServer.randomBytes(FILE_SIZE, 10);
+        byte[] next = nextVersion(old);
+        publish(next);
+        File base = write("old.bin", old);
+        long reused = DownloadMetrics.shared().counter(DownloadMetrics.PATCH_BYTES_REUSED);
+
+        long id = patch(base);
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(next.length, status[DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+        assertArrayEquals(next, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+        //a few blocks around each change, plus the index
+        long served = server.bytesServed.get();
+        System.out.println("patched " + next.length + " bytes fetching " + served);
+        assertTrue("fetched " + served, served < 10 * BLOCK_SIZE + next.length / BLOCK_SIZE * 20 + 1024);
+        assertTrue(DownloadMetrics.shared().counter(DownloadMetrics.PATCH_BYTES_REUSED) - reused > next.length - 10 * BLOCK_SIZE);
+    }
+
+    @Test
+    public void fetchesEverythingWithoutBase() throws Exception {
+        byte[] file = LocalHttpServer.randomBytes(FILE_SIZE, 13);
+        publish(file);
+
+        long id = patch(new File(folder.getRoot(), "missing.bin"));
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(file, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+        //in requests of at most MAX_REQUEST_BYTES
+        assertEquals(FILE_SIZE / DeltaDownloadEngine.MAX_REQUEST_BYTES, server.rangeHeaders.size());
+    }
+
+    @Test
+    public void takesWholeFileWhenServerIgnoresRanges() throws Exception {
+        byte[] old = LocalHttpServer.randomBytes(FILE_SIZE, 14);
+        byte[] next = nextVersion(old);
+        publish(next);
+        server.setRangesSupported(false);
+
+        long id = patch(write("old.bin", old));
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(next.length, status[DownloadService.STATUS_FIELD_BYTES_SO_FAR]);
+        assertArrayEquals(next, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+    }
+
+    @Test
+    public void failsWhenFileDoesNotMatchIndex() throws Exception {
+        byte[] old = LocalHttpServer.randomBytes(FILE_SIZE, 15);
+        byte[] next = nextVersion(old);
+        publish(next);
+        //published without updating the index
+        server.put("/pack.bin", nextVersion(next));
+
+        long id = patch(write("old.bin", old));
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadService.ERROR_HASH_MISMATCH, status[DownloadService.STATUS_FIELD_REASON]);
+        assertNull(engine.getDownloadedFile(id));
+    }
+
+    @Test
+    public void reportsMissingIndex() throws Exception {
+        server.put("/pack.bin", LocalHttpServer.randomBytes(1024, 16));
+
+        long id = patch(null);
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(404, status[DownloadService.STATUS_FIELD_REASON]);
+        assertTrue(engine.remove(id));
+        assertFalse(engine.owns(id));
+    }
+}
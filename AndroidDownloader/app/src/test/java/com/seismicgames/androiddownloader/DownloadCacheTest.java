@@ -0,0 +1,180 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+public class DownloadCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private File write(String name, byte[] body) throws Exception {
+        File file = new File(folder.getRoot(), name);
+        OutputStream out = new FileOutputStream(file);
+        out.write(body);
+        out.close();
+        return file;
+    }
+
+    @Test
+    public void digestHitSkipsNetwork() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(10000, 1);
+        String sha = StreamingDigestTest.sha256(body);
+        DownloadCache cache = new DownloadCache(folder.newFolder("cache"), 1024 * 1024);
+        cache.store(DownloadCache.digestKey("SHA-256", sha), null, write("moved.bin", body));
+
+        //a different URL, same content
+        DownloadTask task = new DownloadTask(server.url("/mirror/pack.bin"), "pack.bin").setExpectedDigest("sha-256", sha);
+        long handle = cache.lookup(task, null);
+
+        assertNotEquals(DownloadCache.MISS, handle);
+        assertTrue(cache.isHit(handle));
+        long[] status = RangeDownloadEngineTest.awaitFinished(cache, handle, 1000);
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(body.length, status[DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(cache.openDownloadedFile(handle)));
+        assertEquals(0, server.requestCount.get());
+        assertEquals(1, cache.hitCount.get());
+    }
+
+    @Test
+    public void urlHitIsRevalidated() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(10000, 2);
+        server.put("/pack.bin", body);
+        DownloadCache cache = new DownloadCache(folder.newFolder("cache"), 1024 * 1024);
+        cache.store(DownloadCache.urlKey(server.url("/pack.bin")), LocalHttpServer.etag(body), write("moved.bin", body));
+
+        long handle = cache.lookup(new DownloadTask(server.url("/pack.bin"), "pack.bin"), null);
+        long[] status = RangeDownloadEngineTest.awaitFinished(cache, handle, 5000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(cache.openDownloadedFile(handle)));
+        assertEquals(1, server.requestCount.get());
+        assertEquals(0, server.bytesServed.get());
+        assertEquals(1, cache.hitCount.get());
+    }
+
+    @Test
+    public void staleUrlHitDownloadsUnderSameHandle() throws Exception {
+        byte[] old = LocalHttpServer.randomBytes(10000, 3);
+        byte[] body = LocalHttpServer.randomBytes(20000, 4);
+        server.put("/pack.bin", body);
+        DownloadCache cache = new DownloadCache(folder.newFolder("cache"), 1024 * 1024);
+        cache.store(DownloadCache.urlKey(server.url("/pack.bin")), LocalHttpServer.etag(old), write("moved.bin", old));
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.newFolder("downloads"), 2, 64 * 1024);
+
+        long handle = cache.lookup(new DownloadTask(server.url("/pack.bin"), "pack.bin"), engine);
+        long[] status = RangeDownloadEngineTest.awaitFinished(cache, handle, 10000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(handle, status[DownloadService.STATUS_FIELD_ID]);
+        assertFalse(cache.isHit(handle));
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(cache.openDownloadedFile(handle)));
+        assertEquals(LocalHttpServer.etag(body), cache.getETag(handle));
+        assertEquals(0, cache.getTotalBytes());
+        assertEquals(1, cache.missCount.get());
+        engine.shutdown();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedAndKeepsOrderAcrossRestarts() throws Exception {
+        File dir = folder.newFolder("cache");
+        DownloadCache cache = new DownloadCache(dir, 250);
+        for (int i = 0; i < 2; i++) {
+            cache.store(DownloadCache.digestKey("CRC32", "" + i), null, write("f" + i, new byte[100]));
+        }
+        //0 becomes the most recently used, so 1 goes first
+        assertNotEquals(DownloadCache.MISS, cache.lookup(task(0), null));
+        cache.store(DownloadCache.digestKey("CRC32", "2"), null, write("f2", new byte[100]));
+        assertEquals(200, cache.getTotalBytes());
+        assertEquals(DownloadCache.MISS, cache.lookup(task(1), null));
+
+        cache = new DownloadCache(dir, 250);
+        assertEquals(200, cache.getTotalBytes());
+        assertEquals(3, dir.list().length);
+        cache.setMaxBytes(100);
+        //2 was stored after 0 was used
+        assertEquals(100, cache.getTotalBytes());
+        assertEquals(DownloadCache.MISS, cache.lookup(task(0), null));
+        assertNotEquals(DownloadCache.MISS, cache.lookup(task(2), null));
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void hitsWriteTheUseOrderInTheBackground() throws Exception {
+        File dir = folder.newFolder("cache");
+        DownloadCache cache = new DownloadCache(dir, 250);
+        for (int i = 0; i < 2; i++) {
+            cache.store(DownloadCache.digestKey("CRC32", "" + i), null, write("f" + i, new byte[100]));
+        }
+        File index = new File(dir, DownloadCache.INDEX_FILE_NAME);
+        long written = index.lastModified();
+        //timestamps may be coarse
+        Thread.sleep(1100);
+        assertNotEquals(DownloadCache.MISS, cache.lookup(task(0), null));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (index.lastModified() == written && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        cache = new DownloadCache(dir, 100);
+        assertNotEquals(DownloadCache.MISS, cache.lookup(task(0), null));
+        assertEquals(DownloadCache.MISS, cache.lookup(task(1), null));
+    }
+
+    @Test
+    public void keepsFilesHitsStillReadUntilTheyAreRemoved() throws Exception {
+        File dir = folder.newFolder("cache");
+        byte[] old = LocalHttpServer.randomBytes(100, 5);
+        DownloadCache cache = new DownloadCache(dir, 250);
+        cache.store(DownloadCache.digestKey("CRC32", "0"), null, write("old", old));
+        long replaced = cache.lookup(task(0), null);
+        cache.store(DownloadCache.digestKey("CRC32", "1"), null, write("f1", new byte[100]));
+        long evicted = cache.lookup(task(1), null);
+
+        cache.store(DownloadCache.digestKey("CRC32", "0"), null, write("new", new byte[100]));
+        cache.setMaxBytes(100);
+        assertEquals(DownloadCache.MISS, cache.lookup(task(1), null));
+        assertArrayEquals(old, RangeDownloadEngineTest.readAll(cache.openDownloadedFile(replaced)));
+        assertArrayEquals(new byte[100], RangeDownloadEngineTest.readAll(cache.openDownloadedFile(evicted)));
+        assertEquals(4, dir.list().length);
+
+        assertTrue(cache.remove(replaced));
+        assertTrue(cache.remove(evicted));
+        assertEquals(2, dir.list().length);
+    }
+
+    private static DownloadTask task(int i) {
+        return new DownloadTask("http://cdn/" + i, "f" + i).setExpectedDigest("CRC32", "" + i);
+    }
+
+    @Test
+    public void weakOrMissingETagIsNotCached() throws Exception {
+        DownloadCache cache = new DownloadCache(folder.newFolder("cache"), 1024);
+        cache.store(DownloadCache.urlKey("http://cdn/a"), null, write("a", new byte[10]));
+        cache.store(DownloadCache.urlKey("http://cdn/b"), "W/\"b\"", write("b", new byte[10]));
+        assertEquals(0, cache.getTotalBytes());
+    }
+}
@@ -0,0 +1,91 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadCoalescerTest {
+
+    @Test
+    public void sameResourceSharesOneDownload() {
+        DownloadCoalescer coalescer = new DownloadCoalescer();
+        String key = DownloadCoalescer.keyOf("http://cdn/pack.bin", null, null, null, false);
+        assertNull(coalescer.find(key));
+
+        DownloadCoalescer.Group group = coalescer.start(key, 42);
+        assertSame(group, coalescer.find(key));
+        long alias = coalescer.attach(group);
+
+        assertNotEquals(42, alias);
+        assertEquals(42, coalescer.resolve(alias));
+        assertEquals(42, coalescer.resolve(42));
+        assertEquals(7, coalescer.resolve(7));
+        assertFalse(coalescer.take(group, alias));
+
+        //the first handle goes, the download stays for the alias
+        assertFalse(coalescer.release(group, 42));
+        assertSame(group, coalescer.find(key));
+        assertTrue(coalescer.release(group, alias));
+        assertNull(coalescer.find(key));
+        assertNull(coalescer.groupOf(alias));
+    }
+
+    @Test
+    public void digestIsPartOfTheKey() {
+        String plain = DownloadCoalescer.keyOf("http://cdn/pack.bin", null, null, null, false);
+        String hashed = DownloadCoalescer.keyOf("http://cdn/pack.bin", "sha-256", "ABCD ", null, false);
+        assertNotEquals(plain, hashed);
+        assertEquals(hashed, DownloadCoalescer.keyOf("http://cdn/pack.bin", "SHA-256", "abcd", null, false));
+        assertNotEquals(hashed, DownloadCoalescer.keyOf("http://cdn/pack.bin", "SHA-256", "abce", null, false));
+    }
+
+    @Test
+    public void cookieAndNetworksArePartOfTheKey() {
+        String wifi = DownloadCoalescer.keyOf("http://cdn/pack.bin", null, null, null, false);
+        assertNotEquals(wifi, DownloadCoalescer.keyOf("http://cdn/pack.bin", null, null, null, true));
+        String alice = DownloadCoalescer.keyOf("http://cdn/pack.bin", null, null, "session=alice", false);
+        assertNotEquals(wifi, alice);
+        assertNotEquals(alice, DownloadCoalescer.keyOf("http://cdn/pack.bin", null, null, "session=bob", false));
+        assertEquals(alice, DownloadCoalescer.keyOf("http://cdn/pack.bin", null, null, "session=alice", false));
+    }
+
+    @Test
+    public void resolvesBatchesWithoutCopyingWhenNothingIsShared() {
+        DownloadCoalescer coalescer = new DownloadCoalescer();
+        DownloadCoalescer.Group group = coalescer.start("a", 1);
+        long alias = coalescer.attach(group);
+
+        long[] plain = {1, 2, 3};
+        assertSame(plain, coalescer.resolve(plain));
+
+        long[] mixed = {alias, 2, 1};
+        assertArrayEquals(new long[]{1, 2, 1}, coalescer.resolve(mixed));
+        assertEquals(alias, mixed[0]);
+    }
+
+    @Test
+    public void takenGroupTakesNoNewHandles() {
+        DownloadCoalescer coalescer = new DownloadCoalescer();
+        DownloadCoalescer.Group group = coalescer.start("a", 1);
+        long alias = coalescer.attach(group);
+        assertFalse(coalescer.release(group, 1));
+
+        assertTrue(coalescer.take(group, alias));
+        assertNull(coalescer.find("a"));
+        assertEquals(DownloadCoalescer.RELEASED, coalescer.attach(group));
+        assertTrue(coalescer.release(group, alias));
+    }
+
+    @Test
+    public void forgottenGroupTakesNoNewHandles() {
+        DownloadCoalescer coalescer = new DownloadCoalescer();
+        DownloadCoalescer.Group failed = coalescer.start("a", 1);
+        coalescer.forget(failed);
+        assertNull(coalescer.find("a"));
+
+        DownloadCoalescer.Group retry = coalescer.start("a", 2);
+        //releasing the old download must not unindex the new one
+        assertTrue(coalescer.release(failed, 1));
+        assertSame(retry, coalescer.find("a"));
+    }
+}
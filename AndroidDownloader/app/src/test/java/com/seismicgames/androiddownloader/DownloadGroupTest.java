@@ -0,0 +1,108 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DownloadGroupTest {
+
+    private static long[] status(long id, int state, long bytes, long total) {
+        return new long[]{id, state, bytes, total, 0};
+    }
+
+    @Test
+    public void keepsTotalsFromChangesOnly() {
+        DownloadGroup group = new DownloadGroup(3, "pack", new long[]{1, 2, -4, 2});
+        assertArrayEquals(new long[]{1, 2, -4}, group.ids);
+
+        group.update(status(1, DownloadManager.STATUS_RUNNING, 100, 1000), 0);
+        group.update(status(2, DownloadManager.STATUS_PENDING, 0, -1), 0);
+        group.update(status(-4, DownloadManager.STATUS_RUNNING, 50, 1000), 0);
+        assertEquals(150, group.getBytesSoFar());
+        assertEquals(2000, group.getTotalBytes());
+
+        group.update(status(1, DownloadManager.STATUS_SUCCESSFUL, 1000, 1000), 0);
+        group.update(status(2, DownloadManager.STATUS_RUNNING, 500, 2000), 0);
+        assertEquals(1550, group.getBytesSoFar());
+        assertEquals(4000, group.getTotalBytes());
+        assertEquals(38, group.getPercent());
+        assertArrayEquals(new long[]{2, -4}, group.unfinishedIds());
+
+        //finished downloads don't move anymore, others' ids are ignored
+        group.update(status(1, DownloadService.STATUS_NOT_FOUND, 0, -1), 0);
+        group.update(status(9, DownloadManager.STATUS_RUNNING, 5000, 5000), 0);
+        assertEquals(1550, group.getBytesSoFar());
+        assertFalse(group.isFinished());
+    }
+
+    @Test
+    public void finishesSuccessfulOnlyIfEveryDownloadSucceeded() {
+        DownloadGroup group = new DownloadGroup(1, null, new long[]{1, 2});
+        group.update(status(1, DownloadManager.STATUS_SUCCESSFUL, 10, 10), 0);
+        assertFalse(group.isFinished());
+        //removed behind our back
+        group.update(status(2, DownloadService.STATUS_NOT_FOUND, 0, -1), 0);
+        assertTrue(group.isFinished());
+        assertFalse(group.isSuccessful());
+        assertEquals(0, group.unfinishedIds().length);
+
+        group = new DownloadGroup(2, null, new long[]{5});
+        group.update(status(5, DownloadManager.STATUS_SUCCESSFUL, 10, 10), 0);
+        assertTrue(group.isSuccessful());
+        assertFalse(new DownloadGroup(3, null, new long[0]).isSuccessful());
+    }
+
+    @Test
+    public void readsRowsAtTheirOffset() {
+        DownloadGroup group = new DownloadGroup(1, null, new long[]{7, 8});
+        long[] rows = {
+                7, DownloadManager.STATUS_RUNNING, 10, 100, 0,
+                8, DownloadManager.STATUS_RUNNING, 20, 100, 0};
+        for (int offset = 0; offset < rows.length; offset += DownloadService.STATUS_STRIDE) {
+            group.update(rows, offset);
+        }
+        assertEquals(30, group.getBytesSoFar());
+        assertEquals(200, group.getTotalBytes());
+    }
+
+    @Test
+    public void notifiesOnlyWhenPercentOrPauseChanges() {
+        DownloadGroup group = new DownloadGroup(1, null, new long[]{-1, -2});
+        assertTrue(group.shouldNotify());
+        assertFalse(group.shouldNotify());
+
+        group.update(status(-1, DownloadManager.STATUS_RUNNING, 1, 100), 0);
+        group.update(status(-2, DownloadManager.STATUS_RUNNING, 0, 100), 0);
+        assertFalse(group.shouldNotify());
+        group.update(status(-1, DownloadManager.STATUS_RUNNING, 50, 100), 0);
+        assertTrue(group.shouldNotify());
+        assertFalse(group.shouldNotify());
+
+        group.update(status(-1, DownloadManager.STATUS_PAUSED, 50, 100), 0);
+        assertFalse(group.isPaused());
+        group.update(status(-2, DownloadManager.STATUS_PAUSED, 0, 100), 0);
+        assertTrue(group.isPaused());
+        assertTrue(group.shouldNotify());
+
+        //a finished download doesn't keep the rest from counting as paused
+        group.update(status(-2, DownloadManager.STATUS_SUCCESSFUL, 100, 100), 0);
+        assertTrue(group.isPaused());
+        assertEquals(75, group.getPercent());
+    }
+
+    @Test
+    public void givesUpOnInProcessIdsOfAnotherProcess() {
+        DownloadIds.reserve(-1000);
+        DownloadGroup stored = new DownloadGroup(4, "pack", new long[]{7, -3, -1000}, DownloadIds.SESSION + 1);
+        stored.loseInProcessIds();
+        //the DownloadManager download and the one from a journal are still coming
+        assertArrayEquals(new long[]{7, -1000}, stored.unfinishedIds());
+        assertFalse(stored.isSuccessful());
+
+        DownloadGroup current = new DownloadGroup(5, "pack", new long[]{7, -3});
+        current.loseInProcessIds();
+        assertArrayEquals(new long[]{7, -3}, current.unfinishedIds());
+    }
+}
@@ -0,0 +1,57 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class DownloadManifestTest {
+    private static final File BASE = new File("/data/content");
+
+    private static DownloadManifest parse(String text) throws IOException {
+        return DownloadManifest.read(new ByteArrayInputStream(text.getBytes("UTF-8")), BASE);
+    }
+
+    @Test
+    public void readsEntries() throws Exception {
+        DownloadManifest manifest = parse("# content 42\n"
+                + "\n"
+                + "http://cdn/a.bundle\t1024\tSHA-256:ab12\tbundles/a.bundle\n"
+                + "http://cdn/b.bundle\t-\t-\t/sdcard/b bundle\n");
+
+        assertEquals(2, manifest.entries.size());
+        DownloadManifest.Entry a = manifest.entries.get(0);
+        assertEquals("http://cdn/a.bundle", a.url);
+        assertEquals(1024, a.size);
+        assertEquals("SHA-256", a.digestAlgorithm);
+        assertEquals("ab12", a.expectedDigest);
+        assertEquals(new File(BASE, "bundles/a.bundle"), a.dest);
+
+        DownloadManifest.Entry b = manifest.entries.get(1);
+        assertEquals(-1, b.size);
+        assertNull(b.digestAlgorithm);
+        assertNull(b.expectedDigest);
+        assertEquals(new File("/sdcard/b bundle"), b.dest);
+    }
+
+    @Test
+    public void rejectsMalformedLines() throws Exception {
+        String[] bad = {
+                "http://cdn/a\t1024\t-",
+                "http://cdn/a\tbig\t-\ta",
+                "http://cdn/a\t1024\tab12\ta",
+                "http://cdn/a\t1024\tSHA-256:\ta",
+        };
+        for (String line : bad) {
+            try {
+                parse("# header\n" + line + "\n");
+                fail("accepted " + line);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("line 2"));
+            }
+        }
+    }
+}
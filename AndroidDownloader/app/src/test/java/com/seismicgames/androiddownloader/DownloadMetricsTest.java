@@ -0,0 +1,108 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DownloadMetricsTest {
+
+    private static long[] status(long id, int state, long bytes, long total, long reason) {
+        return new long[]{id, state, bytes, total, reason};
+    }
+
+    @Test
+    public void followsDownloadToCompletion() {
+        DownloadMetrics metrics = new DownloadMetrics();
+        metrics.downloadStarted(7, 1000);
+        metrics.observe(7, status(7, DownloadManager.STATUS_PENDING, 0, -1, 0), 0, 1100);
+        metrics.observe(7, status(7, DownloadManager.STATUS_RUNNING, 0, 4000, 0), 0, 1300);
+        metrics.observe(7, status(7, DownloadManager.STATUS_RUNNING, 1000, 4000, 0), 0, 1500);
+        metrics.observe(7, status(7, DownloadManager.STATUS_SUCCESSFUL, 4000, 4000, 0), 0, 3000);
+        //already counted
+        metrics.observe(7, status(7, DownloadManager.STATUS_SUCCESSFUL, 4000, 4000, 0), 0, 3100);
+
+        assertEquals(1, metrics.counter(DownloadMetrics.DOWNLOADS_STARTED));
+        assertEquals(1, metrics.counter(DownloadMetrics.DOWNLOADS_SUCCEEDED));
+        assertEquals(300, metrics.histogram(DownloadMetrics.QUEUE_WAIT_MS).percentile(1));
+        assertEquals(500, metrics.histogram(DownloadMetrics.TIME_TO_FIRST_BYTE_MS).percentile(1));
+        assertEquals(2000, metrics.histogram(DownloadMetrics.DOWNLOAD_MS).percentile(1));
+        assertEquals(2000, metrics.histogram(DownloadMetrics.DOWNLOAD_BYTES_PER_SECOND).percentile(1));
+        assertEquals(4000 / 10, metrics.throughput(3000));
+    }
+
+    @Test
+    public void countsFailuresByReason() {
+        DownloadMetrics metrics = new DownloadMetrics();
+        metrics.downloadStarted(1, 0);
+        metrics.downloadStarted(2, 0);
+        metrics.downloadStarted(3, 0);
+        metrics.observe(1, status(1, DownloadManager.STATUS_FAILED, 0, -1, 404), 0, 10);
+        metrics.observe(2, status(2, DownloadManager.STATUS_FAILED, 0, -1, 404), 0, 10);
+        //listed under a coalesced handle
+        metrics.observe(3, status(-5, DownloadManager.STATUS_FAILED, 0, -1, DownloadService.ERROR_HASH_MISMATCH), 0, 10);
+
+        assertEquals(3, metrics.counter(DownloadMetrics.DOWNLOADS_FAILED));
+        assertEquals(2, metrics.counter(DownloadMetrics.DOWNLOADS_FAILED_REASON + 404));
+        assertEquals(1, metrics.counter(DownloadMetrics.DOWNLOADS_FAILED_REASON + DownloadService.ERROR_HASH_MISMATCH));
+    }
+
+    @Test
+    public void ignoresRemovedAndUnknownDownloads() {
+        DownloadMetrics metrics = new DownloadMetrics();
+        metrics.downloadStarted(1, 0);
+        metrics.downloadRemoved(1);
+        metrics.observe(1, status(1, DownloadService.STATUS_NOT_FOUND, 0, -1, 0), 0, 10);
+        metrics.observe(9, status(9, DownloadManager.STATUS_SUCCESSFUL, 10, 10, 0), 0, 10);
+
+        assertEquals(0, metrics.counter(DownloadMetrics.DOWNLOADS_FAILED));
+        assertEquals(0, metrics.counter(DownloadMetrics.DOWNLOADS_SUCCEEDED));
+    }
+
+    @Test
+    public void histogramPercentilesAreBucketBounds() {
+        DownloadMetrics.Histogram histogram = new DownloadMetrics.Histogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.count());
+        //50 is in [32, 64)
+        assertEquals(63, histogram.percentile(0.5));
+        assertEquals(100, histogram.percentile(0.99));
+        assertEquals(0, new DownloadMetrics.Histogram().percentile(0.5));
+    }
+
+    @Test
+    public void throughputForgetsOldSeconds() {
+        DownloadMetrics.Throughput throughput = new DownloadMetrics.Throughput(10);
+        throughput.add(10000, -500);
+        throughput.add(10000, 2500);
+        assertEquals(2000, throughput.rate(2500));
+        assertEquals(1000, throughput.rate(10500));
+        assertEquals(0, throughput.rate(30000));
+    }
+
+    @Test
+    public void snapshotHasOneLinePerMetric() {
+        DownloadMetrics metrics = new DownloadMetrics();
+        metrics.increment(DownloadMetrics.MOVES_RENAMED);
+        metrics.moveFinished(true, 100, 5000);
+        metrics.downloadStarted(4, DownloadMetrics.nowMs());
+        metrics.observe(4, status(4, DownloadManager.STATUS_RUNNING, 300, 1000, 0), 0, DownloadMetrics.nowMs());
+
+        List<String> lines = Arrays.asList(metrics.snapshot().split("\n"));
+        assertTrue(lines.toString(), lines.contains("c " + DownloadMetrics.MOVES_RENAMED + " 1"));
+        assertTrue(lines.toString(), lines.contains("c " + DownloadMetrics.DOWNLOADS_STARTED + " 1"));
+        assertTrue(lines.toString(), lines.contains("h " + DownloadMetrics.MOVE_MS + " 1 100 100 100 100 100 100"));
+        assertTrue(lines.toString(), lines.contains("g " + DownloadMetrics.THROUGHPUT + " 30"));
+        boolean running = false;
+        for (String line : lines) {
+            running |= line.startsWith("d 4 300 ");
+        }
+        assertTrue(lines.toString(), running);
+    }
+}
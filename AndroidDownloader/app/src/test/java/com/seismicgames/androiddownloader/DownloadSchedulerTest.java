@@ -0,0 +1,443 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class DownloadSchedulerTest {
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        //logcat and Unity aren't there
+        DownloadService.setLogLevel(Integer.MAX_VALUE);
+        DownloadService.setUnityLogLevel(Integer.MAX_VALUE);
+        server = new LocalHttpServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Engine whose downloads run until the test finishes them
+     */
+    static class FakeEngine implements DownloadEngine {
+        final List<String> started = new ArrayList<>();
+        final ConcurrentMap<Long, Integer> status = new ConcurrentHashMap<>();
+        final ConcurrentMap<Long, Long> sizes = new ConcurrentHashMap<>();
+        //preallocating files also reports their size, which is when they're allocated
+        volatile boolean preallocates;
+        private long nextId = 1;
+
+        @Override
+        public synchronized long enqueue(DownloadTask task) {
+            started.add(task.getUrl());
+            status.put(nextId, DownloadManager.STATUS_RUNNING);
+            sizes.put(nextId, task.getExpectedSize());
+            return nextId++;
+        }
+
+        synchronized void finish(int index) {
+            status.put((long) index + 1, DownloadManager.STATUS_SUCCESSFUL);
+        }
+
+        @Override
+        public boolean verifiesDigest() {
+            return false;
+        }
+
+        @Override
+        public boolean preallocates() {
+            return preallocates;
+        }
+
+        @Override
+        public boolean owns(long id) {
+            return status.containsKey(id);
+        }
+
+        @Override
+        public void query(long[] ids, long[] out) {
+            for (int i = 0; i < ids.length; i++) {
+                Integer state = status.get(ids[i]);
+                if (state == null) continue;
+                out[i * DownloadService.STATUS_STRIDE + DownloadService.STATUS_FIELD_STATUS] = state;
+                if (preallocates) {
+                    out[i * DownloadService.STATUS_STRIDE + DownloadService.STATUS_FIELD_TOTAL_BYTES] = sizes.get(ids[i]);
+                }
+            }
+        }
+
+        @Override
+        public FileInputStream openDownloadedFile(long id) {
+            return null;
+        }
+
+        @Override
+        public File getDownloadedFile(long id) {
+            return null;
+        }
+
+        @Override
+        public String getETag(long id) {
+            return null;
+        }
+
+        @Override
+        public boolean pause(long id) {
+            return status.replace(id, DownloadManager.STATUS_RUNNING, DownloadManager.STATUS_PAUSED);
+        }
+
+        @Override
+        public boolean resume(long id) {
+            return status.replace(id, DownloadManager.STATUS_PAUSED, DownloadManager.STATUS_RUNNING);
+        }
+
+        @Override
+        public boolean remove(long id) {
+            return status.remove(id) != null;
+        }
+    }
+
+    private static long[] query(DownloadEngine engine, long id) {
+        long[] status = new long[DownloadService.STATUS_STRIDE];
+        status[DownloadService.STATUS_FIELD_ID] = id;
+        status[DownloadService.STATUS_FIELD_STATUS] = DownloadService.STATUS_NOT_FOUND;
+        engine.query(new long[]{id}, status);
+        return status;
+    }
+
+    private static long enqueue(DownloadScheduler scheduler, String name, int priority) {
+        return scheduler.enqueue(new DownloadTask(name, name).setPriority(priority));
+    }
+
+    @Test
+    public void startsByPriorityThenAge() throws Exception {
+        FakeEngine engine = new FakeEngine();
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 1, 60000);
+
+        //keeps the only slot busy so the rest queue up
+        enqueue(scheduler, "blocker", DownloadService.PRIORITY_NORMAL);
+        scheduler.pump();
+        long low = enqueue(scheduler, "low", DownloadService.PRIORITY_LOW);
+        enqueue(scheduler, "normal1", DownloadService.PRIORITY_NORMAL);
+        enqueue(scheduler, "critical", DownloadService.PRIORITY_CRITICAL);
+        enqueue(scheduler, "normal2", DownloadService.PRIORITY_NORMAL);
+        scheduler.pump();
+
+        assertEquals(DownloadManager.STATUS_PENDING, query(scheduler, low)[DownloadService.STATUS_FIELD_STATUS]);
+        for (int i = 0; i < 5; i++) {
+            engine.finish(i);
+            scheduler.pump();
+        }
+        String[] expected = {"blocker", "critical", "normal1", "normal2", "low"};
+        assertEquals(Arrays.asList(expected), engine.started);
+    }
+
+    @Test
+    public void reprioritizesAndPausesQueuedDownloads() throws Exception {
+        FakeEngine engine = new FakeEngine();
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 1, 60000);
+
+        long blocker = enqueue(scheduler, "blocker", DownloadService.PRIORITY_NORMAL);
+        scheduler.pump();
+        long a = enqueue(scheduler, "a", DownloadService.PRIORITY_NORMAL);
+        long b = enqueue(scheduler, "b", DownloadService.PRIORITY_LOW);
+        long c = enqueue(scheduler, "c", DownloadService.PRIORITY_HIGH);
+
+        assertFalse(scheduler.setPriority(blocker, DownloadService.PRIORITY_CRITICAL));
+        assertTrue(scheduler.setPriority(b, DownloadService.PRIORITY_CRITICAL));
+        assertTrue(scheduler.pause(c));
+        assertEquals(DownloadManager.STATUS_PAUSED, query(scheduler, c)[DownloadService.STATUS_FIELD_STATUS]);
+
+        engine.finish(0);
+        scheduler.pump();
+        engine.finish(1);
+        scheduler.pump();
+        engine.finish(2);
+        scheduler.pump();
+        assertEquals(3, engine.started.size());
+
+        assertTrue(scheduler.resume(c));
+        scheduler.pump();
+        assertEquals(Arrays.asList("blocker", "b", "a", "c"), engine.started);
+        assertEquals(DownloadManager.STATUS_RUNNING, query(scheduler, c)[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(c, query(scheduler, c)[DownloadService.STATUS_FIELD_ID]);
+        assertTrue(scheduler.owns(a));
+    }
+
+    @Test
+    public void pausesStartedDownloadsInTheirEngine() throws Exception {
+        FakeEngine engine = new FakeEngine();
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 1, 60000);
+
+        long running = enqueue(scheduler, "running", DownloadService.PRIORITY_NORMAL);
+        scheduler.pump();
+        long queued = enqueue(scheduler, "queued", DownloadService.PRIORITY_NORMAL);
+
+        assertTrue(scheduler.pause(running));
+        assertFalse(scheduler.pause(running));
+        assertEquals(DownloadManager.STATUS_PAUSED, query(scheduler, running)[DownloadService.STATUS_FIELD_STATUS]);
+        //a paused download keeps its slot
+        scheduler.pump();
+        assertEquals(DownloadManager.STATUS_PENDING, query(scheduler, queued)[DownloadService.STATUS_FIELD_STATUS]);
+
+        assertTrue(scheduler.resume(running));
+        assertFalse(scheduler.resume(running));
+        assertEquals(DownloadManager.STATUS_RUNNING, query(scheduler, running)[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(Arrays.asList("running"), engine.started);
+    }
+
+    @Test
+    public void removedQueuedDownloadNeverStarts() throws Exception {
+        FakeEngine engine = new FakeEngine();
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 1, 60000);
+
+        enqueue(scheduler, "blocker", DownloadService.PRIORITY_NORMAL);
+        scheduler.pump();
+        long queued = enqueue(scheduler, "queued", DownloadService.PRIORITY_NORMAL);
+        assertTrue(scheduler.remove(queued));
+        assertFalse(scheduler.owns(queued));
+
+        engine.finish(0);
+        scheduler.pump();
+        assertEquals(1, engine.started.size());
+    }
+
+    /**
+     * Engine that shares a link evenly between its running downloads, on a clock only the test moves
+     */
+    static class LinkEngine extends FakeEngine {
+        final long bytesPerMs;
+        final ConcurrentMap<Long, Long> received = new ConcurrentHashMap<>();
+        long now;
+
+        LinkEngine(long bytesPerMs) {
+            this.bytesPerMs = bytesPerMs;
+        }
+
+        /**
+         * Let a millisecond pass
+         */
+        synchronized void tick() {
+            List<Long> running = new ArrayList<>();
+            for (Long id : status.keySet()) {
+                if (status.get(id) == DownloadManager.STATUS_RUNNING) running.add(id);
+            }
+            now++;
+            for (Long id : running) {
+                Long soFar = received.get(id);
+                long bytes = (soFar != null ? soFar : 0) + bytesPerMs / running.size();
+                received.put(id, bytes);
+                if (bytes >= sizes.get(id)) status.put(id, DownloadManager.STATUS_SUCCESSFUL);
+            }
+        }
+    }
+
+    /**
+     * Eight optional packs are requested before the one bundle the next scene needs, on a link that can't carry
+     * them all at once. Unlimited, the bundle shares the link with everything; limited to two, it starts as soon
+     * as the first slot frees up.
+     */
+    @Test
+    public void criticalDownloadFinishesFirstWhenLimited() throws Exception {
+        //a millisecond per download when it has the link to itself
+        int size = 9 * 1024;
+        long unlimited = timeToCritical(new LinkEngine(size), 0, size);
+        LinkEngine engine = new LinkEngine(size);
+        long limited = timeToCritical(engine, 2, size);
+
+        //everything shares from the start
+        assertEquals(9, unlimited);
+        //the bundle got one of the first slots, or the first one to free up
+        assertTrue("started " + engine.started, engine.started.indexOf("critical") <= 2);
+        assertTrue("limited took " + limited + "ms", limited <= 4);
+    }
+
+    private static long timeToCritical(LinkEngine engine, int maxInFlight, int size) {
+        DownloadScheduler scheduler = new DownloadScheduler(engine, maxInFlight, 60000);
+        for (int i = 0; i < 8; i++) {
+            scheduler.enqueue(new DownloadTask("cosmetic" + i, "cosmetic" + i)
+                    .setPriority(DownloadService.PRIORITY_LOW).setExpectedSize(size));
+        }
+        long critical = scheduler.enqueue(new DownloadTask("critical", "critical")
+                .setPriority(DownloadService.PRIORITY_CRITICAL).setExpectedSize(size));
+        scheduler.pump();
+        while (query(scheduler, critical)[DownloadService.STATUS_FIELD_STATUS] != DownloadManager.STATUS_SUCCESSFUL) {
+            assertTrue("critical still " + Arrays.toString(query(scheduler, critical)), engine.now < 100);
+            engine.tick();
+            scheduler.pump();
+        }
+        return engine.now;
+    }
+
+    /**
+     * Engine that doesn't return from enqueue until the test lets it
+     */
+    static class StuckEngine extends FakeEngine {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public long enqueue(DownloadTask task) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            return super.enqueue(task);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void slowEngineDoesntBlockCalls() throws Exception {
+        StuckEngine engine = new StuckEngine();
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 1, 60000);
+
+        long starting = enqueue(scheduler, "starting", DownloadService.PRIORITY_NORMAL);
+        engine.entered.await();
+        long queued = enqueue(scheduler, "queued", DownloadService.PRIORITY_NORMAL);
+        assertTrue(scheduler.setPriority(queued, DownloadService.PRIORITY_HIGH));
+        assertEquals(DownloadManager.STATUS_PENDING, query(scheduler, starting)[DownloadService.STATUS_FIELD_STATUS]);
+        assertTrue(scheduler.remove(queued));
+        assertTrue(scheduler.remove(starting));
+
+        //removed while it was being started, so it goes from the engine once it's there
+        engine.release.countDown();
+        scheduler.pump();
+        assertEquals(Arrays.asList("starting"), engine.started);
+        assertTrue(engine.status.isEmpty());
+    }
+
+    /**
+     * Budget of a volume with a fixed amount of free space
+     */
+    private static StorageBudget budget(final long usableBytes, boolean reserveMoveCopy) {
+        StorageBudget budget = new StorageBudget(null) {
+            @Override
+            long usableBytes() {
+                return usableBytes;
+            }
+        };
+        budget.set(0, reserveMoveCopy);
+        return budget;
+    }
+
+    private static long enqueue(DownloadScheduler scheduler, String name, int priority, long size) {
+        return scheduler.enqueue(new DownloadTask(name, name).setPriority(priority).setExpectedSize(size));
+    }
+
+    @Test
+    public void holdsBackDownloadsUntilTheyFit() throws Exception {
+        FakeEngine engine = new FakeEngine();
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 0, 60000);
+        StorageBudget budget = budget(1000, false);
+        scheduler.setStorageBudget(budget);
+
+        long big = enqueue(scheduler, "big", DownloadService.PRIORITY_HIGH, 600);
+        long next = enqueue(scheduler, "next", DownloadService.PRIORITY_NORMAL, 600);
+        long small = enqueue(scheduler, "small", DownloadService.PRIORITY_LOW, 100);
+        scheduler.pump();
+
+        assertEquals(Arrays.asList("big"), engine.started);
+        long[] status = query(scheduler, next);
+        assertEquals(DownloadManager.STATUS_PAUSED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadService.PAUSED_WAITING_FOR_SPACE, status[DownloadService.STATUS_FIELD_REASON]);
+        //would fit, but doesn't jump the queue
+        assertEquals(DownloadManager.STATUS_PENDING, query(scheduler, small)[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(400, scheduler.availableBytes(budget));
+
+        //finished downloads hold their space until they are moved
+        engine.finish(0);
+        scheduler.pump();
+        assertEquals(1, engine.started.size());
+
+        assertTrue(scheduler.remove(big));
+        scheduler.pump();
+        assertEquals(Arrays.asList("big", "next", "small"), engine.started);
+        assertEquals(300, scheduler.availableBytes(budget));
+    }
+
+    @Test
+    public void preallocatedDownloadsOnlyHoldTheirMoveCopy() throws Exception {
+        FakeEngine engine = new FakeEngine();
+        engine.preallocates = true;
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 0, 60000);
+        StorageBudget budget = budget(1000, true);
+        scheduler.setStorageBudget(budget);
+
+        enqueue(scheduler, "big", DownloadService.PRIORITY_HIGH, 300);
+        long next = enqueue(scheduler, "next", DownloadService.PRIORITY_NORMAL, 300);
+        scheduler.pump();
+        //free space already went down by the first file once it started, only its copy is still to come
+        scheduler.pump();
+        assertEquals(Arrays.asList("big", "next"), engine.started);
+        assertEquals(400, scheduler.availableBytes(budget));
+        assertTrue(scheduler.remove(next));
+        assertEquals(700, scheduler.availableBytes(budget));
+    }
+
+    @Test
+    public void failsDownloadsThatCanNeverFit() throws Exception {
+        FakeEngine engine = new FakeEngine();
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 0, 60000);
+        //and once more for moving it
+        scheduler.setStorageBudget(budget(1000, true));
+
+        long huge = enqueue(scheduler, "huge", DownloadService.PRIORITY_HIGH, 600);
+        long unknown = enqueue(scheduler, "unknown", DownloadService.PRIORITY_NORMAL, -1);
+        enqueue(scheduler, "fits", DownloadService.PRIORITY_LOW, 500);
+        scheduler.pump();
+
+        long[] status = query(scheduler, huge);
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadManager.ERROR_INSUFFICIENT_SPACE, status[DownloadService.STATUS_FIELD_REASON]);
+        //a size that can't be found out doesn't hold anything back
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engine.started.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            scheduler.pump();
+        }
+        assertEquals(Arrays.asList("unknown", "fits"), engine.started);
+        assertEquals(DownloadManager.STATUS_RUNNING, query(scheduler, unknown)[DownloadService.STATUS_FIELD_STATUS]);
+    }
+
+    @Test
+    public void probesUnknownSizes() throws Exception {
+        server.put("/pack.bin", LocalHttpServer.randomBytes(5000, 1));
+        FakeEngine engine = new FakeEngine();
+        DownloadScheduler scheduler = new DownloadScheduler(engine, 0, 10);
+        StorageBudget budget = budget(12000, true);
+        scheduler.setStorageBudget(budget);
+
+        long first = scheduler.enqueue(new DownloadTask(server.url("/pack.bin"), "first"));
+        long second = scheduler.enqueue(new DownloadTask(server.url("/pack.bin"), "second"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (query(scheduler, second)[DownloadService.STATUS_FIELD_STATUS] == DownloadManager.STATUS_PENDING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(DownloadManager.STATUS_RUNNING, query(scheduler, first)[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadService.PAUSED_WAITING_FOR_SPACE,
+                query(scheduler, second)[DownloadService.STATUS_FIELD_REASON]);
+        assertEquals(2000, scheduler.availableBytes(budget));
+        assertEquals(1, engine.started.size());
+    }
+}
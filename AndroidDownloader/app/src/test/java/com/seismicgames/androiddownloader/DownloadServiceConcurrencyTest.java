@@ -0,0 +1,336 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class DownloadServiceConcurrencyTest {
+    private static final int THREADS = 8;
+
+    /**
+     * Runs downloads forever, and counts what's asked of it
+     */
+    static class CountingEngine implements DownloadEngine {
+        final AtomicLong nextId = new AtomicLong(1);
+        final ConcurrentMap<Long, String> running = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, AtomicInteger> startsByUrl = new ConcurrentHashMap<>();
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+
+        @Override
+        public long enqueue(DownloadTask task) {
+            long id = nextId.getAndIncrement();
+            running.put(id, task.getUrl());
+            startsByUrl.putIfAbsent(task.getUrl(), new AtomicInteger());
+            startsByUrl.get(task.getUrl()).incrementAndGet();
+            started.incrementAndGet();
+            return id;
+        }
+
+        @Override
+        public boolean verifiesDigest() {
+            return true;
+        }
+
+        @Override
+        public boolean preallocates() {
+            return false;
+        }
+
+        @Override
+        public boolean owns(long id) {
+            return running.containsKey(id);
+        }
+
+        @Override
+        public void query(long[] ids, long[] out) {
+            for (int i = 0; i < ids.length; i++) {
+                if (!running.containsKey(ids[i])) continue;
+                int offset = i * DownloadService.STATUS_STRIDE;
+                out[offset + DownloadService.STATUS_FIELD_STATUS] = DownloadManager.STATUS_RUNNING;
+                out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = 1024;
+                out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = 4096;
+            }
+        }
+
+        @Override
+        public FileInputStream openDownloadedFile(long id) throws IOException {
+            return null;
+        }
+
+        @Override
+        public File getDownloadedFile(long id) {
+            return null;
+        }
+
+        @Override
+        public String getETag(long id) {
+            return null;
+        }
+
+        @Override
+        public boolean pause(long id) {
+            return false;
+        }
+
+        @Override
+        public boolean resume(long id) {
+            return false;
+        }
+
+        @Override
+        public boolean remove(long id) {
+            if (running.remove(id) == null) return false;
+            removed.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Finishes every download right away with the same bytes
+     */
+    static class FinishedEngine extends CountingEngine {
+        final File dir;
+        final byte[] body;
+
+        FinishedEngine(File dir, byte[] body) {
+            this.dir = dir;
+            this.body = body;
+        }
+
+        @Override
+        public long enqueue(DownloadTask task) {
+            long id = super.enqueue(task);
+            try {
+                FileOutputStream output = new FileOutputStream(getDownloadedFile(id));
+                try {
+                    output.write(body);
+                } finally {
+                    output.close();
+                }
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            return id;
+        }
+
+        @Override
+        public boolean verifiesDigest() {
+            return false;
+        }
+
+        @Override
+        public void query(long[] ids, long[] out) {
+            for (int i = 0; i < ids.length; i++) {
+                if (!running.containsKey(ids[i])) continue;
+                int offset = i * DownloadService.STATUS_STRIDE;
+                out[offset + DownloadService.STATUS_FIELD_STATUS] = DownloadManager.STATUS_SUCCESSFUL;
+                out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = body.length;
+                out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = body.length;
+            }
+        }
+
+        @Override
+        public FileInputStream openDownloadedFile(long id) throws IOException {
+            return new FileInputStream(getDownloadedFile(id));
+        }
+
+        @Override
+        public File getDownloadedFile(long id) {
+            return new File(dir, "download" + id);
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CountingEngine engine;
+    private DownloadService service;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        //logcat and Unity aren't there
+        DownloadService.setLogLevel(Integer.MAX_VALUE);
+        DownloadService.setUnityLogLevel(Integer.MAX_VALUE);
+        engine = new CountingEngine();
+        service = new DownloadService(null, engine, null);
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Run work on every thread at once and wait for all of them
+     */
+    private void race(final Worker worker) throws Exception {
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    go.await();
+                    worker.run(thread);
+                    return null;
+                }
+            }));
+        }
+        go.countDown();
+        for (Future<?> future : futures) {
+            //rethrows whatever failed on the thread
+            future.get(60, TimeUnit.SECONDS);
+        }
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    @Test
+    public void startsPollsAndRemovesFromManyThreads() throws Exception {
+        final int iterations = 2000;
+        race(new Worker() {
+            @Override
+            public void run(int thread) {
+                Random random = new Random(thread);
+                List<String> held = new ArrayList<>();
+                for (int i = 0; i < iterations; i++) {
+                    //few enough urls that threads keep landing on each other's downloads
+                    String handle = service.startDownload("http://example.com/" + random.nextInt(40), "file",
+                            null, false);
+                    assertNotNull(handle);
+                    held.add(handle);
+
+                    String polled = held.get(random.nextInt(held.size()));
+                    int progress = service.checkStatus(polled);
+                    assertEquals(25, progress);
+                    long[] detailed = service.getProgressDetailed(polled);
+                    assertEquals(Long.parseLong(polled), detailed[DownloadService.STATUS_FIELD_ID]);
+                    assertEquals(4096, detailed[DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+
+                    if (held.size() > 5 || random.nextBoolean()) {
+                        service.removeDownload(held.remove(random.nextInt(held.size())));
+                    }
+                }
+                for (String handle : held) {
+                    service.removeDownload(handle);
+                }
+            }
+        });
+
+        assertEquals(0, service.registeredDownloads());
+        assertTrue(engine.running.isEmpty());
+        //every download was removed once, when its last handle went
+        assertEquals(engine.started.get(), engine.removed.get());
+        assertTrue(engine.started.get() < THREADS * iterations);
+        System.out.println("started " + engine.started.get() + " downloads for " + THREADS * iterations + " requests");
+    }
+
+    @Test
+    public void concurrentRequestsShareOneTransfer() throws Exception {
+        final String url = "http://example.com/pack.bin";
+        final int requests = 500;
+        final ConcurrentMap<String, Boolean> handles = new ConcurrentHashMap<>();
+        race(new Worker() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < requests; i++) {
+                    assertNull(handles.put(service.startDownload(url, "pack.bin", null, false), true));
+                }
+            }
+        });
+
+        assertEquals(1, engine.startsByUrl.get(url).get());
+        assertEquals(THREADS * requests, service.registeredDownloads());
+
+        final List<String> all = new ArrayList<>(handles.keySet());
+        race(new Worker() {
+            @Override
+            public void run(int thread) {
+                for (int i = thread; i < all.size(); i += THREADS) {
+                    service.removeDownload(all.get(i));
+                }
+            }
+        });
+
+        assertEquals(0, service.registeredDownloads());
+        assertEquals(1, engine.removed.get());
+        for (String handle : all) {
+            assertEquals(-1, service.checkStatus(handle));
+        }
+        //gone for good, the next request starts over
+        service.startDownload(url, "pack.bin", null, false);
+        assertEquals(2, engine.startsByUrl.get(url).get());
+    }
+
+    @Test
+    public void requestsWithOtherCredentialsOrNetworksDontShare() {
+        String url = "http://example.com/pack.bin";
+        String wifi = service.startDownload(url, "pack.bin", null, false);
+        assertNotEquals(wifi, service.startDownload(url, "pack.bin", null, true));
+        assertNotEquals(wifi, service.startDownload(url, "pack.bin", "session=1", false));
+        assertEquals(3, engine.startsByUrl.get(url).get());
+
+        //the same again attaches
+        service.startDownload(url, "pack.bin", "session=1", false);
+        assertEquals(3, engine.startsByUrl.get(url).get());
+    }
+
+    @Test
+    public void requestDuringLastMoveStartsOver() throws Exception {
+        final String url = "http://example.com/pack.bin";
+        final byte[] body = LocalHttpServer.randomBytes(3 * 1024 * 1024, 1);
+        final String digest = StreamingDigestTest.sha256(body);
+        FinishedEngine finished = new FinishedEngine(folder.newFolder(), body);
+        final DownloadService service = new DownloadService(null, finished, null);
+
+        String first = service.startDownload(url, "pack.bin", null, false, "SHA-256", digest);
+        final String[] second = new String[1];
+        //asked for again while the moved file is being verified
+        service.moveFile(Long.parseLong(first), folder.newFile("first.bin"), new FileTransfers.Listener() {
+            @Override
+            public boolean onProgress(long copied, long total) {
+                if (second[0] == null) {
+                    second[0] = service.startDownload(url, "pack.bin", null, false, "SHA-256", digest);
+                }
+                return true;
+            }
+        });
+        assertNotNull(second[0]);
+        assertEquals(2, finished.startsByUrl.get(url).get());
+
+        File dest = folder.newFile("second.bin");
+        service.moveFile(Long.parseLong(second[0]), dest, null);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(new FileInputStream(dest)));
+        assertEquals(0, service.registeredDownloads());
+    }
+}
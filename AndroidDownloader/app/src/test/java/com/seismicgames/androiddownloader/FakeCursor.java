@@ -0,0 +1,266 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * In-memory cursor shaped like the ones DownloadManager returns, counting lookups of columns by name. Rows are
+ * id, status, bytes so far, total bytes and reason, the local URI is always null.
+ */
+class FakeCursor implements Cursor {
+    //DownloadManager's own column order
+    static final String[] COLUMNS = {DownloadManager.COLUMN_ID, DownloadManager.COLUMN_TITLE,
+            DownloadManager.COLUMN_DESCRIPTION, DownloadManager.COLUMN_URI, DownloadManager.COLUMN_MEDIA_TYPE,
+            DownloadManager.COLUMN_TOTAL_SIZE_BYTES, DownloadManager.COLUMN_LOCAL_URI, DownloadManager.COLUMN_STATUS,
+            DownloadManager.COLUMN_REASON, DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR,
+            DownloadManager.COLUMN_LAST_MODIFIED_TIMESTAMP, DownloadManager.COLUMN_MEDIAPROVIDER_URI,
+            DownloadManager.COLUMN_LOCAL_FILENAME};
+
+    private final String[] columns;
+    private final long[][] rows;
+    private int position = -1;
+    private boolean closed;
+    int columnIndexLookups;
+
+    FakeCursor(long[]... rows) {
+        this(COLUMNS, rows);
+    }
+
+    FakeCursor(String[] columns, long[]... rows) {
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Start over, the way a fresh query would
+     */
+    FakeCursor rewind() {
+        position = -1;
+        closed = false;
+        return this;
+    }
+
+    private long value(int column) {
+        String name = columns[column];
+        long[] row = rows[position];
+        if (name.equals(DownloadManager.COLUMN_ID)) return row[0];
+        if (name.equals(DownloadManager.COLUMN_STATUS)) return row[1];
+        if (name.equals(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR)) return row[2];
+        if (name.equals(DownloadManager.COLUMN_TOTAL_SIZE_BYTES)) return row[3];
+        if (name.equals(DownloadManager.COLUMN_REASON)) return row[4];
+        return 0;
+    }
+
+    @Override
+    public int getCount() {
+        return rows.length;
+    }
+
+    @Override
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(position + offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        this.position = Math.max(-1, Math.min(rows.length, position));
+        return this.position >= 0 && this.position < rows.length;
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(rows.length - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(position + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(position - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return position == 0 && rows.length > 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return position == rows.length - 1 && rows.length > 0;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return position < 0;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return position >= rows.length;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        columnIndexLookups++;
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(columnName)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index < 0) throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        return index;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return columns[columnIndex];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columns.clone();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        return null;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        return null;
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        buffer.sizeCopied = 0;
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) value(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) value(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        return value(columnIndex);
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return value(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        return value(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        return FIELD_TYPE_INTEGER;
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return false;
+    }
+
+    @Override
+    @Deprecated
+    public void deactivate() {
+    }
+
+    @Override
+    @Deprecated
+    public boolean requery() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void setNotificationUri(ContentResolver cr, Uri uri) {
+    }
+
+    @Override
+    public Uri getNotificationUri() {
+        return null;
+    }
+
+    @Override
+    public boolean getWantsAllOnMoveCalls() {
+        return false;
+    }
+
+    @Override
+    public void setExtras(Bundle extras) {
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return null;
+    }
+
+    @Override
+    public Bundle respond(Bundle extras) {
+        return null;
+    }
+}
@@ -0,0 +1,98 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FileSinkTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesFromPositionInLargeWrites() throws Exception {
+        BufferPool pool = new BufferPool(64 * 1000, 1000, 4);
+        byte[] body = LocalHttpServer.randomBytes(200 * 1000 + 3, 1);
+        File file = folder.newFile("sink.bin");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileTransfers.preallocate(raf, 10 + body.length);
+        FileSink sink = new FileSink(raf.getChannel(), 10, pool, new SyncPolicy());
+        try {
+            for (int offset = 0; offset < body.length; offset += 1000) {
+                int n = Math.min(1000, body.length - offset);
+                System.arraycopy(body, offset, sink.scratch(), 0, n);
+                sink.write(n);
+                assertEquals(10 + offset + n, sink.position());
+                //only whole buffers reach the file until the end
+                assertEquals(0, (sink.flushedPosition() - 10) % (64 * 1000));
+            }
+            sink.finish();
+            assertEquals(10 + body.length, sink.flushedPosition());
+        } finally {
+            sink.release();
+            raf.close();
+        }
+
+        byte[] written = RangeDownloadEngineTest.readAll(new FileInputStream(file));
+        assertEquals(10 + body.length, written.length);
+        assertTrue(Arrays.equals(body, Arrays.copyOfRange(written, 10, written.length)));
+    }
+
+    @Test
+    public void reusesReleasedBuffers() throws Exception {
+        BufferPool pool = new BufferPool(4096, 1024, 2);
+        RandomAccessFile raf = new RandomAccessFile(folder.newFile("sink.bin"), "rw");
+        try {
+            for (int i = 0; i < 10; i++) {
+                FileSink sink = new FileSink(raf.getChannel(), 0, pool, new SyncPolicy());
+                sink.write(100);
+                sink.release();
+                //releasing twice must not pool the buffer twice
+                sink.release();
+            }
+            assertEquals(1, pool.allocated.get());
+
+            FileSink a = new FileSink(raf.getChannel(), 0, pool, new SyncPolicy());
+            FileSink b = new FileSink(raf.getChannel(), 0, pool, new SyncPolicy());
+            assertNotSame(a.scratch(), b.scratch());
+            a.release();
+            b.release();
+            assertEquals(2, pool.allocated.get());
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void syncPolicyModes() {
+        SyncPolicy policy = new SyncPolicy();
+        assertTrue(policy.syncsPeriodically());
+        assertFalse(policy.isDue(SyncPolicy.DEFAULT_INTERVAL_BYTES - 1));
+        assertTrue(policy.isDue(SyncPolicy.DEFAULT_INTERVAL_BYTES));
+
+        policy.set(SyncPolicy.ON_COMPLETION, 0);
+        assertFalse(policy.isDue(Long.MAX_VALUE));
+        assertTrue(policy.syncsOnCompletion());
+
+        policy.set(SyncPolicy.NEVER, 0);
+        assertFalse(policy.syncsOnCompletion());
+
+        try {
+            policy.set(SyncPolicy.EVERY_N_BYTES, 0);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            policy.set(7, 1024);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(SyncPolicy.NEVER, policy.getMode());
+    }
+}
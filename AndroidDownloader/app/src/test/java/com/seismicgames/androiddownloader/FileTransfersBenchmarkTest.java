@@ -0,0 +1,95 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the old 4 KB stream copy of moveFile with the channel copy and rename that replaced it
+ */
+public class FileTransfersBenchmarkTest {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void copyAndRenameBeatStreamCopy() throws Exception {
+        File source = folder.newFile("download.bin");
+        byte[] chunk = LocalHttpServer.randomBytes(1024 * 1024, 5);
+        OutputStream out = new FileOutputStream(source);
+        for (int i = 0; i < FILE_SIZE / chunk.length; i++) {
+            out.write(chunk);
+        }
+        out.close();
+
+        long streamNanos = Long.MAX_VALUE;
+        long channelNanos = Long.MAX_VALUE;
+        long renameNanos = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            File dest = new File(folder.getRoot(), "stream" + round);
+            long start = System.nanoTime();
+            streamCopy(new FileInputStream(source), new FileOutputStream(dest));
+            streamNanos = Math.min(streamNanos, System.nanoTime() - start);
+            assertEquals(FILE_SIZE, dest.length());
+
+            dest = new File(folder.getRoot(), "channel" + round);
+            start = System.nanoTime();
+            assertEquals(FILE_SIZE, FileTransfers.copy(new FileInputStream(source), dest));
+            channelNanos = Math.min(channelNanos, System.nanoTime() - start);
+            assertEquals(FILE_SIZE, dest.length());
+
+            File moved = new File(folder.getRoot(), "renamed" + round);
+            start = System.nanoTime();
+            assertTrue(FileTransfers.rename(dest, moved));
+            renameNanos = Math.min(renameNanos, System.nanoTime() - start);
+            assertFalse(dest.exists());
+            assertEquals(FILE_SIZE, moved.length());
+        }
+
+        System.out.printf("moveFile of %d MB: stream copy %d MB/s, channel copy %d MB/s, rename %d MB/s%n",
+                FILE_SIZE >> 20, mbPerSecond(streamNanos), mbPerSecond(channelNanos), mbPerSecond(renameNanos));
+        assertTrue(renameNanos < streamNanos);
+    }
+
+    @Test
+    public void copyKeepsContent() throws Exception {
+        File source = folder.newFile("download.bin");
+        byte[] body = LocalHttpServer.randomBytes(100 * 1000 + 7, 6);
+        OutputStream out = new FileOutputStream(source);
+        out.write(body);
+        out.close();
+
+        File dest = new File(folder.getRoot(), "dest.bin");
+        assertEquals(body.length, FileTransfers.copy(new FileInputStream(source), dest));
+        assertTrue(Arrays.equals(body, RangeDownloadEngineTest.readAll(new FileInputStream(dest))));
+    }
+
+    private static long mbPerSecond(long nanos) {
+        return (FILE_SIZE * 1000000000L / Math.max(1, nanos)) >> 20;
+    }
+
+    /**
+     * What moveFile used to do
+     */
+    private static void streamCopy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[1024 * 4];
+        int n;
+        while (-1 != (n = input.read(buffer))) {
+            output.write(buffer, 0, n);
+        }
+        input.close();
+        output.close();
+    }
+}
@@ -0,0 +1,307 @@
+package com.seismicgames.androiddownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in HTTP server for JVM tests, serves byte arrays with optional Range support and throttling per connection
+ * or for the whole server. Keeps connections alive and answers pipelined requests in order. Failures can be
+ * injected per path, as error responses or bodies cut short.
+ */
+class LocalHttpServer {
+    /**
+     * What goes wrong with one response
+     */
+    private static class Fault {
+        //error to respond with, 0 to cut the body short instead
+        final int code;
+        final String retryAfter;
+        //bytes of the body sent before the connection is dropped
+        final int bytes;
+
+        Fault(int code, String retryAfter, int bytes) {
+            this.code = code;
+            this.retryAfter = retryAfter;
+            this.bytes = bytes;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> resources = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Deque<Fault>> faults = new ConcurrentHashMap<>();
+
+    final AtomicInteger requestCount = new AtomicInteger();
+    final AtomicInteger connectionCount = new AtomicInteger();
+    final AtomicLong bytesServed = new AtomicLong();
+    final List<String> rangeHeaders = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> requestedPaths = Collections.synchronizedList(new ArrayList<String>());
+    final List<String> cookieHeaders = Collections.synchronizedList(new ArrayList<String>());
+
+    private volatile boolean rangesSupported = true;
+    private volatile long bytesPerSecondPerConnection = 0;
+    private volatile long totalBytesPerSecond = 0;
+    private volatile long connectionSetupMs = 0;
+    private volatile int requestsPerConnection = 0;
+    private volatile boolean chunked;
+    //requests served per client address, which is one per connection
+    private final ConcurrentMap<InetSocketAddress, AtomicInteger> connections = new ConcurrentHashMap<>();
+    //guarded by this, when the shared link is free again
+    private long linkFreeAtNanos;
+
+    LocalHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    serve(exchange);
+                } catch (IOException ignored) {
+                    //client went away
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    void put(String path, byte[] body) {
+        resources.put(path, body);
+    }
+
+    static String etag(byte[] body) {
+        return "\"" + Integer.toHexString(Arrays.hashCode(body)) + "-" + body.length + "\"";
+    }
+
+    void setRangesSupported(boolean rangesSupported) {
+        this.rangesSupported = rangesSupported;
+    }
+
+    void setBytesPerSecondPerConnection(long bytesPerSecondPerConnection) {
+        this.bytesPerSecondPerConnection = bytesPerSecondPerConnection;
+    }
+
+    /**
+     * Share one link of the given speed between all connections, like a phone on a slow network
+     */
+    void setTotalBytesPerSecond(long totalBytesPerSecond) {
+        this.totalBytesPerSecond = totalBytesPerSecond;
+    }
+
+    /**
+     * Delay the first response of every connection, like the TCP and TLS handshakes of a real server
+     */
+    void setConnectionSetupMs(long connectionSetupMs) {
+        this.connectionSetupMs = connectionSetupMs;
+    }
+
+    /**
+     * Close every connection after this many responses, 0 to keep them open
+     */
+    void setRequestsPerConnection(int requestsPerConnection) {
+        this.requestsPerConnection = requestsPerConnection;
+    }
+
+    /**
+     * Send bodies with chunked transfer encoding instead of a Content-Length
+     */
+    void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Answer the next requests for path with an error
+     *
+     * @param retryAfter - Retry-After header to send, may be null
+     */
+    void failNext(String path, int times, int code, String retryAfter) {
+        for (int i = 0; i < times; i++) {
+            faults(path).add(new Fault(code, retryAfter, 0));
+        }
+    }
+
+    /**
+     * Drop the connection of the next requests for path after sending part of the body
+     *
+     * @param bytes - bytes of the response body sent before
+     */
+    void cutNext(String path, int times, int bytes) {
+        for (int i = 0; i < times; i++) {
+            faults(path).add(new Fault(0, null, bytes));
+        }
+    }
+
+    private Deque<Fault> faults(String path) {
+        Deque<Fault> pathFaults = faults.get(path);
+        if (pathFaults == null) {
+            faults.putIfAbsent(path, new ConcurrentLinkedDeque<Fault>());
+            pathFaults = faults.get(path);
+        }
+        return pathFaults;
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        AtomicInteger served = connections.get(exchange.getRemoteAddress());
+        if (served == null) {
+            connectionCount.incrementAndGet();
+            connections.put(exchange.getRemoteAddress(), served = new AtomicInteger());
+            if (connectionSetupMs > 0) {
+                try {
+                    Thread.sleep(connectionSetupMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        if (requestsPerConnection > 0 && served.incrementAndGet() >= requestsPerConnection) {
+            exchange.getResponseHeaders().set("Connection", "close");
+            //the client may reuse its port for the next connection
+            connections.remove(exchange.getRemoteAddress());
+        }
+
+        requestedPaths.add(exchange.getRequestURI().getPath());
+        String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+        if (cookie != null) cookieHeaders.add(cookie);
+        byte[] body = resources.get(exchange.getRequestURI().getPath());
+        if (body == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        Deque<Fault> pathFaults = faults.get(exchange.getRequestURI().getPath());
+        Fault fault = pathFaults != null ? pathFaults.poll() : null;
+        if (fault != null && fault.code > 0) {
+            if (fault.retryAfter != null) exchange.getResponseHeaders().set("Retry-After", fault.retryAfter);
+            exchange.sendResponseHeaders(fault.code, -1);
+            return;
+        }
+
+        String etag = etag(body);
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Accept-Ranges", rangesSupported ? "bytes" : "none");
+
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        if (range != null) rangeHeaders.add(range);
+
+        int start = 0;
+        int end = body.length;
+        int code = 200;
+        if (rangesSupported && range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(etag))) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            end = bounds[1].isEmpty() ? body.length : Math.min(body.length, Integer.parseInt(bounds[1]) + 1);
+            if (start >= body.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + body.length);
+        }
+
+        int length = end - start;
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            //the server would drop a length passed for HEAD
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(code, length == 0 ? -1 : chunked ? 0 : length);
+        if (length == 0) return;
+
+        OutputStream out = exchange.getResponseBody();
+        long rate = bytesPerSecondPerConnection;
+        long began = System.nanoTime();
+        int chunk = 8 * 1024;
+        for (int position = start; position < end; position += chunk) {
+            int n = Math.min(chunk, end - position);
+            if (fault != null && position - start + n > fault.bytes) {
+                out.write(body, position, Math.max(0, fault.bytes - (position - start)));
+                out.flush();
+                //closing short of the length drops the connection
+                connections.remove(exchange.getRemoteAddress());
+                return;
+            }
+            if (totalBytesPerSecond > 0 && !awaitLink(n)) return;
+            out.write(body, position, n);
+            bytesServed.addAndGet(n);
+            if (rate > 0) {
+                long due = began + (position + n - start) * 1000000000L / rate;
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+        out.close();
+    }
+
+    /**
+     * Book the shared link for n bytes and wait for the booked slot
+     *
+     * @return - false if interrupted
+     */
+    private boolean awaitLink(int n) {
+        long due;
+        synchronized (this) {
+            long now = System.nanoTime();
+            linkFreeAtNanos = Math.max(now, linkFreeAtNanos) + n * 1000000000L / totalBytesPerSecond;
+            due = linkFreeAtNanos;
+        }
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
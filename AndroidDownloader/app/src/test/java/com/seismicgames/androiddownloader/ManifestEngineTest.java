@@ -0,0 +1,157 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ManifestEngineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+    private DownloadService service;
+    private File content;
+
+    @Before
+    public void setUp() throws Exception {
+        //logcat and Unity aren't there
+        DownloadService.setLogLevel(Integer.MAX_VALUE);
+        DownloadService.setUnityLogLevel(Integer.MAX_VALUE);
+        server = new LocalHttpServer();
+        File downloads = folder.newFolder("downloads");
+        service = new DownloadService(null, new RangeDownloadEngine(downloads, 4, 256 * 1024), downloads);
+        content = folder.newFolder("content");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    private String writeManifest(String... lines) throws Exception {
+        File file = new File(content, "manifest.tsv");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (String line : lines) {
+                out.write((line + "\n").getBytes("UTF-8"));
+            }
+        } finally {
+            out.close();
+        }
+        return file.getPath();
+    }
+
+    private static String line(String url, byte[] body, String dest) throws Exception {
+        return url + "\t" + body.length + "\tSHA-256:" + StreamingDigestTest.sha256(body) + "\t" + dest;
+    }
+
+    private long[] awaitFinished(String handle) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            long[] status = service.checkStatusBatch(new long[]{Long.parseLong(handle)});
+            long state = status[DownloadService.STATUS_FIELD_STATUS];
+            if (state == DownloadManager.STATUS_SUCCESSFUL || state == DownloadManager.STATUS_FAILED) return status;
+            Thread.sleep(10);
+        }
+        fail("manifest " + handle + " did not finish");
+        return null;
+    }
+
+    private static byte[] read(File file) throws Exception {
+        return RangeDownloadEngineTest.readAll(new FileInputStream(file));
+    }
+
+    @Test
+    public void movesEveryFileAndReportsTotalProgress() throws Exception {
+        String[] lines = new String[21];
+        byte[][] small = new byte[20][];
+        long total = 0;
+        for (int i = 0; i < small.length; i++) {
+            small[i] = LocalHttpServer.randomBytes(1000 + i * 700, i);
+            server.put("/small/" + i, small[i]);
+            lines[i] = line(server.url("/small/" + i), small[i], "small/" + i + ".bin");
+            total += small[i].length;
+        }
+        byte[] big = LocalHttpServer.randomBytes(3 * 1024 * 1024, 99);
+        server.put("/big", big);
+        lines[20] = line(server.url("/big"), big, "big.bin");
+        total += big.length;
+
+        String handle = service.startManifest(writeManifest(lines));
+        assertNotNull(handle);
+        long[] status = awaitFinished(handle);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(total, status[DownloadService.STATUS_FIELD_BYTES_SO_FAR]);
+        assertEquals(total, status[DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+        assertEquals(100, service.checkStatus(handle));
+        assertTrue(Arrays.equals(new int[]{21, 0, 21}, service.getManifestFileCounts(handle)));
+        for (int i = 0; i < small.length; i++) {
+            assertArrayEquals(small[i], read(new File(content, "small/" + i + ".bin")));
+        }
+        assertArrayEquals(big, read(new File(content, "big.bin")));
+
+        //only the manifest's own handle is left
+        assertEquals(1, service.registeredDownloads());
+        service.removeDownload(handle);
+        assertEquals(0, service.registeredDownloads());
+        assertEquals(-1, service.checkStatus(handle));
+    }
+
+    @Test
+    public void failedFilesFailManifestOnceTheRestMoved() throws Exception {
+        byte[] good = LocalHttpServer.randomBytes(4000, 1);
+        byte[] corrupt = LocalHttpServer.randomBytes(4000, 2);
+        server.put("/good", good);
+        server.put("/corrupt", corrupt);
+        String handle = service.startManifest(writeManifest(
+                "# update",
+                line(server.url("/missing"), good, "missing.bin"),
+                line(server.url("/good"), good, "good.bin"),
+                server.url("/corrupt") + "\t4000\tSHA-256:" + StreamingDigestTest.sha256(good) + "\tcorrupt.bin"));
+        long[] status = awaitFinished(handle);
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(404, service.getError(handle));
+        assertTrue(Arrays.equals(new int[]{1, 2, 3}, service.getManifestFileCounts(handle)));
+        assertArrayEquals(good, read(new File(content, "good.bin")));
+        assertFalse(new File(content, "missing.bin").exists());
+        assertFalse(new File(content, "corrupt.bin").exists());
+        assertEquals(1, service.registeredDownloads());
+    }
+
+    @Test
+    public void filesUseTheManifestsCookie() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(4000, 3);
+        server.put("/a", body);
+        server.put("/b", body);
+        String handle = service.startManifest(writeManifest(
+                line(server.url("/a"), body, "a.bin"),
+                line(server.url("/b"), body, "b.bin")), null, "session=7", true);
+        long[] status = awaitFinished(handle);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(Arrays.asList("session=7", "session=7"), server.cookieHeaders);
+    }
+
+    @Test
+    public void unreadableManifestFails() throws Exception {
+        String handle = service.startManifest(writeManifest("http://cdn/a\tbig\t-\ta"));
+        long[] status = awaitFinished(handle);
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadService.ERROR_APP, service.getError(handle));
+        assertTrue(Arrays.equals(new int[]{0, 0, 0}, service.getManifestFileCounts(handle)));
+    }
+}
@@ -0,0 +1,38 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NotificationTickerTest {
+
+    @Test
+    public void backsOffWhileStalled() {
+        NotificationTicker ticker = new NotificationTicker(1000, 30000);
+        assertEquals(1000, ticker.onTick(0));
+        assertEquals(2000, ticker.onTick(0));
+        assertEquals(4000, ticker.onTick(0));
+        assertEquals(8000, ticker.onTick(0));
+        assertEquals(16000, ticker.onTick(0));
+        assertEquals(30000, ticker.onTick(0));
+        assertEquals(30000, ticker.onTick(0));
+
+        //bytes arrived again
+        assertEquals(1000, ticker.onTick(500));
+        assertEquals(1000, ticker.onTick(900));
+    }
+
+    @Test
+    public void changeBringsNextTickForward() {
+        NotificationTicker ticker = new NotificationTicker(1000, 30000);
+        ticker.onTick(0);
+        ticker.onTick(0);
+        ticker.onTick(0);
+
+        //never closer than the minimum interval to the last tick
+        assertEquals(700, ticker.onChange(300));
+        assertEquals(0, ticker.onChange(5000));
+        //and the backoff starts over
+        assertEquals(2000, ticker.onTick(0));
+    }
+}
@@ -0,0 +1,112 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Downloads thousands of small files from a server that takes a while to set up each connection, with a connection
+ * per file like DownloadManager, with HttpURLConnection's keep-alive pool, and pipelined over pooled connections
+ */
+public class PipelinedDownloadBenchmarkTest {
+    private static final int FILES = 2000;
+    private static final int CONNECTIONS = 4;
+    //a TLS handshake on a fast network, phones on mobile networks take several times that
+    private static final long CONNECTION_SETUP_MS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+    private long totalBytes;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        server.setConnectionSetupMs(CONNECTION_SETUP_MS);
+        //10-200 KB, like most of the assets
+        byte[][] bodies = new byte[32][];
+        Random random = new Random(7);
+        for (int i = 0; i < bodies.length; i++) {
+            bodies[i] = LocalHttpServer.randomBytes(10 * 1024 + random.nextInt(190 * 1024), i);
+        }
+        for (int i = 0; i < FILES; i++) {
+            server.put("/asset/" + i, bodies[i % bodies.length]);
+            totalBytes += bodies[i % bodies.length].length;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * @return - nanoseconds until every file was downloaded
+     */
+    private long downloadAll(DownloadEngine engine) throws Exception {
+        long start = System.nanoTime();
+        long[] ids = new long[FILES];
+        for (int i = 0; i < FILES; i++) {
+            ids[i] = engine.enqueue(new DownloadTask(server.url("/asset/" + i), "asset" + i));
+        }
+        for (long id : ids) {
+            long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 120000);
+            assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        }
+        long nanos = System.nanoTime() - start;
+        for (long id : ids) {
+            engine.remove(id);
+        }
+        return nanos;
+    }
+
+    private String report(String name, long nanos, int connections) {
+        return String.format("%-22s %6d ms %6d files/s %5d MB/s %5d connections", name, nanos / 1000000,
+                FILES * 1000000000L / nanos, (totalBytes * 1000000000L / nanos) >> 20, connections);
+    }
+
+    @Test
+    public void pipeliningBeatsConnectionPerFile() throws Exception {
+        server.setRequestsPerConnection(1);
+        RangeDownloadEngine perFile = new RangeDownloadEngine(folder.newFolder("per-file"), CONNECTIONS,
+                RangeDownloadEngine.DEFAULT_SEGMENT_SIZE);
+        int connections = server.connectionCount.get();
+        long perFileNanos = downloadAll(perFile);
+        int perFileConnections = server.connectionCount.get() - connections;
+        perFile.shutdown();
+
+        server.setRequestsPerConnection(0);
+        RangeDownloadEngine keepAlive = new RangeDownloadEngine(folder.newFolder("keep-alive"), CONNECTIONS,
+                RangeDownloadEngine.DEFAULT_SEGMENT_SIZE);
+        connections = server.connectionCount.get();
+        long keepAliveNanos = downloadAll(keepAlive);
+        int keepAliveConnections = server.connectionCount.get() - connections;
+        keepAlive.shutdown();
+
+        PipelinedDownloadEngine pipelined = new PipelinedDownloadEngine(folder.newFolder("pipelined"), CONNECTIONS,
+                PipelinedDownloadEngine.DEFAULT_PIPELINE_DEPTH);
+        connections = server.connectionCount.get();
+        long pipelinedNanos = downloadAll(pipelined);
+        int pipelinedConnections = server.connectionCount.get() - connections;
+        pipelined.shutdown();
+
+        System.out.println(FILES + " files, " + (totalBytes >> 20) + " MB, " + CONNECTION_SETUP_MS
+                + " ms per connection setup");
+        System.out.println(report("connection per file", perFileNanos, perFileConnections));
+        System.out.println(report("keep-alive", keepAliveNanos, keepAliveConnections));
+        System.out.println(report("pipelined", pipelinedNanos, pipelinedConnections));
+
+        assertEquals(FILES, perFileConnections);
+        assertTrue(pipelinedConnections <= CONNECTIONS);
+        assertTrue(pipelinedNanos < perFileNanos);
+    }
+}
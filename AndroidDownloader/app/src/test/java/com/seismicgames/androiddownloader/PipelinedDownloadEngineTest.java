@@ -0,0 +1,215 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PipelinedDownloadEngineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+    private PipelinedDownloadEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        engine = new PipelinedDownloadEngine(folder.getRoot(), 2, 4);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+        server.stop();
+    }
+
+    private byte[][] serve(int count) {
+        byte[][] bodies = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            bodies[i] = LocalHttpServer.randomBytes(500 + i * 97, i);
+            server.put("/f" + i, bodies[i]);
+        }
+        return bodies;
+    }
+
+    private long[] enqueueAll(byte[][] bodies) throws Exception {
+        long[] ids = new long[bodies.length];
+        for (int i = 0; i < bodies.length; i++) {
+            ids[i] = engine.enqueue(new DownloadTask(server.url("/f" + i), "f" + i)
+                    .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(bodies[i])));
+        }
+        return ids;
+    }
+
+    private void assertDownloaded(byte[][] bodies, long[] ids) throws Exception {
+        for (int i = 0; i < ids.length; i++) {
+            long[] status = RangeDownloadEngineTest.awaitFinished(engine, ids[i], 10000);
+            assertEquals("file " + i, DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+            assertEquals(bodies[i].length, status[DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+            assertArrayEquals(bodies[i], RangeDownloadEngineTest.readAll(engine.openDownloadedFile(ids[i])));
+        }
+    }
+
+    @Test
+    public void downloadsManyFilesOverFewConnections() throws Exception {
+        byte[][] bodies = serve(200);
+        long[] ids = enqueueAll(bodies);
+        assertDownloaded(bodies, ids);
+
+        assertEquals(200, server.requestCount.get());
+        assertTrue("opened " + server.connectionCount.get(), server.connectionCount.get() <= 2);
+        assertEquals(LocalHttpServer.etag(bodies[0]), engine.getETag(ids[0]));
+        assertEquals(new File(folder.getRoot(), "f0"), engine.getDownloadedFile(ids[0]));
+    }
+
+    @Test
+    public void retriesRequestsServerClosedConnectionOn() throws Exception {
+        server.setRequestsPerConnection(3);
+        byte[][] bodies = serve(60);
+        long[] ids = enqueueAll(bodies);
+        assertDownloaded(bodies, ids);
+
+        assertTrue(server.connectionCount.get() >= 20);
+    }
+
+    @Test
+    public void readsChunkedResponses() throws Exception {
+        server.setChunked(true);
+        byte[][] bodies = serve(20);
+        long[] ids = enqueueAll(bodies);
+        assertDownloaded(bodies, ids);
+    }
+
+    @Test
+    public void failedFileLeavesConnectionUsable() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(3000, 1);
+        server.put("/good", body);
+        long missing = engine.enqueue(new DownloadTask(server.url("/missing"), "missing"));
+        long corrupt = engine.enqueue(new DownloadTask(server.url("/good"), "corrupt")
+                .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(new byte[1])));
+        long good = engine.enqueue(new DownloadTask(server.url("/good"), "good"));
+
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, missing, 10000);
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(404, status[DownloadService.STATUS_FIELD_REASON]);
+        status = RangeDownloadEngineTest.awaitFinished(engine, corrupt, 10000);
+        assertEquals(DownloadService.ERROR_HASH_MISMATCH, status[DownloadService.STATUS_FIELD_REASON]);
+        status = RangeDownloadEngineTest.awaitFinished(engine, good, 10000);
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(good)));
+    }
+
+    @Test
+    public void pausedFileStartsOverWhenResumed() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(200 * 1024, 2);
+        server.put("/slow", body);
+        server.setBytesPerSecondPerConnection(400 * 1024);
+        long id = engine.enqueue(new DownloadTask(server.url("/slow"), "slow"));
+        while (RangeDownloadEngineTest.query(engine, id)[DownloadService.STATUS_FIELD_BYTES_SO_FAR] == 0) {
+            Thread.sleep(5);
+        }
+
+        assertTrue(engine.pause(id));
+        assertEquals(DownloadManager.STATUS_PAUSED,
+                RangeDownloadEngineTest.query(engine, id)[DownloadService.STATUS_FIELD_STATUS]);
+        assertFalse(engine.pause(id));
+        server.setBytesPerSecondPerConnection(0);
+        assertTrue(engine.resume(id));
+
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 10000);
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+
+        assertTrue(engine.remove(id));
+        assertFalse(new File(folder.getRoot(), "slow").exists());
+        assertFalse(engine.owns(id));
+    }
+
+    @Test
+    public void holdsWifiOnlyFilesUntilWifi() throws Exception {
+        final boolean[] onWifi = new boolean[1];
+        PipelinedDownloadEngine held = new PipelinedDownloadEngine(folder.newFolder(), 2, 4, new RateLimiter(),
+                new SyncPolicy(), new NetworkPolicy() {
+                    @Override
+                    boolean isOnWifi() {
+                        synchronized (onWifi) {
+                            return onWifi[0];
+                        }
+                    }
+                });
+        try {
+            byte[][] bodies = serve(2);
+            long mobile = held.enqueue(new DownloadTask(server.url("/f0"), "f0").setAllowMobile(true));
+            long id = held.enqueue(new DownloadTask(server.url("/f1"), "f1"));
+            long[] status = RangeDownloadEngineTest.awaitFinished(held, mobile, 10000);
+            assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+
+            status = RangeDownloadEngineTest.query(held, id);
+            assertEquals(DownloadManager.STATUS_PAUSED, status[DownloadService.STATUS_FIELD_STATUS]);
+            assertEquals(DownloadManager.PAUSED_QUEUED_FOR_WIFI, status[DownloadService.STATUS_FIELD_REASON]);
+            assertEquals(1, server.requestCount.get());
+
+            synchronized (onWifi) {
+                onWifi[0] = true;
+            }
+            status = RangeDownloadEngineTest.awaitFinished(held, id, NetworkPolicy.CHECK_INTERVAL_MS + 10000);
+            assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+            assertArrayEquals(bodies[1], RangeDownloadEngineTest.readAll(held.openDownloadedFile(id)));
+        } finally {
+            held.shutdown();
+        }
+    }
+
+    @Test
+    public void failsOnceServerIsGone() throws Exception {
+        String url = server.url("/gone");
+        server.stop();
+        long id = engine.enqueue(new DownloadTask(url, "gone"));
+
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 10000);
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadManager.ERROR_HTTP_DATA_ERROR, status[DownloadService.STATUS_FIELD_REASON]);
+    }
+
+    @Test
+    public void leavesProxiedUrlsToOtherEngines() {
+        assertTrue(PipelinedDownloadEngine.canFetch("http://cdn.example.com/a"));
+        assertFalse(PipelinedDownloadEngine.canFetch("ftp://cdn.example.com/a"));
+
+        ProxySelector original = ProxySelector.getDefault();
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                if (!uri.getHost().equals("cdn.example.com")) return Collections.singletonList(Proxy.NO_PROXY);
+                return Collections.singletonList(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", 3128)));
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress address, IOException e) {
+            }
+        });
+        try {
+            assertFalse(PipelinedDownloadEngine.canFetch("http://cdn.example.com/a"));
+            assertFalse(PipelinedDownloadEngine.canFetch("https://cdn.example.com/a"));
+            assertTrue(PipelinedDownloadEngine.canFetch("https://other.example.com/a"));
+        } finally {
+            ProxySelector.setDefault(original);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProgressEstimatorTest {
+    private static final long GB = 1024L * 1024 * 1024;
+
+    @Test
+    public void estimatesSteadyDownloadPastFourGigabytes() {
+        ProgressEstimator estimator = new ProgressEstimator();
+        long total = 6 * GB;
+        long rate = 50L * 1024 * 1024;
+        long bytes = 5 * GB;
+        //polled every frame for 20 seconds
+        for (long ms = 0; ms <= 20000; ms += 16) {
+            estimator.sample(bytes + rate * ms / 1000, ms);
+        }
+        long last = bytes + rate * 20000 / 1000;
+
+        assertEquals(rate, estimator.getBytesPerSecond(), rate / 100);
+        assertEquals(rate, estimator.getSmoothedBytesPerSecond(), rate / 100);
+        assertEquals(rate, estimator.getAverageBytesPerSecond(), rate / 100);
+        assertEquals((total - last) * 1000 / rate, estimator.getEtaMs(total), 100);
+    }
+
+    @Test
+    public void smoothedRateFollowsChangeGradually() {
+        ProgressEstimator estimator = new ProgressEstimator();
+        long bytes = 0;
+        for (long ms = 0; ms <= 10000; ms += 100) {
+            estimator.sample(bytes, ms);
+            bytes += 100 * 1000;
+        }
+        //from 1MB/s down to 100KB/s
+        for (long ms = 10100; ms <= 11500; ms += 100) {
+            estimator.sample(bytes, ms);
+            bytes += 10 * 1000;
+        }
+
+        assertEquals(100 * 1000, estimator.getBytesPerSecond(), 1000);
+        long smoothed = estimator.getSmoothedBytesPerSecond();
+        assertTrue("smoothed " + smoothed, smoothed > 200 * 1000 && smoothed < 900 * 1000);
+        //the window still remembers the fast part
+        assertTrue(estimator.getAverageBytesPerSecond() > 500 * 1000);
+    }
+
+    @Test
+    public void forgetsSamplesOutsideWindow() {
+        ProgressEstimator estimator = new ProgressEstimator();
+        estimator.sample(0, 0);
+        estimator.sample(GB, 1000);
+        //stalled for longer than the window
+        for (long ms = 2000; ms <= 2000 + ProgressEstimator.WINDOW_MS + 1000; ms += 500) {
+            estimator.sample(GB, ms);
+        }
+
+        assertEquals(0, estimator.getBytesPerSecond());
+        assertEquals(0, estimator.getAverageBytesPerSecond());
+        assertEquals(-1, estimator.getEtaMs(2 * GB));
+        assertEquals(0, estimator.getEtaMs(GB));
+    }
+
+    @Test
+    public void knowsNothingFromOneSample() {
+        ProgressEstimator estimator = new ProgressEstimator();
+        assertEquals(-1, estimator.getEtaMs(1000));
+        estimator.sample(10, 0);
+        assertEquals(0, estimator.getBytesPerSecond());
+        assertEquals(0, estimator.getSmoothedBytesPerSecond());
+        assertEquals(-1, estimator.getEtaMs(1000));
+        assertEquals(-1, estimator.getEtaMs(-1));
+
+        //a download that starts over starts a new estimate
+        estimator.sample(1000, 1000);
+        estimator.sample(0, 2000);
+        assertEquals(0, estimator.getBytesPerSecond());
+    }
+}
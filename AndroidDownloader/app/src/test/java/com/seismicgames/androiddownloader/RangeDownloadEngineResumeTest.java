@@ -0,0 +1,247 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Kills a process in the middle of a download and checks that the next engine finishes it without fetching the
+ * bytes that already made it to disk again
+ */
+public class RangeDownloadEngineResumeTest {
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * Runs in the process that gets killed, prints the download id and waits
+     */
+    public static class Downloader {
+        public static void main(String[] args) throws Exception {
+            RangeDownloadEngine engine = new RangeDownloadEngine(new File(args[0]), 2, SEGMENT_SIZE);
+            long id = engine.enqueue(new DownloadTask(args[1], "pack.bin").setExpectedDigest("SHA-256", args[2]));
+            System.out.println(id);
+            System.out.flush();
+            Thread.sleep(60000);
+        }
+    }
+
+    @Test
+    public void resumesAfterProcessIsKilled() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(FILE_SIZE, 7);
+        server.put("/pack.bin", body);
+        server.setBytesPerSecondPerConnection(2 * 1024 * 1024);
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                Downloader.class.getName(), folder.getRoot().getPath(), server.url("/pack.bin"),
+                StreamingDigestTest.sha256(body)).start();
+        long id;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            id = Long.parseLong(reader.readLine().trim());
+
+            //both segments are past their first checkpoint, neither is done
+            long deadline = System.currentTimeMillis() + 20000;
+            while (server.bytesServed.get() < 5 * 1024 * 1024) {
+                assertTrue("child download stalled", System.currentTimeMillis() < deadline);
+                Thread.sleep(5);
+            }
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+
+        //whatever the killed process was sending when it died is lost
+        Thread.sleep(200);
+        long servedBefore = server.bytesServed.get();
+        int rangesBefore = server.rangeHeaders.size();
+        server.setBytesPerSecondPerConnection(0);
+
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 2, SEGMENT_SIZE);
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(FILE_SIZE, status[DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+
+        long servedAfter = server.bytesServed.get() - servedBefore;
+        assertTrue("downloaded " + servedAfter + " bytes again", servedAfter <= FILE_SIZE - 2 * RangeDownloadEngine.CHECKPOINT_BYTES);
+
+        List<String> resumed = new ArrayList<>(server.rangeHeaders.subList(rangesBefore, server.rangeHeaders.size()));
+        assertEquals(2, resumed.size());
+        for (String range : resumed) {
+            assertFalse(range, range.equals("bytes=0-" + (SEGMENT_SIZE - 1)));
+            assertFalse(range, range.startsWith("bytes=" + SEGMENT_SIZE + "-"));
+        }
+        engine.shutdown();
+    }
+
+    @Test
+    public void restartsWhenFileChangedOnServer() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(FILE_SIZE, 7);
+        server.put("/pack.bin", body);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 2, SEGMENT_SIZE);
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin"));
+        RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+        engine.shutdown();
+
+        //pretend the process died right after starting the download
+        File journalFile = new File(folder.getRoot(), DownloadJournal.FILE_NAME);
+        DownloadJournal journal = new DownloadJournal(journalFile);
+        DownloadJournal.Entry entry = journal.open().get(id);
+        journal.close();
+        assertNotNull(entry);
+        assertTrue(entry.isFinished());
+        keepFirstRecord(journalFile);
+
+        byte[] changed = LocalHttpServer.randomBytes(FILE_SIZE, 8);
+        server.put("/pack.bin", changed);
+        engine = new RangeDownloadEngine(folder.getRoot(), 2, SEGMENT_SIZE);
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(changed, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+        engine.shutdown();
+    }
+
+    @Test
+    public void keepsFinishedDownloadsAcrossEngines() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(1024, 3);
+        server.put("/small.bin", body);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 2, SEGMENT_SIZE);
+        long id = engine.enqueue(new DownloadTask(server.url("/small.bin"), "small.bin"));
+        RangeDownloadEngineTest.awaitFinished(engine, id, 10000);
+        engine.shutdown();
+
+        int requests = server.requestCount.get();
+        engine = new RangeDownloadEngine(folder.getRoot(), 2, SEGMENT_SIZE);
+        assertTrue(engine.owns(id));
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+        assertEquals(requests, server.requestCount.get());
+
+        assertTrue(engine.remove(id));
+        engine.shutdown();
+        engine = new RangeDownloadEngine(folder.getRoot(), 2, SEGMENT_SIZE);
+        assertFalse(engine.owns(id));
+        engine.shutdown();
+    }
+
+    @Test
+    public void pausesAndResumesWithoutRefetching() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(FILE_SIZE, 9);
+        server.put("/pack.bin", body);
+        server.setBytesPerSecondPerConnection(2 * 1024 * 1024);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 2, SEGMENT_SIZE);
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin")
+                .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(body)));
+
+        long deadline = System.currentTimeMillis() + 20000;
+        while (server.bytesServed.get() < 5 * 1024 * 1024) {
+            assertTrue("download stalled", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertTrue(engine.pause(id));
+        assertFalse(engine.pause(id));
+        long[] status = RangeDownloadEngineTest.query(engine, id);
+        assertEquals(DownloadManager.STATUS_PAUSED, status[DownloadService.STATUS_FIELD_STATUS]);
+
+        //whatever was on its way when the connections were dropped
+        Thread.sleep(200);
+        long servedBefore = server.bytesServed.get();
+        server.setBytesPerSecondPerConnection(0);
+        assertTrue(engine.resume(id));
+        assertFalse(engine.resume(id));
+        status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(FILE_SIZE, status[DownloadService.STATUS_FIELD_BYTES_SO_FAR]);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+        long servedAfter = server.bytesServed.get() - servedBefore;
+        assertTrue("downloaded " + servedAfter + " bytes again", servedAfter <= FILE_SIZE - 3 * 1024 * 1024);
+        assertFalse(engine.pause(id));
+        engine.shutdown();
+    }
+
+    @Test
+    public void journalKeepsWhatTheTaskAskedFor() throws Exception {
+        File journalFile = new File(folder.getRoot(), DownloadJournal.FILE_NAME);
+        DownloadJournal journal = new DownloadJournal(journalFile);
+        journal.open();
+        journal.started(-7, new DownloadTask("http://example.com/a", "a").setCookie("session=1")
+                .setAllowMobile(true).setPriority(DownloadService.PRIORITY_HIGH).setExpectedSize(1234)
+                .addRequestHeader("Authorization", "Bearer x").addMirror("http://mirror.example.com/a"),
+                "\"etag\"", "", 1234, SEGMENT_SIZE);
+        journal.close();
+
+        journal = new DownloadJournal(journalFile);
+        DownloadTask task = journal.open().get(-7L).toTask();
+        journal.close();
+        assertEquals("session=1", task.getCookie());
+        assertTrue(task.isAllowMobile());
+        assertEquals(DownloadService.PRIORITY_HIGH, task.getPriority());
+        assertEquals(1234, task.getExpectedSize());
+        assertEquals("Bearer x", task.getRequestHeaders().get("Authorization"));
+        assertEquals("http://mirror.example.com/a", task.getUrl(1));
+    }
+
+    @Test
+    public void takesOverJournalFromDownloadDirectory() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(1024, 4);
+        server.put("/small.bin", body);
+        File downloads = folder.newFolder("downloads");
+        RangeDownloadEngine engine = new RangeDownloadEngine(downloads, 2, SEGMENT_SIZE);
+        long id = engine.enqueue(new DownloadTask(server.url("/small.bin"), "small.bin"));
+        RangeDownloadEngineTest.awaitFinished(engine, id, 10000);
+        engine.shutdown();
+
+        File journalFile = new File(folder.getRoot(), "private/" + DownloadJournal.FILE_NAME);
+        engine = new RangeDownloadEngine(downloads, 2, SEGMENT_SIZE, new RateLimiter(), new SyncPolicy(),
+                new RetryPolicy(), new NetworkPolicy(), journalFile);
+        assertTrue(engine.owns(id));
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+        engine.shutdown();
+        assertTrue(journalFile.exists());
+        assertFalse(new File(downloads, DownloadJournal.FILE_NAME).exists());
+    }
+
+    /**
+     * Cut the journal after its first record, the way a crash right after appending it would
+     */
+    private static void keepFirstRecord(File journal) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            //length, record, checksum
+            raf.setLength(4 + raf.readInt() + 4);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.ServerSocket;
+
+import static org.junit.Assert.*;
+
+/**
+ * Failure injection against {@link LocalHttpServer}, with retries waiting milliseconds instead of seconds
+ */
+public class RangeDownloadEngineRetryTest {
+    private static final int FILE_SIZE = 1024 * 1024;
+    private static final int SEGMENT_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+    private RetryPolicy retryPolicy;
+    private RangeDownloadEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        retryPolicy = new RetryPolicy();
+        retryPolicy.set(4, 10, 50, RetryPolicy.NETWORK | RetryPolicy.SERVER | RetryPolicy.THROTTLED);
+        engine = new RangeDownloadEngine(folder.getRoot(), 4, SEGMENT_SIZE, new RateLimiter(), new SyncPolicy(),
+                retryPolicy);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+        server.stop();
+    }
+
+    private void assertDownloaded(byte[] body, long id) throws Exception {
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 10000);
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+    }
+
+    @Test
+    public void retriesServerErrors() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(FILE_SIZE, 1);
+        server.put("/pack.bin", body);
+        server.failNext("/pack.bin", 3, 503, null);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin")
+                .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(body)));
+        assertDownloaded(body, id);
+        //the first request failed three times, then one per segment
+        assertEquals(3 + FILE_SIZE / SEGMENT_SIZE, server.requestCount.get());
+    }
+
+    @Test
+    public void resumesSegmentsCutShort() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(FILE_SIZE, 2);
+        server.put("/pack.bin", body);
+        //more cuts than attempts, each one made progress
+        server.cutNext("/pack.bin", 6, 100 * 1024);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin")
+                .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(body)));
+        assertDownloaded(body, id);
+        //retries asked for what was missing only
+        assertTrue("served " + server.bytesServed.get(), server.bytesServed.get() < FILE_SIZE + 100 * 1024);
+        boolean resumedMidSegment = false;
+        for (String range : server.rangeHeaders) {
+            long start = Long.parseLong(range.substring("bytes=".length(), range.indexOf('-')));
+            if (start % SEGMENT_SIZE != 0) resumedMidSegment = true;
+        }
+        assertTrue(server.rangeHeaders.toString(), resumedMidSegment);
+    }
+
+    @Test
+    public void restartsSingleStreamCutShort() throws Exception {
+        server.setRangesSupported(false);
+        byte[] body = LocalHttpServer.randomBytes(FILE_SIZE, 3);
+        server.put("/pack.bin", body);
+        server.cutNext("/pack.bin", 2, 300 * 1024);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin")
+                .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(body)));
+        assertDownloaded(body, id);
+        assertEquals(3, server.requestCount.get());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        server.put("/pack.bin", LocalHttpServer.randomBytes(FILE_SIZE, 4));
+        server.failNext("/pack.bin", 10, 500, null);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin"));
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 10000);
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(500, status[DownloadService.STATUS_FIELD_REASON]);
+        assertEquals(4, server.requestCount.get());
+    }
+
+    @Test
+    public void doesNotRetryClientErrorsOrClassesLeftOut() throws Exception {
+        long id = engine.enqueue(new DownloadTask(server.url("/missing.bin"), "missing.bin"));
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 10000);
+        assertEquals(404, status[DownloadService.STATUS_FIELD_REASON]);
+        assertEquals(1, server.requestCount.get());
+
+        retryPolicy.set(4, 10, 50, RetryPolicy.NETWORK);
+        server.put("/pack.bin", LocalHttpServer.randomBytes(FILE_SIZE, 5));
+        server.failNext("/pack.bin", 1, 502, null);
+        id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin"));
+        status = RangeDownloadEngineTest.awaitFinished(engine, id, 10000);
+        assertEquals(502, status[DownloadService.STATUS_FIELD_REASON]);
+        assertEquals(2, server.requestCount.get());
+    }
+
+    @Test
+    public void failsOverToMirrors() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(FILE_SIZE, 6);
+        //nothing listens on the primary, the first mirror is overloaded
+        ServerSocket closed = new ServerSocket(0);
+        String down = "http://127.0.0.1:" + closed.getLocalPort() + "/pack.bin";
+        closed.close();
+        LocalHttpServer overloaded = new LocalHttpServer();
+        try {
+            overloaded.put("/pack.bin", body);
+            overloaded.failNext("/pack.bin", 100, 503, "0");
+            server.put("/pack.bin", body);
+
+            long failovers = DownloadMetrics.shared().counter(DownloadMetrics.DOWNLOADS_MIRROR_FAILOVERS);
+            long id = engine.enqueue(new DownloadTask(down, "pack.bin")
+                    .addMirror(overloaded.url("/pack.bin"))
+                    .addMirror(server.url("/pack.bin"))
+                    .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(body)));
+            assertDownloaded(body, id);
+            assertEquals(1, overloaded.requestCount.get());
+            assertEquals(FILE_SIZE / SEGMENT_SIZE, server.requestCount.get());
+            assertEquals(2, DownloadMetrics.shared().counter(DownloadMetrics.DOWNLOADS_MIRROR_FAILOVERS) - failovers);
+        } finally {
+            overloaded.stop();
+        }
+    }
+
+    @Test
+    public void holdsWifiOnlyDownloadsUntilWifi() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(FILE_SIZE, 7);
+        server.put("/pack.bin", body);
+        final boolean[] onWifi = new boolean[1];
+        RangeDownloadEngine held = new RangeDownloadEngine(folder.newFolder(), 4, SEGMENT_SIZE, new RateLimiter(),
+                new SyncPolicy(), retryPolicy, new NetworkPolicy() {
+                    @Override
+                    boolean isOnWifi() {
+                        synchronized (onWifi) {
+                            return onWifi[0];
+                        }
+                    }
+                });
+        try {
+            long mobile = held.enqueue(new DownloadTask(server.url("/pack.bin"), "mobile.bin").setAllowMobile(true));
+            long[] status = RangeDownloadEngineTest.awaitFinished(held, mobile, 10000);
+            assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+            int requests = server.requestCount.get();
+
+            long id = held.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin")
+                    .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(body)));
+            Thread.sleep(300);
+            status = RangeDownloadEngineTest.query(held, id);
+            assertEquals(DownloadManager.STATUS_PAUSED, status[DownloadService.STATUS_FIELD_STATUS]);
+            assertEquals(DownloadManager.PAUSED_QUEUED_FOR_WIFI, status[DownloadService.STATUS_FIELD_REASON]);
+            assertEquals(requests, server.requestCount.get());
+
+            synchronized (onWifi) {
+                onWifi[0] = true;
+            }
+            status = RangeDownloadEngineTest.awaitFinished(held, id, NetworkPolicy.CHECK_INTERVAL_MS + 10000);
+            assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+            assertArrayEquals(body, RangeDownloadEngineTest.readAll(held.openDownloadedFile(id)));
+        } finally {
+            held.shutdown();
+        }
+    }
+
+    @Test
+    public void journalKeepsMirrors() throws Exception {
+        File file = new File(folder.getRoot(), "mirrors.journal");
+        DownloadJournal journal = new DownloadJournal(file);
+        journal.open();
+        journal.started(-7, new DownloadTask("http://a/f", "f").addMirror("http://b/f").addMirror("http://c/f"),
+                "\"e\"", null, 100, 10);
+        journal.close();
+
+        DownloadJournal.Entry entry = new DownloadJournal(file).open().get(-7L);
+        assertEquals("http://c/f", entry.toTask().getUrl(2));
+        assertEquals("http://a/f", entry.toTask().getUrl(3));
+    }
+
+    @Test
+    public void delaysGrowWithJitterAndHonorRetryAfter() {
+        retryPolicy.set(10, 100, 1000, RetryPolicy.NETWORK);
+        boolean jittered = false;
+        long first = retryPolicy.delayMs(1, -1);
+        for (int i = 0; i < 100; i++) {
+            long delay = retryPolicy.delayMs(1, -1);
+            assertTrue(delay >= 0 && delay <= 100);
+            if (delay != first) jittered = true;
+            assertTrue(retryPolicy.delayMs(4, -1) <= 800);
+            assertTrue(retryPolicy.delayMs(30, -1) <= 1000);
+            assertTrue(retryPolicy.delayMs(1, 700) >= 700);
+            assertEquals(1000, retryPolicy.delayMs(1, 5000));
+        }
+        assertTrue(jittered);
+
+        assertEquals(RetryPolicy.NETWORK, RetryPolicy.classify(DownloadManager.ERROR_HTTP_DATA_ERROR));
+        assertEquals(RetryPolicy.THROTTLED, RetryPolicy.classify(429));
+        assertEquals(RetryPolicy.SERVER, RetryPolicy.classify(502));
+        assertEquals(0, RetryPolicy.classify(501));
+        assertEquals(0, RetryPolicy.classify(DownloadService.ERROR_HASH_MISMATCH));
+        assertEquals(2000, RetryPolicy.parseRetryAfter(" 2"));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+    }
+}
@@ -0,0 +1,201 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class RangeDownloadEngineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    static long[] query(DownloadEngine engine, long id) {
+        long[] status = new long[DownloadService.STATUS_STRIDE];
+        status[DownloadService.STATUS_FIELD_ID] = id;
+        status[DownloadService.STATUS_FIELD_STATUS] = DownloadService.STATUS_NOT_FOUND;
+        engine.query(new long[]{id}, status);
+        return status;
+    }
+
+    static long[] awaitFinished(DownloadEngine engine, long id, long timeoutMs) throws InterruptedException {
+        long[] status = new long[DownloadService.STATUS_STRIDE];
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            status = query(engine, id);
+            long state = status[DownloadService.STATUS_FIELD_STATUS];
+            if (state == DownloadManager.STATUS_SUCCESSFUL || state == DownloadManager.STATUS_FAILED) return status;
+            Thread.sleep(5);
+        }
+        fail("download " + id + " did not finish in " + timeoutMs + "ms");
+        return status;
+    }
+
+    static byte[] readAll(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void downloadsBigFileInParallelSegments() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(5 * 1024 * 1024 + 123, 1);
+        server.put("/pack.bin", body);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 4, 512 * 1024);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin"));
+        long[] status = awaitFinished(engine, id, 10000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(body.length, status[DownloadService.STATUS_FIELD_BYTES_SO_FAR]);
+        assertEquals(body.length, status[DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+        assertArrayEquals(body, readAll(engine.openDownloadedFile(id)));
+        assertEquals(11, server.rangeHeaders.size());
+        engine.shutdown();
+    }
+
+    @Test
+    public void downloadsSingleStreamWhenServerIgnoresRanges() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(300 * 1024, 2);
+        server.put("/pack.bin", body);
+        server.setRangesSupported(false);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 4, 64 * 1024);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin"));
+        long[] status = awaitFinished(engine, id, 10000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(body, readAll(engine.openDownloadedFile(id)));
+        assertEquals(1, server.requestCount.get());
+        engine.shutdown();
+    }
+
+    @Test
+    public void downloadsEmptyFile() throws Exception {
+        server.put("/empty.bin", new byte[0]);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 2, 64 * 1024);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/empty.bin"), "empty.bin"));
+        long[] status = awaitFinished(engine, id, 10000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(0, readAll(engine.openDownloadedFile(id)).length);
+        engine.shutdown();
+    }
+
+    @Test
+    public void reportsHttpErrorAsReason() throws Exception {
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 2, 64 * 1024);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/missing.bin"), "missing.bin"));
+        long[] status = awaitFinished(engine, id, 10000);
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(404, status[DownloadService.STATUS_FIELD_REASON]);
+        engine.shutdown();
+    }
+
+    @Test
+    public void removeDeletesDownload() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(64 * 1024, 3);
+        server.put("/pack.bin", body);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 2, 16 * 1024);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin"));
+        awaitFinished(engine, id, 10000);
+
+        assertTrue(engine.remove(id));
+        assertFalse(engine.owns(id));
+        assertFalse(new File(folder.getRoot(), "pack.bin").exists());
+        engine.shutdown();
+    }
+
+    @Test
+    public void verifiesDigestOfParallelSegments() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(3 * 1024 * 1024 + 5, 9);
+        server.put("/pack.bin", body);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 4, 256 * 1024);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin")
+                .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(body)));
+        long[] status = awaitFinished(engine, id, 10000);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(body, readAll(engine.openDownloadedFile(id)));
+        engine.shutdown();
+    }
+
+    @Test
+    public void failsOnDigestMismatch() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(300 * 1024, 10);
+        server.put("/pack.bin", body);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 2, 64 * 1024);
+
+        byte[] other = body.clone();
+        other[1000] ^= 1;
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin")
+                .setExpectedDigest("SHA-256", StreamingDigestTest.sha256(other)));
+        long[] status = awaitFinished(engine, id, 10000);
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadService.ERROR_HASH_MISMATCH, status[DownloadService.STATUS_FIELD_REASON]);
+        assertNull(engine.getDownloadedFile(id));
+        engine.shutdown();
+    }
+
+    /**
+     * Every connection is capped like a congested link, which is where a single DownloadManager stream loses out
+     */
+    @Test
+    public void parallelSegmentsOutrunSingleStream() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(2 * 1024 * 1024, 4);
+        server.put("/pack.bin", body);
+        server.setBytesPerSecondPerConnection(2 * 1024 * 1024);
+
+        long single = timeDownload(new RangeDownloadEngine(folder.newFolder(), 1, body.length), "single");
+        long parallel = timeDownload(new RangeDownloadEngine(folder.newFolder(), 4, body.length / 4), "parallel");
+
+        System.out.printf("single stream: %d bytes/s, 4 segments: %d bytes/s%n",
+                body.length * 1000L / single, body.length * 1000L / parallel);
+        assertTrue("parallel took " + parallel + "ms, single " + single + "ms", parallel * 2 < single);
+    }
+
+    private long timeDownload(RangeDownloadEngine engine, String name) throws Exception {
+        long start = System.currentTimeMillis();
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), name));
+        long[] status = awaitFinished(engine, id, 20000);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        engine.shutdown();
+        return elapsed;
+    }
+}
@@ -0,0 +1,93 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+    private static final int SEGMENT_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void sharesLimitAcrossConnections() throws Exception {
+        long limit = 1024 * 1024;
+        byte[] a = LocalHttpServer.randomBytes(1024 * 1024, 1);
+        byte[] b = LocalHttpServer.randomBytes(1024 * 1024, 2);
+        server.put("/a.bin", a);
+        server.put("/b.bin", b);
+        RateLimiter rateLimiter = new RateLimiter();
+        rateLimiter.setBytesPerSecond(limit);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 4, SEGMENT_SIZE, rateLimiter);
+
+        long start = System.nanoTime();
+        long idA = engine.enqueue(new DownloadTask(server.url("/a.bin"), "a.bin"));
+        long idB = engine.enqueue(new DownloadTask(server.url("/b.bin"), "b.bin"));
+        RangeDownloadEngineTest.awaitFinished(engine, idA, 20000);
+        RangeDownloadEngineTest.awaitFinished(engine, idB, 20000);
+        long ms = (System.nanoTime() - start) / 1000000;
+
+        long rate = (a.length + b.length) * 1000L / ms;
+        System.out.println("limited to " + limit + " bytes/s, got " + rate);
+        assertTrue("got " + rate + " bytes/s", rate <= limit * 115 / 100);
+        assertTrue("got " + rate + " bytes/s", rate >= limit * 85 / 100);
+        assertArrayEquals(a, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(idA)));
+        assertArrayEquals(b, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(idB)));
+        engine.shutdown();
+    }
+
+    @Test
+    public void liftingLimitSpeedsUpRunningDownloads() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(4 * 1024 * 1024, 3);
+        server.put("/pack.bin", body);
+        RateLimiter rateLimiter = new RateLimiter();
+        rateLimiter.setBytesPerSecond(256 * 1024);
+        RangeDownloadEngine engine = new RangeDownloadEngine(folder.getRoot(), 4, SEGMENT_SIZE, rateLimiter);
+
+        long id = engine.enqueue(new DownloadTask(server.url("/pack.bin"), "pack.bin"));
+        Thread.sleep(500);
+        long[] status = RangeDownloadEngineTest.query(engine, id);
+        assertEquals(DownloadManager.STATUS_RUNNING, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertTrue(status[DownloadService.STATUS_FIELD_BYTES_SO_FAR] < body.length / 4);
+
+        //16 seconds at the old limit
+        rateLimiter.setBytesPerSecond(0);
+        status = RangeDownloadEngineTest.awaitFinished(engine, id, 5000);
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(engine.openDownloadedFile(id)));
+        engine.shutdown();
+    }
+
+    @Test
+    public void unlimitedNeverWaits() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter();
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            rateLimiter.acquire(1024 * 1024);
+        }
+        assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+        assertEquals(4096, rateLimiter.chunkSize(4096));
+
+        rateLimiter.setBytesPerSecond(100 * 1000);
+        assertEquals(100 * RateLimiter.BURST_MS, rateLimiter.chunkSize(64 * 1024));
+    }
+}
@@ -0,0 +1,189 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+import android.database.Cursor;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Polls fake DownloadManager cursors through checkStatus the way Unity does every frame, comparing the old lookup
+ * of columns and rows by name with the cached column indices and queries, in time and bytes allocated per call
+ */
+public class StatusPathBenchmarkTest {
+    private static final int WARMUP_CALLS = 50000;
+    private static final int CALLS = 200000;
+
+    private static final long[][] ROWS = {
+            {3, DownloadManager.STATUS_RUNNING, 1000, 4000, 0},
+            {5, DownloadManager.STATUS_PAUSED, 20, 4000, 2},
+            {900, DownloadManager.STATUS_SUCCESSFUL, 4000, 4000, 0},
+            {901, DownloadManager.STATUS_FAILED, 0, -1, 404},
+    };
+
+    @Test
+    public void readsStatusOfEveryRequestedId() {
+        long[] ids = {901, 3, 77, 3};
+        long[] out = new long[ids.length * DownloadService.STATUS_STRIDE];
+        StatusRow.prefill(ids, out);
+        DownloadColumns.readStatus(new FakeCursor(ROWS), ids, out);
+
+        assertArrayEquals(new long[]{
+                901, DownloadManager.STATUS_FAILED, 0, -1, 404,
+                3, DownloadManager.STATUS_RUNNING, 1000, 4000, 0,
+                77, DownloadService.STATUS_NOT_FOUND, 0, -1, 0,
+                3, DownloadManager.STATUS_RUNNING, 1000, 4000, 0}, out);
+    }
+
+    @Test
+    public void resolvesColumnsAgainWhenLayoutChanges() {
+        String[] columns = {DownloadManager.COLUMN_STATUS, DownloadManager.COLUMN_REASON,
+                DownloadManager.COLUMN_TOTAL_SIZE_BYTES, DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR,
+                DownloadManager.COLUMN_LOCAL_URI, DownloadManager.COLUMN_ID};
+        long[] ids = {5};
+        long[] out = new long[DownloadService.STATUS_STRIDE];
+
+        DownloadColumns.readStatus(new FakeCursor(ROWS), ids, out);
+        FakeCursor reordered = new FakeCursor(columns, ROWS);
+        DownloadColumns.readStatus(reordered, ids, out);
+        assertTrue(reordered.columnIndexLookups > 0);
+        assertArrayEquals(new long[]{0, DownloadManager.STATUS_PAUSED, 20, 4000, 2}, out);
+
+        //same layout as last time, nothing to look up
+        reordered = new FakeCursor(columns, ROWS);
+        DownloadColumns.readStatus(reordered, ids, out);
+        assertEquals(0, reordered.columnIndexLookups);
+    }
+
+    @Test
+    public void splitsBigBatchesToStayWithinTheProvidersLimit() {
+        int count = 2 * DownloadColumns.MAX_QUERY_IDS + 2;
+        long[] ids = new long[count];
+        long[][] rows = new long[count][];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i + 1;
+            rows[i] = new long[]{i + 1, DownloadManager.STATUS_RUNNING, i, 10000, 0};
+        }
+        FakeSystemEngine engine = new FakeSystemEngine(new FakeCursor(rows));
+        long[] out = new long[count * DownloadService.STATUS_STRIDE];
+
+        engine.query(ids, out);
+        assertEquals(3, engine.runs);
+        assertEquals(count - 1, out[(count - 1) * DownloadService.STATUS_STRIDE
+                + DownloadService.STATUS_FIELD_BYTES_SO_FAR]);
+
+        engine.runs = 0;
+        engine.query(Arrays.copyOf(ids, DownloadColumns.MAX_QUERY_IDS), out);
+        assertEquals(1, engine.runs);
+    }
+
+    @Test
+    public void pollingAllocatesNothing() {
+        Assume.assumeTrue("allocation counting needs a HotSpot JVM", allocatedBytes() >= 0);
+        //logcat and Unity aren't there
+        DownloadService.setLogLevel(Integer.MAX_VALUE);
+        DownloadService.setUnityLogLevel(Integer.MAX_VALUE);
+
+        final FakeCursor cursor = new FakeCursor(ROWS);
+        DownloadService service = new DownloadService(null, new FakeSystemEngine(cursor), null);
+        //the way Unity polls several downloads in turn, one call each
+        String[] ids = {"3", "5", "900", "901"};
+        long[] batch = new long[ids.length * DownloadService.STATUS_STRIDE];
+
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            service.checkStatus(ids[i % ids.length]);
+            pollByName(cursor.rewind(), new long[]{900}, batch);
+        }
+
+        cursor.columnIndexLookups = 0;
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            service.checkStatus(ids[i % ids.length]);
+        }
+        long cachedNanos = System.nanoTime() - start;
+        long cachedBytes = allocatedBytes() - bytes;
+        assertEquals(0, cursor.columnIndexLookups);
+        assertEquals(25, service.checkStatus("3"));
+        assertEquals(100, service.checkStatus("900"));
+        assertEquals(-1, service.checkStatus("901"));
+
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            pollByName(cursor.rewind(), new long[]{900}, batch);
+        }
+        long byNameNanos = System.nanoTime() - start;
+        long byNameBytes = allocatedBytes() - bytes;
+
+        System.out.printf("single status poll: by name %d ns and %d bytes per call, cached %d ns and %d bytes per call%n",
+                byNameNanos / CALLS, byNameBytes / CALLS, cachedNanos / CALLS, cachedBytes / CALLS);
+        //the allocation counter itself may allocate a little when it's first asked
+        assertTrue(cachedBytes + " bytes allocated", cachedBytes < CALLS / 100);
+    }
+
+    /**
+     * How SystemDownloadEngine.query read a cursor before column indices were cached
+     */
+    private static void pollByName(FakeCursor cursor, long[] ids, long[] out) {
+        Map<Long, Integer> offsets = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            if (!offsets.containsKey(ids[i])) offsets.put(ids[i], i * DownloadService.STATUS_STRIDE);
+        }
+        int idColumn = cursor.getColumnIndex(DownloadManager.COLUMN_ID);
+        int statusColumn = cursor.getColumnIndex(DownloadManager.COLUMN_STATUS);
+        int currentColumn = cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR);
+        int totalColumn = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+        int reasonColumn = cursor.getColumnIndex(DownloadManager.COLUMN_REASON);
+        while (cursor.moveToNext()) {
+            Integer offset = offsets.get(cursor.getLong(idColumn));
+            if (offset == null) continue;
+
+            out[offset + DownloadService.STATUS_FIELD_STATUS] = cursor.getInt(statusColumn);
+            out[offset + DownloadService.STATUS_FIELD_BYTES_SO_FAR] = cursor.getLong(currentColumn);
+            out[offset + DownloadService.STATUS_FIELD_TOTAL_BYTES] = cursor.getLong(totalColumn);
+            out[offset + DownloadService.STATUS_FIELD_REASON] = cursor.getInt(reasonColumn);
+        }
+        //checkStatus also formatted a debug message on every call
+        String.format("Download file id %s is %s -- %s", ids[0], "running", "pack.bin");
+    }
+
+    /**
+     * @return - bytes allocated by this thread so far, -1 if the JVM can't tell
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean hotSpotThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!hotSpotThreads.isThreadAllocatedMemorySupported()) return -1;
+        return hotSpotThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * SystemDownloadEngine over a fake cursor, DownloadManager only exists on a device. The cursor has every row
+     * whatever the query filters by, readStatus picks the ids it was asked for.
+     */
+    private static class FakeSystemEngine extends SystemDownloadEngine {
+        private final FakeCursor cursor;
+        int runs;
+
+        FakeSystemEngine(FakeCursor cursor) {
+            super(null, null);
+            this.cursor = cursor;
+        }
+
+        @Override
+        Cursor run(DownloadManager.Query query) {
+            assertNotNull(query);
+            runs++;
+            return cursor.rewind();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class StreamingDigestTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static String sha256(byte[] body) throws Exception {
+        StreamingDigest digest = StreamingDigest.create("SHA-256");
+        digest.update(body, 0, body.length);
+        return digest.toHex();
+    }
+
+    private static String hex(String algorithm, byte[] bytes) throws Exception {
+        StreamingDigest digest = StreamingDigest.create(algorithm);
+        digest.update(bytes, 0, bytes.length);
+        return digest.toHex();
+    }
+
+    @Test
+    public void knownValues() throws Exception {
+        byte[] check = "123456789".getBytes("US-ASCII");
+        assertEquals("cbf43926", hex("CRC32", check));
+        assertEquals("e3069283", hex("CRC32C", check));
+        assertEquals("8a9136aa", hex("crc32c", new byte[32]));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                hex("SHA-256", "abc".getBytes("US-ASCII")));
+        assertFalse(StreamingDigest.isSupported("NOPE-1"));
+    }
+
+    @Test
+    public void incrementalMatchesOneShot() throws Exception {
+        byte[] body = LocalHttpServer.randomBytes(100 * 1000 + 3, 11);
+        for (String algorithm : new String[]{"CRC32", "CRC32C", "SHA-256"}) {
+            StreamingDigest digest = StreamingDigest.create(algorithm);
+            int[] steps = {1, 7, 8, 63, 4096, 9000};
+            int position = 0;
+            for (int i = 0; position < body.length; i++) {
+                int n = Math.min(steps[i % steps.length], body.length - position);
+                if (i % 2 == 0) {
+                    digest.update(body, position, n);
+                } else {
+                    ByteBuffer direct = ByteBuffer.allocateDirect(n);
+                    direct.put(body, position, n).flip();
+                    digest.update(direct);
+                    assertFalse(direct.hasRemaining());
+                }
+                position += n;
+            }
+            assertEquals(algorithm, hex(algorithm, body), digest.toHex());
+            assertTrue(digest.matches(hex(algorithm, body).toUpperCase()));
+        }
+        assertEquals(hex("SHA-256", body), toHex(MessageDigest.getInstance("SHA-256").digest(body)));
+    }
+
+    @Test
+    public void copyHashesOnTheWay() throws Exception {
+        File source = folder.newFile("download.bin");
+        byte[] body = LocalHttpServer.randomBytes(1024 * 1024 + 17, 12);
+        OutputStream out = new FileOutputStream(source);
+        out.write(body);
+        out.close();
+
+        File dest = new File(folder.getRoot(), "dest.bin");
+        StreamingDigest digest = StreamingDigest.create("CRC32C");
+        assertEquals(body.length, FileTransfers.copy(new FileInputStream(source), dest, null, digest));
+        assertEquals(hex("CRC32C", body), digest.toHex());
+        assertArrayEquals(body, RangeDownloadEngineTest.readAll(new FileInputStream(dest)));
+
+        digest = StreamingDigest.create("CRC32C");
+        assertEquals(body.length, FileTransfers.digest(dest, digest, null));
+        assertEquals(hex("CRC32C", body), digest.toHex());
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
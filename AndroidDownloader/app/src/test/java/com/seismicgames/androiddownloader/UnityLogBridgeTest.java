@@ -0,0 +1,73 @@
+package com.seismicgames.androiddownloader;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class UnityLogBridgeTest {
+
+    private static class RecordingSender implements UnityLogBridge.Sender {
+        final List<String> batches = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(String batch) {
+            batches.add(batch);
+        }
+    }
+
+    @Test
+    public void sendsQueuedMessagesAsOneBatch() {
+        RecordingSender sender = new RecordingSender();
+        UnityLogBridge bridge = new UnityLogBridge(16, 0, sender);
+        bridge.log(Log.DEBUG, "Tag: first");
+        bridge.log(Log.ERROR, "Tag: second\nline");
+        bridge.log(Log.WARN, "Tag: third");
+        assertTrue(sender.batches.isEmpty());
+
+        bridge.flush();
+        assertEquals(1, sender.batches.size());
+        assertEquals("D Tag: first\nE Tag: second line\nW Tag: third", sender.batches.get(0));
+
+        //nothing new, nothing sent
+        bridge.flush();
+        assertEquals(1, sender.batches.size());
+    }
+
+    @Test
+    public void dropsOldestWhenFull() {
+        RecordingSender sender = new RecordingSender();
+        UnityLogBridge bridge = new UnityLogBridge(3, 0, sender);
+        for (int i = 0; i < 5; i++) {
+            bridge.log(Log.INFO, "message " + i);
+        }
+        bridge.flush();
+        assertEquals("W 2 log messages dropped\nI message 2\nI message 3\nI message 4", sender.batches.get(0));
+
+        //the ring starts over cleanly
+        bridge.log(Log.INFO, "message 5");
+        bridge.flush();
+        assertEquals("I message 5", sender.batches.get(1));
+    }
+
+    @Test
+    public void flushesOnceAfterInterval() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        UnityLogBridge bridge = new UnityLogBridge(16, 50, sender);
+        for (int i = 0; i < 10; i++) {
+            bridge.log(Log.INFO, "message " + i);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.batches.isEmpty()) {
+            assertTrue("never flushed", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        Thread.sleep(200);
+        assertEquals(1, sender.batches.size());
+        assertEquals(10, sender.batches.get(0).split("\n").length);
+    }
+}
@@ -0,0 +1,246 @@
+package com.seismicgames.androiddownloader;
+
+import android.app.DownloadManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class UnpackDownloadEngineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalHttpServer server;
+    private UnpackDownloadEngine engine;
+    private File dest;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        engine = new UnpackDownloadEngine(2);
+        dest = new File(folder.getRoot(), "content");
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+        server.stop();
+    }
+
+    /**
+     * @param entries - name and bytes of each file, names ending with / are directories
+     */
+    static byte[] zip(Object... entries) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < entries.length; i += 2) {
+            zip.putNextEntry(new ZipEntry((String) entries[i]));
+            if (entries[i + 1] != null) zip.write((byte[]) entries[i + 1]);
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param entries - name and bytes of each file, null bytes for directories
+     */
+    static byte[] tar(Object... entries) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < entries.length; i += 2) {
+            String name = (String) entries[i];
+            byte[] content = (byte[]) entries[i + 1];
+            if (name.length() > 100) {
+                byte[] longName = (name + "\0").getBytes("UTF-8");
+                bytes.write(tarHeader("././@LongLink", longName.length, 'L'));
+                bytes.write(longName);
+                bytes.write(new byte[(512 - longName.length % 512) % 512]);
+                name = name.substring(0, 100);
+            }
+            int size = content != null ? content.length : 0;
+            bytes.write(tarHeader(name, size, content != null ? '0' : '5'));
+            if (content != null) {
+                bytes.write(content);
+                bytes.write(new byte[(512 - size % 512) % 512]);
+            }
+        }
+        bytes.write(new byte[1024]);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] tarHeader(String name, long size, char type) throws Exception {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes("UTF-8");
+        System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, 0);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes("US-ASCII"), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        long sum = 0;
+        for (int i = 0; i < 512; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : header[i] & 0xff;
+        }
+        octal(header, 148, 7, sum);
+        return header;
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        while (digits.length() < length - 1) digits = "0" + digits;
+        for (int i = 0; i < digits.length(); i++) {
+            header[offset + i] = (byte) digits.charAt(i);
+        }
+    }
+
+    static byte[] gzip(byte[] bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] read(File file) throws Exception {
+        return RangeDownloadEngineTest.readAll(new FileInputStream(file));
+    }
+
+    private long[] unpack(String path, byte[] archive, String digestAlgorithm, String digest) throws Exception {
+        server.put(path, archive);
+        long id = engine.enqueue(new DownloadTask(server.url(path), path.substring(1))
+                .setExtractTo(dest.getPath())
+                .setExpectedDigest(digestAlgorithm, digest));
+        return RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+    }
+
+    @Test
+    public void unpacksZipAsItArrives() throws Exception {
+        byte[] big = LocalHttpServer.randomBytes(2 * 1024 * 1024, 1);
+        byte[] small = "hello".getBytes("UTF-8");
+        byte[] archive = zip("data/", null, "data/big.bin", big, "data/nested/small.txt", small);
+        long written = DownloadMetrics.shared().counter(DownloadMetrics.UNPACK_BYTES_WRITTEN);
+
+        long[] status = unpack("/pack.zip", archive, "SHA-256", StreamingDigestTest.sha256(archive));
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(archive.length, status[DownloadService.STATUS_FIELD_BYTES_SO_FAR]);
+        assertEquals(archive.length, status[DownloadService.STATUS_FIELD_TOTAL_BYTES]);
+        assertArrayEquals(big, read(new File(dest, "data/big.bin")));
+        assertArrayEquals(small, read(new File(dest, "data/nested/small.txt")));
+        assertEquals(big.length + small.length,
+                DownloadMetrics.shared().counter(DownloadMetrics.UNPACK_BYTES_WRITTEN) - written);
+        assertFalse(new File(dest.getPath() + UnpackDownloadEngine.PARTIAL_SUFFIX).exists());
+        //only the unpacked files, never the archive
+        assertEquals(1, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void unpacksTarGzReplacingOldContent() throws Exception {
+        assertTrue(new File(dest, "stale").mkdirs());
+        byte[] a = LocalHttpServer.randomBytes(100 * 1000, 2);
+        byte[] b = LocalHttpServer.randomBytes(513, 3);
+        String longName = "deep/" + new String(new char[120]).replace('\0', 'x') + ".bin";
+        byte[] archive = gzip(tar("./", null, "./a.bin", a, "dir/", null, "dir/b.bin", b, longName, b));
+
+        long[] status = unpack("/pack.tar.gz", archive, null, null);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(a, read(new File(dest, "a.bin")));
+        assertArrayEquals(b, read(new File(dest, "dir/b.bin")));
+        assertArrayEquals(b, read(new File(dest, longName)));
+        assertFalse(new File(dest, "stale").exists());
+    }
+
+    @Test
+    public void gunzipsSingleFile() throws Exception {
+        byte[] file = LocalHttpServer.randomBytes(300 * 1000, 4);
+
+        long[] status = unpack("/level.dat.gz", gzip(file), null, null);
+
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertArrayEquals(file, read(new File(dest, "level.dat")));
+    }
+
+    @Test
+    public void rejectsEntriesOutsideDirectory() throws Exception {
+        byte[] archive = zip("ok.txt", new byte[10], "../escaped.txt", new byte[10]);
+
+        long[] status = unpack("/evil.zip", archive, null, null);
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadService.ERROR_ARCHIVE, status[DownloadService.STATUS_FIELD_REASON]);
+        assertFalse(new File(folder.getRoot(), "escaped.txt").exists());
+        assertFalse(dest.exists());
+        assertFalse(new File(dest.getPath() + UnpackDownloadEngine.PARTIAL_SUFFIX).exists());
+    }
+
+    @Test
+    public void keepsOldContentOnDigestMismatch() throws Exception {
+        assertTrue(dest.mkdirs());
+        File old = new File(dest, "old.txt");
+        FileOutputStream output = new FileOutputStream(old);
+        output.write(1);
+        output.close();
+        byte[] archive = zip("new.txt", new byte[10]);
+
+        long[] status = unpack("/pack.zip", archive, "SHA-256", StreamingDigestTest.sha256(new byte[1]));
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadService.ERROR_HASH_MISMATCH, status[DownloadService.STATUS_FIELD_REASON]);
+        assertTrue(old.exists());
+        assertFalse(new File(dest, "new.txt").exists());
+    }
+
+    @Test
+    public void failsOnCorruptArchive() throws Exception {
+        byte[] archive = gzip(tar("a.bin", LocalHttpServer.randomBytes(100 * 1000, 5)));
+        //flip bits in the middle of the deflate stream
+        for (int i = archive.length / 2; i < archive.length / 2 + 64; i++) {
+            archive[i] ^= 0x5a;
+        }
+
+        long[] status = unpack("/pack.tar.gz", archive, null, null);
+
+        assertEquals(DownloadManager.STATUS_FAILED, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertEquals(DownloadService.ERROR_ARCHIVE, status[DownloadService.STATUS_FIELD_REASON]);
+
+        status = unpack("/notes.txt", "not an archive".getBytes("UTF-8"), null, null);
+        assertEquals(DownloadService.ERROR_ARCHIVE, status[DownloadService.STATUS_FIELD_REASON]);
+    }
+
+    @Test
+    public void refusesSecondUnpackIntoSameDirectory() throws Exception {
+        byte[] archive = zip("a.bin", LocalHttpServer.randomBytes(256 * 1024, 6));
+        server.put("/slow.zip", archive);
+        server.setBytesPerSecondPerConnection(512 * 1024);
+        long id = engine.enqueue(new DownloadTask(server.url("/slow.zip"), "slow.zip").setExtractTo(dest.getPath()));
+        try {
+            engine.enqueue(new DownloadTask(server.url("/slow.zip"), "slow.zip").setExtractTo(dest.getPath()));
+            fail("both unpacks would share the staging directory");
+        } catch (IOException expected) {
+        }
+        long[] status = RangeDownloadEngineTest.awaitFinished(engine, id, 20000);
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+
+        //once it ended the directory is free again
+        server.setBytesPerSecondPerConnection(0);
+        status = unpack("/pack.zip", zip("b.bin", new byte[10]), null, null);
+        assertEquals(DownloadManager.STATUS_SUCCESSFUL, status[DownloadService.STATUS_FIELD_STATUS]);
+        assertTrue(new File(dest, "b.bin").exists());
+    }
+}
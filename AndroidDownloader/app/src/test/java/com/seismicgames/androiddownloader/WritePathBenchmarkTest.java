@@ -0,0 +1,200 @@
+package com.seismicgames.androiddownloader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares how segments used to be written, a fresh heap buffer per transfer handed to the channel one network read
+ * at a time, with the pooled direct buffers of {@link FileSink}, for garbage, GC and throughput, and the sync
+ * policies against each other
+ */
+public class WritePathBenchmarkTest {
+    private static final int FILES = 200;
+    private static final int FILE_SIZE = 1024 * 1024;
+    //what a socket read returns at most
+    private static final int NETWORK_READ = 16 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] source = LocalHttpServer.randomBytes(FILE_SIZE, 9);
+
+    @Test
+    public void pooledDirectBuffersMakeLessGarbage() throws Exception {
+        Result old = null;
+        Result pooled = null;
+        for (int round = 0; round < ROUNDS; round++) {
+            old = best(old, run("old", false, new SyncPolicy()));
+            pooled = best(pooled, run("pooled", true, new SyncPolicy()));
+        }
+
+        System.out.printf("%d files of %d KB, sync every 2MB: old %s, pooled %s%n", FILES, FILE_SIZE >> 10, old,
+                pooled);
+        if (old.allocatedBytes >= 0) assertTrue(pooled.allocatedBytes < old.allocatedBytes / 4);
+    }
+
+    @Test
+    public void syncPolicies() throws Exception {
+        String[] names = {"never", "on completion", "every 2MB"};
+        StringBuilder out = new StringBuilder();
+        for (int mode = SyncPolicy.NEVER; mode <= SyncPolicy.EVERY_N_BYTES; mode++) {
+            SyncPolicy policy = new SyncPolicy();
+            policy.set(mode, SyncPolicy.DEFAULT_INTERVAL_BYTES);
+            Result result = null;
+            for (int round = 0; round < ROUNDS; round++) {
+                result = best(result, run("sync" + mode, true, policy));
+            }
+            if (out.length() > 0) out.append(", ");
+            out.append(names[mode]).append(' ').append(result.mbPerSecond()).append(" MB/s");
+        }
+        System.out.println("pooled write path by sync policy: " + out);
+    }
+
+    private Result run(String name, boolean pooled, SyncPolicy policy) throws IOException {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, NETWORK_READ, 4);
+        File dir = folder.newFolder();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long allocatedBefore = allocatedBytes(threads);
+        long[] gcBefore = gc();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < FILES; i++) {
+            RandomAccessFile raf = new RandomAccessFile(new File(dir, name + i), "rw");
+            try {
+                if (pooled) {
+                    FileTransfers.preallocate(raf, FILE_SIZE);
+                    writePooled(new NetworkStream(source), raf.getChannel(), pool, policy);
+                } else {
+                    raf.setLength(FILE_SIZE);
+                    writeOld(new NetworkStream(source), raf.getChannel(), policy);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+
+        Result result = new Result();
+        result.nanos = System.nanoTime() - start;
+        long[] gcAfter = gc();
+        result.collections = gcAfter[0] - gcBefore[0];
+        result.gcMillis = gcAfter[1] - gcBefore[1];
+        long allocatedAfter = allocatedBytes(threads);
+        result.allocatedBytes = allocatedBefore >= 0 ? allocatedAfter - allocatedBefore : -1;
+        return result;
+    }
+
+    /**
+     * What a segment transfer used to do
+     */
+    private static void writeOld(InputStream input, FileChannel channel, SyncPolicy policy) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long position = 0;
+        long synced = 0;
+        int n;
+        while ((n = input.read(buffer, 0, buffer.length)) >= 0) {
+            wrapped.clear().limit(n);
+            while (wrapped.hasRemaining()) {
+                position += channel.write(wrapped, position);
+            }
+            if (policy.isDue(position - synced)) {
+                channel.force(false);
+                synced = position;
+            }
+        }
+        if (policy.syncsOnCompletion()) channel.force(false);
+    }
+
+    private static void writePooled(InputStream input, FileChannel channel, BufferPool pool, SyncPolicy policy)
+            throws IOException {
+        FileSink sink = new FileSink(channel, 0, pool, policy);
+        try {
+            byte[] buffer = sink.scratch();
+            int n;
+            while ((n = input.read(buffer, 0, buffer.length)) >= 0) {
+                sink.write(n);
+            }
+            sink.finish();
+        } finally {
+            sink.release();
+        }
+    }
+
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @return - collections and milliseconds spent collecting so far
+     */
+    private static long[] gc() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    private static Result best(Result a, Result b) {
+        return a == null || b.nanos < a.nanos ? b : a;
+    }
+
+    private static class Result {
+        long nanos;
+        long collections;
+        long gcMillis;
+        long allocatedBytes;
+
+        long mbPerSecond() {
+            return ((long) FILES * FILE_SIZE * 1000000000L / Math.max(1, nanos)) >> 20;
+        }
+
+        @Override
+        public String toString() {
+            return mbPerSecond() + " MB/s, " + (allocatedBytes >> 10) + " KB allocated, " + collections + " GCs in "
+                    + gcMillis + " ms";
+        }
+    }
+
+    /**
+     * Hands out a file a socket read at a time, without allocating
+     */
+    private static class NetworkStream extends InputStream {
+        private final byte[] body;
+        private int position;
+
+        NetworkStream(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public int read() {
+            return position < body.length ? body[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= body.length) return -1;
+            int n = Math.min(Math.min(len, NETWORK_READ), body.length - position);
+            System.arraycopy(body, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+}